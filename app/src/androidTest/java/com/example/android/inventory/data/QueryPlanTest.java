@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.support.test.InstrumentationRegistry;
+
+import com.example.android.inventory.data.ProductContract.CountEntry;
+import com.example.android.inventory.data.ProductContract.HoldEntry;
+import com.example.android.inventory.data.ProductContract.LotEntry;
+import com.example.android.inventory.data.ProductContract.PriceHistoryEntry;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.SalesDailyEntry;
+import com.example.android.inventory.data.ProductContract.SummaryEntry;
+import com.example.android.inventory.data.ProductContract.TagEntry;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Query plan regression test of the queries {@link ProductProvider} runs.
+ *
+ * Each query is built by the same methods the provider builds it with and planned with EXPLAIN
+ * QUERY PLAN against an in-memory database created by {@link ProductDbHelper}, so it sees the
+ * schema and indexes of the current version. A query that should look its rows up through an
+ * index fails when it scans a table instead, and a query that should read its rows in index
+ * order fails when it sorts them. Queries that really have to read a whole table say so with
+ * the scans they allow.
+ */
+@RunWith(Parameterized.class)
+public class QueryPlanTest {
+
+    /** Value bound to every argument of a planned query; the plan doesn't depend on it */
+    private static final String ARG = "1";
+
+    private static final String SORT_DETAIL = "USE TEMP B-TREE FOR ORDER BY";
+
+    private static ProductDbHelper sDbHelper;
+
+    private final String mSql;
+    private final boolean mSortAllowed;
+    private final List<String> mAllowedScans;
+
+    public QueryPlanTest(String name, String sql, boolean sortAllowed, String[] allowedScans) {
+        mSql = sql;
+        mSortAllowed = sortAllowed;
+        mAllowedScans = Arrays.asList(allowedScans);
+    }
+
+    @BeforeClass
+    public static void createDatabase() {
+        sDbHelper = new ProductDbHelper(InstrumentationRegistry.getTargetContext(), null);
+    }
+
+    @AfterClass
+    public static void closeDatabase() {
+        sDbHelper.close();
+    }
+
+    @Parameters(name = "{0}")
+    public static List<Object[]> cases() {
+        String live = ProductProvider.liveSelection(null);
+        List<Object[]> cases = new ArrayList<Object[]>();
+
+        add(cases, "products/#", productsQuery(ProductProvider.productIdSelection(live), null,
+                null), false);
+        add(cases, "products/stockout?limit", productsQuery(
+                ProductProvider.stockoutSelection(live), ProductProvider.STOCKOUT_SORT_ORDER,
+                "20"), false,
+                // Older SQLite walks the whole index, but stops after the limit
+                ProductEntry.TABLE_NAME + " USING INDEX products_days_to_stockout");
+        add(cases, "products?tag&tag", productsQuery(ProductProvider.appendSelection(live,
+                ProductEntry._ID + " IN (" + ProductProvider.taggedProductsQuery(2) + ")"),
+                null, null), false);
+        add(cases, "products/sku/*", productsQuery(ProductProvider.skuSelection(live), null,
+                null), false);
+        add(cases, "products/sku?sku&sku", productsQuery(
+                ProductProvider.skusSelection(live, 3), null, null), false);
+        add(cases, "products", productsQuery(live, ProductEntry.COLUMN_PRODUCT_NAME + " ASC",
+                null), true, ProductEntry.TABLE_NAME);
+
+        add(cases, "tags/facets", ProductProvider.facetsQuery(0, null, null), true,
+                TagEntry.TABLE_NAME);
+        add(cases, "tags/facets?tag&tag", ProductProvider.facetsQuery(2, null, null), true);
+        add(cases, "summary", SQLiteQueryBuilder.buildQueryString(false,
+                SummaryEntry.TABLE_NAME, null, SummaryEntry._ID + "=1", null, null, null, null),
+                false);
+
+        add(cases, "sales_daily by day", SQLiteQueryBuilder.buildQueryString(false,
+                SalesDailyEntry.TABLE_NAME, null, SalesDailyEntry.COLUMN_DAY + ">=? AND "
+                        + SalesDailyEntry.COLUMN_DAY + "<?", null, null,
+                SalesDailyEntry.COLUMN_DAY + " ASC", null), false);
+        add(cases, "sales_daily by product and day", SQLiteQueryBuilder.buildQueryString(false,
+                SalesDailyEntry.TABLE_NAME, null, SalesDailyEntry.COLUMN_PRODUCT_ID + "=? AND "
+                        + SalesDailyEntry.COLUMN_DAY + ">=? AND " + SalesDailyEntry.COLUMN_DAY
+                        + "<?", null, null, SalesDailyEntry.COLUMN_DAY + " ASC", null), false);
+
+        add(cases, "sync push", productsQuery(ProductEntry.COLUMN_PRODUCT_DIRTY + "=1 AND "
+                + ProductEntry._ID + ">?", ProductEntry._ID + " ASC", "500"), false);
+        add(cases, "sync pull", productsQuery(ProductEntry.COLUMN_PRODUCT_SYNC_ID
+                + " IN (?,?,?)", null, null), false);
+
+        add(cases, "trash chunk", ProductProvider.trashChunkQuery(200), false);
+        add(cases, "trash chunk copy", ProductProvider.trashCopyStatement(ProductEntry._ID, 1),
+                false);
+        add(cases, "trash chunk delete", ProductProvider.updateStatement(
+                ProductEntry.COLUMN_PRODUCT_DELETED + "=1",
+                ProductProvider.trashChunkSelection(), false), false);
+        add(cases, "trash batch", "SELECT * FROM " + ProductDbHelper.TRASH_TABLE_NAME
+                + " WHERE " + ProductProvider.trashBatchSelection(), false);
+        add(cases, "trash older batches", "DELETE FROM " + ProductDbHelper.TRASH_TABLE_NAME
+                + " WHERE " + ProductProvider.olderTrashSelection(), false);
+
+        add(cases, "lots/expiring?limit", ProductProvider.expiringLotsQuery("50"), false);
+        add(cases, "lots of a product", SQLiteQueryBuilder.buildQueryString(false,
+                LotEntry.TABLE_NAME, null, LotEntry.COLUMN_LOT_PRODUCT_ID + "=?", null, null,
+                LotEntry.COLUMN_LOT_EXPIRES_AT + " ASC", null), false);
+        add(cases, "trim lots", ProductDbHelper.trimLots("?", "?"), false);
+
+        add(cases, "locations/#/stock", ProductProvider.locationStockQuery(null), true);
+        add(cases, "products/#/stock", ProductProvider.productStockQuery(), true);
+        add(cases, "trim stock", ProductDbHelper.trimStock("?", "?"), false);
+
+        add(cases, "price_history/at?product&product", ProductProvider.priceAtQuery(2), false);
+        add(cases, "price history of a product", SQLiteQueryBuilder.buildQueryString(false,
+                PriceHistoryEntry.TABLE_NAME, null, PriceHistoryEntry.COLUMN_PRODUCT_ID + "=?",
+                null, null, PriceHistoryEntry.COLUMN_VALID_FROM + " DESC", null), false);
+
+        add(cases, "release expired holds", "DELETE FROM " + HoldEntry.TABLE_NAME + " WHERE "
+                + HoldEntry._ID + " IN (" + ProductProvider.expiredHoldsQuery(200) + ")", false);
+        add(cases, "release expired holds of a product", "DELETE FROM " + HoldEntry.TABLE_NAME
+                + " WHERE " + ProductProvider.expiredHoldsOfProductSelection(), false);
+        add(cases, "next hold expiry", ProductProvider.nextHoldExpiryQuery(), false);
+        add(cases, "sale available", ProductProvider.saleAvailableQuery(), false);
+
+        add(cases, "products/similar", NameTrigrams.candidatesQuery(4), false, "c");
+        add(cases, "products/duplicates", ProductProvider.duplicatesQuery(), false, "d");
+        add(cases, "trigrams of a product", NameTrigrams.deleteStatement(), false);
+
+        add(cases, "count_sessions/#/differences", ProductProvider.differencesQuery(), true);
+        add(cases, "count of a product in a session", SQLiteQueryBuilder.buildQueryString(false,
+                CountEntry.TABLE_NAME, null, ProductProvider.countOfProductSelection(), null,
+                null, null, null), false);
+        add(cases, "reconcile count", productsQuery(ProductProvider.appendSelection(live,
+                ProductProvider.countedWithDifferenceSelection()), null, null), false);
+
+        // Finishing a feed run reads every product and every row the run has seen, once
+        add(cases, "finish feed", productsQuery(ProductProvider.liveSelection(
+                ProductProvider.missingFromFeedSelection()), null, null), false,
+                ProductEntry.TABLE_NAME, ProductDbHelper.FEED_SEEN_TABLE_NAME);
+
+        add(cases, "update products/#", ProductProvider.updateStatement(
+                ProductEntry.COLUMN_PRODUCT_QUANTITY + "=?",
+                ProductProvider.productIdSelection(null), false), false);
+        return cases;
+    }
+
+    private static void add(List<Object[]> cases, String name, String sql, boolean sortAllowed,
+                            String... allowedScans) {
+        cases.add(new Object[] { name, sql, sortAllowed, allowedScans });
+    }
+
+    /**
+     * Return the query {@link SQLiteDatabase#query} runs on the products for the given
+     * selection, sort order and limit.
+     */
+    private static String productsQuery(String selection, String sortOrder, String limit) {
+        return SQLiteQueryBuilder.buildQueryString(false, ProductEntry.TABLE_NAME, null,
+                selection, null, null, sortOrder, limit);
+    }
+
+    /**
+     * Plan the query and fail on every step that breaks its expectations.
+     */
+    @Test
+    public void planUsesIndexes() {
+        String[] args = new String[countArgs(mSql)];
+        Arrays.fill(args, ARG);
+        List<String> violations = new ArrayList<String>();
+        Cursor cursor = sDbHelper.getWritableDatabase().rawQuery("EXPLAIN QUERY PLAN " + mSql,
+                args);
+        try {
+            // The detail is the last column in every SQLite version
+            int detailColumnIndex = cursor.getColumnCount() - 1;
+            while (cursor.moveToNext()) {
+                String detail = cursor.getString(detailColumnIndex);
+                if (isForbiddenScan(detail) || (!mSortAllowed && detail.startsWith(SORT_DETAIL))) {
+                    violations.add(detail);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        assertTrue(violations + " in " + mSql, violations.isEmpty());
+    }
+
+    /**
+     * Return true if the given plan step reads a whole table that isn't among the allowed
+     * scans. Scans of subquery results are left to the steps that produce them.
+     */
+    private boolean isForbiddenScan(String detail) {
+        // SQLite before 3.24 writes "SCAN TABLE products", later versions "SCAN products"
+        String scan = detail.startsWith("SCAN TABLE ") ? detail.substring(11)
+                : detail.startsWith("SCAN ") ? detail.substring(5) : null;
+        if (scan == null || scan.startsWith("(") || scan.startsWith("SUBQUERY")
+                || scan.startsWith("CONSTANT ROW")) {
+            return false;
+        }
+        for (String allowed : mAllowedScans) {
+            if (scan.equals(allowed) || scan.startsWith(allowed + " ")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int countArgs(String sql) {
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
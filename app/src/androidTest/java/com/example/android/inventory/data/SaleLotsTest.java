@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.inventory.data.ProductContract.LotEntry;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of how a sale takes units out of the lots of a product, against an in-memory database
+ * created by {@link ProductDbHelper}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SaleLotsTest {
+
+    private ProductDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void createDatabase() {
+        mDbHelper = new ProductDbHelper(InstrumentationRegistry.getTargetContext(), null);
+        mDatabase = mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void closeDatabase() {
+        mDbHelper.close();
+    }
+
+    @Test
+    public void saleLeavesLotUnitsEqualToQuantity() {
+        long productId = insertProduct(10);
+        long earlyLotId = insertLot(productId, 4, 1000);
+        long lateLotId = insertLot(productId, 6, 2000);
+
+        assertTrue(ProductProvider.sell(mDatabase, productId, 3, System.currentTimeMillis())
+                != -1);
+
+        assertEquals(7, quantity(productId));
+        assertEquals(7, lotUnits(productId));
+        // The earliest expiring lot gives up the units
+        assertEquals(1, lotQuantity(earlyLotId));
+        assertEquals(6, lotQuantity(lateLotId));
+    }
+
+    @Test
+    public void saleEmptyingALotDeletesIt() {
+        long productId = insertProduct(10);
+        long earlyLotId = insertLot(productId, 4, 1000);
+        insertLot(productId, 6, 2000);
+
+        assertTrue(ProductProvider.sell(mDatabase, productId, 5, System.currentTimeMillis())
+                != -1);
+
+        assertEquals(5, quantity(productId));
+        assertEquals(5, lotUnits(productId));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDatabase, LotEntry.TABLE_NAME,
+                LotEntry._ID + "=?", new String[] { String.valueOf(earlyLotId) }));
+    }
+
+    private long insertProduct(int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Product");
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, 1);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(ProductEntry.COLUMN_PRODUCT_IMAGE_URI, "");
+        return mDatabase.insertOrThrow(ProductEntry.TABLE_NAME, null, values);
+    }
+
+    private long insertLot(long productId, int quantity, long expiresAt) {
+        ContentValues values = new ContentValues();
+        values.put(LotEntry.COLUMN_LOT_PRODUCT_ID, productId);
+        values.put(LotEntry.COLUMN_LOT_QUANTITY, quantity);
+        values.put(LotEntry.COLUMN_LOT_EXPIRES_AT, expiresAt);
+        return mDatabase.insertOrThrow(LotEntry.TABLE_NAME, null, values);
+    }
+
+    private long quantity(long productId) {
+        return DatabaseUtils.longForQuery(mDatabase, "SELECT "
+                + ProductEntry.COLUMN_PRODUCT_QUANTITY + " FROM " + ProductEntry.TABLE_NAME
+                + " WHERE " + ProductEntry._ID + "=?", new String[] { String.valueOf(productId) });
+    }
+
+    private long lotUnits(long productId) {
+        return DatabaseUtils.longForQuery(mDatabase, "SELECT "
+                + ProductDbHelper.lotUnits("?"), new String[] { String.valueOf(productId) });
+    }
+
+    private long lotQuantity(long lotId) {
+        return DatabaseUtils.longForQuery(mDatabase, "SELECT " + LotEntry.COLUMN_LOT_QUANTITY
+                + " FROM " + LotEntry.TABLE_NAME + " WHERE " + LotEntry._ID + "=?",
+                new String[] { String.valueOf(lotId) });
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.ProductTagEntry;
+
+import java.util.ArrayList;
+
+/**
+ * Edits of all products selected in the catalog at once.
+ *
+ * Each edit is built as a list of operations, one or two per product, and handed to the
+ * provider with a single {@link ContentResolver#applyBatch}. The provider applies the batch in
+ * one transaction and delivers its change notifications once, so either every selected product
+ * is changed or none is, and the catalog reloads once for the whole selection.
+ */
+final class BatchEdit {
+
+    private static final String LOG_TAG = BatchEdit.class.getSimpleName();
+
+    private static final String LINK_SELECTION = ProductTagEntry.COLUMN_PRODUCT_ID + "=? AND "
+            + ProductTagEntry.COLUMN_TAG_ID + "=?";
+
+    private BatchEdit() {}
+
+    /**
+     * Return the operations setting the quantity of every given product.
+     */
+    static ArrayList<ContentProviderOperation> setQuantity(long[] productIds, int quantity) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(productIds.length);
+        for (long productId : productIds) {
+            operations.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(ProductEntry.CONTENT_URI, productId))
+                    .withValue(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity)
+                    .build());
+        }
+        return operations;
+    }
+
+    /**
+     * Return the operations adding the delta to the quantity of every given product. Like
+     * single adjustments, the quantities don't go below 0.
+     */
+    static ArrayList<ContentProviderOperation> adjustQuantity(long[] productIds, int delta) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(productIds.length);
+        for (long productId : productIds) {
+            operations.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(ProductEntry.CONTENT_ADJUST_URI, productId))
+                    .withValue(ProductEntry.KEY_QUANTITY_DELTA, delta)
+                    .build());
+        }
+        return operations;
+    }
+
+    /**
+     * Return the operations deleting every given product.
+     */
+    static ArrayList<ContentProviderOperation> delete(long[] productIds) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(productIds.length);
+        for (long productId : productIds) {
+            operations.add(ContentProviderOperation.newDelete(
+                    ContentUris.withAppendedId(ProductEntry.CONTENT_URI, productId)).build());
+        }
+        return operations;
+    }
+
+    /**
+     * Return the operations adding the category or tag to every given product. Products that
+     * carry it already keep a single link.
+     */
+    static ArrayList<ContentProviderOperation> addTag(long[] productIds, long tagId) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(productIds.length * 2);
+        for (long productId : productIds) {
+            // A link that exists already would fail the insert, and with it the whole batch
+            operations.add(removeLink(productId, tagId));
+            operations.add(ContentProviderOperation.newInsert(ProductTagEntry.CONTENT_URI)
+                    .withValue(ProductTagEntry.COLUMN_PRODUCT_ID, productId)
+                    .withValue(ProductTagEntry.COLUMN_TAG_ID, tagId)
+                    .build());
+        }
+        return operations;
+    }
+
+    /**
+     * Return the operations removing the category or tag from every given product.
+     */
+    static ArrayList<ContentProviderOperation> removeTag(long[] productIds, long tagId) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(productIds.length);
+        for (long productId : productIds) {
+            operations.add(removeLink(productId, tagId));
+        }
+        return operations;
+    }
+
+    private static ContentProviderOperation removeLink(long productId, long tagId) {
+        return ContentProviderOperation.newDelete(ProductTagEntry.CONTENT_URI)
+                .withSelection(LINK_SELECTION,
+                        new String[] { String.valueOf(productId), String.valueOf(tagId) })
+                .build();
+    }
+
+    /**
+     * Apply the operations as one batch. Return true if all of them were applied, false if
+     * none were.
+     */
+    static boolean apply(ContentResolver resolver, ArrayList<ContentProviderOperation> operations) {
+        try {
+            resolver.applyBatch(ProductContract.CONTENT_AUTHORITY, operations);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, "Failed to apply " + operations.size() + " operations", e);
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, "Failed to apply " + operations.size() + " operations", e);
+        }
+        return false;
+    }
+}
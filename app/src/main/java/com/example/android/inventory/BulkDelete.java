@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.SummaryEntry;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Deletes all products in the background, a chunk of {@link #CHUNK_SIZE} per transaction, so
+ * readers and other writers never wait for more than one chunk. The deleted products are kept
+ * in the trash until the next bulk deletion, so the last one can be undone.
+ *
+ * There is one instance per process, so a deletion keeps running and reporting its progress
+ * across configuration changes of the activity that started it.
+ */
+public class BulkDelete {
+
+    private static final String LOG_TAG = BulkDelete.class.getSimpleName();
+
+    /** Number of products deleted per transaction */
+    public static final int CHUNK_SIZE = 200;
+
+    /**
+     * Listener notified on the main thread about the progress of a deletion or undo.
+     */
+    public interface Listener {
+
+        /** A chunk of the deletion was committed */
+        void onDeleteProgress(int deleted, int total);
+
+        /** The deletion has finished; it can be undone with {@link #undo()} */
+        void onDeleteFinished(int deleted);
+
+        /** The last deletion was undone */
+        void onUndoFinished(int restored);
+    }
+
+    private static BulkDelete sInstance;
+
+    private final ContentResolver mResolver;
+
+    private final Executor mExecutor = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private Listener mListener;
+
+    /** True while a deletion or undo is running. Only accessed on the main thread. */
+    private boolean mRunning;
+
+    /** Trash batch of the last finished deletion, or -1 if there is nothing to undo */
+    private long mUndoBatch = -1;
+
+    /**
+     * Return the process-wide bulk deletion. Must be called on the main thread.
+     */
+    public static BulkDelete getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BulkDelete(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BulkDelete(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Set the listener told about the progress, or null to remove it. Must be called on the
+     * main thread.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Return true while a deletion or undo is running.
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Start deleting all products, unless a deletion or undo is running already. Must be called
+     * on the main thread.
+     */
+    public void deleteAll() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mUndoBatch = -1;
+        // Batches are numbered by time, which lets the provider drop older ones cheaply
+        final long batch = System.currentTimeMillis();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int total = countProducts();
+                int deleted = 0;
+                long lastId = 0;
+                Bundle extras = new Bundle();
+                extras.putInt(ProductContract.EXTRA_LIMIT, CHUNK_SIZE);
+                while (true) {
+                    int count;
+                    try {
+                        // Each chunk starts after the last one, so the tombstones it left
+                        // aren't read again
+                        extras.putLong(ProductContract.EXTRA_AFTER_ID, lastId);
+                        Bundle result = mResolver.call(ProductEntry.CONTENT_URI,
+                                ProductContract.METHOD_TRASH_PRODUCTS, String.valueOf(batch),
+                                extras);
+                        count = result.getInt(ProductContract.RESULT_COUNT);
+                        lastId = result.getLong(ProductContract.RESULT_LAST_ID);
+                    } catch (RuntimeException e) {
+                        // What was deleted so far stays deleted and can be undone
+                        Log.e(LOG_TAG, "Failed to delete products", e);
+                        break;
+                    }
+                    if (count == 0) {
+                        break;
+                    }
+                    deleted += count;
+                    postProgress(deleted, Math.max(total, deleted));
+                }
+                postFinished(batch, deleted);
+            }
+        });
+    }
+
+    /**
+     * Restore the products of the last finished deletion. Must be called on the main thread.
+     */
+    public void undo() {
+        if (mRunning || mUndoBatch < 0) {
+            return;
+        }
+        mRunning = true;
+        final long batch = mUndoBatch;
+        mUndoBatch = -1;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int restored = 0;
+                try {
+                    Bundle result = mResolver.call(ProductEntry.CONTENT_URI,
+                            ProductContract.METHOD_RESTORE_TRASH, String.valueOf(batch), null);
+                    restored = result.getInt(ProductContract.RESULT_COUNT);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to restore deleted products", e);
+                }
+                final int count = restored;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRunning = false;
+                        if (mListener != null) {
+                            mListener.onUndoFinished(count);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Return the number of products from the stock summary, which costs a single row lookup.
+     */
+    private int countProducts() {
+        Cursor cursor = mResolver.query(SummaryEntry.CONTENT_URI,
+                new String[] { SummaryEntry.COLUMN_PRODUCT_COUNT }, null, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void postProgress(final int deleted, final int total) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onDeleteProgress(deleted, total);
+                }
+            }
+        });
+    }
+
+    private void postFinished(final long batch, final int deleted) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+                mUndoBatch = deleted > 0 ? batch : -1;
+                if (mListener != null) {
+                    mListener.onDeleteFinished(deleted);
+                }
+            }
+        });
+    }
+}
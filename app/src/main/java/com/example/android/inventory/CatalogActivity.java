@@ -15,26 +15,52 @@
  */
 package com.example.android.inventory;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
 import android.support.v7.app.AppCompatActivity;
+import android.text.InputType;
 import android.util.Log;
+import android.view.ActionMode;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.example.android.inventory.data.LatencyTrace;
 import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.TagEntry;
+import com.example.android.inventory.feed.FeedImportService;
+import com.example.android.inventory.images.ImageIngestService;
+import com.example.android.inventory.maintenance.HoldSweepService;
+import com.example.android.inventory.maintenance.MaintenanceScheduler;
+import com.example.android.inventory.sync.SyncService;
 
 /**
  * Displays list of pets that were entered and stored in the app.
@@ -42,16 +68,70 @@ import com.example.android.inventory.data.ProductContract;
 public class CatalogActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor> {
 
+    private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
+
     /** Identifier for the pet data loader */
     private static final int PRODUCT_LOADER = 0;
 
+    /** Identifier for the loader of the facet counts of the current filter */
+    private static final int FACET_LOADER = 1;
+
+    /** Name of the backup archive in the app's files directory */
+    private static final String BACKUP_FILE_NAME = "inventory-backup.zip";
+
+    /** Request code of the folder picker of an image ingestion */
+    private static final int PICK_IMAGE_FOLDER_REQUEST = 0;
+
+    /** Request code of the document picker of a feed import */
+    private static final int PICK_FEED_REQUEST = 1;
+
+    /** Key of the saved tag filter */
+    private static final String STATE_TAG_FILTER = "tag_filter";
+
+    /** Key of the saved point-of-sale mode state */
+    private static final String STATE_POS_MODE = "pos_mode";
+
     /** Adapter for the ListView */
     ProductCursorAdapter mCursorAdapter;
 
+    /** Buffer that sales are recorded in while in point-of-sale mode */
+    private SaleBuffer mSaleBuffer;
+
+    /** Background deletion of all products */
+    private BulkDelete mBulkDelete;
+
+    /** Stock take whose counts are recorded while a session is open */
+    private StockTake mStockTake;
+
+    /** Snackbar showing the progress or result of a bulk deletion, or null */
+    private Snackbar mDeleteSnackbar;
+
+    /** True while the catalog is in point-of-sale mode */
+    private boolean mPosMode;
+
+    /** Uptime at which this activity was created, for the startup time metrics */
+    private long mCreatedAt;
+
+    /** True until the loader has delivered live data for the first time */
+    private boolean mFirstLoad = true;
+
+    /** IDs of the categories and tags a product must carry all of to be listed */
+    private long[] mTagFilter = new long[0];
+
+    /** Facet counts of the current filter, or null until they have loaded */
+    private Cursor mFacetCursor;
+
+    /** The list of products */
+    private ListView mListView;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreatedAt = SystemClock.uptimeMillis();
         setContentView(R.layout.activity_catalog);
+        if (savedInstanceState != null && savedInstanceState.containsKey(STATE_TAG_FILTER)) {
+            mTagFilter = savedInstanceState.getLongArray(STATE_TAG_FILTER);
+        }
 
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
@@ -65,6 +145,7 @@ public class CatalogActivity extends AppCompatActivity implements
 
         // Find the ListView which will be populated with the pet data
         ListView petListView = (ListView) findViewById(R.id.list);
+        mListView = petListView;
 
         // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
         View emptyView = findViewById(R.id.empty_view);
@@ -75,10 +156,26 @@ public class CatalogActivity extends AppCompatActivity implements
         mCursorAdapter = new ProductCursorAdapter(this, null);
         petListView.setAdapter(mCursorAdapter);
 
+        // Paint the rows saved by the last run right away, while the database is still being
+        // opened and queried. The loader swaps in the live data once it has finished.
+        // The snapshot holds the unfiltered catalog.
+        Cursor snapshot = mTagFilter.length == 0 ? CatalogSnapshot.read(this) : null;
+        if (snapshot != null) {
+            mCursorAdapter.swapCursor(snapshot);
+            Log.i(LOG_TAG, "Startup: snapshot of " + snapshot.getCount() + " rows painted after "
+                    + (SystemClock.uptimeMillis() - mCreatedAt) + " ms");
+        }
+
         // Setup the item click listener
         petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+                // While taking stock, a product is counted instead of edited
+                if (mStockTake.isActive()) {
+                    showCountDialog(id);
+                    return;
+                }
+
                 // Create new intent to go to {@link EditorActivity}
                 Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
 
@@ -97,19 +194,589 @@ public class CatalogActivity extends AppCompatActivity implements
             }
         });
 
-        // Kick off the loader
+        // Long-pressing a product starts selecting products to edit them all at once
+        petListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        petListView.setMultiChoiceModeListener(new AbsListView.MultiChoiceModeListener() {
+            @Override
+            public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+                mode.getMenuInflater().inflate(R.menu.menu_catalog_selection, menu);
+                return true;
+            }
+
+            @Override
+            public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+                return false;
+            }
+
+            @Override
+            public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                                                  boolean checked) {
+                mode.setTitle(getString(R.string.selection_count,
+                        mListView.getCheckedItemCount()));
+            }
+
+            @Override
+            public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+                return onSelectionItemClicked(mode, item);
+            }
+
+            @Override
+            public void onDestroyActionMode(ActionMode mode) {
+            }
+        });
+
+        // Getting the sale buffer replays any sales journaled before the process last died
+        mSaleBuffer = SaleBuffer.getInstance(this);
+        mSaleBuffer.setListener(new SaleBuffer.Listener() {
+            @Override
+            public void onBufferChanged() {
+                if (mPosMode) {
+                    mCursorAdapter.notifyDataSetChanged();
+                }
+            }
+        });
+        if (savedInstanceState != null) {
+            setPosMode(savedInstanceState.getBoolean(STATE_POS_MODE));
+        }
+
+        mBulkDelete = BulkDelete.getInstance(this);
+        mBulkDelete.setListener(new BulkDelete.Listener() {
+            @Override
+            public void onDeleteProgress(int deleted, int total) {
+                showDeleteSnackbar(getString(R.string.delete_all_progress, deleted, total),
+                        Snackbar.LENGTH_INDEFINITE, false);
+            }
+
+            @Override
+            public void onDeleteFinished(int deleted) {
+                showDeleteSnackbar(getResources().getQuantityString(R.plurals.delete_all_finished,
+                        deleted, deleted), Snackbar.LENGTH_LONG, deleted > 0);
+            }
+
+            @Override
+            public void onUndoFinished(int restored) {
+                showDeleteSnackbar(getResources().getQuantityString(R.plurals.delete_all_undone,
+                        restored, restored), Snackbar.LENGTH_SHORT, false);
+            }
+        });
+
+        mStockTake = StockTake.getInstance(this);
+        mStockTake.setListener(new StockTake.Listener() {
+            @Override
+            public void onStockTakeChanged() {
+                invalidateOptionsMenu();
+            }
+
+            @Override
+            public void onSkuNotFound(String sku) {
+                Toast.makeText(CatalogActivity.this, getString(R.string.count_sku_not_found, sku),
+                        Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onReconciled(int corrected) {
+                Toast.makeText(CatalogActivity.this, getResources().getQuantityString(
+                        R.plurals.stock_take_reconciled, corrected, corrected),
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+
+        // Make sure the idle-time database maintenance is scheduled
+        MaintenanceScheduler.schedule(this);
+        // Release the holds that expired while the app wasn't running
+        HoldSweepService.start(this);
+        ImageIngestService.resume(this);
+
+        // Kick off the loaders
         getLoaderManager().initLoader(PRODUCT_LOADER, null, this);
+        getLoaderManager().initLoader(FACET_LOADER, null, this);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_POS_MODE, mPosMode);
+        outState.putLongArray(STATE_TAG_FILTER, mTagFilter);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Don't keep sales and counts waiting in memory while the catalog is in the background
+        mSaleBuffer.flushSoon();
+        mStockTake.flushSoon();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mSaleBuffer.setListener(null);
+        mBulkDelete.setListener(null);
+        mStockTake.setListener(null);
+    }
+
+    /**
+     * Switch point-of-sale mode on or off. In point-of-sale mode sales are buffered and
+     * written to the database in batches.
+     */
+    private void setPosMode(boolean posMode) {
+        mPosMode = posMode;
+        mCursorAdapter.setSaleBuffer(posMode ? mSaleBuffer : null);
+        if (!posMode) {
+            mSaleBuffer.flushSoon();
+        }
+        invalidateOptionsMenu();
+    }
+
+
+
+
+    /**
+     * Respond to a click on an option of the selection menu. The IDs of the selected products
+     * are taken right away, as the selection mode ends once the edit has been chosen.
+     */
+    private boolean onSelectionItemClicked(final ActionMode mode, MenuItem item) {
+        final long[] productIds = mListView.getCheckedItemIds();
+        if (productIds.length == 0) {
+            mode.finish();
+            return true;
+        }
+        switch (item.getItemId()) {
+            case R.id.action_set_quantity:
+                showBatchQuantityDialog(mode, productIds, false);
+                return true;
+            case R.id.action_adjust_quantity:
+                showBatchQuantityDialog(mode, productIds, true);
+                return true;
+            case R.id.action_add_tag:
+                new TagChoiceTask(mode, productIds, true).execute();
+                return true;
+            case R.id.action_remove_tag:
+                new TagChoiceTask(mode, productIds, false).execute();
+                return true;
+            case R.id.action_delete_selected:
+                showBatchDeleteDialog(mode, productIds);
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ask for a quantity and set it as the quantity of all given products, or add it to their
+     * quantities if adjusting.
+     */
+    private void showBatchQuantityDialog(final ActionMode mode, final long[] productIds,
+                                         final boolean adjust) {
+        final EditText quantityEditText = new EditText(this);
+        quantityEditText.setInputType(adjust
+                ? InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_SIGNED
+                : InputType.TYPE_CLASS_NUMBER);
+        quantityEditText.setHint(adjust ? R.string.hint_batch_delta : R.string.hint_batch_quantity);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(adjust ? R.string.action_adjust_quantity : R.string.action_set_quantity);
+        builder.setView(quantityEditText);
+        builder.setPositiveButton(R.string.apply_batch, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                int quantity;
+                try {
+                    quantity = Integer.parseInt(quantityEditText.getText().toString().trim());
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                applyBatch(mode, productIds.length, adjust
+                        ? BatchEdit.adjustQuantity(productIds, quantity)
+                        : BatchEdit.setQuantity(productIds, quantity));
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Let the user choose one of the given categories and tags and add it to or remove it from
+     * all given products.
+     */
+    private void showBatchTagDialog(final ActionMode mode, final long[] productIds,
+                                    final boolean add, final long[] tagIds, String[] names) {
+        if (tagIds.length == 0) {
+            Toast.makeText(this, R.string.batch_no_tags, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(add ? R.string.action_add_tag : R.string.action_remove_tag);
+        builder.setItems(names, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                applyBatch(mode, productIds.length, add
+                        ? BatchEdit.addTag(productIds, tagIds[which])
+                        : BatchEdit.removeTag(productIds, tagIds[which]));
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Ask for confirmation, then delete all given products.
+     */
+    private void showBatchDeleteDialog(final ActionMode mode, final long[] productIds) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(getResources().getQuantityString(R.plurals.batch_delete_dialog_msg,
+                productIds.length, productIds.length));
+        builder.setPositiveButton(R.string.delete, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                applyBatch(mode, productIds.length, BatchEdit.delete(productIds));
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * End the selection mode and apply the operations of an edit of the given number of
+     * products in the background.
+     */
+    private void applyBatch(ActionMode mode, int productCount,
+                            ArrayList<ContentProviderOperation> operations) {
+        mode.finish();
+        new BatchTask(productCount, operations).execute();
+    }
+
+    /**
+     * Applies the operations of an edit of the selected products as one batch in the
+     * background and reports the outcome in a toast.
+     */
+    private class BatchTask extends AsyncTask<Void, Void, Boolean> {
+
+        private final int mProductCount;
+        private final ArrayList<ContentProviderOperation> mOperations;
+
+        BatchTask(int productCount, ArrayList<ContentProviderOperation> operations) {
+            mProductCount = productCount;
+            mOperations = operations;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... voids) {
+            return BatchEdit.apply(getContentResolver(), mOperations);
+        }
+
+        @Override
+        protected void onPostExecute(Boolean applied) {
+            String message = applied
+                    ? getResources().getQuantityString(R.plurals.batch_applied, mProductCount,
+                            mProductCount)
+                    : getString(R.string.batch_failed);
+            Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Loads all categories and tags in the background, then lets the user choose the one to
+     * add to or remove from the selected products.
+     */
+    private class TagChoiceTask extends AsyncTask<Void, Void, Cursor> {
+
+        private final ActionMode mMode;
+        private final long[] mProductIds;
+        private final boolean mAdd;
+
+        TagChoiceTask(ActionMode mode, long[] productIds, boolean add) {
+            mMode = mode;
+            mProductIds = productIds;
+            mAdd = add;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... voids) {
+            String[] projection = { TagEntry._ID, TagEntry.COLUMN_TAG_NAME };
+            return getContentResolver().query(TagEntry.CONTENT_URI, projection, null, null,
+                    TagEntry.COLUMN_TAG_KIND + ", " + TagEntry.COLUMN_TAG_NAME);
+        }
+
+        @Override
+        protected void onPostExecute(Cursor cursor) {
+            long[] tagIds = new long[cursor == null ? 0 : cursor.getCount()];
+            String[] names = new String[tagIds.length];
+            if (cursor != null) {
+                try {
+                    for (int i = 0; cursor.moveToPosition(i); i++) {
+                        tagIds[i] = cursor.getLong(0);
+                        names[i] = cursor.getString(1);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            if (!isFinishing()) {
+                showBatchTagDialog(mMode, mProductIds, mAdd, tagIds, names);
+            }
+        }
+    }
+
+    /**
+     * Show the categories and tags with the number of listed products carrying each, and let
+     * the user narrow the list down to products carrying all the checked ones.
+     */
+    private void showFilterDialog() {
+        final ArrayList<Long> tagIds = new ArrayList<Long>();
+        ArrayList<String> labels = new ArrayList<String>();
+        if (mFacetCursor != null) {
+            int idColumnIndex = mFacetCursor.getColumnIndex(TagEntry._ID);
+            int nameColumnIndex = mFacetCursor.getColumnIndex(TagEntry.COLUMN_TAG_NAME);
+            int countColumnIndex = mFacetCursor.getColumnIndex(TagEntry.COLUMN_TAG_PRODUCT_COUNT);
+            for (int i = 0; mFacetCursor.moveToPosition(i); i++) {
+                tagIds.add(mFacetCursor.getLong(idColumnIndex));
+                labels.add(getString(R.string.filter_facet,
+                        mFacetCursor.getString(nameColumnIndex),
+                        mFacetCursor.getInt(countColumnIndex)));
+            }
+        }
+
+        final boolean[] checked = new boolean[tagIds.size()];
+        for (int i = 0; i < checked.length; i++) {
+            for (long tagId : mTagFilter) {
+                checked[i] |= tagIds.get(i) == tagId;
+            }
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_filter);
+        builder.setMultiChoiceItems(labels.toArray(new String[labels.size()]), checked,
+                new DialogInterface.OnMultiChoiceClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                        checked[which] = isChecked;
+                    }
+                });
+        builder.setPositiveButton(R.string.apply_filter, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                ArrayList<Long> filter = new ArrayList<Long>();
+                for (int i = 0; i < checked.length; i++) {
+                    if (checked[i]) {
+                        filter.add(tagIds.get(i));
+                    }
+                }
+                long[] tagFilter = new long[filter.size()];
+                for (int i = 0; i < tagFilter.length; i++) {
+                    tagFilter[i] = filter.get(i);
+                }
+                setTagFilter(tagFilter);
+            }
+        });
+        builder.setNeutralButton(R.string.clear_filter, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                setTagFilter(new long[0]);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Replace the tag filter and reload the list and the facet counts with it.
+     */
+    private void setTagFilter(long[] tagFilter) {
+        Arrays.sort(tagFilter);
+        if (Arrays.equals(tagFilter, mTagFilter)) {
+            return;
+        }
+        mTagFilter = tagFilter;
+        getLoaderManager().restartLoader(PRODUCT_LOADER, null, this);
+        getLoaderManager().restartLoader(FACET_LOADER, null, this);
+    }
+
+    /**
+     * Return the file the backup is written to and restored from. It is kept on external
+     * storage if there is any, so it can be copied off the device.
+     */
+    private File getBackupFile() {
+        File dir = getExternalFilesDir(null);
+        return new File(dir != null ? dir : getFilesDir(), BACKUP_FILE_NAME);
+    }
+
+    /**
+     * Back up the database in the background and report the outcome in a toast.
+     */
+    private void backUp() {
+        new BackupTask(ProductContract.METHOD_BACKUP, R.string.backup_successful,
+                R.string.backup_failed).execute(getBackupFile());
+    }
+
+    /**
+     * Let the user type in the number of units of a product counted in the stock take.
+     */
+    private void showCountDialog(final long productId) {
+        final EditText countEditText = new EditText(this);
+        countEditText.setInputType(InputType.TYPE_CLASS_NUMBER);
+        countEditText.setHint(R.string.hint_count);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_count);
+        builder.setView(countEditText);
+        builder.setPositiveButton(R.string.apply_batch, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                int count;
+                try {
+                    count = Integer.parseInt(countEditText.getText().toString().trim());
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                mStockTake.setCount(productId, count);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Let the user scan the codes of the products counted in the stock take, one unit per
+     * code. Scanners that type the code followed by Enter can scan one product after another
+     * without touching the screen.
+     */
+    private void showScanDialog() {
+        final EditText skuEditText = new EditText(this);
+        skuEditText.setSingleLine(true);
+        skuEditText.setHint(R.string.hint_product_sku);
+        skuEditText.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView view, int actionId, KeyEvent event) {
+                if (event != null && event.getAction() != KeyEvent.ACTION_DOWN) {
+                    return true;
+                }
+                String sku = view.getText().toString().trim();
+                if (!sku.isEmpty()) {
+                    mStockTake.scan(sku);
+                }
+                view.setText("");
+                return true;
+            }
+        });
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_scan_counts);
+        builder.setView(skuEditText);
+        builder.setPositiveButton(R.string.done, null);
+        builder.create().show();
+    }
+
+    /**
+     * Ask for confirmation, then correct the quantities of the products counted with a
+     * difference and close the stock take.
+     */
+    private void showFinishStockTakeDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.finish_stock_take_dialog_msg);
+        builder.setPositiveButton(R.string.action_finish_stock_take,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        mStockTake.finish();
+                    }
+                });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Ask for confirmation, then drop the counts of the stock take without changing anything.
+     */
+    private void showCancelStockTakeDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.cancel_stock_take_dialog_msg);
+        builder.setPositiveButton(R.string.action_cancel_stock_take,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        mStockTake.cancel();
+                    }
+                });
+        builder.setNegativeButton(R.string.keep_counting, null);
+        builder.create().show();
+    }
+
+    /**
+     * Ask for confirmation, then replace all products with the ones in the backup.
+     */
+    private void showRestoreConfirmationDialog() {
+        final File backup = getBackupFile();
+        if (!backup.exists()) {
+            Toast.makeText(this, R.string.restore_no_backup, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.restore_dialog_msg);
+        builder.setPositiveButton(R.string.action_restore, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                new BackupTask(ProductContract.METHOD_RESTORE, R.string.restore_successful,
+                        R.string.restore_failed).execute(backup);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
     }
 
+    /**
+     * Runs the backup or restore provider method on a file in the background.
+     */
+    private class BackupTask extends AsyncTask<File, Void, Boolean> {
 
+        private final String mMethod;
+        private final int mSuccessMessage;
+        private final int mFailureMessage;
 
+        BackupTask(String method, int successMessage, int failureMessage) {
+            mMethod = method;
+            mSuccessMessage = successMessage;
+            mFailureMessage = failureMessage;
+        }
+
+        @Override
+        protected Boolean doInBackground(File... files) {
+            Bundle result = getContentResolver().call(ProductContract.BASE_CONTENT_URI, mMethod,
+                    files[0].getAbsolutePath(), null);
+            return result != null && result.getBoolean(ProductContract.RESULT_COMPLETED);
+        }
+
+        @Override
+        protected void onPostExecute(Boolean completed) {
+            Toast.makeText(getApplicationContext(), completed ? mSuccessMessage : mFailureMessage,
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
 
     /**
-     * Helper method to delete all pets in the database.
+     * Helper method to delete all pets in the database. The products are deleted in the
+     * background in chunks, and the deletion can be undone from the snackbar.
      */
     private void deleteAllProducts() {
-        int rowsDeleted = getContentResolver().delete(ProductContract.ProductEntry.CONTENT_URI, null, null);
-        Log.v("CatalogActivity", rowsDeleted + " rows deleted from inventory database");
+        if (mBulkDelete.isRunning()) {
+            return;
+        }
+        showDeleteSnackbar(getString(R.string.delete_all_started), Snackbar.LENGTH_INDEFINITE,
+                false);
+        mBulkDelete.deleteAll();
+    }
+
+    /**
+     * Show a message about the bulk deletion, replacing the previous one, optionally with an
+     * action to undo the deletion.
+     */
+    private void showDeleteSnackbar(String message, int duration, boolean undoable) {
+        if (mDeleteSnackbar != null && mDeleteSnackbar.isShownOrQueued()
+                && mDeleteSnackbar.getDuration() == duration && !undoable) {
+            // Update the progress in place instead of animating in a new snackbar
+            mDeleteSnackbar.setText(message);
+            return;
+        }
+        mDeleteSnackbar = Snackbar.make(findViewById(R.id.list), message, duration);
+        if (undoable) {
+            mDeleteSnackbar.setAction(R.string.undo, new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    mBulkDelete.undo();
+                }
+            });
+        }
+        mDeleteSnackbar.show();
     }
 
     @Override
@@ -117,6 +784,16 @@ public class CatalogActivity extends AppCompatActivity implements
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        menu.findItem(R.id.action_pos_mode).setChecked(mPosMode);
+        menu.findItem(R.id.action_latency_report).setVisible(BuildConfig.DEBUG);
+        // Folders can only be picked as a whole from Lollipop on
+        menu.findItem(R.id.action_import_images).setVisible(Build.VERSION.SDK_INT >= 21);
+        menu.findItem(R.id.action_import_feed).setVisible(Build.VERSION.SDK_INT >= 19);
+        boolean takingStock = mStockTake.isActive();
+        menu.findItem(R.id.action_start_stock_take).setVisible(!takingStock);
+        menu.findItem(R.id.action_scan_counts).setVisible(takingStock);
+        menu.findItem(R.id.action_finish_stock_take).setVisible(takingStock);
+        menu.findItem(R.id.action_cancel_stock_take).setVisible(takingStock);
         return true;
     }
 
@@ -129,23 +806,106 @@ public class CatalogActivity extends AppCompatActivity implements
             case R.id.action_delete_all_entries:
                 deleteAllProducts();
                 return true;
+            // Respond to a click on the "Filter" menu option
+            case R.id.action_filter:
+                showFilterDialog();
+                return true;
+            // Respond to a click on the "Back up" menu option
+            case R.id.action_backup:
+                backUp();
+                return true;
+            // Respond to a click on the "Restore" menu option
+            case R.id.action_restore:
+                showRestoreConfirmationDialog();
+                return true;
+            // Respond to a click on the "Sync now" menu option
+            case R.id.action_sync:
+                SyncService.requestSync(this);
+                return true;
+            // Respond to a click on the "Point of sale mode" menu option
+            case R.id.action_pos_mode:
+                setPosMode(!mPosMode);
+                return true;
+            // Respond to a click on the stock take menu options
+            case R.id.action_start_stock_take:
+                mStockTake.start();
+                return true;
+            case R.id.action_scan_counts:
+                showScanDialog();
+                return true;
+            case R.id.action_finish_stock_take:
+                showFinishStockTakeDialog();
+                return true;
+            case R.id.action_cancel_stock_take:
+                showCancelStockTakeDialog();
+                return true;
+            // Respond to a click on the "Import images" menu option
+            case R.id.action_import_images:
+                startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE),
+                        PICK_IMAGE_FOLDER_REQUEST);
+                return true;
+            // Respond to a click on the "Import feed" menu option
+            case R.id.action_import_feed:
+                startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("text/*"), PICK_FEED_REQUEST);
+                return true;
+            // Respond to a click on the "Latency report" menu option
+            case R.id.action_latency_report:
+                new AlertDialog.Builder(this)
+                        .setTitle(R.string.action_latency_report)
+                        .setMessage(LatencyTrace.report())
+                        .setPositiveButton(android.R.string.ok, null)
+                        .show();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == PICK_IMAGE_FOLDER_REQUEST && resultCode == RESULT_OK
+                && Build.VERSION.SDK_INT >= 21 && data != null && data.getData() != null) {
+            Uri treeUri = data.getData();
+            // Keep the folder readable for an ingestion resumed after a restart
+            getContentResolver().takePersistableUriPermission(treeUri,
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            ImageIngestService.start(this, treeUri);
+            Toast.makeText(this, R.string.import_images_started, Toast.LENGTH_SHORT).show();
+        } else if (requestCode == PICK_FEED_REQUEST && resultCode == RESULT_OK
+                && Build.VERSION.SDK_INT >= 19 && data != null && data.getData() != null) {
+            Uri feedUri = data.getData();
+            // Keep the feed readable for an import started again after a restart
+            getContentResolver().takePersistableUriPermission(feedUri,
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            FeedImportService.start(this, feedUri);
+            Toast.makeText(this, R.string.import_feed_started, Toast.LENGTH_SHORT).show();
+        }
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
+        if (i == FACET_LOADER) {
+            return new CursorLoader(this,
+                    ProductContract.withTagFilter(TagEntry.CONTENT_FACETS_URI, mTagFilter),
+                    null, null, null, null);
+        }
+
         // Define a projection that specifies the columns from the table we care about.
         String[] projection = {
                 ProductContract.ProductEntry._ID,
                 ProductContract.ProductEntry.COLUMN_PRODUCT_NAME,
                 ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE,
                 ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY,
-                ProductContract.ProductEntry.COLUMN_PRODUCT_IMAGE_URI};
+                ProductContract.ProductEntry.COLUMN_PRODUCT_IMAGE_URI,
+                ProductContract.ProductEntry.COLUMN_PRODUCT_DAYS_TO_STOCKOUT,
+                ProductContract.ProductEntry.COLUMN_PRODUCT_RESERVED};
 
         // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                ProductContract.ProductEntry.CONTENT_URI,   // Provider content URI to query
+        return new TracedCursorLoader(this,   // Parent activity context
+                ProductContract.withTagFilter(ProductContract.ProductEntry.CONTENT_URI,
+                        mTagFilter),            // Provider content URI to query
                 projection,             // Columns to include in the resulting Cursor
                 null,                   // No selection clause
                 null,                   // No selection arguments
@@ -154,13 +914,90 @@ public class CatalogActivity extends AppCompatActivity implements
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        if (loader.getId() == FACET_LOADER) {
+            mFacetCursor = data;
+            return;
+        }
+
         // Update {@link ProductCursorAdapter} with this new cursor containing updated pet data
-        mCursorAdapter.swapCursor(data);
+        boolean traced = LatencyTrace.markPending(LatencyTrace.MARK_SWAP_START);
+        boolean section = LatencyTrace.beginPendingSection("swap");
+        Cursor old = mCursorAdapter.swapCursor(data);
+        LatencyTrace.endPendingSection(section);
+        if (traced) {
+            LatencyTrace.markPending(LatencyTrace.MARK_SWAP_END);
+            traceDrawn();
+        }
+        // The new data includes every sale committed so far
+        mSaleBuffer.onDataReloaded();
+
+        if (mFirstLoad) {
+            mFirstLoad = false;
+            // The snapshot cursor isn't managed by the loader, so it has to be closed here
+            if (old != null && old != data) {
+                old.close();
+            }
+            Log.i(LOG_TAG, "Startup: live data painted after "
+                    + (SystemClock.uptimeMillis() - mCreatedAt) + " ms");
+            if (Build.VERSION.SDK_INT >= 19) {
+                reportFullyDrawn();
+            }
+        }
+
+        // Keep the snapshot for the next cold start up to date with the committed data
+        if (data != null && mTagFilter.length == 0) {
+            CatalogSnapshot.write(this, data);
+        }
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        if (loader.getId() == FACET_LOADER) {
+            mFacetCursor = null;
+            return;
+        }
         // Callback called when the data needs to be deleted
         mCursorAdapter.swapCursor(null);
     }
+
+    /**
+     * Complete the pending latency traces once the list has rebound and laid out its rows and
+     * is about to draw them.
+     */
+    private void traceDrawn() {
+        mListView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                mListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                LatencyTrace.markPending(LatencyTrace.MARK_DRAWN);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * {@link CursorLoader} attributing its requeries to the pending latency traces. A requery
+     * that starts after a traced write has committed is the one that picks the write up.
+     */
+    static class TracedCursorLoader extends CursorLoader {
+
+        TracedCursorLoader(Context context, Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
+            super(context, uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            LatencyTrace.markPending(LatencyTrace.MARK_REQUERY_START);
+            boolean section = LatencyTrace.beginPendingSection("requery");
+            try {
+                // The cursor loader fills the cursor window before returning it
+                return super.loadInBackground();
+            } finally {
+                LatencyTrace.endPendingSection(section);
+                LatencyTrace.markPending(LatencyTrace.MARK_REQUERY_END);
+            }
+        }
+    }
 }
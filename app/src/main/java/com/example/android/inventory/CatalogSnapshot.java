@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Compact binary copy of the first screenful of catalog rows, so {@link CatalogActivity} can
+ * paint the list on a cold start before the database has been opened and queried.
+ *
+ * The file holds a magic number, a format version and a row count, followed by each row as
+ * its ID, price, quantity, name and image URI. Strings are stored as a length followed by their
+ * UTF-8 bytes. It is read through a memory mapping and rewritten atomically in the background
+ * whenever the catalog has loaded new data.
+ */
+public final class CatalogSnapshot {
+
+    private static final String LOG_TAG = CatalogSnapshot.class.getSimpleName();
+
+    /** Name of the snapshot file in the app's cache directory */
+    private static final String FILE_NAME = "catalog_snapshot";
+
+    private static final int MAGIC = 0x43415453;
+
+    private static final int FORMAT_VERSION = 1;
+
+    /** Number of rows kept, enough to fill the first screen */
+    public static final int MAX_ROWS = 20;
+
+    /** Columns of the cursor returned by {@link #read(Context)}, as used by the adapter */
+    private static final String[] COLUMNS = {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_IMAGE_URI};
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Writes snapshots one after the other off the main thread */
+    private static final Executor sWriteExecutor = Executors.newSingleThreadExecutor();
+
+    private CatalogSnapshot() {}
+
+    /**
+     * Read the snapshot into a cursor with the catalog's columns. Return null if there is no
+     * usable snapshot.
+     */
+    public static Cursor read(Context context) {
+        File file = new File(context.getCacheDir(), FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int count = buffer.getInt();
+            if (count < 0 || count > MAX_ROWS) {
+                return null;
+            }
+            MatrixCursor cursor = new MatrixCursor(COLUMNS, count);
+            for (int i = 0; i < count; i++) {
+                long id = buffer.getLong();
+                int price = buffer.getInt();
+                int quantity = buffer.getInt();
+                String name = readString(buffer);
+                String imageUri = readString(buffer);
+                cursor.addRow(new Object[] { id, name, price, quantity, imageUri });
+            }
+            return cursor;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read catalog snapshot", e);
+            return null;
+        } catch (BufferUnderflowException e) {
+            Log.w(LOG_TAG, "Truncated catalog snapshot", e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // Nothing more can be done about it
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the first rows of the given catalog cursor and write them as the new snapshot in the
+     * background. The cursor's position is left unchanged.
+     */
+    public static void write(Context context, Cursor cursor) {
+        final File file = new File(context.getCacheDir(), FILE_NAME);
+        int count = Math.min(cursor.getCount(), MAX_ROWS);
+        final long[] ids = new long[count];
+        final int[] prices = new int[count];
+        final int[] quantities = new int[count];
+        final String[] names = new String[count];
+        final String[] imageUris = new String[count];
+
+        int idColumnIndex = cursor.getColumnIndex(ProductEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_NAME);
+        int priceColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_PRICE);
+        int qtyColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+        int imgColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_IMAGE_URI);
+        int position = cursor.getPosition();
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            ids[i] = cursor.getLong(idColumnIndex);
+            names[i] = cursor.getString(nameColumnIndex);
+            prices[i] = cursor.getInt(priceColumnIndex);
+            quantities[i] = cursor.getInt(qtyColumnIndex);
+            imageUris[i] = cursor.getString(imgColumnIndex);
+        }
+        cursor.moveToPosition(position);
+
+        sWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File temp = new File(file.getPath() + ".tmp");
+                DataOutputStream out = null;
+                boolean written = false;
+                try {
+                    out = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(temp)));
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeInt(ids.length);
+                    for (int i = 0; i < ids.length; i++) {
+                        out.writeLong(ids[i]);
+                        out.writeInt(prices[i]);
+                        out.writeInt(quantities[i]);
+                        writeString(out, names[i]);
+                        writeString(out, imageUris[i]);
+                    }
+                    out.flush();
+                    written = true;
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to write catalog snapshot", e);
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            written = false;
+                        }
+                    }
+                }
+                // Replace the old snapshot in one step, so a reader never sees a partial file
+                if (written && !temp.renameTo(file)) {
+                    Log.w(LOG_TAG, "Failed to replace catalog snapshot");
+                }
+            }
+        });
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
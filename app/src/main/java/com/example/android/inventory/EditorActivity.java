@@ -18,6 +18,7 @@ package com.example.android.inventory;
 import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
@@ -28,6 +29,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.provider.MediaStore;
@@ -49,6 +51,8 @@ import com.example.android.inventory.data.ProductContract;
 import com.example.android.inventory.data.ProductContract.ProductEntry;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static android.app.Activity.RESULT_OK;
 import static com.example.android.inventory.R.drawable.ic_add_pet;
@@ -73,6 +77,9 @@ public class EditorActivity extends AppCompatActivity implements
     /** EditText field to enter the product's name */
     private EditText mNameEditText;
 
+    /** EditText field to enter the product's SKU or barcode */
+    private EditText mSkuEditText;
+
     /** EditText field to enter the product's price */
     private EditText mPriceEditText;
 
@@ -87,6 +94,19 @@ public class EditorActivity extends AppCompatActivity implements
     /** Boolean flag that keeps track of whether the product has been edited (true) or not (false) */
     private boolean mProductHasChanged = false;
 
+    /** Values of the existing product as loaded, used to send only the fields that changed */
+    private String mOriginalName;
+    private String mOriginalSku;
+    private int mOriginalPrice;
+    private int mOriginalQuantity;
+    private String mOriginalImage;
+
+    /** Version of the existing product the edits are based on, or -1 if not loaded yet */
+    private long mOriginalVersion = -1;
+
+    /** Checks of the product being saved, or null if no save is in progress */
+    private SaveCheckTask mSaveCheckTask;
+
     /**
      * OnTouchListener that listens for any user touches on a View, implying that they are modifying
      * the view, and we change the mProductHasChanged boolean to true.
@@ -106,6 +126,7 @@ public class EditorActivity extends AppCompatActivity implements
 
         // Find all relevant views that we will need to read user input from
         mNameEditText = (EditText) findViewById(R.id.edit_product_name);
+        mSkuEditText = (EditText) findViewById(R.id.edit_product_sku);
         mPriceEditText = (EditText) findViewById(R.id.edit_product_price);
         mQuantityEditText = (EditText) findViewById(R.id.edit_product_qty);
         mImageView  =   (ImageView) findViewById(R.id.imageEditor);
@@ -171,6 +192,7 @@ public class EditorActivity extends AppCompatActivity implements
         // has touched or modified them. This will let us know if there are unsaved changes
         // or not, if the user tries to leave the editor without saving.
         mNameEditText.setOnTouchListener(mTouchListener);
+        mSkuEditText.setOnTouchListener(mTouchListener);
         mPriceEditText.setOnTouchListener(mTouchListener);
         mQuantityEditText.setOnTouchListener(mTouchListener);
         mImageView.setOnTouchListener(mTouchListener);
@@ -179,12 +201,22 @@ public class EditorActivity extends AppCompatActivity implements
 
 
     /**
-     * Get user input from editor and save product into database.
+     * Get user input from editor and save product into database. For an existing product only
+     * the fields that differ from the loaded product are written, and only if the product has
+     * not been changed elsewhere since it was loaded. The code and name checks read the
+     * provider, so they run in a {@link SaveCheckTask} that writes the product when they pass.
+     * The editor is closed once the product is saved.
      */
     private void saveProduct() {
+        if (mSaveCheckTask != null) {
+            // The checks of an earlier tap are still running
+            return;
+        }
+
         // Read from input fields
         // Use trim to eliminate leading or trailing white space
         String nameString = mNameEditText.getText().toString().trim();
+        String skuString = mSkuEditText.getText().toString().trim();
         String priceString = mPriceEditText.getText().toString().trim();
         String qtyString = mQuantityEditText.getText().toString().trim();
         String imageString = "";
@@ -204,13 +236,16 @@ public class EditorActivity extends AppCompatActivity implements
         // Check if this is supposed to be a new product
         // and check if all the fields in the editor are blank
         if (mCurrentUri == null && mImageUri==null &&
-                TextUtils.isEmpty(nameString) && TextUtils.isEmpty(priceString) &&
-                TextUtils.isEmpty(qtyString)) {
+                TextUtils.isEmpty(nameString) && TextUtils.isEmpty(skuString) &&
+                TextUtils.isEmpty(priceString) && TextUtils.isEmpty(qtyString)) {
             // Since no fields were modified, we can return early without creating a new product.
             // No need to create ContentValues and no need to do any ContentProvider operations.
+            finish();
             return;
         }
 
+        boolean skuChanged = !skuString.equals(mOriginalSku == null ? "" : mOriginalSku);
+
         int qty = 0;
         if (!TextUtils.isEmpty(qtyString)) {
             qty = Integer.parseInt(qtyString);
@@ -222,52 +257,287 @@ public class EditorActivity extends AppCompatActivity implements
         }
 
 
-        // Create a ContentValues object where column names are the keys,
-        // and product attributes from the editor are the values.
-        ContentValues values = new ContentValues();
-        values.put(ProductEntry.COLUMN_PRODUCT_NAME, nameString);
-        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, price);
-        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, qty);
-        values.put(ProductEntry.COLUMN_PRODUCT_IMAGE_URI, imageString);
-        // If the weight is not provided by the user, don't try to parse the string into an
-        // integer value. Use 0 by default.
-
         // Determine if this is a new or existing product by checking if mCurrentUri is null or not
         if (mCurrentUri == null) {
-            // This is a NEW product, so insert a new product into the provider,
-            // returning the content URI for the new product.
-            Uri newUri = getContentResolver().insert(ProductEntry.CONTENT_URI, values);
-
-            // Show a toast message depending on whether or not the insertion was successful.
-            if (newUri == null) {
-                // If the new content URI is null, then there was an error with insertion.
-                Toast.makeText(this, getString(R.string.editor_insert_product_failed),
+            // Create a ContentValues object where column names are the keys,
+            // and product attributes from the editor are the values.
+            ContentValues values = new ContentValues();
+            values.put(ProductEntry.COLUMN_PRODUCT_NAME, nameString);
+            values.put(ProductEntry.COLUMN_PRODUCT_SKU, skuString);
+            values.put(ProductEntry.COLUMN_PRODUCT_PRICE, price);
+            values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, qty);
+            values.put(ProductEntry.COLUMN_PRODUCT_IMAGE_URI, imageString);
+
+            // A product with nearly the same name is likely the same product, entered again
+            mSaveCheckTask = new SaveCheckTask(values, skuString, nameString);
+        } else {
+            // Otherwise this is an EXISTING product, so only put the fields that were changed
+            // in the editor. Columns changed elsewhere in the meantime are left alone.
+            ContentValues values = new ContentValues();
+            if (!nameString.equals(mOriginalName)) {
+                values.put(ProductEntry.COLUMN_PRODUCT_NAME, nameString);
+            }
+            if (skuChanged) {
+                values.put(ProductEntry.COLUMN_PRODUCT_SKU, skuString);
+            }
+            if (price != mOriginalPrice) {
+                values.put(ProductEntry.COLUMN_PRODUCT_PRICE, price);
+            }
+            if (qty != mOriginalQuantity) {
+                values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, qty);
+            }
+            // Keep the stored image unless a new one was picked
+            if (mImageUri != null && !imageString.equals(mOriginalImage)) {
+                values.put(ProductEntry.COLUMN_PRODUCT_IMAGE_URI, imageString);
+            }
+            if (values.size() == 0) {
+                Toast.makeText(this, getString(R.string.editor_update_product_no_changes),
                         Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the insertion was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_insert_product_successful),
+                finish();
+                return;
+            }
+            mSaveCheckTask = new SaveCheckTask(values, skuChanged ? skuString : null, null);
+        }
+        mSaveCheckTask.execute();
+    }
+
+    /**
+     * Looks up whether the code of a product being saved belongs to another product and, for
+     * a new product, which products have nearly the same name, then saves the product unless a
+     * check needs the user. The similar names are read from the trigram index, which first
+     * indexes the names written since the last lookup, so neither runs on the UI thread.
+     */
+    private class SaveCheckTask extends AsyncTask<Void, Void, List<String>> {
+
+        private final ContentValues mValues;
+        private final String mSku;
+        private final String mName;
+        private boolean mSkuTaken;
+
+        /**
+         * @param values the values to save
+         * @param sku    the code to check, or null if it didn't change
+         * @param name   the name to look for similar products of, or null for none
+         */
+        SaveCheckTask(ContentValues values, String sku, String name) {
+            mValues = values;
+            mSku = sku;
+            mName = name;
+        }
+
+        @Override
+        protected List<String> doInBackground(Void... voids) {
+            mSkuTaken = isSkuTaken(mSku);
+            return mSkuTaken ? new ArrayList<String>() : querySimilarNames(mName);
+        }
+
+        @Override
+        protected void onPostExecute(List<String> similarNames) {
+            mSaveCheckTask = null;
+            if (isFinishing()) {
+                return;
+            }
+            if (mSkuTaken) {
+                // A code can only belong to one product. Keep the editor open so it can be
+                // corrected.
+                Toast.makeText(EditorActivity.this, getString(R.string.editor_sku_in_use, mSku),
                         Toast.LENGTH_SHORT).show();
+            } else if (!similarNames.isEmpty()) {
+                showSimilarProductsDialog(mValues, similarNames);
+            } else if (mCurrentUri == null) {
+                insertProduct(mValues);
+                finish();
+            } else if (updateProduct(mValues, mOriginalVersion)) {
+                finish();
             }
+        }
+    }
+
+    /**
+     * Insert a new product with the given values.
+     */
+    private void insertProduct(ContentValues values) {
+        // This is a NEW product, so insert a new product into the provider,
+        // returning the content URI for the new product.
+        Uri newUri = getContentResolver().insert(ProductEntry.CONTENT_URI, values);
+
+        // Show a toast message depending on whether or not the insertion was successful.
+        if (newUri == null) {
+            // If the new content URI is null, then there was an error with insertion.
+            Toast.makeText(this, getString(R.string.editor_insert_product_failed),
+                    Toast.LENGTH_SHORT).show();
         } else {
-            // Otherwise this is an EXISTING product, so update the pet with content URI: mCurrentUri
-            // and pass in the new ContentValues. Pass in null for the selection and selection args
-            // because mCurrentUri will already identify the correct row in the database that
-            // we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentUri, values, null, null);
-
-            // Show a toast message depending on whether or not the update was successful.
-            if (rowsAffected == 0) {
-                // If no rows were affected, then there was an error with the update.
-                Toast.makeText(this, getString(R.string.editor_update_product_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the update was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_update_product_successful),
-                        Toast.LENGTH_SHORT).show();
+            // Otherwise, the insertion was successful and we can display a toast.
+            Toast.makeText(this, getString(R.string.editor_insert_product_successful),
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Return the names of the products whose names are nearly the same as the given one, most
+     * similar first. The lookup reads the trigram index of the names, not every product.
+     * Must not be called on the main thread.
+     */
+    private List<String> querySimilarNames(String name) {
+        List<String> names = new ArrayList<String>();
+        if (TextUtils.isEmpty(name)) {
+            return names;
+        }
+        Cursor cursor = getContentResolver().query(ProductEntry.buildSimilarUri(name),
+                new String[] { ProductEntry.COLUMN_PRODUCT_NAME }, null, null, null);
+        if (cursor == null) {
+            return names;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    /**
+     * Show a dialog listing the products with nearly the same name as the new one, and let the
+     * user either save it anyway or keep editing.
+     *
+     * @param values       the values of the new product
+     * @param similarNames the names of the similar products
+     */
+    private void showSimilarProductsDialog(final ContentValues values, List<String> similarNames) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(getString(R.string.similar_products_dialog_msg,
+                TextUtils.join("\n", similarNames)));
+        builder.setPositiveButton(R.string.save_anyway, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // User clicked the "Save anyway" button, so insert the product and close
+                insertProduct(values);
+                finish();
+            }
+        });
+        builder.setNegativeButton(R.string.keep_editing, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // User clicked the "Keep editing" button, so dismiss the dialog
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
             }
+        });
+
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
+    }
+
+    /**
+     * Update the existing product with the given changed fields, provided it still has the
+     * given version. Pass in null for the selection and selection args because mCurrentUri will
+     * already identify the correct row in the database that we want to modify.
+     *
+     * @return true if the editor can be closed, false if a conflict is shown to the user
+     */
+    private boolean updateProduct(final ContentValues values, long expectedVersion) {
+        ContentValues versionedValues = new ContentValues(values);
+        if (expectedVersion >= 0) {
+            versionedValues.put(ProductEntry.KEY_EXPECTED_VERSION, expectedVersion);
+        }
+        int rowsAffected = getContentResolver().update(mCurrentUri, versionedValues, null, null);
+
+        if (rowsAffected == 0 && expectedVersion >= 0) {
+            final long currentVersion = queryCurrentVersion();
+            if (currentVersion >= 0 && currentVersion != expectedVersion) {
+                // The product was changed elsewhere since it was loaded. Don't clobber those
+                // changes, let the user decide.
+                showConflictDialog(values, currentVersion);
+                return false;
+            }
+        }
+
+        // Show a toast message depending on whether or not the update was successful.
+        if (rowsAffected == 0) {
+            // If no rows were affected, then there was an error with the update.
+            Toast.makeText(this, getString(R.string.editor_update_product_failed),
+                    Toast.LENGTH_SHORT).show();
+        } else {
+            // Otherwise, the update was successful and we can display a toast.
+            Toast.makeText(this, getString(R.string.editor_update_product_successful),
+                    Toast.LENGTH_SHORT).show();
+        }
+        return true;
+    }
+
+    /**
+     * Return true if a product other than the current one has the given SKU. The lookup is a
+     * single search of the unique index on the code. Must not be called on the main thread.
+     */
+    private boolean isSkuTaken(String sku) {
+        if (TextUtils.isEmpty(sku)) {
+            return false;
+        }
+        Cursor cursor = getContentResolver().query(ProductEntry.buildSkuUri(sku),
+                new String[] { ProductEntry._ID }, null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst() && (mCurrentUri == null
+                    || cursor.getLong(0) != ContentUris.parseId(mCurrentUri));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the version the current product has in the database right now, or -1 if it no
+     * longer exists.
+     */
+    private long queryCurrentVersion() {
+        Cursor cursor = getContentResolver().query(mCurrentUri,
+                new String[] { ProductEntry.COLUMN_PRODUCT_VERSION }, null, null, null);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
         }
     }
 
+    /**
+     * Show a dialog that tells the user the product was changed elsewhere while it was being
+     * edited, and let them either overwrite those changes with their own or reload the product.
+     *
+     * @param values         the fields the user changed
+     * @param currentVersion the version the product has now
+     */
+    private void showConflictDialog(final ContentValues values, final long currentVersion) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.conflict_dialog_msg);
+        builder.setPositiveButton(R.string.overwrite, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // User clicked the "Overwrite" button, so apply the changed fields on top of
+                // the current version and close the editor unless it changed yet again.
+                if (updateProduct(values, currentVersion)) {
+                    finish();
+                }
+            }
+        });
+        builder.setNegativeButton(R.string.reload, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // User clicked the "Reload" button, so discard the edits and show the
+                // product as it is now.
+                mProductHasChanged = false;
+                mImageUri = null;
+                getLoaderManager().restartLoader(EXISTING_PRODUCT_LOADER, null,
+                        EditorActivity.this);
+            }
+        });
+
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -313,10 +583,9 @@ public class EditorActivity extends AppCompatActivity implements
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save product to database
+                // Save product to database and exit activity, unless a conflict with changes
+                // made elsewhere needs the user's decision first
                 saveProduct();
-                // Exit activity
-                finish();
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
@@ -384,9 +653,11 @@ public class EditorActivity extends AppCompatActivity implements
         String[] projection = {
                 ProductEntry._ID,
                 ProductEntry.COLUMN_PRODUCT_NAME,
+                ProductEntry.COLUMN_PRODUCT_SKU,
                 ProductEntry.COLUMN_PRODUCT_PRICE,
                 ProductEntry.COLUMN_PRODUCT_QUANTITY,
-                ProductEntry.COLUMN_PRODUCT_IMAGE_URI};
+                ProductEntry.COLUMN_PRODUCT_IMAGE_URI,
+                ProductEntry.COLUMN_PRODUCT_VERSION};
 
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
@@ -404,6 +675,12 @@ public class EditorActivity extends AppCompatActivity implements
             return;
         }
 
+        // The loader reloads whenever the product changes elsewhere. Don't overwrite the user's
+        // edits with it; a conflict is detected on save through the version they are based on.
+        if (mProductHasChanged && mOriginalVersion >= 0) {
+            return;
+        }
+
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
         if (cursor.moveToFirst()) {
@@ -414,14 +691,26 @@ public class EditorActivity extends AppCompatActivity implements
             int imageColumIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_IMAGE_URI);
             // Extract out the value from the Cursor for the given column index
             String name = cursor.getString(nameColumnIndex);
+            String sku = cursor.getString(
+                    cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_SKU));
             int price = cursor.getInt(priceColumnIndex);
 
             int qty = cursor.getInt(qtyColumnIndex);
             String image    =   cursor.getString(imageColumIndex);
 
+            // Remember what was loaded, so a save only writes what the user changed
+            mOriginalName = name;
+            mOriginalSku = sku;
+            mOriginalPrice = price;
+            mOriginalQuantity = qty;
+            mOriginalImage = image;
+            mOriginalVersion = cursor.getLong(
+                    cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_VERSION));
+
             Log.v(LOG_TAG,image);
             // Update the views on the screen with the values from the database
             mNameEditText.setText(name);
+            mSkuEditText.setText(sku);
             mPriceEditText.setText(price+"");
             mQuantityEditText.setText(qty+"");
             mImageView.setImageURI(Uri.parse(image));
@@ -433,6 +722,7 @@ public class EditorActivity extends AppCompatActivity implements
     public void onLoaderReset(Loader<Cursor> loader) {
         // If the loader is invalidated, clear out all the data from the input fields.
         mNameEditText.setText("");
+        mSkuEditText.setText("");
         mPriceEditText.setText("");
         mQuantityEditText.setText("");
         Bitmap bm = BitmapFactory.decodeResource(
@@ -29,7 +29,9 @@ import android.widget.CursorAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.example.android.inventory.data.LatencyTrace;
 import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.SaleEntry;
 
 import static com.example.android.inventory.R.id.saleButton;
 
@@ -42,6 +44,10 @@ public class ProductCursorAdapter extends CursorAdapter {
 
 
     private static final String LOG_TAG = ProductCursorAdapter.class.getSimpleName();
+
+    /** Buffer that sales are recorded in while in point-of-sale mode, null otherwise */
+    private SaleBuffer mSaleBuffer;
+
     /**
      * Constructs a new {@link ProductCursorAdapter}.
      *
@@ -52,6 +58,18 @@ public class ProductCursorAdapter extends CursorAdapter {
         super(context, c, 0 /* flags */);
     }
 
+    /**
+     * Switch point-of-sale mode on or off. In point-of-sale mode the sale button records the
+     * sale in the given buffer instead of updating the database, and the shown quantities
+     * include the buffered sales.
+     *
+     * @param saleBuffer the buffer to record sales in, or null to leave point-of-sale mode
+     */
+    public void setSaleBuffer(SaleBuffer saleBuffer) {
+        mSaleBuffer = saleBuffer;
+        notifyDataSetChanged();
+    }
+
     /**
      * Makes a new blank list item view. No data is set (or bound) to the views yet.
      *
@@ -71,6 +89,7 @@ public class ProductCursorAdapter extends CursorAdapter {
         viewHolderItem.priceTextView = (TextView) view.findViewById(R.id.price);
         viewHolderItem.qtyTextView = (TextView) view.findViewById(R.id.quantity);
         viewHolderItem.imgView=(ImageView)view.findViewById(R.id.product_image);
+        viewHolderItem.stockoutTextView = (TextView) view.findViewById(R.id.days_to_stockout);
 
         viewHolderItem.saleButton = (Button)view.findViewById(R.id.saleButton);
         viewHolderItem.incrementQuantity=(Button)view.findViewById(R.id.increment_quantity);
@@ -106,6 +125,16 @@ public class ProductCursorAdapter extends CursorAdapter {
         int prodPrice = cursor.getInt(priceColumnIndex);
         int qty=cursor.getInt(qtyColumnIndex);
         String uri=cursor.getString(imgColumnIndex);
+        final long itemId = cursor.getLong(productId);
+        final SaleBuffer saleBuffer = mSaleBuffer;
+        if (saleBuffer != null) {
+            // Show the quantity including the sales that are not written to the database yet
+            qty = Math.max(0, qty + saleBuffer.getDelta(itemId));
+        }
+        // Units held for orders can't be sold. The cold start snapshot doesn't have the column.
+        int reservedColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_RESERVED);
+        final int available = reservedColumnIndex == -1 ? qty
+                : qty - cursor.getInt(reservedColumnIndex);
 
         holder.imgView.setImageURI(Uri.parse(uri));
         holder.qtyTextView.setText(Integer.toString(qty));
@@ -113,54 +142,62 @@ public class ProductCursorAdapter extends CursorAdapter {
         holder.nameTextView.setText(productName);
         holder.priceTextView.setText(Integer.toString(prodPrice));
 
-        final int quantityUpdate = qty;
-        final long itemId = cursor.getLong(productId);
+        // The days to stockout are stored with the product, so no extra query is needed here.
+        // The cold start snapshot doesn't have the column.
+        int stockoutColumnIndex = cursor.getColumnIndex(ProductEntry.COLUMN_PRODUCT_DAYS_TO_STOCKOUT);
+        if (stockoutColumnIndex != -1 && !cursor.isNull(stockoutColumnIndex)) {
+            holder.stockoutTextView.setText(context.getString(R.string.days_to_stockout,
+                    (int) Math.floor(cursor.getDouble(stockoutColumnIndex))));
+            holder.stockoutTextView.setVisibility(View.VISIBLE);
+        } else {
+            holder.stockoutTextView.setVisibility(View.GONE);
+        }
+
         holder.saleButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                int qty = quantityUpdate;
-                if (qty > 0) {
-                    qty--;
+                if (saleBuffer != null) {
+                    if (available > 0) {
+                        saleBuffer.recordSale(itemId, 1);
+                    }
+                    return;
+                }
+                if (available > 0) {
+                    // Record the sale, which takes the unit out of stock
+                    ContentValues values = new ContentValues();
+                    values.put(SaleEntry.COLUMN_SALE_PRODUCT_ID, itemId);
+                    values.put(SaleEntry.COLUMN_SALE_UNITS, 1);
+                    int traceId = LatencyTrace.start("sale");
+                    v.getContext().getContentResolver().insert(
+                            LatencyTrace.tag(SaleEntry.CONTENT_URI, traceId), values);
                 }
-                ContentValues values = new ContentValues();
-                values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY,
-                        qty);
-                ContentResolver contentResolver = v.getContext().getContentResolver();
-                Uri uri = ContentUris.withAppendedId(
-                        ProductEntry.CONTENT_URI,
-                        itemId);
-                contentResolver.update(uri, values, null, null);
             }
         });
+        // The buttons adjust the stored quantity by a unit rather than writing the shown one,
+        // which includes sales still in the buffer that are taken out when it is written
         holder.decrementQuantity.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                int qty = quantityUpdate;
-                if (qty > 0) {
-                    qty--;
-                }
                 ContentValues values = new ContentValues();
-                values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY,
-                        qty);
+                values.put(ProductEntry.KEY_QUANTITY_DELTA, -1);
                 ContentResolver contentResolver = v.getContext().getContentResolver();
                 Uri uri = ContentUris.withAppendedId(
-                        ProductEntry.CONTENT_URI,
+                        ProductEntry.CONTENT_ADJUST_URI,
                         itemId);
+                uri = LatencyTrace.tag(uri, LatencyTrace.start("decrement"));
                 contentResolver.update(uri, values, null, null);
             }
         });
         holder.incrementQuantity.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                int qty = quantityUpdate;
-                qty++;
                 ContentValues values = new ContentValues();
-                values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY,
-                        qty);
+                values.put(ProductEntry.KEY_QUANTITY_DELTA, 1);
                 ContentResolver contentResolver = v.getContext().getContentResolver();
                 Uri uri = ContentUris.withAppendedId(
-                        ProductEntry.CONTENT_URI,
+                        ProductEntry.CONTENT_ADJUST_URI,
                         itemId);
+                uri = LatencyTrace.tag(uri, LatencyTrace.start("increment"));
                 contentResolver.update(uri, values, null, null);
             }
         });
@@ -172,6 +209,7 @@ public class ProductCursorAdapter extends CursorAdapter {
         TextView priceTextView;
         TextView qtyTextView;
         ImageView imgView;
+        TextView stockoutTextView;
         Button saleButton;
         Button incrementQuantity;
         Button decrementQuantity;
@@ -0,0 +1,624 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.SaleEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Write-behind buffer for the point-of-sale mode of the catalog.
+ *
+ * Sales are accumulated in memory as per-product quantity deltas and written to the provider
+ * every {@link #FLUSH_INTERVAL_MILLIS} as one batch, so a burst of sales costs one transaction
+ * and one list reload. The sale of a product that turns out to have too few units available,
+ * e.g. because they were held or the product was deleted meanwhile, is dropped from the batch
+ * without holding up the others.
+ *
+ * Each sale is appended to a small journal file on the worker thread, at the latest before
+ * the batch it belongs to is written, and the journal is replayed on the next start if the
+ * process dies. Every flush has a sequence number, which is journaled with its sales and
+ * stored by the provider in the same transaction as them, so a flush that was written before
+ * the journal could be cleaned up is skipped when it is replayed.
+ */
+public class SaleBuffer {
+
+    private static final String LOG_TAG = SaleBuffer.class.getSimpleName();
+
+    /** How long sales are accumulated before they are written to the database */
+    public static final long FLUSH_INTERVAL_MILLIS = 300;
+
+    /** Delay before retrying a flush that failed */
+    private static final long RETRY_INTERVAL_MILLIS = 2000;
+
+    /** Name of the journal file in the app's private files directory */
+    private static final String JOURNAL_NAME = "sale_journal2";
+
+    /** Name of the journal written before flushes had sequence numbers, replayed once */
+    private static final String LEGACY_JOURNAL_NAME = "sale_journal";
+
+    /**
+     * Listener notified on the main thread whenever the buffered quantities change.
+     */
+    public interface Listener {
+        void onBufferChanged();
+    }
+
+    private static SaleBuffer sInstance;
+
+    private final Context mContext;
+
+    private final File mJournalFile;
+
+    private final Handler mWorkerHandler;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Object mLock = new Object();
+
+    /** Sequence number of the next flush, which the pending deltas belong to */
+    private long mNextSequence;
+
+    /** Deltas replayed from the journal by the flush they belonged to, written in that order */
+    private TreeMap<Long, HashMap<Long, Integer>> mReplayed =
+            new TreeMap<Long, HashMap<Long, Integer>>();
+
+    /** Deltas recorded but not yet handed to the provider */
+    private HashMap<Long, Integer> mPending = new HashMap<Long, Integer>();
+
+    /** Deltas of the batch currently being written */
+    private HashMap<Long, Integer> mInFlight = new HashMap<Long, Integer>();
+
+    /** Deltas already committed that the catalog has not reloaded yet */
+    private HashMap<Long, Integer> mCommitted = new HashMap<Long, Integer>();
+
+    /** Sales recorded but not yet journaled, as pairs of product ID and delta */
+    private ArrayList<long[]> mUnjournaled = new ArrayList<long[]>();
+
+    /**
+     * Open append stream of the journal, or null if it could not be opened. Only used on the
+     * worker thread.
+     */
+    private DataOutputStream mJournal;
+
+    private boolean mFlushScheduled;
+
+    private boolean mJournalScheduled;
+
+    private Listener mListener;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushNow();
+        }
+    };
+
+    private final Runnable mJournalRunnable = new Runnable() {
+        @Override
+        public void run() {
+            List<long[]> records;
+            long sequence;
+            synchronized (mLock) {
+                mJournalScheduled = false;
+                records = mUnjournaled;
+                mUnjournaled = new ArrayList<long[]>();
+                sequence = mNextSequence;
+            }
+            appendJournal(sequence, records);
+        }
+    };
+
+    private final Runnable mNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mListener != null) {
+                mListener.onBufferChanged();
+            }
+        }
+    };
+
+    /**
+     * Return the process-wide sale buffer. Any journal left behind by a previous process is
+     * replayed in the background.
+     */
+    public static synchronized SaleBuffer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SaleBuffer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SaleBuffer(Context context) {
+        mContext = context;
+        mJournalFile = new File(context.getFilesDir(), JOURNAL_NAME);
+
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWorkerHandler = new Handler(thread.getLooper());
+        // Runs before anything else on the worker thread
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                start();
+            }
+        });
+    }
+
+    /**
+     * Set the listener told about changes of the buffered quantities, or null to remove it.
+     * Must be called on the main thread.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Record the sale of the given number of units of a product. The change is journaled in
+     * the background and written to the database with the next flush.
+     */
+    public void recordSale(long productId, int units) {
+        record(productId, -units);
+    }
+
+    /**
+     * Return the delta that has to be added to the quantity read from the database to obtain
+     * the quantity including all buffered sales.
+     */
+    public int getDelta(long productId) {
+        synchronized (mLock) {
+            int delta = get(mPending, productId) + get(mInFlight, productId)
+                    + get(mCommitted, productId);
+            for (HashMap<Long, Integer> batch : mReplayed.values()) {
+                delta += get(batch, productId);
+            }
+            return delta;
+        }
+    }
+
+    /**
+     * Tell the buffer that the catalog has reloaded its data, so deltas already committed to
+     * the database no longer have to be overlaid on it.
+     */
+    public void onDataReloaded() {
+        synchronized (mLock) {
+            mCommitted.clear();
+        }
+    }
+
+    /**
+     * Write all buffered sales to the database on the worker thread as soon as possible.
+     */
+    public void flushSoon() {
+        synchronized (mLock) {
+            scheduleFlushLocked(0);
+        }
+    }
+
+    private void record(long productId, int delta) {
+        synchronized (mLock) {
+            put(mPending, productId, get(mPending, productId) + delta);
+            mUnjournaled.add(new long[] { productId, delta });
+            if (!mJournalScheduled) {
+                mJournalScheduled = true;
+                mWorkerHandler.post(mJournalRunnable);
+            }
+            scheduleFlushLocked(FLUSH_INTERVAL_MILLIS);
+        }
+        notifyListener();
+    }
+
+    private void scheduleFlushLocked(long delayMillis) {
+        if (delayMillis == 0) {
+            mWorkerHandler.removeCallbacks(mFlushRunnable);
+        } else if (mFlushScheduled) {
+            return;
+        }
+        mFlushScheduled = true;
+        mWorkerHandler.postDelayed(mFlushRunnable, delayMillis);
+    }
+
+    /**
+     * Replay the journal left behind by a previous process and open it for appending. Runs on
+     * the worker thread.
+     */
+    private void start() {
+        TreeMap<Long, HashMap<Long, Integer>> replayed =
+                new TreeMap<Long, HashMap<Long, Integer>>();
+        long nextSequence = replayJournal(replayed);
+        if (!replayed.isEmpty()) {
+            nextSequence = Math.max(nextSequence, replayed.lastKey() + 1);
+        }
+        // Following the clock keeps the numbers growing even if the journal was lost
+        nextSequence = Math.max(nextSequence, System.currentTimeMillis());
+
+        File legacyFile = new File(mContext.getFilesDir(), LEGACY_JOURNAL_NAME);
+        HashMap<Long, Integer> legacy = replayLegacyJournal(legacyFile);
+
+        synchronized (mLock) {
+            mNextSequence = nextSequence;
+            mReplayed = replayed;
+            if (legacy != null) {
+                // Never flushed, so they are written with the first flush
+                for (Map.Entry<Long, Integer> entry : legacy.entrySet()) {
+                    put(mPending, entry.getKey(),
+                            get(mPending, entry.getKey()) + entry.getValue());
+                }
+            }
+            if (!mReplayed.isEmpty() || !mPending.isEmpty()) {
+                scheduleFlushLocked(0);
+            }
+        }
+        if (legacy != null) {
+            rewriteJournal();
+            if (!legacyFile.delete()) {
+                Log.e(LOG_TAG, "Failed to delete legacy sale journal");
+            }
+        } else {
+            openJournal();
+        }
+        notifyListener();
+    }
+
+    /**
+     * Write the replayed batches in the order of their flushes, then the pending deltas in
+     * one transaction. Runs on the worker thread.
+     */
+    private void flushNow() {
+        boolean changed = false;
+        while (true) {
+            long sequence;
+            HashMap<Long, Integer> batch;
+            synchronized (mLock) {
+                mFlushScheduled = false;
+                if (mReplayed.isEmpty()) {
+                    break;
+                }
+                sequence = mReplayed.firstKey();
+                batch = mReplayed.get(sequence);
+            }
+            // Newer flushes have to wait, or the replayed one would be taken as recorded
+            Bundle result = writeBatch(sequence, batch);
+            synchronized (mLock) {
+                if (result == null) {
+                    scheduleRetryLocked();
+                    return;
+                }
+                mReplayed.remove(sequence);
+                commitLocked(batch, result);
+            }
+            changed = true;
+        }
+
+        HashMap<Long, Integer> batch;
+        List<long[]> records;
+        long sequence;
+        synchronized (mLock) {
+            if (mPending.isEmpty()) {
+                batch = null;
+                records = null;
+                sequence = 0;
+            } else {
+                batch = mPending;
+                mInFlight = batch;
+                mPending = new HashMap<Long, Integer>();
+                records = mUnjournaled;
+                mUnjournaled = new ArrayList<long[]>();
+                sequence = mNextSequence++;
+            }
+        }
+        if (batch != null) {
+            // Every sale of the batch is in the journal before the batch is written
+            appendJournal(sequence, records);
+            Bundle result = writeBatch(sequence, batch);
+            synchronized (mLock) {
+                mInFlight = new HashMap<Long, Integer>();
+                if (result != null) {
+                    commitLocked(batch, result);
+                    changed = true;
+                } else {
+                    // Put the batch back so it is retried together with newer sales
+                    for (Map.Entry<Long, Integer> entry : batch.entrySet()) {
+                        put(mPending, entry.getKey(),
+                                get(mPending, entry.getKey()) + entry.getValue());
+                    }
+                    scheduleRetryLocked();
+                }
+            }
+        }
+
+        if (changed) {
+            rewriteJournal();
+        }
+        notifyListener();
+    }
+
+    /**
+     * Write the sales of a batch with the given flush sequence number to the provider. Return
+     * its result, or null if the batch has to be retried.
+     */
+    private Bundle writeBatch(long sequence, HashMap<Long, Integer> batch) {
+        ArrayList<ContentValues> sales = new ArrayList<ContentValues>(batch.size());
+        for (Map.Entry<Long, Integer> entry : batch.entrySet()) {
+            if (entry.getValue() >= 0) {
+                continue;
+            }
+            // Record the sales, which also takes them out of stock and updates the rollups
+            ContentValues sale = new ContentValues();
+            sale.put(SaleEntry.COLUMN_SALE_PRODUCT_ID, entry.getKey());
+            sale.put(SaleEntry.COLUMN_SALE_UNITS, -entry.getValue());
+            sales.add(sale);
+        }
+
+        try {
+            Bundle extras = new Bundle();
+            extras.putParcelableArrayList(ProductContract.EXTRA_ROWS, sales);
+            return mContext.getContentResolver().call(ProductContract.BASE_CONTENT_URI,
+                    ProductContract.METHOD_RECORD_SALES, String.valueOf(sequence), extras);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to flush " + batch.size() + " buffered sales", e);
+            return null;
+        }
+    }
+
+    /**
+     * Overlay the deltas of a batch the provider has written on the catalog until it reloads,
+     * except for the sales it rejected.
+     */
+    private void commitLocked(HashMap<Long, Integer> batch, Bundle result) {
+        if (!result.getBoolean(ProductContract.RESULT_COMPLETED)) {
+            // Written by a process that died before it could clean up the journal
+            return;
+        }
+        for (long productId : result.getLongArray(ProductContract.RESULT_REJECTED)) {
+            // Retrying can't make the units available, so the sale is dropped
+            Log.w(LOG_TAG, "Dropped buffered sale of " + -get(batch, productId)
+                    + " units of product " + productId);
+            batch.remove(productId);
+        }
+        for (Map.Entry<Long, Integer> entry : batch.entrySet()) {
+            put(mCommitted, entry.getKey(), get(mCommitted, entry.getKey()) + entry.getValue());
+        }
+    }
+
+    private void scheduleRetryLocked() {
+        mFlushScheduled = true;
+        mWorkerHandler.postDelayed(mFlushRunnable, RETRY_INTERVAL_MILLIS);
+    }
+
+    private void notifyListener() {
+        mMainHandler.removeCallbacks(mNotifyRunnable);
+        mMainHandler.post(mNotifyRunnable);
+    }
+
+    /**
+     * Load the deltas left in the journal by a previous process into the given batches, by
+     * the sequence number of their flush. Return the sequence number of the next flush the
+     * journal was written for, or 0 if there is no journal.
+     */
+    private long replayJournal(TreeMap<Long, HashMap<Long, Integer>> batches) {
+        if (!mJournalFile.exists()) {
+            return 0;
+        }
+        DataInputStream in = null;
+        long nextSequence = 0;
+        int records = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            nextSequence = in.readLong();
+            while (true) {
+                long sequence;
+                long productId;
+                int delta;
+                try {
+                    sequence = in.readLong();
+                    productId = in.readLong();
+                    delta = in.readInt();
+                } catch (EOFException e) {
+                    // End of journal, or a record torn by process death which is dropped
+                    break;
+                }
+                HashMap<Long, Integer> batch = batches.get(sequence);
+                if (batch == null) {
+                    batch = new HashMap<Long, Integer>();
+                    batches.put(sequence, batch);
+                }
+                put(batch, productId, get(batch, productId) + delta);
+                records++;
+            }
+        } catch (EOFException e) {
+            // The journal was created but its header never written
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to replay sale journal", e);
+        } finally {
+            closeQuietly(in);
+        }
+        if (records > 0) {
+            Log.i(LOG_TAG, "Replayed " + records + " journaled sales");
+        }
+        return nextSequence;
+    }
+
+    /**
+     * Return the deltas in the given journal of an older version, or null if there is none.
+     */
+    private static HashMap<Long, Integer> replayLegacyJournal(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        HashMap<Long, Integer> deltas = new HashMap<Long, Integer>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                long productId;
+                int delta;
+                try {
+                    productId = in.readLong();
+                    delta = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                put(deltas, productId, get(deltas, productId) + delta);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to replay legacy sale journal", e);
+        } finally {
+            closeQuietly(in);
+        }
+        return deltas;
+    }
+
+    /**
+     * Open the journal for appending, starting it with the sequence number of the next flush
+     * if it is new. Runs on the worker thread.
+     */
+    private void openJournal() {
+        boolean empty = mJournalFile.length() == 0;
+        long nextSequence;
+        synchronized (mLock) {
+            nextSequence = mNextSequence;
+        }
+        try {
+            mJournal = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mJournalFile, true)));
+            if (empty) {
+                mJournal.writeLong(nextSequence);
+                mJournal.flush();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to open sale journal", e);
+            closeQuietly(mJournal);
+            mJournal = null;
+        }
+    }
+
+    /**
+     * Append the given sales to the journal as part of the flush with the given sequence
+     * number. Runs on the worker thread.
+     */
+    private void appendJournal(long sequence, List<long[]> records) {
+        if (mJournal == null || records.isEmpty()) {
+            return;
+        }
+        try {
+            for (long[] record : records) {
+                mJournal.writeLong(sequence);
+                mJournal.writeLong(record[0]);
+                mJournal.writeInt((int) record[1]);
+            }
+            // Hand the records to the kernel, which keeps them across the death of this process
+            mJournal.flush();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to journal " + records.size() + " sales", e);
+        }
+    }
+
+    /**
+     * Replace the journal with one that holds only the deltas not yet committed. The new
+     * journal is written to a temporary file and renamed, so a crash leaves either the old
+     * or the new journal in place. Runs on the worker thread.
+     */
+    private void rewriteJournal() {
+        long nextSequence;
+        TreeMap<Long, HashMap<Long, Integer>> replayed;
+        HashMap<Long, Integer> pending;
+        synchronized (mLock) {
+            nextSequence = mNextSequence;
+            replayed = new TreeMap<Long, HashMap<Long, Integer>>(mReplayed);
+            pending = new HashMap<Long, Integer>(mPending);
+            // They are written as part of the pending deltas
+            mUnjournaled.clear();
+        }
+        replayed.put(nextSequence, pending);
+
+        closeQuietly(mJournal);
+        mJournal = null;
+
+        File temp = new File(mJournalFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeLong(nextSequence);
+            for (Map.Entry<Long, HashMap<Long, Integer>> batch : replayed.entrySet()) {
+                for (Map.Entry<Long, Integer> entry : batch.getValue().entrySet()) {
+                    out.writeLong(batch.getKey());
+                    out.writeLong(entry.getKey());
+                    out.writeInt(entry.getValue());
+                }
+            }
+            out.flush();
+            written = true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to rewrite sale journal", e);
+        } finally {
+            closeQuietly(out);
+        }
+        if (written && !temp.renameTo(mJournalFile)) {
+            Log.e(LOG_TAG, "Failed to replace sale journal");
+        }
+        openJournal();
+    }
+
+    private static int get(HashMap<Long, Integer> deltas, long productId) {
+        Integer delta = deltas.get(productId);
+        return delta == null ? 0 : delta;
+    }
+
+    private static void put(HashMap<Long, Integer> deltas, long productId, int delta) {
+        if (delta == 0) {
+            deltas.remove(productId);
+        } else {
+            deltas.put(productId, delta);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing more can be done about it
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.CountEntry;
+import com.example.android.inventory.data.ProductContract.CountSessionEntry;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The stock-take (cycle count) mode of the catalog.
+ *
+ * Counts are accumulated in memory per product, as units scanned or as a number typed in, and
+ * written to the open session every {@link #FLUSH_INTERVAL_MILLIS} with one bulk insert, so a
+ * burst of scans costs one transaction and doesn't reload the catalog at all. Finishing the
+ * stock take writes what is left and has the provider reconcile the session, which corrects
+ * the quantities of all products counted with a difference in one transaction.
+ *
+ * The open session is kept in preferences, so the stock take carries on after the process
+ * is restarted.
+ */
+public class StockTake {
+
+    private static final String LOG_TAG = StockTake.class.getSimpleName();
+
+    /** How long counts are accumulated before they are written to the database */
+    public static final long FLUSH_INTERVAL_MILLIS = 300;
+
+    /** Delay before retrying a flush that failed */
+    private static final long RETRY_INTERVAL_MILLIS = 2000;
+
+    /** Name of the preferences file holding the open session */
+    private static final String PREFS_NAME = "stock_take";
+
+    /** Preference key of the ID of the open session */
+    private static final String PREF_SESSION_ID = "session_id";
+
+    /**
+     * Listener notified on the main thread about the stock take.
+     */
+    public interface Listener {
+
+        /** A session was started, or the open one was finished or cancelled */
+        void onStockTakeChanged();
+
+        /** No product has the scanned code */
+        void onSkuNotFound(String sku);
+
+        /** The session was reconciled, correcting the given number of products */
+        void onReconciled(int corrected);
+    }
+
+    /**
+     * Count of a product not yet written: a number of units to set the count to, or to add to
+     * it.
+     */
+    private static class Count {
+        final boolean set;
+        final int units;
+
+        Count(boolean set, int units) {
+            this.set = set;
+            this.units = units;
+        }
+
+        /**
+         * Return the count that has the effect of this count followed by the given one.
+         */
+        Count then(Count next) {
+            return next.set ? next : new Count(set, units + next.units);
+        }
+    }
+
+    private static StockTake sInstance;
+
+    private final ContentResolver mResolver;
+
+    private final SharedPreferences mPrefs;
+
+    private final Handler mWorkerHandler;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Object mLock = new Object();
+
+    /** ID of the open session, or -1 if there is none */
+    private long mSessionId;
+
+    /** Counts recorded but not yet handed to the provider */
+    private HashMap<Long, Count> mPending = new HashMap<Long, Count>();
+
+    private boolean mFlushScheduled;
+
+    private Listener mListener;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushNow();
+        }
+    };
+
+    /**
+     * Return the process-wide stock take. Must be called on the main thread.
+     */
+    public static StockTake getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StockTake(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private StockTake(Context context) {
+        mResolver = context.getContentResolver();
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mSessionId = mPrefs.getLong(PREF_SESSION_ID, -1);
+
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWorkerHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Set the listener told about the stock take, or null to remove it. Must be called on the
+     * main thread.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Return true while a session is open.
+     */
+    public boolean isActive() {
+        synchronized (mLock) {
+            return mSessionId != -1;
+        }
+    }
+
+    /**
+     * Start a session in the background, unless one is open already.
+     */
+    public void start() {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isActive()) {
+                    return;
+                }
+                Uri uri = mResolver.insert(CountSessionEntry.CONTENT_URI, new ContentValues());
+                if (uri == null) {
+                    return;
+                }
+                setSession(ContentUris.parseId(uri));
+            }
+        });
+    }
+
+    /**
+     * Add one unit to the count of the product with the given SKU or barcode, as scanned.
+     */
+    public void scan(final String sku) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // A single lookup in the unique index on the code
+                long productId = -1;
+                Cursor cursor = mResolver.query(ProductEntry.buildSkuUri(sku),
+                        new String[] { ProductEntry._ID }, null, null, null);
+                if (cursor != null) {
+                    try {
+                        if (cursor.moveToFirst()) {
+                            productId = cursor.getLong(0);
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                if (productId == -1) {
+                    postSkuNotFound(sku);
+                    return;
+                }
+                record(productId, new Count(false, 1));
+            }
+        });
+    }
+
+    /**
+     * Set the count of a product to the given number of units, e.g. typed in after counting a
+     * shelf.
+     */
+    public void setCount(long productId, int units) {
+        record(productId, new Count(true, units));
+    }
+
+    /**
+     * Write the counts left and reconcile the open session in the background.
+     */
+    public void finish() {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flushNow();
+                long sessionId;
+                synchronized (mLock) {
+                    sessionId = mSessionId;
+                    if (!mPending.isEmpty()) {
+                        // The flush failed, so reconciling now would miss counts
+                        Log.w(LOG_TAG, "Not reconciling, " + mPending.size()
+                                + " counts aren't written yet");
+                        return;
+                    }
+                }
+                if (sessionId == -1) {
+                    return;
+                }
+                int corrected = 0;
+                try {
+                    Bundle result = mResolver.call(ProductContract.BASE_CONTENT_URI,
+                            ProductContract.METHOD_RECONCILE_COUNT, String.valueOf(sessionId),
+                            null);
+                    corrected = result.getInt(ProductContract.RESULT_COUNT);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to reconcile stock-take session " + sessionId, e);
+                    return;
+                }
+                setSession(-1);
+                postReconciled(corrected);
+            }
+        });
+    }
+
+    /**
+     * Cancel the open session in the background, dropping its counts without changing any
+     * quantity.
+     */
+    public void cancel() {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long sessionId;
+                synchronized (mLock) {
+                    sessionId = mSessionId;
+                    mPending.clear();
+                }
+                if (sessionId == -1) {
+                    return;
+                }
+                mResolver.delete(ContentUris.withAppendedId(CountSessionEntry.CONTENT_URI,
+                        sessionId), null, null);
+                setSession(-1);
+            }
+        });
+    }
+
+    /**
+     * Write all buffered counts to the database on the worker thread as soon as possible.
+     */
+    public void flushSoon() {
+        synchronized (mLock) {
+            scheduleFlushLocked(0);
+        }
+    }
+
+    private void record(long productId, Count count) {
+        synchronized (mLock) {
+            if (mSessionId == -1) {
+                return;
+            }
+            Count pending = mPending.get(productId);
+            mPending.put(productId, pending == null ? count : pending.then(count));
+            scheduleFlushLocked(FLUSH_INTERVAL_MILLIS);
+        }
+    }
+
+    private void scheduleFlushLocked(long delayMillis) {
+        if (delayMillis == 0) {
+            mWorkerHandler.removeCallbacks(mFlushRunnable);
+        } else if (mFlushScheduled) {
+            return;
+        }
+        mFlushScheduled = true;
+        mWorkerHandler.postDelayed(mFlushRunnable, delayMillis);
+    }
+
+    /**
+     * Write the pending counts to the open session with one bulk insert. Runs on the worker
+     * thread.
+     */
+    private void flushNow() {
+        HashMap<Long, Count> batch;
+        long sessionId;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            batch = mPending;
+            mPending = new HashMap<Long, Count>();
+            sessionId = mSessionId;
+        }
+
+        ContentValues[] values = new ContentValues[batch.size()];
+        int index = 0;
+        for (Map.Entry<Long, Count> entry : batch.entrySet()) {
+            ContentValues value = new ContentValues();
+            value.put(CountEntry.COLUMN_SESSION_ID, sessionId);
+            value.put(CountEntry.COLUMN_PRODUCT_ID, entry.getKey());
+            value.put(entry.getValue().set ? CountEntry.COLUMN_COUNTED
+                    : CountEntry.KEY_COUNT_DELTA, entry.getValue().units);
+            values[index++] = value;
+        }
+
+        try {
+            int written = mResolver.bulkInsert(CountEntry.CONTENT_URI, values);
+            if (written < values.length) {
+                // Retrying can't help, the session was closed or the products were deleted
+                Log.w(LOG_TAG, (values.length - written) + " of " + values.length
+                        + " counts were rejected by session " + sessionId);
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to write " + batch.size() + " counts", e);
+            synchronized (mLock) {
+                // Put the batch back in front of the newer counts, so it is retried with them
+                for (Map.Entry<Long, Count> entry : batch.entrySet()) {
+                    Count newer = mPending.get(entry.getKey());
+                    mPending.put(entry.getKey(),
+                            newer == null ? entry.getValue() : entry.getValue().then(newer));
+                }
+                mFlushScheduled = true;
+                mWorkerHandler.postDelayed(mFlushRunnable, RETRY_INTERVAL_MILLIS);
+            }
+        }
+    }
+
+    private void setSession(long sessionId) {
+        synchronized (mLock) {
+            mSessionId = sessionId;
+        }
+        if (sessionId == -1) {
+            mPrefs.edit().remove(PREF_SESSION_ID).apply();
+        } else {
+            mPrefs.edit().putLong(PREF_SESSION_ID, sessionId).apply();
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onStockTakeChanged();
+                }
+            }
+        });
+    }
+
+    private void postSkuNotFound(final String sku) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onSkuNotFound(sku);
+                }
+            }
+        });
+    }
+
+    private void postReconciled(final int corrected) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onReconciled(corrected);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Merges the change notifications raised by {@link ProductProvider} during a burst of writes
+ * into a single notification per affected URI.
+ *
+ * A notification is held back until no new change has arrived for {@link #getWindowMillis()},
+ * but never longer than {@link #getMaxDelayMillis()} after the first pending change. While a
+ * batch is open (see {@link #beginBatch()}) nothing is delivered; closing the outermost batch
+ * delivers everything that is pending right away. Every change that was reported is always
+ * followed by a delivered notification.
+ */
+public class ChangeNotificationCoalescer {
+
+    /** Default quiet period after the last change before notifying */
+    public static final long DEFAULT_WINDOW_MILLIS = 150;
+
+    /** Default upper bound on how long a change may wait, so a steady stream still refreshes */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 1000;
+
+    private final ContentResolver mResolver;
+
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+
+    /** URIs changed since the last delivered notification, in arrival order */
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<Uri>();
+
+    private long mWindowMillis;
+
+    private long mMaxDelayMillis;
+
+    /** Uptime at which the oldest pending change was reported, or -1 if nothing is pending */
+    private long mFirstPendingAt = -1;
+
+    /** Number of batches currently open */
+    private int mBatchDepth;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructs a new {@link ChangeNotificationCoalescer} using the default window.
+     *
+     * @param resolver the resolver notifications are delivered through
+     */
+    public ChangeNotificationCoalescer(ContentResolver resolver) {
+        this(resolver, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * Constructs a new {@link ChangeNotificationCoalescer}.
+     *
+     * @param resolver       the resolver notifications are delivered through
+     * @param windowMillis   quiet period after the last change before notifying
+     * @param maxDelayMillis longest time a change may be held back
+     */
+    public ChangeNotificationCoalescer(ContentResolver resolver, long windowMillis,
+                                       long maxDelayMillis) {
+        mResolver = resolver;
+        mHandler = new Handler(Looper.getMainLooper());
+        setWindow(windowMillis, maxDelayMillis);
+    }
+
+    /**
+     * Change the coalescing window. A window of 0 delivers every notification on the next
+     * turn of the main looper.
+     */
+    public void setWindow(long windowMillis, long maxDelayMillis) {
+        if (windowMillis < 0 || maxDelayMillis < windowMillis) {
+            throw new IllegalArgumentException("Invalid coalescing window " + windowMillis
+                    + "/" + maxDelayMillis);
+        }
+        synchronized (mLock) {
+            mWindowMillis = windowMillis;
+            mMaxDelayMillis = maxDelayMillis;
+            if (!mPending.isEmpty() && mBatchDepth == 0) {
+                scheduleLocked();
+            }
+        }
+    }
+
+    public long getWindowMillis() {
+        synchronized (mLock) {
+            return mWindowMillis;
+        }
+    }
+
+    public long getMaxDelayMillis() {
+        synchronized (mLock) {
+            return mMaxDelayMillis;
+        }
+    }
+
+    /**
+     * Record that the data at the given URI has changed. The notification is delivered later,
+     * merged with any other change reported in the meantime.
+     */
+    public void notifyChange(Uri uri) {
+        synchronized (mLock) {
+            mPending.add(uri);
+            if (mFirstPendingAt < 0) {
+                mFirstPendingAt = SystemClock.uptimeMillis();
+            }
+            if (mBatchDepth == 0) {
+                scheduleLocked();
+            }
+        }
+    }
+
+    /**
+     * Hold back all notifications until the matching {@link #endBatch()}. Batches may nest;
+     * callers must always pair this with {@link #endBatch()} in a finally block.
+     */
+    public void beginBatch() {
+        synchronized (mLock) {
+            mBatchDepth++;
+            mHandler.removeCallbacks(mFlushRunnable);
+        }
+    }
+
+    /**
+     * Close a batch opened by {@link #beginBatch()}. Closing the outermost batch delivers all
+     * pending notifications immediately.
+     */
+    public void endBatch() {
+        synchronized (mLock) {
+            if (mBatchDepth == 0) {
+                throw new IllegalStateException("endBatch() without beginBatch()");
+            }
+            mBatchDepth--;
+            if (mBatchDepth > 0) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Deliver all pending notifications now, unless a batch is still open.
+     */
+    public void flush() {
+        List<Uri> uris;
+        synchronized (mLock) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            if (mBatchDepth > 0 || mPending.isEmpty()) {
+                return;
+            }
+            uris = collapse(mPending);
+            mPending.clear();
+            mFirstPendingAt = -1;
+        }
+
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * (Re)arm the flush so it runs once the window has passed without new changes, but no
+     * later than the maximum delay after the first pending change.
+     */
+    private void scheduleLocked() {
+        long now = SystemClock.uptimeMillis();
+        long deadline = mFirstPendingAt + mMaxDelayMillis;
+        long delay = Math.max(0, Math.min(mWindowMillis, deadline - now));
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postDelayed(mFlushRunnable, delay);
+    }
+
+    /**
+     * Drop every URI that is a descendant of another pending URI. Notifying a URI already
+     * reaches the observers registered on its descendants, so those would be redundant.
+     */
+    private static List<Uri> collapse(LinkedHashSet<Uri> pending) {
+        List<Uri> result = new ArrayList<Uri>(pending.size());
+        for (Uri candidate : pending) {
+            boolean covered = false;
+            for (Uri other : pending) {
+                if (other != candidate && isAncestor(other, candidate)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return true if {@code ancestor} names the same provider as {@code uri} and its path is a
+     * strict prefix of the path of {@code uri}.
+     */
+    private static boolean isAncestor(Uri ancestor, Uri uri) {
+        if (!equals(ancestor.getScheme(), uri.getScheme())
+                || !equals(ancestor.getAuthority(), uri.getAuthority())) {
+            return false;
+        }
+        List<String> ancestorSegments = ancestor.getPathSegments();
+        List<String> segments = uri.getPathSegments();
+        if (ancestorSegments.size() >= segments.size()) {
+            return false;
+        }
+        return segments.subList(0, ancestorSegments.size()).equals(ancestorSegments);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
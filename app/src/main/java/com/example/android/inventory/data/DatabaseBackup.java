@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Online backup and restore of inventory.db, run by {@link ProductProvider} for
+ * {@link ProductContract#METHOD_BACKUP} and {@link ProductContract#METHOD_RESTORE}.
+ *
+ * A backup is a zip archive holding the database file as its first entry, compressed and
+ * protected by the entry's CRC, followed by a manifest with the size, SHA-256 digest and schema
+ * version of the database. Both directions stream through a small buffer, so the database
+ * never has to fit in memory.
+ *
+ * With write-ahead logging, commits are appended to the log and only reach the database file
+ * when the log is checkpointed. The backup checkpoints the log once and holds off further
+ * checkpoints while it copies the file, so the copy is the consistent state as of that
+ * checkpoint while writers carry on appending to the log. Without write-ahead logging (before
+ * API 16) writers are held off for the duration of the copy instead.
+ */
+class DatabaseBackup {
+
+    private static final String LOG_TAG = DatabaseBackup.class.getSimpleName();
+
+    /** Name of the archive entry holding the database file */
+    private static final String ENTRY_DATABASE = "inventory.db";
+
+    /** Name of the archive entry holding the manifest */
+    private static final String ENTRY_MANIFEST = "manifest.properties";
+
+    private static final String MANIFEST_SIZE = "size";
+    private static final String MANIFEST_SHA256 = "sha256";
+    private static final String MANIFEST_VERSION = "version";
+
+    /** Number of attempts at a complete checkpoint while readers are in the way */
+    private static final int CHECKPOINT_ATTEMPTS = 20;
+
+    /** Delay between two checkpoint attempts */
+    private static final long CHECKPOINT_RETRY_MILLIS = 100;
+
+    /** Log size in pages at which SQLite checkpoints by default, restored after the copy */
+    private static final int DEFAULT_AUTOCHECKPOINT_PAGES = 1000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private DatabaseBackup() {}
+
+    /**
+     * Write a backup of the database to the given archive file. The archive is written to a
+     * temporary file and renamed when complete, so an existing backup is only replaced by a
+     * complete one. Return the size of the archive in bytes.
+     */
+    static long backup(SQLiteDatabase database, File archive) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        File databaseFile = new File(database.getPath());
+        File temp = new File(archive.getPath() + ".tmp");
+        int version = database.getVersion();
+
+        boolean walEnabled = Build.VERSION.SDK_INT >= 16 && database.isWriteAheadLoggingEnabled();
+        if (walEnabled) {
+            setAutoCheckpoint(database, 0);
+        } else {
+            // Every commit writes the database file, so writers have to wait for the copy
+            database.beginTransaction();
+        }
+        try {
+            if (walEnabled) {
+                checkpoint(database);
+            }
+            writeArchive(databaseFile, version, temp);
+        } finally {
+            if (walEnabled) {
+                setAutoCheckpoint(database, DEFAULT_AUTOCHECKPOINT_PAGES);
+            } else {
+                database.endTransaction();
+            }
+        }
+
+        if (!temp.renameTo(archive)) {
+            temp.delete();
+            throw new IOException("Failed to replace " + archive);
+        }
+        Log.i(LOG_TAG, "Backed up " + databaseFile.length() + " bytes to " + archive.length()
+                + " bytes in " + (SystemClock.uptimeMillis() - start) + " ms");
+        return archive.length();
+    }
+
+    /**
+     * Unpack the database from the given archive next to the given database file and verify
+     * it: its size and digest must match the manifest, it must pass SQLite's integrity check,
+     * and its schema must not be newer than this app's. Return the unpacked file, to be put in
+     * place with {@link #install(File, File)}.
+     */
+    static File unpack(File archive, File databaseFile) throws IOException {
+        File restored = new File(databaseFile.getPath() + ".restore");
+        try {
+            unpackArchive(archive, restored);
+            verifyDatabase(restored);
+            return restored;
+        } catch (IOException e) {
+            deleteDatabaseFiles(restored);
+            throw e;
+        }
+    }
+
+    /**
+     * Replace the database file with a file returned by {@link #unpack(File, File)}. The
+     * database must be closed. The write-ahead log of the old database is removed first, so it
+     * can't be applied to the new one; once closed, the old database file holds all its data,
+     * so it stays intact if the rename doesn't happen.
+     */
+    static void install(File restored, File databaseFile) throws IOException {
+        new File(databaseFile.getPath() + "-wal").delete();
+        new File(databaseFile.getPath() + "-shm").delete();
+        new File(databaseFile.getPath() + "-journal").delete();
+        if (!restored.renameTo(databaseFile)) {
+            deleteDatabaseFiles(restored);
+            throw new IOException("Failed to replace " + databaseFile);
+        }
+    }
+
+    private static void writeArchive(File databaseFile, int version, File temp)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        long size = 0;
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        ZipOutputStream out = null;
+        InputStream in = null;
+        boolean written = false;
+        try {
+            out = new ZipOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE));
+            out.putNextEntry(new ZipEntry(ENTRY_DATABASE));
+            in = new FileInputStream(databaseFile);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+                out.write(buffer, 0, count);
+                size += count;
+            }
+            out.closeEntry();
+
+            Properties manifest = new Properties();
+            manifest.setProperty(MANIFEST_SIZE, String.valueOf(size));
+            manifest.setProperty(MANIFEST_SHA256, toHex(digest.digest()));
+            manifest.setProperty(MANIFEST_VERSION, String.valueOf(version));
+            out.putNextEntry(new ZipEntry(ENTRY_MANIFEST));
+            manifest.store(out, null);
+            out.closeEntry();
+
+            out.finish();
+            out.flush();
+            // Make sure the archive is on disk before it replaces the previous one
+            fileOut.getFD().sync();
+            written = true;
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out != null ? out : fileOut);
+            if (!written) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static void unpackArchive(File archive, File restored) throws IOException {
+        MessageDigest digest = newDigest();
+        long size = 0;
+        ZipInputStream in = new ZipInputStream(
+                new BufferedInputStream(new FileInputStream(archive), BUFFER_SIZE));
+        try {
+            ZipEntry entry = in.getNextEntry();
+            if (entry == null || !ENTRY_DATABASE.equals(entry.getName())) {
+                throw new IOException("Not an inventory backup: " + archive);
+            }
+            FileOutputStream fileOut = new FileOutputStream(restored);
+            OutputStream out = new BufferedOutputStream(fileOut, BUFFER_SIZE);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                // Reading to the end of the entry also checks its CRC
+                while ((count = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                    size += count;
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                closeQuietly(out);
+            }
+
+            entry = in.getNextEntry();
+            if (entry == null || !ENTRY_MANIFEST.equals(entry.getName())) {
+                throw new IOException("Backup has no manifest: " + archive);
+            }
+            Properties manifest = new Properties();
+            manifest.load(in);
+            if (!String.valueOf(size).equals(manifest.getProperty(MANIFEST_SIZE))
+                    || !toHex(digest.digest()).equals(manifest.getProperty(MANIFEST_SHA256))) {
+                throw new IOException("Backup is corrupt: " + archive);
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void verifyDatabase(File file) throws IOException {
+        SQLiteDatabase database;
+        try {
+            database = SQLiteDatabase.openDatabase(file.getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE);
+        } catch (SQLiteException e) {
+            throw new IOException("Backup is not a database", e);
+        }
+        try {
+            if (database.getVersion() > ProductDbHelper.DATABASE_VERSION) {
+                throw new IOException("Backup is from a newer version of the app");
+            }
+            Cursor cursor = database.rawQuery("PRAGMA integrity_check", null);
+            try {
+                if (!cursor.moveToFirst() || !"ok".equalsIgnoreCase(cursor.getString(0))) {
+                    throw new IOException("Backup fails the integrity check");
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            throw new IOException("Backup is not a valid database", e);
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * Set the log size at which the database connection that writes checkpoints the log. The
+     * transaction makes sure the setting is made on the writing connection.
+     */
+    private static void setAutoCheckpoint(SQLiteDatabase database, int pages) {
+        database.beginTransactionNonExclusive();
+        try {
+            Cursor cursor = database.rawQuery("PRAGMA wal_autocheckpoint = " + pages, null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Copy the whole write-ahead log into the database file, retrying while readers still need
+     * parts of it.
+     */
+    private static void checkpoint(SQLiteDatabase database) throws IOException {
+        for (int attempt = 0; attempt < CHECKPOINT_ATTEMPTS; attempt++) {
+            Cursor cursor = database.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+            try {
+                // The row holds a busy flag, the frames in the log and the frames checkpointed
+                if (cursor.moveToFirst() && cursor.getInt(0) == 0
+                        && cursor.getLong(1) == cursor.getLong(2)) {
+                    return;
+                }
+            } finally {
+                cursor.close();
+            }
+            SystemClock.sleep(CHECKPOINT_RETRY_MILLIS);
+        }
+        throw new IOException("Database busy, can't checkpoint the log");
+    }
+
+    private static void deleteDatabaseFiles(File file) {
+        file.delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+        new File(file.getPath() + "-journal").delete();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing more can be done about it
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Time-boxed maintenance of inventory.db, run by {@link ProductProvider} for
+ * {@link ProductContract#METHOD_RUN_MAINTENANCE}.
+ *
+ * A run works through the steps below in order until they are done or its time budget is
+ * used up. The next step is remembered, so an interrupted run resumes where it stopped.
+ * <ol>
+ * <li>ANALYZE, so the query planner has statistics.</li>
+ * <li>Incremental vacuum, returning free pages to the file system a chunk at a time. The
+ * database is converted to incremental auto-vacuum once with a full VACUUM. Setting the mode
+ * when the database is created has no effect, since Android creates android_metadata before
+ * {@link ProductDbHelper#onCreate} runs.</li>
+ * <li>WAL checkpoint, truncating the write-ahead log.</li>
+ * <li>Finding the clusters of near-duplicate products, see {@link NameTrigrams}.</li>
+ * </ol>
+ */
+class DatabaseMaintenance {
+
+    private static final String LOG_TAG = DatabaseMaintenance.class.getSimpleName();
+
+    /** Name of the preferences file holding the maintenance progress */
+    private static final String PREFS_NAME = "maintenance";
+
+    /** Preference key of the step the next run starts with */
+    private static final String PREF_NEXT_STEP = "next_step";
+
+    /** Preference key of the time the last complete run finished */
+    private static final String PREF_LAST_COMPLETED = "last_completed";
+
+    private static final int STEP_ANALYZE = 0;
+    private static final int STEP_VACUUM = 1;
+    private static final int STEP_CHECKPOINT = 2;
+    private static final int STEP_FIND_DUPLICATES = 3;
+    private static final int STEP_COUNT = 4;
+
+    /** Value of PRAGMA auto_vacuum for incremental auto-vacuum */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** Number of free pages released per incremental vacuum statement */
+    private static final int VACUUM_CHUNK_PAGES = 256;
+
+    /**
+     * Minimum time between complete runs. Several triggers (charging, idle) may start a run;
+     * the ones within this interval of a complete run do nothing.
+     */
+    private static final long MIN_INTERVAL_MILLIS = 20L * 60 * 60 * 1000;
+
+    private final SQLiteDatabase mDatabase;
+
+    private final SharedPreferences mPrefs;
+
+    DatabaseMaintenance(Context context, SQLiteDatabase database) {
+        mDatabase = database;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Run the remaining maintenance steps for at most about the given time. A step that has
+     * started is finished, except for the vacuum, which stops between chunks.
+     *
+     * @return a bundle with {@link ProductContract#RESULT_COMPLETED},
+     * {@link ProductContract#RESULT_DURATION_MILLIS} and
+     * {@link ProductContract#RESULT_BYTES_RECLAIMED}
+     */
+    Bundle run(long budgetMillis) {
+        long start = SystemClock.uptimeMillis();
+        long deadline = start + budgetMillis;
+        long databaseBytesBefore = databaseBytes();
+
+        int step = mPrefs.getInt(PREF_NEXT_STEP, STEP_ANALYZE);
+        long lastCompleted = mPrefs.getLong(PREF_LAST_COMPLETED, 0);
+        if (step == STEP_ANALYZE
+                && System.currentTimeMillis() - lastCompleted < MIN_INTERVAL_MILLIS) {
+            // Nothing to resume and the last complete run was recent enough
+            Log.i(LOG_TAG, "Maintenance skipped, last completed at " + lastCompleted);
+            return result(true, 0, 0);
+        }
+        while (step < STEP_COUNT && SystemClock.uptimeMillis() < deadline) {
+            boolean stepDone = true;
+            switch (step) {
+                case STEP_ANALYZE:
+                    mDatabase.execSQL("ANALYZE");
+                    break;
+                case STEP_VACUUM:
+                    stepDone = vacuum(deadline);
+                    break;
+                case STEP_CHECKPOINT:
+                    checkpoint();
+                    break;
+                case STEP_FIND_DUPLICATES:
+                    NameTrigrams.findDuplicates(mDatabase);
+                    break;
+            }
+            if (!stepDone) {
+                break;
+            }
+            step++;
+            mPrefs.edit().putInt(PREF_NEXT_STEP, step).apply();
+        }
+
+        boolean completed = step >= STEP_COUNT;
+        if (completed) {
+            mPrefs.edit()
+                    .putInt(PREF_NEXT_STEP, STEP_ANALYZE)
+                    .putLong(PREF_LAST_COMPLETED, System.currentTimeMillis())
+                    .apply();
+        }
+
+        long duration = SystemClock.uptimeMillis() - start;
+        long bytesReclaimed = Math.max(0, databaseBytesBefore - databaseBytes());
+        Log.i(LOG_TAG, "Maintenance " + (completed ? "completed" : "paused before step " + step)
+                + " in " + duration + " ms, " + bytesReclaimed + " bytes reclaimed");
+
+        return result(completed, duration, bytesReclaimed);
+    }
+
+    private static Bundle result(boolean completed, long durationMillis, long bytesReclaimed) {
+        Bundle result = new Bundle();
+        result.putBoolean(ProductContract.RESULT_COMPLETED, completed);
+        result.putLong(ProductContract.RESULT_DURATION_MILLIS, durationMillis);
+        result.putLong(ProductContract.RESULT_BYTES_RECLAIMED, bytesReclaimed);
+        return result;
+    }
+
+    /**
+     * Release free pages until there are none left or the deadline has passed. Return true if
+     * the step is done.
+     */
+    private boolean vacuum(long deadline) {
+        if (longForPragma("auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            // Switching the mode only takes effect with a full VACUUM. It is done once, and
+            // only ever from here, while the device is idle.
+            mDatabase.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            mDatabase.execSQL("VACUUM");
+            return true;
+        }
+        long freePages = longForPragma("freelist_count");
+        while (freePages > 0) {
+            if (SystemClock.uptimeMillis() >= deadline) {
+                return false;
+            }
+            // incremental_vacuum returns a row per step, so it has to be run as a query
+            Cursor cursor = mDatabase.rawQuery(
+                    "PRAGMA incremental_vacuum(" + VACUUM_CHUNK_PAGES + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    // Step through all pages of the chunk
+                }
+            } finally {
+                cursor.close();
+            }
+            long remaining = longForPragma("freelist_count");
+            if (remaining >= freePages) {
+                // No progress, e.g. because a reader still holds the pages
+                break;
+            }
+            freePages = remaining;
+        }
+        return true;
+    }
+
+    /**
+     * Copy the write-ahead log into the database and truncate it.
+     */
+    private void checkpoint() {
+        Cursor cursor = mDatabase.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long longForPragma(String pragma) {
+        Cursor cursor = mDatabase.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the size of the database file together with its write-ahead log.
+     */
+    private long databaseBytes() {
+        File file = new File(mDatabase.getPath());
+        File wal = new File(mDatabase.getPath() + "-wal");
+        return file.length() + wal.length();
+    }
+}
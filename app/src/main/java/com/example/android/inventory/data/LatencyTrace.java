@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.data;
+
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Latency tracing of a write from the tap that starts it until its result is drawn.
+ *
+ * A trace is started with {@link #start(String)} and its ID travels with the write as the
+ * {@link ProductContract#QUERY_PARAMETER_TRACE} query parameter, so the provider can attribute
+ * its work to the trace. The requery, cursor swap and draw that follow the change notification
+ * don't know which write caused them; each of them is attributed to every open trace that has
+ * reached the mark before it, see {@link #markPending(int)}.
+ *
+ * Every stage on one thread is also a section of the system trace named after the trace, e.g.
+ * "sale#12 requery", so the breakdown shows up in systrace next to the rest of the app. The
+ * durations of the last {@link #HISTORY_SIZE} completed traces are kept for {@link #report()}.
+ */
+public final class LatencyTrace {
+
+    private static final String LOG_TAG = LatencyTrace.class.getSimpleName();
+
+    /** The user tapped; the write is about to be handed to the content resolver */
+    public static final int MARK_TAP = 0;
+
+    /** The provider has received the write */
+    public static final int MARK_PROVIDER_START = 1;
+
+    /** The provider has committed the write and sent the change notification */
+    public static final int MARK_PROVIDER_END = 2;
+
+    /** The loader has started the requery */
+    public static final int MARK_REQUERY_START = 3;
+
+    /** The requery has finished and filled its cursor window */
+    public static final int MARK_REQUERY_END = 4;
+
+    /** The new cursor has been delivered and is about to be swapped in */
+    public static final int MARK_SWAP_START = 5;
+
+    /** The adapter has the new cursor */
+    public static final int MARK_SWAP_END = 6;
+
+    /** The rows have been rebound and laid out and are about to be drawn */
+    public static final int MARK_DRAWN = 7;
+
+    private static final int MARK_COUNT = 8;
+
+    /** Name of the stage ending at each mark after the first */
+    private static final String[] STAGES = {
+            null, "resolver", "provider", "notify", "requery", "deliver", "swap", "bind+layout"};
+
+    /** Number of completed traces the report is made of */
+    private static final int HISTORY_SIZE = 50;
+
+    /** Age after which an open trace is dropped, e.g. because its write changed nothing */
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    private static final boolean SYSTRACE = Build.VERSION.SDK_INT >= 18;
+
+    private static class Entry {
+        final int id;
+        final String name;
+        final long[] marks = new long[MARK_COUNT];
+
+        Entry(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private static int sNextId = 1;
+
+    private static final List<Entry> sOpen = new ArrayList<Entry>();
+
+    /** Stage durations of the completed traces, oldest first */
+    private static final List<long[]> sHistory = new ArrayList<long[]>();
+
+    private LatencyTrace() {}
+
+    /**
+     * Start a trace of the given kind of write, e.g. "sale", and return its ID.
+     */
+    public static synchronized int start(String name) {
+        long now = SystemClock.uptimeMillis();
+        for (Iterator<Entry> it = sOpen.iterator(); it.hasNext(); ) {
+            if (now - it.next().marks[MARK_TAP] > TIMEOUT_MILLIS) {
+                it.remove();
+            }
+        }
+        Entry entry = new Entry(sNextId++, name);
+        entry.marks[MARK_TAP] = now;
+        sOpen.add(entry);
+        return entry.id;
+    }
+
+    /**
+     * Return the given URI carrying the ID of the given trace.
+     */
+    public static Uri tag(Uri uri, int traceId) {
+        return uri.buildUpon().appendQueryParameter(ProductContract.QUERY_PARAMETER_TRACE,
+                String.valueOf(traceId)).build();
+    }
+
+    /**
+     * Return the ID of the trace the given URI carries, or 0 if it carries none.
+     */
+    static int traceId(Uri uri) {
+        String id = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_TRACE);
+        if (id == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Set the given mark of the trace with the given ID, and begin a system trace section for
+     * the stage that starts with it. Does nothing for ID 0.
+     */
+    public static void begin(int traceId, int mark) {
+        if (traceId == 0) {
+            return;
+        }
+        String name = mark(traceId, mark);
+        if (SYSTRACE && name != null) {
+            Trace.beginSection(name + " " + STAGES[mark + 1]);
+        }
+    }
+
+    /**
+     * Set the given mark of the trace with the given ID, ending the system trace section begun
+     * by {@link #begin(int, int)}. Does nothing for ID 0.
+     */
+    public static void end(int traceId, int mark) {
+        if (traceId == 0) {
+            return;
+        }
+        if (mark(traceId, mark) != null && SYSTRACE) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Set the given mark of the trace with the given ID and return the name of the trace, e.g.
+     * "sale#12", or null if it isn't open.
+     */
+    private static synchronized String mark(int traceId, int mark) {
+        for (Entry entry : sOpen) {
+            if (entry.id == traceId) {
+                entry.marks[mark] = SystemClock.uptimeMillis();
+                return entry.name + "#" + entry.id;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set the given mark of every open trace that has reached the mark before it but not this
+     * one, and return true if there was any. Reaching {@link #MARK_DRAWN} completes a trace.
+     */
+    public static synchronized boolean markPending(int mark) {
+        long now = SystemClock.uptimeMillis();
+        boolean marked = false;
+        for (Iterator<Entry> it = sOpen.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.marks[mark - 1] == 0 || entry.marks[mark] != 0) {
+                continue;
+            }
+            entry.marks[mark] = now;
+            marked = true;
+            if (mark == MARK_DRAWN) {
+                it.remove();
+                complete(entry);
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Begin a system trace section for a stage that is attributed to all pending traces, e.g.
+     * the requery, if there are any. Return true if a section was begun, to be passed to
+     * {@link #endPendingSection(boolean)}.
+     */
+    public static boolean beginPendingSection(String stage) {
+        if (!SYSTRACE || !hasOpen()) {
+            return false;
+        }
+        Trace.beginSection(stage);
+        return true;
+    }
+
+    /**
+     * End the section begun by {@link #beginPendingSection(String)}.
+     */
+    public static void endPendingSection(boolean begun) {
+        if (begun) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Return true if any trace hasn't completed yet.
+     */
+    public static synchronized boolean hasOpen() {
+        return !sOpen.isEmpty();
+    }
+
+    private static void complete(Entry entry) {
+        long[] durations = new long[MARK_COUNT];
+        StringBuilder line = new StringBuilder(entry.name).append('#').append(entry.id)
+                .append(": ").append(entry.marks[MARK_DRAWN] - entry.marks[MARK_TAP])
+                .append(" ms");
+        for (int mark = MARK_PROVIDER_START; mark < MARK_COUNT; mark++) {
+            durations[mark] = entry.marks[mark] - entry.marks[mark - 1];
+            line.append(", ").append(STAGES[mark]).append(' ').append(durations[mark]);
+        }
+        durations[MARK_TAP] = entry.marks[MARK_DRAWN] - entry.marks[MARK_TAP];
+        Log.d(LOG_TAG, line.toString());
+
+        sHistory.add(durations);
+        if (sHistory.size() > HISTORY_SIZE) {
+            sHistory.remove(0);
+        }
+    }
+
+    /**
+     * Return a breakdown of the last completed traces: the average and maximum duration of
+     * each stage and of the whole trace, in milliseconds.
+     */
+    public static synchronized String report() {
+        if (sHistory.isEmpty()) {
+            return "No completed traces";
+        }
+        StringBuilder report = new StringBuilder()
+                .append(sHistory.size()).append(" traces, avg / max ms\n");
+        for (int mark = MARK_PROVIDER_START; mark <= MARK_COUNT; mark++) {
+            // The total is kept in the slot of the first mark and reported last
+            int slot = mark == MARK_COUNT ? MARK_TAP : mark;
+            long total = 0;
+            long max = 0;
+            for (long[] durations : sHistory) {
+                total += durations[slot];
+                max = Math.max(max, durations[slot]);
+            }
+            report.append(String.format(Locale.US, "%-12s %5d / %5d\n",
+                    slot == MARK_TAP ? "total" : STAGES[slot], total / sHistory.size(), max));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trigram index of product names, for finding products whose names are nearly the same, such
+ * as "Coca Cola 330ml" and "Coca-Cola 330 ml".
+ *
+ * A name is reduced to its letters and digits in lower case, and its trigrams are the three
+ * letter sequences of the result padded with two spaces in front and one behind. The
+ * similarity of two names is the Dice coefficient of their trigram sets.
+ *
+ * Candidates are found in the index, which is keyed by trigram, and only then compared. Two
+ * names that are at least {@link #MIN_SIMILARITY} similar share a minimum number of trigrams,
+ * and only products sharing that many of the rarer trigrams of a name are candidates.
+ * Trigrams found in more than {@link #MAX_POSTINGS} names are left out of the candidate
+ * search, so a lookup reads a bounded number of index entries however many products there
+ * are, and finding all duplicates takes time linear in the number of products.
+ */
+class NameTrigrams {
+
+    private static final String LOG_TAG = NameTrigrams.class.getSimpleName();
+
+    /** Minimum similarity of the names of two products for them to count as duplicates */
+    static final double MIN_SIMILARITY = 0.75;
+
+    /** Number of names a trigram may be found in and still be used to find candidates */
+    private static final int MAX_POSTINGS = 500;
+
+    /** Maximum number of products returned by a lookup */
+    private static final int MAX_MATCHES = 20;
+
+    /**
+     * A product whose name is similar to a given name.
+     */
+    static class Match {
+        final long id;
+        final String name;
+        final String sku;
+        final double similarity;
+
+        Match(long id, String name, String sku, double similarity) {
+            this.id = id;
+            this.name = name;
+            this.sku = sku;
+            this.similarity = similarity;
+        }
+    }
+
+    private NameTrigrams() {}
+
+    /**
+     * Return the trigrams of the given name.
+     */
+    static Set<String> trigrams(String name) {
+        Set<String> trigrams = new HashSet<String>();
+        if (name == null) {
+            return trigrams;
+        }
+        StringBuilder normalized = new StringBuilder(name.length() + 3).append("  ");
+        String lowerCase = name.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < lowerCase.length(); i++) {
+            char c = lowerCase.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                normalized.append(c);
+            }
+        }
+        if (normalized.length() == 2) {
+            return trigrams;
+        }
+        normalized.append(' ');
+        for (int i = 0; i + 3 <= normalized.length(); i++) {
+            trigrams.add(normalized.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    /**
+     * Return the Dice coefficient of the given trigram sets.
+     */
+    static double similarity(Set<String> a, Set<String> b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return 0;
+        }
+        int shared = 0;
+        for (String trigram : a) {
+            if (b.contains(trigram)) {
+                shared++;
+            }
+        }
+        return 2.0 * shared / (a.size() + b.size());
+    }
+
+    /**
+     * Index the names of the products queued by the triggers since the last call, in one
+     * transaction. Return the number of products indexed.
+     */
+    static int indexPending(SQLiteDatabase db) {
+        if (DatabaseUtils.queryNumEntries(db, ProductDbHelper.TRIGRAMS_PENDING_TABLE_NAME) == 0) {
+            return 0;
+        }
+        int indexed = 0;
+        db.beginTransaction();
+        try {
+            SQLiteStatement delete = db.compileStatement(deleteStatement());
+            SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO "
+                    + ProductDbHelper.TRIGRAMS_TABLE_NAME + " ("
+                    + ProductDbHelper.TRIGRAMS_COLUMN_TRIGRAM + ", "
+                    + ProductDbHelper.COLUMN_PRODUCT_ID + ") VALUES (?, ?)");
+            // A product deleted meanwhile has no name and just loses its trigrams
+            Cursor cursor = db.rawQuery("SELECT q." + ProductDbHelper.COLUMN_PRODUCT_ID + ", p."
+                    + ProductEntry.COLUMN_PRODUCT_NAME + " FROM "
+                    + ProductDbHelper.TRIGRAMS_PENDING_TABLE_NAME + " q LEFT JOIN "
+                    + ProductEntry.TABLE_NAME + " p ON p." + ProductEntry._ID + " = q."
+                    + ProductDbHelper.COLUMN_PRODUCT_ID, null);
+            try {
+                while (cursor.moveToNext()) {
+                    long productId = cursor.getLong(0);
+                    delete.bindLong(1, productId);
+                    delete.executeUpdateDelete();
+                    for (String trigram : trigrams(cursor.getString(1))) {
+                        insert.bindString(1, trigram);
+                        insert.bindLong(2, productId);
+                        insert.executeInsert();
+                    }
+                    indexed++;
+                }
+            } finally {
+                cursor.close();
+                delete.close();
+                insert.close();
+            }
+            db.delete(ProductDbHelper.TRIGRAMS_PENDING_TABLE_NAME, null, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return indexed;
+    }
+
+    /**
+     * Return the live products whose names are at least {@link #MIN_SIMILARITY} similar to the
+     * given name, most similar first.
+     */
+    static List<Match> findSimilar(SQLiteDatabase db, String name) {
+        indexPending(db);
+        Set<String> trigrams = trigrams(name);
+        Map<String, Integer> postings = new HashMap<String, Integer>();
+        for (String trigram : trigrams) {
+            // Counting stops past the limit, so a common trigram costs no more than a rare one
+            postings.put(trigram, (int) DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM"
+                    + " (SELECT 1 FROM " + ProductDbHelper.TRIGRAMS_TABLE_NAME + " WHERE "
+                    + ProductDbHelper.TRIGRAMS_COLUMN_TRIGRAM + " = ? LIMIT "
+                    + (MAX_POSTINGS + 1) + ")", new String[] { trigram }));
+        }
+        List<Match> matches = findSimilar(db, trigrams, postings, 0);
+        return matches.size() > MAX_MATCHES ? matches.subList(0, MAX_MATCHES) : matches;
+    }
+
+    /**
+     * Return the live products with an ID above the given one whose names are at least
+     * {@link #MIN_SIMILARITY} similar to a name with the given trigrams, most similar first.
+     * The postings hold the number of names each trigram is found in, at least up to
+     * {@link #MAX_POSTINGS}.
+     */
+    private static List<Match> findSimilar(SQLiteDatabase db, Set<String> trigrams,
+                                           Map<String, Integer> postings, long afterId) {
+        List<Match> matches = new ArrayList<Match>();
+        // Dice >= t means 2 * shared >= t * (a + b), and since b >= shared,
+        // shared >= t * a / (2 - t)
+        int minShared = (int) Math.ceil(MIN_SIMILARITY * trigrams.size() / (2 - MIN_SIMILARITY));
+        List<String> rare = new ArrayList<String>(trigrams.size());
+        int common = 0;
+        for (String trigram : trigrams) {
+            Integer count = postings.get(trigram);
+            if (count == null || count == 0) {
+                // Not in any name, so it can't be shared
+                continue;
+            }
+            if (count <= MAX_POSTINGS) {
+                rare.add(trigram);
+            } else {
+                common++;
+            }
+        }
+        // Each common trigram left out may be one of the shared ones
+        minShared = Math.max(1, minShared - common);
+        if (rare.size() < minShared) {
+            return matches;
+        }
+
+        String[] args = new String[rare.size() + 2];
+        rare.toArray(args);
+        args[rare.size()] = String.valueOf(afterId);
+        args[rare.size() + 1] = String.valueOf(minShared);
+        Cursor cursor = db.rawQuery(candidatesQuery(rare.size()), args);
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(1);
+                double similarity = similarity(trigrams, trigrams(name));
+                if (similarity >= MIN_SIMILARITY) {
+                    matches.add(new Match(cursor.getLong(0), name, cursor.getString(2),
+                            similarity));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(matches, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                return Double.compare(b.similarity, a.similarity);
+            }
+        });
+        return matches;
+    }
+
+    /**
+     * Return the statement deleting the trigrams of the product bound as the argument, read
+     * through the index on the product.
+     */
+    static String deleteStatement() {
+        return "DELETE FROM " + ProductDbHelper.TRIGRAMS_TABLE_NAME + " WHERE "
+                + ProductDbHelper.COLUMN_PRODUCT_ID + " = ?";
+    }
+
+    /**
+     * Return the query for the live products with an ID above the one in the second to last
+     * argument that share at least as many of the n trigrams in the first arguments as given in
+     * the last argument. Each trigram is a range of the index.
+     */
+    static String candidatesQuery(int n) {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        return "SELECT p." + ProductEntry._ID + ", p." + ProductEntry.COLUMN_PRODUCT_NAME
+                + ", p." + ProductEntry.COLUMN_PRODUCT_SKU
+                + " FROM (SELECT " + ProductDbHelper.COLUMN_PRODUCT_ID + " FROM "
+                + ProductDbHelper.TRIGRAMS_TABLE_NAME
+                + " WHERE " + ProductDbHelper.TRIGRAMS_COLUMN_TRIGRAM + " IN (" + placeholders
+                + ") AND " + ProductDbHelper.COLUMN_PRODUCT_ID + " > ?"
+                + " GROUP BY " + ProductDbHelper.COLUMN_PRODUCT_ID
+                // Bound arguments are text, which never equals a count
+                + " HAVING COUNT(*) >= CAST(? AS INTEGER)) c"
+                + " CROSS JOIN " + ProductEntry.TABLE_NAME + " p ON p." + ProductEntry._ID
+                + " = c." + ProductDbHelper.COLUMN_PRODUCT_ID
+                + " WHERE p." + ProductEntry.COLUMN_PRODUCT_DELETED + " = 0";
+    }
+
+    /**
+     * Group the live products whose names are nearly the same into clusters and replace the
+     * stored clusters with them. Each product is looked up once, against the products with
+     * higher IDs, and the pairs found are joined into clusters. Return the number of clusters.
+     */
+    static int findDuplicates(SQLiteDatabase db) {
+        long start = SystemClock.uptimeMillis();
+        indexPending(db);
+
+        // One pass over the index counts every trigram, instead of a count per lookup
+        Map<String, Integer> postings = new HashMap<String, Integer>();
+        Cursor cursor = db.rawQuery("SELECT " + ProductDbHelper.TRIGRAMS_COLUMN_TRIGRAM
+                + ", COUNT(*) FROM " + ProductDbHelper.TRIGRAMS_TABLE_NAME + " GROUP BY "
+                + ProductDbHelper.TRIGRAMS_COLUMN_TRIGRAM, null);
+        try {
+            while (cursor.moveToNext()) {
+                postings.put(cursor.getString(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Parent of each product in a cluster; the root is the lowest ID of the cluster
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        cursor = db.rawQuery("SELECT " + ProductEntry._ID + ", "
+                + ProductEntry.COLUMN_PRODUCT_NAME + " FROM " + ProductEntry.TABLE_NAME
+                + " WHERE " + ProductEntry.COLUMN_PRODUCT_DELETED + " = 0", null);
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                for (Match match : findSimilar(db, trigrams(cursor.getString(1)), postings, id)) {
+                    union(parents, id, match.id);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Set<Long> clusters = new HashSet<Long>();
+        db.beginTransaction();
+        try {
+            db.delete(ProductDbHelper.DUPLICATES_TABLE_NAME, null, null);
+            SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                    + ProductDbHelper.DUPLICATES_TABLE_NAME + " ("
+                    + ProductDbHelper.COLUMN_PRODUCT_ID + ", " + ProductEntry.KEY_CLUSTER_ID
+                    + ") VALUES (?, ?)");
+            try {
+                for (Long id : parents.keySet()) {
+                    long root = find(parents, id);
+                    clusters.add(root);
+                    insert.bindLong(1, id);
+                    insert.bindLong(2, root);
+                    insert.executeInsert();
+                }
+            } finally {
+                insert.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(LOG_TAG, "Found " + clusters.size() + " clusters of " + parents.size()
+                + " near-duplicate products in " + (SystemClock.uptimeMillis() - start) + " ms");
+        return clusters.size();
+    }
+
+    /**
+     * Return the root of the cluster of the given product, shortening the path to it.
+     */
+    private static long find(Map<Long, Long> parents, long id) {
+        long root = id;
+        Long parent;
+        while ((parent = parents.get(root)) != null && parent != root) {
+            root = parent;
+        }
+        while (id != root) {
+            long next = parents.get(id);
+            parents.put(id, root);
+            id = next;
+        }
+        return root;
+    }
+
+    /**
+     * Join the clusters of the given products, keeping the lower root.
+     */
+    private static void union(Map<Long, Long> parents, long a, long b) {
+        if (!parents.containsKey(a)) {
+            parents.put(a, a);
+        }
+        if (!parents.containsKey(b)) {
+            parents.put(b, b);
+        }
+        long rootA = find(parents, a);
+        long rootB = find(parents, b);
+        if (rootA < rootB) {
+            parents.put(rootB, rootA);
+        } else if (rootB < rootA) {
+            parents.put(rootA, rootB);
+        }
+    }
+}
@@ -19,6 +19,8 @@ import android.net.Uri;
 import android.content.ContentResolver;
 import android.provider.BaseColumns;
 
+import java.util.Collection;
+
 import static android.text.style.TtsSpan.GENDER_FEMALE;
 import static android.text.style.TtsSpan.GENDER_MALE;
 
@@ -53,13 +55,371 @@ public final class ProductContract {
      */
     public static final String PATH_PRODUCTS = "products";
 
+    /**
+     * Path (appended to the products path) for relative quantity adjustments. Updating
+     * content://com.example.android.inventory/products/adjust/3 with
+     * {@link ProductEntry#KEY_QUANTITY_DELTA} adds the delta to the quantity of product 3.
+     */
+    public static final String PATH_ADJUST = "adjust";
+
+    /**
+     * Path (appended to the products path) listing the products closest to running out of
+     * stock first.
+     */
+    public static final String PATH_STOCKOUT = "stockout";
+
+    /**
+     * Path (appended to the products path) for bulk price adjustments. Updating
+     * content://com.example.android.inventory/products/price changes the price of every product
+     * matching the selection and tag filter in a single statement.
+     */
+    public static final String PATH_PRICE = "price";
+
+    /**
+     * Path (appended to the products path) for looking up products by SKU or barcode.
+     * content://com.example.android.inventory/products/sku/4006381333931 returns the product
+     * with that code, and content://com.example.android.inventory/products/sku?sku=A&amp;sku=B
+     * returns the products with any of the given codes.
+     */
+    public static final String PATH_SKU = "sku";
+
+    /**
+     * Path (appended to the products path) for finding products with names nearly the same as
+     * a given name.
+     */
+    public static final String PATH_SIMILAR = "similar";
+
+    /**
+     * Path (appended to the products path) for the clusters of products whose names are nearly
+     * the same.
+     */
+    public static final String PATH_DUPLICATES = "duplicates";
+
+    /**
+     * Path for sale events. Inserting into content://com.example.android.inventory/sales records
+     * a sale and takes the units out of stock.
+     */
+    public static final String PATH_SALES = "sales";
+
+    /** Path (appended to the sales path) for the units sold per product and day */
+    public static final String PATH_DAILY = "daily";
+
+    /** Path (appended to the sales path) for the units sold per product and month */
+    public static final String PATH_MONTHLY = "monthly";
+
+    /**
+     * Path for the stock summary, a single row of totals across all products that is kept up
+     * to date by the database, so reading it costs the same however many products there are.
+     */
+    public static final String PATH_SUMMARY = "summary";
+
+    /**
+     * Path for categories and tags. Querying content://com.example.android.inventory/tags/facets
+     * returns every tag with the number of products carrying it.
+     */
+    public static final String PATH_TAGS = "tags";
+
+    /** Path (appended to the tags path) for the facet counts of the tags */
+    public static final String PATH_FACETS = "facets";
+
+    /** Path for the links between products and tags */
+    public static final String PATH_PRODUCT_TAGS = "product_tags";
+
+    /**
+     * Path for lots, the stock of a product that expires on a given date. Inserting a lot adds
+     * its units to the product's quantity; sales take units out of the earliest expiring lots
+     * first.
+     */
+    public static final String PATH_LOTS = "lots";
+
+    /**
+     * Path (appended to the lots path) listing the lots expiring within the number of days
+     * given in {@link #QUERY_PARAMETER_DAYS}, soonest first.
+     */
+    public static final String PATH_EXPIRING = "expiring";
+
+    /**
+     * Path for the locations stock is kept at, e.g. a back room and a shop floor. Querying
+     * content://com.example.android.inventory/locations/3/stock lists the products at
+     * location 3.
+     */
+    public static final String PATH_LOCATIONS = "locations";
+
+    /**
+     * Path for the stock of products at locations, and (appended to a product or location URI)
+     * for the stock at one location or of one product.
+     */
+    public static final String PATH_STOCK = "stock";
+
+    /**
+     * Path (appended to base content URI) for holds, e.g.
+     * content://com.example.android.inventory/holds/ is a valid path for looking at holds.
+     */
+    public static final String PATH_HOLDS = "holds";
+
+    /**
+     * Path (appended to base content URI) for the price history, e.g.
+     * content://com.example.android.inventory/price_history/ is a valid path for looking at
+     * the prices products had.
+     */
+    public static final String PATH_PRICE_HISTORY = "price_history";
+
+    /**
+     * Path (appended to the price history path) for the prices of products at a point in time.
+     */
+    public static final String PATH_AT = "at";
+
+    /**
+     * Path (appended to base content URI) for stock-take sessions, e.g.
+     * content://com.example.android.inventory/count_sessions/ is a valid path for looking at
+     * the sessions.
+     */
+    public static final String PATH_COUNT_SESSIONS = "count_sessions";
+
+    /**
+     * Path (appended to base content URI) for the counts recorded in stock-take sessions.
+     */
+    public static final String PATH_COUNTS = "counts";
+
+    /**
+     * Path (appended to a stock-take session URI) for the differences between the counted and
+     * the recorded quantities of the products counted in the session.
+     */
+    public static final String PATH_DIFFERENCES = "differences";
+
+    /** Query parameter with a number of days, e.g. for {@link #PATH_EXPIRING} */
+    public static final String QUERY_PARAMETER_DAYS = "days";
+
+    /**
+     * Query parameter filtering products or facets by tag. It may be given several times, in
+     * which case only products carrying all the given tags match, e.g.
+     * content://com.example.android.inventory/products?tag=3&amp;tag=7.
+     */
+    public static final String QUERY_PARAMETER_TAG = "tag";
+
+    /**
+     * Query parameter with a time in milliseconds since the epoch, e.g. for {@link #PATH_AT}
+     */
+    public static final String QUERY_PARAMETER_AT = "at";
+
+    /** Query parameter with the name of a product, e.g. for {@link #PATH_SIMILAR} */
+    public static final String QUERY_PARAMETER_NAME = "name";
+
+    /** Query parameter with the ID of a product, given once per product */
+    public static final String QUERY_PARAMETER_PRODUCT = "product";
+
+    /**
+     * Query parameter of a SKU lookup, given once per code. See
+     * {@link ProductEntry#buildSkuLookupUri(Collection)}.
+     */
+    public static final String QUERY_PARAMETER_SKU = "sku";
+
+    /**
+     * Query parameter of a write with the ID of the {@link LatencyTrace} it is part of, e.g.
+     * content://com.example.android.inventory/products/adjust/4?trace=12.
+     */
+    public static final String QUERY_PARAMETER_TRACE = "trace";
+
+    /**
+     * Return the given URI filtered to products carrying all of the given tags.
+     */
+    public static Uri withTagFilter(Uri uri, long[] tagIds) {
+        Uri.Builder builder = uri.buildUpon();
+        for (long tagId : tagIds) {
+            builder.appendQueryParameter(QUERY_PARAMETER_TAG, String.valueOf(tagId));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Provider method (see {@link android.content.ContentResolver#call}) that runs the
+     * time-boxed database maintenance. Pass the time budget in {@link #EXTRA_BUDGET_MILLIS}.
+     * The result holds {@link #RESULT_COMPLETED}, {@link #RESULT_DURATION_MILLIS} and
+     * {@link #RESULT_BYTES_RECLAIMED}.
+     */
+    public static final String METHOD_RUN_MAINTENANCE = "run_maintenance";
+
+    /** Extra with the time budget of a provider method in milliseconds */
+    public static final String EXTRA_BUDGET_MILLIS = "budget_millis";
+
+    /**
+     * Result key: true if a provider method did its work, false if e.g. the maintenance run
+     * was paused
+     */
+    public static final String RESULT_COMPLETED = "completed";
+
+    /** Result key: duration of the run in milliseconds */
+    public static final String RESULT_DURATION_MILLIS = "duration_millis";
+
+    /** Result key: number of bytes freed on disk */
+    public static final String RESULT_BYTES_RECLAIMED = "bytes_reclaimed";
+
+    /**
+     * Provider method that writes a compressed, checksummed backup of the database to the file
+     * whose absolute path is given as the argument, while writers carry on. The result holds
+     * {@link #RESULT_COMPLETED} and {@link #RESULT_DURATION_MILLIS}.
+     */
+    public static final String METHOD_BACKUP = "backup";
+
+    /**
+     * Provider method that replaces the database with the backup in the file whose absolute
+     * path is given as the argument. The backup is verified before anything is replaced; the
+     * replacement itself is a single rename. The result holds {@link #RESULT_COMPLETED}.
+     */
+    public static final String METHOD_RESTORE = "restore";
+
+    /**
+     * Provider method that deletes up to {@link #EXTRA_LIMIT} products in one short transaction,
+     * keeping a copy of each in the trash under the trash batch given as the argument. Only
+     * products with IDs greater than {@link #EXTRA_AFTER_ID} are deleted; pass the
+     * {@link #RESULT_LAST_ID} of the previous call to carry on after it. Calling it with a new
+     * batch empties the trash of older batches. The result holds the number of products
+     * deleted in {@link #RESULT_COUNT}, which is 0 once there are none left.
+     */
+    public static final String METHOD_TRASH_PRODUCTS = "trash_products";
+
+    /**
+     * Provider method that restores all products of the trash batch given as the argument.
+     * The result holds the number of products restored in {@link #RESULT_COUNT}.
+     */
+    public static final String METHOD_RESTORE_TRASH = "restore_trash";
+
+    /**
+     * Provider method that moves {@link #EXTRA_QUANTITY} units of the product in
+     * {@link #EXTRA_PRODUCT_ID} from the location in {@link #EXTRA_FROM_LOCATION_ID} to the
+     * location in {@link #EXTRA_TO_LOCATION_ID}, in one transaction. A location ID of 0 stands
+     * for the units of the product without a location. The total quantity of the product
+     * doesn't change. The result holds the number of units moved in {@link #RESULT_COUNT},
+     * which is 0 if the source location doesn't hold enough of them.
+     */
+    public static final String METHOD_TRANSFER_STOCK = "transfer_stock";
+
+    /**
+     * Provider method that records the sales given as a list of
+     * {@link android.content.ContentValues} of {@link SaleEntry} columns in
+     * {@link #EXTRA_ROWS}, in one transaction. Unlike a batch of sale inserts, a sale of more
+     * units than are available is left out without failing the others. The optional argument
+     * is the sequence number of the flush the sales come from: they are only recorded if it is
+     * greater than that of every flush recorded before, so a flush written again, e.g. when it
+     * is replayed from a journal, isn't counted twice. The result holds the number of sales
+     * recorded in {@link #RESULT_COUNT}, the IDs of the products whose sale was left out in
+     * {@link #RESULT_REJECTED} and, in {@link #RESULT_COMPLETED}, false if the flush had been
+     * recorded already.
+     */
+    public static final String METHOD_RECORD_SALES = "record_sales";
+
+    /**
+     * Provider method that releases the holds that have expired, a chunk at a time. The result
+     * holds the number of holds released in {@link #RESULT_COUNT} and the time the next hold
+     * expires in {@link #RESULT_NEXT_EXPIRY}.
+     */
+    public static final String METHOD_RELEASE_EXPIRED_HOLDS = "release_expired_holds";
+
+    /**
+     * Provider method that groups the products whose names are nearly the same into clusters,
+     * replacing the clusters listed by {@link ProductEntry#CONTENT_DUPLICATES_URI}. It runs as
+     * part of the maintenance too. The result holds the number of clusters in
+     * {@link #RESULT_COUNT}.
+     */
+    public static final String METHOD_FIND_DUPLICATES = "find_duplicates";
+
+    /**
+     * Provider method that reconciles the open stock-take session whose ID is given as the
+     * argument: in one transaction the session is closed and the quantity of every product
+     * counted with a difference is corrected by that difference. The result holds the number
+     * of products corrected in {@link #RESULT_COUNT}, which is 0 if the session isn't open.
+     */
+    public static final String METHOD_RECONCILE_COUNT = "reconcile_count";
+
+    /**
+     * Provider method that merges a chunk of the catalog a supplier sends, e.g. every night,
+     * into the products, keyed by SKU. Pass the rows as a list of
+     * {@link android.content.ContentValues} in {@link #EXTRA_ROWS} and the ID of the feed run
+     * as the argument; all chunks of one feed share the run. Each row carries
+     * {@link ProductEntry#COLUMN_PRODUCT_SKU} and any of the name, price, quantity and image
+     * URI. Rows whose content is the same as the feed last wrote are left alone; new and
+     * changed rows are written in one transaction per chunk. The result holds
+     * {@link #RESULT_INSERTED}, {@link #RESULT_UPDATED} and {@link #RESULT_UNCHANGED}.
+     */
+    public static final String METHOD_MERGE_FEED = "merge_feed";
+
+    /**
+     * Provider method that finishes the feed run whose ID is given as the argument by deleting
+     * the products that came from the feed but were missing from this run. A run without any
+     * rows deletes nothing. The result holds the number of products deleted in
+     * {@link #RESULT_COUNT}.
+     */
+    public static final String METHOD_FINISH_FEED = "finish_feed";
+
+    /** Extra with the ID of the product a provider method works on */
+    public static final String EXTRA_PRODUCT_ID = "product_id";
+
+    /** Extra with the ID of the location units are taken from */
+    public static final String EXTRA_FROM_LOCATION_ID = "from_location_id";
+
+    /** Extra with the ID of the location units are put at */
+    public static final String EXTRA_TO_LOCATION_ID = "to_location_id";
+
+    /** Extra with a number of units */
+    public static final String EXTRA_QUANTITY = "quantity";
+
+    /** Extra with the rows a provider method works on, as a list of ContentValues */
+    public static final String EXTRA_ROWS = "rows";
+
+    /** Extra with the maximum number of rows a provider method works on */
+    public static final String EXTRA_LIMIT = "limit";
+
+    /** Extra with the ID after which a provider method carries on, paging through rows by ID */
+    public static final String EXTRA_AFTER_ID = "after_id";
+
+    /** Result key: number of rows a provider method worked on */
+    public static final String RESULT_COUNT = "count";
+
+    /** Result key: number of rows inserted */
+    public static final String RESULT_INSERTED = "inserted";
+
+    /** Result key: number of rows changed */
+    public static final String RESULT_UPDATED = "updated";
+
+    /** Result key: number of rows left alone because they didn't change */
+    public static final String RESULT_UNCHANGED = "unchanged";
+
+    /** Result key: highest ID of the rows a provider method worked on */
+    public static final String RESULT_LAST_ID = "last_id";
+
+    /** Result key: IDs of the products a provider method left out, as a long array */
+    public static final String RESULT_REJECTED = "rejected";
+
+    /**
+     * Result key: time the earliest remaining hold expires in milliseconds since the epoch, or
+     * 0 if there are no holds
+     */
+    public static final String RESULT_NEXT_EXPIRY = "next_expiry";
+
+    /**
+     * Query parameter that marks a request as coming from the sync engine. Such requests see
+     * deleted rows, write the change tracking columns as given instead of maintaining them, and
+     * delete rows physically instead of leaving a tombstone.
+     */
+    public static final String CALLER_IS_SYNCADAPTER = "caller_is_syncadapter";
+
+    /**
+     * Return the given URI marked as coming from the sync engine.
+     */
+    public static Uri asSyncAdapter(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(CALLER_IS_SYNCADAPTER, "true").build();
+    }
+
     /**
      * Inner class that defines constant values for the products database table.
      * Each entry in the table represents a single product.
      */
     public static final class ProductEntry implements BaseColumns {
 
-        /** The content URI to access the product data in the provider */
+        /**
+         * The content URI to access the product data in the provider. Add a "limit" query
+         * parameter to only get the first rows of a listing.
+         */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PRODUCTS);
 
         /**
@@ -74,6 +434,80 @@ public final class ProductContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PRODUCTS;
 
+        /**
+         * The content URI for relative quantity adjustments. Append a product ID to adjust the
+         * quantity of that product.
+         */
+        public static final Uri CONTENT_ADJUST_URI = Uri.withAppendedPath(CONTENT_URI, PATH_ADJUST);
+
+        /**
+         * The content URI listing products by {@link #COLUMN_PRODUCT_DAYS_TO_STOCKOUT}, soonest
+         * first. Products that have never sold are left out. Add a "limit" query parameter to
+         * only get the first rows.
+         */
+        public static final Uri CONTENT_STOCKOUT_URI =
+                Uri.withAppendedPath(CONTENT_URI, PATH_STOCKOUT);
+
+        /**
+         * The content URI for bulk price adjustments. Update it with
+         * {@link #KEY_PRICE_PERCENT} or {@link #KEY_PRICE_AMOUNT}, and optionally
+         * {@link #KEY_PRICE_ROUNDING}, to adjust the price of every product matching the
+         * selection and tag filter. The update returns the number of products changed.
+         */
+        public static final Uri CONTENT_PRICE_URI = Uri.withAppendedPath(CONTENT_URI, PATH_PRICE);
+
+        /**
+         * The content URI for looking up products by {@link #COLUMN_PRODUCT_SKU}. Append a code
+         * to get the product with that code, or use {@link #buildSkuLookupUri(Collection)} to
+         * resolve many codes at once.
+         */
+        public static final Uri CONTENT_SKU_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SKU);
+
+        /**
+         * Return the content URI of the product with the given SKU or barcode.
+         */
+        public static Uri buildSkuUri(String sku) {
+            return CONTENT_SKU_URI.buildUpon().appendPath(sku).build();
+        }
+
+        /**
+         * Return the content URI of the products with any of the given SKUs or barcodes, e.g.
+         * the codes of a received shipment. Codes without a product are left out of the result.
+         */
+        public static Uri buildSkuLookupUri(Collection<String> skus) {
+            Uri.Builder builder = CONTENT_SKU_URI.buildUpon();
+            for (String sku : skus) {
+                builder.appendQueryParameter(QUERY_PARAMETER_SKU, sku);
+            }
+            return builder.build();
+        }
+
+        /**
+         * The content URI for finding products with names nearly the same as a given name, such
+         * as "Coca-Cola 330 ml" for "Coca Cola 330ml", e.g. to warn about a duplicate before it
+         * is inserted. Use {@link #buildSimilarUri(String)}. Rows carry the product's
+         * {@link #_ID}, name and SKU plus {@link #KEY_SIMILARITY}, most similar first.
+         */
+        public static final Uri CONTENT_SIMILAR_URI =
+                Uri.withAppendedPath(CONTENT_URI, PATH_SIMILAR);
+
+        /**
+         * Return the content URI of the products with names nearly the same as the given one.
+         */
+        public static Uri buildSimilarUri(String name) {
+            return CONTENT_SIMILAR_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_NAME, name).build();
+        }
+
+        /**
+         * The content URI listing the products whose names are nearly the same as those of other
+         * products, as found by {@link ProductContract#METHOD_FIND_DUPLICATES}, for merging.
+         * Rows carry {@link #KEY_CLUSTER_ID} and the product's {@link #_ID}, name, SKU and
+         * quantity, ordered by cluster.
+         */
+        public static final Uri CONTENT_DUPLICATES_URI =
+                Uri.withAppendedPath(CONTENT_URI, PATH_DUPLICATES);
+
         /** Name of database table for products */
         public final static String TABLE_NAME = "products";
 
@@ -106,7 +540,852 @@ public final class ProductContract {
          */
         public final static String COLUMN_PRODUCT_IMAGE_URI =   "imageUri";
 
-    }
+        /**
+         * SKU or barcode of the product, unique among all products. Leading and trailing white
+         * space is removed by the provider, and an empty code is stored as null.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_PRODUCT_SKU = "sku";
 
-}
+        /**
+         * Globally unique ID of the product, shared by all devices that sync it. Assigned by the
+         * provider on insert.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_PRODUCT_SYNC_ID = "sync_id";
+
+        /**
+         * Version of the row, incremented by the provider on every change.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_VERSION = "version";
+
+        /**
+         * Time of the last change in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_UPDATED_AT = "updated_at";
+
+        /**
+         * Tombstone flag. Deleted products are kept with a value of 1 until the deletion has been
+         * pushed, and are hidden from everyone but the sync engine.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_DELETED = "deleted";
+
+        /**
+         * 1 if the product changed locally since it was last pushed, 0 otherwise.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_DIRTY = "dirty";
+
+        /**
+         * Sales velocity in units per day, as an exponentially weighted rate updated on every
+         * sale. Maintained by the provider.
+         *
+         * Type: REAL
+         */
+        public final static String COLUMN_PRODUCT_SALES_VELOCITY = "sales_velocity";
+
+        /**
+         * Time of the sale the velocity was last updated for, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_VELOCITY_UPDATED_AT = "velocity_updated_at";
+
+        /**
+         * Estimated days until the product is out of stock, i.e. the quantity divided by the
+         * sales velocity. Null if the product has never sold. Kept up to date by the database
+         * whenever the quantity or velocity changes.
+         *
+         * Type: REAL
+         */
+        public final static String COLUMN_PRODUCT_DAYS_TO_STOCKOUT = "days_to_stockout";
+
+        /**
+         * Number of units held for orders (see {@link HoldEntry}). Only the units beyond them
+         * are available for new holds and for sales that don't fulfil a hold. Maintained by
+         * the provider and the database; it is not part of the synced product.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_RESERVED = "reserved";
+
+        /**
+         * Hash of the content the supplier feed last wrote to the product, or null if the
+         * product never came from the feed. Maintained by the provider.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_FEED_HASH = "feed_hash";
+
+        /**
+         * Key (not a column) of the row version an update is based on. If present, the update
+         * is only applied while the row still has this {@link #COLUMN_PRODUCT_VERSION}, and
+         * affects no rows if it was changed in the meantime.
+         *
+         * Type: INTEGER
+         */
+        public final static String KEY_EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Key (not a column) of the amount to add to the quantity when updating
+         * {@link #CONTENT_ADJUST_URI}. The resulting quantity never drops below 0.
+         *
+         * Type: INTEGER
+         */
+        public final static String KEY_QUANTITY_DELTA = "quantity_delta";
+
+        /**
+         * Similarity of the name of a product found by {@link #CONTENT_SIMILAR_URI} to the given
+         * name, from 0 to 1 for the same name. It is the Dice coefficient of the trigrams of the
+         * names, ignoring case, spaces and punctuation.
+         *
+         * Type: REAL
+         */
+        public final static String KEY_SIMILARITY = "similarity";
+
+        /**
+         * Cluster of a product listed by {@link #CONTENT_DUPLICATES_URI}, the lowest product ID
+         * in the cluster.
+         *
+         * Type: INTEGER
+         */
+        public final static String KEY_CLUSTER_ID = "cluster_id";
+
+        /**
+         * Key (not a column) of the percentage to change the price by when updating
+         * {@link #CONTENT_PRICE_URI}, e.g. 5 for a 5% increase or -10 for a 10% discount.
+         *
+         * Type: REAL
+         */
+        public final static String KEY_PRICE_PERCENT = "price_percent";
+
+        /**
+         * Key (not a column) of the amount to add to the price when updating
+         * {@link #CONTENT_PRICE_URI}. Applied after {@link #KEY_PRICE_PERCENT} if both are given.
+         *
+         * Type: INTEGER
+         */
+        public final static String KEY_PRICE_AMOUNT = "price_amount";
 
+        /**
+         * Key (not a column) of how a percentage change is rounded to a whole price, one of
+         * {@link #ROUNDING_NEAREST} (the default), {@link #ROUNDING_UP} or
+         * {@link #ROUNDING_DOWN}. Prices never drop below 0.
+         *
+         * Type: INTEGER
+         */
+        public final static String KEY_PRICE_ROUNDING = "price_rounding";
+
+        /** Possible values for the rounding of a price adjustment. */
+        public static final int ROUNDING_NEAREST = 0;
+        public static final int ROUNDING_UP = 1;
+        public static final int ROUNDING_DOWN = 2;
+
+    }
+
+    /**
+     * Inner class that defines constant values for the sale events table. Each entry is one
+     * sale of a product.
+     */
+    public static final class SaleEntry implements BaseColumns {
+
+        /**
+         * The content URI to record and read sale events. Inserting a sale takes the units out
+         * of stock and updates the rollups in the same transaction. The insert fails if fewer
+         * units are available than were sold, where units held for orders don't count as
+         * available unless the sale fulfils the hold given in {@link #KEY_HOLD_ID}.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SALES);
+
+        /** The MIME type of the {@link #CONTENT_URI} for a list of sales. */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SALES;
+
+        /** The MIME type of the {@link #CONTENT_URI} for a single sale. */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SALES;
+
+        /** Name of database table for sale events */
+        public final static String TABLE_NAME = "sales";
+
+        /**
+         * ID of the product that was sold.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SALE_PRODUCT_ID = "product_id";
+
+        /**
+         * Number of units sold.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SALE_UNITS = "units";
+
+        /**
+         * Time of the sale in milliseconds since the epoch. Defaults to the time of the insert.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SALE_SOLD_AT = "sold_at";
+
+        /**
+         * Key (not a column) of the hold a sale fulfils. The hold is released in the same
+         * transaction, so its units can be sold. A hold that has expired or belongs to another
+         * product is ignored.
+         *
+         * Type: INTEGER
+         */
+        public final static String KEY_HOLD_ID = "hold_id";
+    }
+
+    /**
+     * Inner class that defines constant values for the daily sales rollup table. Each entry
+     * holds the units of one product sold on one day, kept up to date with every sale.
+     */
+    public static final class SalesDailyEntry implements BaseColumns {
+
+        /** The content URI to read the daily rollup */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(SaleEntry.CONTENT_URI, PATH_DAILY);
+
+        /** The MIME type of the {@link #CONTENT_URI}. */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_SALES + "." + PATH_DAILY;
+
+        /** Name of database table for the daily rollup */
+        public final static String TABLE_NAME = "sales_daily";
+
+        /**
+         * ID of the product.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+
+        /**
+         * Local calendar day as yyyyMMdd, e.g. 20160303.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DAY = "day";
+
+        /**
+         * Units sold on that day.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_UNITS = "units";
+    }
+
+    /**
+     * Inner class that defines constant values for the monthly sales rollup table. Each entry
+     * holds the units of one product sold in one month, kept up to date with every sale.
+     */
+    public static final class SalesMonthlyEntry implements BaseColumns {
+
+        /** The content URI to read the monthly rollup */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(SaleEntry.CONTENT_URI, PATH_MONTHLY);
+
+        /** The MIME type of the {@link #CONTENT_URI}. */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_SALES + "." + PATH_MONTHLY;
+
+        /** Name of database table for the monthly rollup */
+        public final static String TABLE_NAME = "sales_monthly";
+
+        /**
+         * ID of the product.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+
+        /**
+         * Local calendar month as yyyyMM, e.g. 201603.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_MONTH = "month";
+
+        /**
+         * Units sold in that month.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_UNITS = "units";
+    }
+
+    /**
+     * Inner class that defines constant values for the stock summary table. The table holds a
+     * single row of totals over all products that have not been deleted. Triggers on the
+     * products table keep it up to date with every change.
+     */
+    public static final class SummaryEntry implements BaseColumns {
+
+        /**
+         * The content URI to read the stock summary. Observers are notified whenever a
+         * product changes.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SUMMARY);
+
+        /** The MIME type of the {@link #CONTENT_URI}. */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUMMARY;
+
+        /** Name of database table for the stock summary */
+        public final static String TABLE_NAME = "stock_summary";
+
+        /** Quantity at or below which a product counts as low on stock */
+        public static final int LOW_STOCK_THRESHOLD = 5;
+
+        /**
+         * Number of products.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_COUNT = "product_count";
+
+        /**
+         * Total number of units in stock.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TOTAL_UNITS = "total_units";
+
+        /**
+         * Total value of the stock, the sum of price times quantity.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STOCK_VALUE = "stock_value";
+
+        /**
+         * Number of products with at most {@link #LOW_STOCK_THRESHOLD} units in stock.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOW_STOCK_COUNT = "low_stock_count";
+    }
+
+    /**
+     * Inner class that defines constant values for the categories and tags table. Each entry
+     * is a category or a tag that any number of products can carry.
+     */
+    public static final class TagEntry implements BaseColumns {
+
+        /** The content URI to access the categories and tags */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_TAGS);
+
+        /**
+         * The content URI for the facet counts. Each row is a tag with
+         * {@link #COLUMN_TAG_PRODUCT_COUNT} set to the number of products that carry it and
+         * match the tag filter given with {@link ProductContract#QUERY_PARAMETER_TAG}. Tags without any such
+         * product are left out.
+         */
+        public static final Uri CONTENT_FACETS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_FACETS);
+
+        /** The MIME type of the {@link #CONTENT_URI} for a list of tags. */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_TAGS;
+
+        /** The MIME type of the {@link #CONTENT_URI} for a single tag. */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_TAGS;
+
+        /** Name of database table for categories and tags */
+        public final static String TABLE_NAME = "tags";
+
+        /**
+         * Name of the category or tag, unique within its kind.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_TAG_NAME = "name";
+
+        /**
+         * Either {@link #KIND_CATEGORY} or {@link #KIND_TAG}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TAG_KIND = "kind";
+
+        /**
+         * Number of products carrying the tag that have not been deleted. Maintained by the
+         * database.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TAG_PRODUCT_COUNT = "product_count";
+
+        /** Possible values for the kind of a tag. */
+        public static final int KIND_CATEGORY = 0;
+        public static final int KIND_TAG = 1;
+    }
+
+    /**
+     * Inner class that defines constant values for the table linking products and tags. Each
+     * entry says that one product carries one tag.
+     */
+    public static final class ProductTagEntry implements BaseColumns {
+
+        /** The content URI to link products and tags */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PRODUCT_TAGS);
+
+        /** The MIME type of the {@link #CONTENT_URI}. */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_PRODUCT_TAGS;
+
+        /** Name of database table for the links */
+        public final static String TABLE_NAME = "product_tags";
+
+        /**
+         * ID of the product.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+
+        /**
+         * ID of the tag.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TAG_ID = "tag_id";
+    }
+
+    /**
+     * Inner class that defines constant values for the lots table. Each entry is a quantity of
+     * a product expiring at the same time. The units of all lots of a product are part of its
+     * {@link ProductEntry#COLUMN_PRODUCT_QUANTITY}; any units beyond them have no expiry date.
+     * Lowering the quantity takes the difference out of the earliest expiring lots, and lots
+     * are removed once they are empty.
+     */
+    public static final class LotEntry implements BaseColumns {
+
+        /**
+         * The content URI to receive and read lots. Inserting a lot adds its units to the
+         * product's quantity, and deleting one writes its units off, in one transaction.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_LOTS);
+
+        /**
+         * The content URI listing the lots expiring within a number of days, including those
+         * that have expired already, soonest first. Rows carry the columns of this class plus
+         * {@link ProductEntry#COLUMN_PRODUCT_NAME} and {@link ProductEntry#COLUMN_PRODUCT_SKU}
+         * of the product. Use {@link #buildExpiringUri(int)}, and add a "limit" query parameter
+         * to only get the first rows.
+         */
+        public static final Uri CONTENT_EXPIRING_URI =
+                Uri.withAppendedPath(CONTENT_URI, PATH_EXPIRING);
+
+        /**
+         * Return the content URI of the lots expiring within the given number of days.
+         */
+        public static Uri buildExpiringUri(int days) {
+            return CONTENT_EXPIRING_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_DAYS, String.valueOf(days)).build();
+        }
+
+        /** The MIME type of the {@link #CONTENT_URI} for a list of lots. */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_LOTS;
+
+        /** The MIME type of the {@link #CONTENT_URI} for a single lot. */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_LOTS;
+
+        /** Name of database table for lots */
+        public final static String TABLE_NAME = "lots";
+
+        /**
+         * ID of the product.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOT_PRODUCT_ID = "product_id";
+
+        /**
+         * Number of units of the lot still in stock, always greater than 0.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOT_QUANTITY = "quantity";
+
+        /**
+         * Time the lot expires in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOT_EXPIRES_AT = "expires_at";
+    }
+
+    /**
+     * Inner class that defines constant values for the locations table. Each entry is a place
+     * stock is kept at.
+     */
+    public static final class LocationEntry implements BaseColumns {
+
+        /**
+         * The content URI for locations. Deleting a location leaves the units that were there
+         * with their products, without a location.
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_LOCATIONS);
+
+        /**
+         * Return the content URI listing the live products stocked at the given location. Rows
+         * carry the product's {@link ProductEntry#_ID}, name, SKU, price and total quantity,
+         * plus {@link StockEntry#COLUMN_LOCATION_QUANTITY}.
+         */
+        public static Uri buildStockUri(long locationId) {
+            return CONTENT_URI.buildUpon().appendPath(String.valueOf(locationId))
+                    .appendPath(PATH_STOCK).build();
+        }
+
+        /** The MIME type of the {@link #CONTENT_URI} for a list of locations. */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_LOCATIONS;
+
+        /** The MIME type of the {@link #CONTENT_URI} for a single location. */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_LOCATIONS;
+
+        /** Name of database table for locations */
+        public final static String TABLE_NAME = "locations";
+
+        /**
+         * Name of the location, unique among all locations.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_LOCATION_NAME = "name";
+    }
+
+    /**
+     * Inner class that defines constant values for the stock table. Each entry is the number of
+     * units of a product at a location. The units at all locations are part of the product's
+     * {@link ProductEntry#COLUMN_PRODUCT_QUANTITY}, which stays the total: inserting or
+     * updating the stock at a location adds the difference to it in the same transaction.
+     * Units beyond those at the locations have no location, and are sold first; lowering the
+     * quantity below the units at the locations takes the difference out of the locations.
+     */
+    public static final class StockEntry implements BaseColumns {
+
+        /**
+         * The content URI for the stock at locations. Inserting sets the stock of a product at
+         * a location, whether or not it was stocked there before. Deleting an entry leaves its
+         * units with the product, without a location.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STOCK);
+
+        /**
+         * Return the content URI listing the stock of the given product at every location it
+         * is stocked at. Rows carry the columns of this class plus
+         * {@link #COLUMN_LOCATION_NAME}.
+         */
+        public static Uri buildProductStockUri(long productId) {
+            return ProductEntry.CONTENT_URI.buildUpon().appendPath(String.valueOf(productId))
+                    .appendPath(PATH_STOCK).build();
+        }
+
+        /** The MIME type of the {@link #CONTENT_URI} for a list of stock entries. */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STOCK;
+
+        /** The MIME type of the {@link #CONTENT_URI} for a single stock entry. */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STOCK;
+
+        /** Name of database table for the stock at locations */
+        public final static String TABLE_NAME = "stock";
+
+        /**
+         * ID of the product.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+
+        /**
+         * ID of the location.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOCATION_ID = "location_id";
+
+        /**
+         * Number of units of the product at the location.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STOCK_QUANTITY = "quantity";
+
+        /**
+         * Name of the location, in the stock of a product.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_LOCATION_NAME = "location_name";
+
+        /**
+         * Number of units of the product at the location, in the products at a location.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOCATION_QUANTITY = "location_quantity";
+    }
+
+    /**
+     * Inner class that defines constant values for the holds table. Each entry reserves units
+     * of a product for an order until it expires, and counts towards the product's
+     * {@link ProductEntry#COLUMN_PRODUCT_RESERVED}. A hold is released by deleting it, by a sale
+     * fulfilling it (see {@link SaleEntry#KEY_HOLD_ID}), or by
+     * {@link ProductContract#METHOD_RELEASE_EXPIRED_HOLDS} once it has expired.
+     */
+    public static final class HoldEntry implements BaseColumns {
+
+        /**
+         * The content URI for holds. Inserting a hold reserves its units in a single statement
+         * that only succeeds if at least that many units of the product are in stock and not
+         * held yet; otherwise the insert returns null.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_HOLDS);
+
+        /** The MIME type of the {@link #CONTENT_URI} for a list of holds. */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOLDS;
+
+        /** The MIME type of the {@link #CONTENT_URI} for a single hold. */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOLDS;
+
+        /** Name of database table for holds */
+        public final static String TABLE_NAME = "holds";
+
+        /**
+         * ID of the product.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_HOLD_PRODUCT_ID = "product_id";
+
+        /**
+         * Number of units held, greater than 0.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_HOLD_QUANTITY = "quantity";
+
+        /**
+         * Time the hold expires in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_HOLD_EXPIRES_AT = "expires_at";
+    }
+
+    /**
+     * Inner class that defines constant values for the price history table. Each entry is a
+     * price a product had from a point in time until the next entry of the product. Entries are
+     * recorded by the database whenever a product is inserted or its price changes.
+     */
+    public static final class PriceHistoryEntry implements BaseColumns {
+
+        /** The content URI to read the price history. It can't be written. */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PRICE_HISTORY);
+
+        /**
+         * The content URI for the prices of products at a point in time. Each row carries the
+         * history entry in effect at that time. Use {@link #buildPriceAtUri(long, long[])}.
+         */
+        public static final Uri CONTENT_AT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_AT);
+
+        /**
+         * Return the content URI of the prices the given products had at the given time in
+         * milliseconds since the epoch. Products without a price by then are left out of the
+         * result.
+         */
+        public static Uri buildPriceAtUri(long at, long[] productIds) {
+            Uri.Builder builder = CONTENT_AT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AT, String.valueOf(at));
+            for (long productId : productIds) {
+                builder.appendQueryParameter(QUERY_PARAMETER_PRODUCT, String.valueOf(productId));
+            }
+            return builder.build();
+        }
+
+        /** The MIME type of the {@link #CONTENT_URI} for a list of prices. */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_PRICE_HISTORY;
+
+        /** Name of database table for the price history */
+        public final static String TABLE_NAME = "price_history";
+
+        /**
+         * ID of the product.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+
+        /**
+         * Price of the product.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRICE = "price";
+
+        /**
+         * Time from which the product had the price in milliseconds since the epoch, or 0 for
+         * the prices products had when the history was started.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_VALID_FROM = "valid_from";
+    }
+
+    /**
+     * Inner class that defines constant values for the stock-take sessions table. Each entry
+     * is a physical count of products, open until it is reconciled or cancelled.
+     */
+    public static final class CountSessionEntry implements BaseColumns {
+
+        /**
+         * The content URI for stock-take sessions. Inserting starts a session; deleting one
+         * cancels it together with its counts, without changing any quantity.
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_COUNT_SESSIONS);
+
+        /**
+         * Return the content URI listing every live product counted in the given session, by
+         * name. Rows carry the columns of {@link CountEntry} plus the product's name, SKU and
+         * current quantity and {@link CountEntry#KEY_DIFFERENCE}.
+         */
+        public static Uri buildDifferencesUri(long sessionId) {
+            return CONTENT_URI.buildUpon().appendPath(String.valueOf(sessionId))
+                    .appendPath(PATH_DIFFERENCES).build();
+        }
+
+        /** The MIME type of the {@link #CONTENT_URI} for a list of sessions. */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_COUNT_SESSIONS;
+
+        /** The MIME type of the {@link #CONTENT_URI} for a single session. */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_COUNT_SESSIONS;
+
+        /** Name of database table for stock-take sessions */
+        public final static String TABLE_NAME = "count_sessions";
+
+        /**
+         * Time the session was started in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STARTED_AT = "started_at";
+
+        /**
+         * Time the session was reconciled in milliseconds since the epoch, or null while it is
+         * open.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_RECONCILED_AT = "reconciled_at";
+    }
+
+    /**
+     * Inner class that defines constant values for the counts table. Each entry is the number
+     * of units of a product counted in a stock-take session, together with the quantity the
+     * product had when it was counted. Sales and other movements after that change the
+     * quantity but not the count, so reconciling adds the difference between the two to the
+     * quantity the product has by then, instead of overwriting it with the count.
+     */
+    public static final class CountEntry implements BaseColumns {
+
+        /**
+         * The content URI for counts. Inserting into an open session with
+         * {@link #COLUMN_COUNTED} sets the count of the product, e.g. typed in after counting a
+         * shelf; inserting with {@link #KEY_COUNT_DELTA} adds to it, e.g. one unit per scan.
+         * Either way there is one entry per product and session. The insert returns null if
+         * the session isn't open or the product doesn't exist.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_COUNTS);
+
+        /** The MIME type of the {@link #CONTENT_URI} for a list of counts. */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_COUNTS;
+
+        /** The MIME type of the {@link #CONTENT_URI} for a single count. */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_COUNTS;
+
+        /** Name of database table for counts */
+        public final static String TABLE_NAME = "counts";
+
+        /**
+         * ID of the stock-take session.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SESSION_ID = "session_id";
+
+        /**
+         * ID of the product.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+
+        /**
+         * Number of units counted.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_COUNTED = "counted";
+
+        /**
+         * Quantity the product had when it was counted. A count that is set again takes the
+         * quantity of that time; units added to a count keep it.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_EXPECTED = "expected";
+
+        /**
+         * Time the product was last counted in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_COUNTED_AT = "counted_at";
+
+        /**
+         * Key (not a column) of the number of units to add to the count of a product when
+         * inserting into {@link #CONTENT_URI}, instead of {@link #COLUMN_COUNTED}.
+         *
+         * Type: INTEGER
+         */
+        public final static String KEY_COUNT_DELTA = "count_delta";
+
+        /**
+         * Difference of a product listed by {@link CountSessionEntry#buildDifferencesUri(long)},
+         * the counted minus the expected units, which reconciling adds to the quantity.
+         *
+         * Type: INTEGER
+         */
+        public final static String KEY_DIFFERENCE = "difference";
+    }
+}
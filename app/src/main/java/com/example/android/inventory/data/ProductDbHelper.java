@@ -16,9 +16,25 @@
 package com.example.android.inventory.data;
 
 import android.content.Context;
+import android.os.Build;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.example.android.inventory.data.ProductContract.CountEntry;
+import com.example.android.inventory.data.ProductContract.CountSessionEntry;
+import com.example.android.inventory.data.ProductContract.HoldEntry;
+import com.example.android.inventory.data.ProductContract.LocationEntry;
+import com.example.android.inventory.data.ProductContract.LotEntry;
+import com.example.android.inventory.data.ProductContract.PriceHistoryEntry;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.ProductTagEntry;
+import com.example.android.inventory.data.ProductContract.SaleEntry;
+import com.example.android.inventory.data.ProductContract.SalesDailyEntry;
+import com.example.android.inventory.data.ProductContract.SalesMonthlyEntry;
+import com.example.android.inventory.data.ProductContract.StockEntry;
+import com.example.android.inventory.data.ProductContract.SummaryEntry;
+import com.example.android.inventory.data.ProductContract.TagEntry;
+
 /**
  * Database helper for Inventory app. Manages database creation and version management.
  */
@@ -32,7 +48,43 @@ public class ProductDbHelper extends SQLiteOpenHelper {
     /**
      * Database version. If you change the database schema, you must increment the database version.
      */
-    private static final int DATABASE_VERSION = 1;
+    static final int DATABASE_VERSION = 16;
+
+    /** Name of the table holding copies of products deleted in bulk */
+    static final String TRASH_TABLE_NAME = "products_trash";
+
+    /** Column of the trash holding the batch a product was deleted in */
+    static final String TRASH_COLUMN_BATCH = "trash_batch";
+
+    /** Name of the table indexing product names by their trigrams */
+    static final String TRIGRAMS_TABLE_NAME = "name_trigrams";
+
+    /** Name of the table of products whose names have to be indexed again */
+    static final String TRIGRAMS_PENDING_TABLE_NAME = "name_trigrams_pending";
+
+    /** Name of the table holding the clusters of products with nearly the same names */
+    static final String DUPLICATES_TABLE_NAME = "duplicates";
+
+    /** Name of the table of products seen in a run of the supplier feed */
+    static final String FEED_SEEN_TABLE_NAME = "feed_seen";
+
+    /**
+     * Column of the trigram tables, the duplicates and the products seen in the feed holding
+     * the ID of the product
+     */
+    static final String COLUMN_PRODUCT_ID = "product_id";
+
+    /** Column of the trigram index holding a trigram of the product's name */
+    static final String TRIGRAMS_COLUMN_TRIGRAM = "trigram";
+
+    /** Column of the products seen in the feed holding the feed run they were seen in */
+    static final String FEED_SEEN_COLUMN_RUN = "run";
+
+    /** Name of the single row table holding the last flush of the point-of-sale buffer */
+    static final String SALE_FLUSH_TABLE_NAME = "sale_flush";
+
+    /** Column of the last flush holding its sequence number */
+    static final String SALE_FLUSH_COLUMN_SEQUENCE = "sequence";
 
     /**
      * Constructs a new instance of {@link ProductDbHelper}.
@@ -40,7 +92,20 @@ public class ProductDbHelper extends SQLiteOpenHelper {
      * @param context of the app
      */
     public ProductDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Constructs a new instance of {@link ProductDbHelper} for the database with the given
+     * name, or for an in-memory database if the name is null.
+     */
+    ProductDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        // Let readers run while a write is in progress. The log is checkpointed by the idle-time
+        // maintenance.
+        if (Build.VERSION.SDK_INT >= 16) {
+            setWriteAheadLoggingEnabled(true);
+        }
     }
 
     /**
@@ -58,13 +123,654 @@ public class ProductDbHelper extends SQLiteOpenHelper {
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_PRODUCTS_TABLE);
+
+        // Bring the version 1 table up to date with the same steps used for existing databases
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. Each step upgrades the schema by
+     * one version, so a database of any older version runs all steps it is missing in order.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        if (oldVersion < 2) {
+            upgradeToVersion2(db);
+        }
+        if (oldVersion < 3) {
+            upgradeToVersion3(db);
+        }
+        if (oldVersion < 4) {
+            upgradeToVersion4(db);
+        }
+        if (oldVersion < 5) {
+            upgradeToVersion5(db);
+        }
+        if (oldVersion < 6) {
+            upgradeToVersion6(db);
+        }
+        if (oldVersion < 7) {
+            upgradeToVersion7(db);
+        }
+        if (oldVersion < 8) {
+            upgradeToVersion8(db);
+        }
+        if (oldVersion < 9) {
+            upgradeToVersion9(db);
+        }
+        if (oldVersion < 10) {
+            upgradeToVersion10(db);
+        }
+        if (oldVersion < 11) {
+            upgradeToVersion11(db);
+        }
+        if (oldVersion < 12) {
+            upgradeToVersion12(db);
+        }
+        if (oldVersion < 13) {
+            upgradeToVersion13(db);
+        }
+        if (oldVersion < 14) {
+            upgradeToVersion14(db);
+        }
+        if (oldVersion < 15) {
+            upgradeToVersion15(db);
+        }
+        if (oldVersion < 16) {
+            upgradeToVersion16(db);
+        }
+    }
+
+    /**
+     * Version 2 adds the change tracking columns used by the sync engine: a globally unique
+     * sync ID, a row version, the last modification time, a tombstone flag and a dirty flag
+     * for rows changed locally since the last push.
+     */
+    private void upgradeToVersion2(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_SYNC_ID + " TEXT");
+        db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_VERSION + " INTEGER NOT NULL DEFAULT 1");
+        db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_DELETED + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_DIRTY + " INTEGER NOT NULL DEFAULT 1");
+
+        // Give existing rows a random sync ID, so they are pushed as new products
+        db.execSQL("UPDATE " + ProductEntry.TABLE_NAME + " SET "
+                + ProductEntry.COLUMN_PRODUCT_SYNC_ID + " = lower(hex(randomblob(16)))");
+
+        db.execSQL("CREATE UNIQUE INDEX products_sync_id ON " + ProductEntry.TABLE_NAME
+                + " (" + ProductEntry.COLUMN_PRODUCT_SYNC_ID + ")");
+        db.execSQL("CREATE INDEX products_dirty ON " + ProductEntry.TABLE_NAME
+                + " (" + ProductEntry.COLUMN_PRODUCT_DIRTY + ")");
+    }
+
+    /**
+     * Version 3 adds the sale events and their daily and monthly rollups. The rollups are keyed
+     * by product and period, with a second index by period for reports across all products.
+     */
+    private void upgradeToVersion3(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SaleEntry.TABLE_NAME + " ("
+                + SaleEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + SaleEntry.COLUMN_SALE_PRODUCT_ID + " INTEGER NOT NULL, "
+                + SaleEntry.COLUMN_SALE_UNITS + " INTEGER NOT NULL, "
+                + SaleEntry.COLUMN_SALE_SOLD_AT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX sales_product_sold_at ON " + SaleEntry.TABLE_NAME + " ("
+                + SaleEntry.COLUMN_SALE_PRODUCT_ID + ", " + SaleEntry.COLUMN_SALE_SOLD_AT + ")");
+
+        db.execSQL("CREATE TABLE " + SalesDailyEntry.TABLE_NAME + " ("
+                + SalesDailyEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + SalesDailyEntry.COLUMN_PRODUCT_ID + " INTEGER NOT NULL, "
+                + SalesDailyEntry.COLUMN_DAY + " INTEGER NOT NULL, "
+                + SalesDailyEntry.COLUMN_UNITS + " INTEGER NOT NULL DEFAULT 0, "
+                + "UNIQUE (" + SalesDailyEntry.COLUMN_PRODUCT_ID + ", "
+                + SalesDailyEntry.COLUMN_DAY + "))");
+        db.execSQL("CREATE INDEX sales_daily_day ON " + SalesDailyEntry.TABLE_NAME + " ("
+                + SalesDailyEntry.COLUMN_DAY + ", " + SalesDailyEntry.COLUMN_PRODUCT_ID + ")");
+
+        db.execSQL("CREATE TABLE " + SalesMonthlyEntry.TABLE_NAME + " ("
+                + SalesMonthlyEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + SalesMonthlyEntry.COLUMN_PRODUCT_ID + " INTEGER NOT NULL, "
+                + SalesMonthlyEntry.COLUMN_MONTH + " INTEGER NOT NULL, "
+                + SalesMonthlyEntry.COLUMN_UNITS + " INTEGER NOT NULL DEFAULT 0, "
+                + "UNIQUE (" + SalesMonthlyEntry.COLUMN_PRODUCT_ID + ", "
+                + SalesMonthlyEntry.COLUMN_MONTH + "))");
+        db.execSQL("CREATE INDEX sales_monthly_month ON " + SalesMonthlyEntry.TABLE_NAME + " ("
+                + SalesMonthlyEntry.COLUMN_MONTH + ", " + SalesMonthlyEntry.COLUMN_PRODUCT_ID + ")");
+    }
+
+    /**
+     * Version 4 adds the sales velocity of each product and the days until it runs out of stock.
+     * A trigger recomputes the days to stockout whenever the quantity or velocity changes,
+     * whichever path changed it, and an index on it serves the "closest to stockout" list.
+     */
+    private void upgradeToVersion4(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_SALES_VELOCITY + " REAL NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_VELOCITY_UPDATED_AT + " INTEGER");
+        db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_DAYS_TO_STOCKOUT + " REAL");
+
+        db.execSQL("CREATE TRIGGER products_days_to_stockout AFTER UPDATE OF "
+                + ProductEntry.COLUMN_PRODUCT_QUANTITY + ", "
+                + ProductEntry.COLUMN_PRODUCT_SALES_VELOCITY + " ON " + ProductEntry.TABLE_NAME
+                + " BEGIN UPDATE " + ProductEntry.TABLE_NAME + " SET "
+                + ProductEntry.COLUMN_PRODUCT_DAYS_TO_STOCKOUT + " = CASE WHEN NEW."
+                + ProductEntry.COLUMN_PRODUCT_SALES_VELOCITY + " > 0 THEN NEW."
+                + ProductEntry.COLUMN_PRODUCT_QUANTITY + " / NEW."
+                + ProductEntry.COLUMN_PRODUCT_SALES_VELOCITY + " END WHERE "
+                + ProductEntry._ID + " = NEW." + ProductEntry._ID + "; END");
+
+        db.execSQL("CREATE INDEX products_days_to_stockout ON " + ProductEntry.TABLE_NAME
+                + " (" + ProductEntry.COLUMN_PRODUCT_DAYS_TO_STOCKOUT + ")");
+    }
+
+    /**
+     * Version 5 adds the single-row stock summary. Triggers on the products table subtract the
+     * old row's share of the totals and add the new row's share, so the summary stays correct
+     * for every write path without ever scanning the table. Deleted products count for nothing.
+     */
+    private void upgradeToVersion5(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SummaryEntry.TABLE_NAME + " ("
+                + SummaryEntry._ID + " INTEGER PRIMARY KEY CHECK (" + SummaryEntry._ID + " = 1), "
+                + SummaryEntry.COLUMN_PRODUCT_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                + SummaryEntry.COLUMN_TOTAL_UNITS + " INTEGER NOT NULL DEFAULT 0, "
+                + SummaryEntry.COLUMN_STOCK_VALUE + " INTEGER NOT NULL DEFAULT 0, "
+                + SummaryEntry.COLUMN_LOW_STOCK_COUNT + " INTEGER NOT NULL DEFAULT 0)");
+
+        // Start from the products that already exist
+        db.execSQL("INSERT INTO " + SummaryEntry.TABLE_NAME + " SELECT 1, "
+                + summaryTotals() + " FROM " + ProductEntry.TABLE_NAME);
+
+        db.execSQL("CREATE TRIGGER stock_summary_insert AFTER INSERT ON "
+                + ProductEntry.TABLE_NAME + " BEGIN " + summaryUpdate("NEW.", "+") + " END");
+        db.execSQL("CREATE TRIGGER stock_summary_delete AFTER DELETE ON "
+                + ProductEntry.TABLE_NAME + " BEGIN " + summaryUpdate("OLD.", "-") + " END");
+        db.execSQL("CREATE TRIGGER stock_summary_update AFTER UPDATE OF "
+                + ProductEntry.COLUMN_PRODUCT_PRICE + ", "
+                + ProductEntry.COLUMN_PRODUCT_QUANTITY + ", "
+                + ProductEntry.COLUMN_PRODUCT_DELETED + " ON " + ProductEntry.TABLE_NAME
+                + " BEGIN " + summaryUpdate("OLD.", "-") + " " + summaryUpdate("NEW.", "+")
+                + " END");
+    }
+
+    /**
+     * Return the statement adding ("+") or subtracting ("-") the share of the row with the given
+     * prefix ("OLD." or "NEW.") to or from the stock summary.
+     */
+    private static String summaryUpdate(String row, String sign) {
+        String[] columns = {
+                SummaryEntry.COLUMN_PRODUCT_COUNT,
+                SummaryEntry.COLUMN_TOTAL_UNITS,
+                SummaryEntry.COLUMN_STOCK_VALUE,
+                SummaryEntry.COLUMN_LOW_STOCK_COUNT };
+        String[] shares = shares(row);
+        StringBuilder sql = new StringBuilder("UPDATE ").append(SummaryEntry.TABLE_NAME)
+                .append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(columns[i]).append(" = ").append(columns[i]).append(" ").append(sign)
+                    .append(" ").append(shares[i]);
+        }
+        return sql.append(" WHERE ").append(SummaryEntry._ID).append(" = 1;").toString();
+    }
+
+    /**
+     * Return the aggregate expressions of the summary columns over the products table.
+     */
+    private static String summaryTotals() {
+        String[] shares = shares("");
+        StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < shares.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append("TOTAL(").append(shares[i]).append(")");
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Return the share of one product row in each summary column, in column order. Deleted
+     * products have a share of 0.
+     */
+    private static String[] shares(String row) {
+        String live = "(" + row + ProductEntry.COLUMN_PRODUCT_DELETED + " = 0)";
+        String quantity = "IFNULL(" + row + ProductEntry.COLUMN_PRODUCT_QUANTITY + ", 0)";
+        String price = "IFNULL(" + row + ProductEntry.COLUMN_PRODUCT_PRICE + ", 0)";
+        return new String[] {
+                live,
+                live + " * " + quantity,
+                live + " * " + quantity + " * " + price,
+                live + " * (" + quantity + " <= " + SummaryEntry.LOW_STOCK_THRESHOLD + ")" };
+    }
+
+    /**
+     * Version 6 adds categories and tags, linked to products many-to-many. The links are
+     * indexed both ways: by tag for filtering, by product for the facet counts of a filtered
+     * set. Triggers keep the number of live products of every tag current, so the unfiltered
+     * facet counts are read from the tags table directly.
+     */
+    private void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TagEntry.TABLE_NAME + " ("
+                + TagEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + TagEntry.COLUMN_TAG_NAME + " TEXT NOT NULL, "
+                + TagEntry.COLUMN_TAG_KIND + " INTEGER NOT NULL DEFAULT " + TagEntry.KIND_TAG + ", "
+                + TagEntry.COLUMN_TAG_PRODUCT_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                + "UNIQUE (" + TagEntry.COLUMN_TAG_KIND + ", " + TagEntry.COLUMN_TAG_NAME + "))");
+
+        db.execSQL("CREATE TABLE " + ProductTagEntry.TABLE_NAME + " ("
+                + ProductTagEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + ProductTagEntry.COLUMN_PRODUCT_ID + " INTEGER NOT NULL, "
+                + ProductTagEntry.COLUMN_TAG_ID + " INTEGER NOT NULL, "
+                + "UNIQUE (" + ProductTagEntry.COLUMN_TAG_ID + ", "
+                + ProductTagEntry.COLUMN_PRODUCT_ID + "))");
+        db.execSQL("CREATE INDEX product_tags_product ON " + ProductTagEntry.TABLE_NAME + " ("
+                + ProductTagEntry.COLUMN_PRODUCT_ID + ", " + ProductTagEntry.COLUMN_TAG_ID + ")");
+
+        // A link counts while its product exists and has not been deleted
+        String liveProduct = "EXISTS (SELECT 1 FROM " + ProductEntry.TABLE_NAME + " WHERE "
+                + ProductEntry._ID + " = %1$s." + ProductTagEntry.COLUMN_PRODUCT_ID + " AND "
+                + ProductEntry.COLUMN_PRODUCT_DELETED + " = 0)";
+        db.execSQL("CREATE TRIGGER product_tags_insert AFTER INSERT ON "
+                + ProductTagEntry.TABLE_NAME + " WHEN " + String.format(liveProduct, "NEW")
+                + " BEGIN " + tagCountUpdate("+ 1", TagEntry._ID + " = NEW."
+                + ProductTagEntry.COLUMN_TAG_ID) + " END");
+        db.execSQL("CREATE TRIGGER product_tags_delete AFTER DELETE ON "
+                + ProductTagEntry.TABLE_NAME + " WHEN " + String.format(liveProduct, "OLD")
+                + " BEGIN " + tagCountUpdate("- 1", TagEntry._ID + " = OLD."
+                + ProductTagEntry.COLUMN_TAG_ID) + " END");
+
+        // Deleting a product (leaving a tombstone) or restoring it moves all its tags' counts
+        String tagsOfProduct = TagEntry._ID + " IN (SELECT " + ProductTagEntry.COLUMN_TAG_ID
+                + " FROM " + ProductTagEntry.TABLE_NAME + " WHERE "
+                + ProductTagEntry.COLUMN_PRODUCT_ID + " = %1$s." + ProductEntry._ID + ")";
+        db.execSQL("CREATE TRIGGER products_tag_counts AFTER UPDATE OF "
+                + ProductEntry.COLUMN_PRODUCT_DELETED + " ON " + ProductEntry.TABLE_NAME
+                + " WHEN OLD." + ProductEntry.COLUMN_PRODUCT_DELETED + " != NEW."
+                + ProductEntry.COLUMN_PRODUCT_DELETED + " BEGIN "
+                + tagCountUpdate("+ (OLD." + ProductEntry.COLUMN_PRODUCT_DELETED + " - NEW."
+                + ProductEntry.COLUMN_PRODUCT_DELETED + ")", String.format(tagsOfProduct, "NEW"))
+                + " END");
+
+        // Removing a product or tag for good removes its links. The product is gone by the
+        // time its links are deleted, so its share is taken off the counts first.
+        db.execSQL("CREATE TRIGGER products_delete_tags AFTER DELETE ON "
+                + ProductEntry.TABLE_NAME + " BEGIN "
+                + tagCountUpdate("- (OLD." + ProductEntry.COLUMN_PRODUCT_DELETED + " = 0)",
+                String.format(tagsOfProduct, "OLD"))
+                + " DELETE FROM " + ProductTagEntry.TABLE_NAME + " WHERE "
+                + ProductTagEntry.COLUMN_PRODUCT_ID + " = OLD." + ProductEntry._ID + "; END");
+        db.execSQL("CREATE TRIGGER tags_delete_links AFTER DELETE ON " + TagEntry.TABLE_NAME
+                + " BEGIN DELETE FROM " + ProductTagEntry.TABLE_NAME + " WHERE "
+                + ProductTagEntry.COLUMN_TAG_ID + " = OLD." + TagEntry._ID + "; END");
+    }
+
+    /**
+     * Return the statement changing the product count of the tags matching the selection by
+     * the given signed amount.
+     */
+    private static String tagCountUpdate(String change, String selection) {
+        return "UPDATE " + TagEntry.TABLE_NAME + " SET " + TagEntry.COLUMN_TAG_PRODUCT_COUNT
+                + " = " + TagEntry.COLUMN_TAG_PRODUCT_COUNT + " " + change + " WHERE "
+                + selection + ";";
+    }
+
+    /**
+     * Version 7 adds the trash, holding copies of products deleted in bulk so the deletion can
+     * be undone. It has the columns of the products table at this version plus the trash batch;
+     * restoring copies the columns both tables have.
+     */
+    private void upgradeToVersion7(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TRASH_TABLE_NAME + " AS SELECT * FROM "
+                + ProductEntry.TABLE_NAME + " WHERE 0");
+        db.execSQL("ALTER TABLE " + TRASH_TABLE_NAME + " ADD COLUMN " + TRASH_COLUMN_BATCH
+                + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("CREATE INDEX products_trash_batch ON " + TRASH_TABLE_NAME + " ("
+                + TRASH_COLUMN_BATCH + ")");
+    }
+
+    /**
+     * Version 8 adds the SKU or barcode of each product, with a unique index that serves
+     * lookups by code. Products without a code share the null value, which the index allows.
+     * The trash keeps the code of deleted products as well.
+     */
+    private void upgradeToVersion8(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_SKU + " TEXT");
+        db.execSQL("CREATE UNIQUE INDEX products_sku ON " + ProductEntry.TABLE_NAME + " ("
+                + ProductEntry.COLUMN_PRODUCT_SKU + ")");
+        db.execSQL("ALTER TABLE " + TRASH_TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_SKU + " TEXT");
+    }
+
+    /**
+     * Version 9 adds lots with their expiry date. Lots are indexed by product and expiry for
+     * taking units out of the earliest expiring lots of a product, and by expiry alone for
+     * listing what expires soon across all products. A trigger takes units out of the lots
+     * whenever the quantity of a product drops below the units of its lots, whichever path
+     * lowered it.
+     */
+    private void upgradeToVersion9(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + LotEntry.TABLE_NAME + " ("
+                + LotEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + LotEntry.COLUMN_LOT_PRODUCT_ID + " INTEGER NOT NULL, "
+                + LotEntry.COLUMN_LOT_QUANTITY + " INTEGER NOT NULL, "
+                + LotEntry.COLUMN_LOT_EXPIRES_AT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX lots_product_expiry ON " + LotEntry.TABLE_NAME + " ("
+                + LotEntry.COLUMN_LOT_PRODUCT_ID + ", " + LotEntry.COLUMN_LOT_EXPIRES_AT + ")");
+        db.execSQL("CREATE INDEX lots_expiry ON " + LotEntry.TABLE_NAME + " ("
+                + LotEntry.COLUMN_LOT_EXPIRES_AT + ")");
+
+        db.execSQL("CREATE TRIGGER products_trim_lots AFTER UPDATE OF "
+                + ProductEntry.COLUMN_PRODUCT_QUANTITY + " ON " + ProductEntry.TABLE_NAME
+                + " WHEN NEW." + ProductEntry.COLUMN_PRODUCT_QUANTITY + " < "
+                + lotUnits("NEW." + ProductEntry._ID) + " BEGIN "
+                + trimLots("NEW." + ProductEntry.COLUMN_PRODUCT_QUANTITY,
+                "NEW." + ProductEntry._ID) + "; "
+                + deleteEmptyLots("NEW." + ProductEntry._ID) + "; END");
+        db.execSQL("CREATE TRIGGER products_delete_lots AFTER DELETE ON "
+                + ProductEntry.TABLE_NAME + " BEGIN DELETE FROM " + LotEntry.TABLE_NAME
+                + " WHERE " + LotEntry.COLUMN_LOT_PRODUCT_ID + " = OLD." + ProductEntry._ID
+                + "; END");
+    }
+
+    /**
+     * Return the expression for the number of units in the lots of the given product.
+     */
+    static String lotUnits(String productId) {
+        return "(SELECT IFNULL(SUM(" + LotEntry.COLUMN_LOT_QUANTITY + "), 0) FROM "
+                + LotEntry.TABLE_NAME + " WHERE " + LotEntry.COLUMN_LOT_PRODUCT_ID + " = "
+                + productId + ")";
+    }
+
+    /**
+     * Return the statement reducing the lots of the given product to the given number of units
+     * in total, taking units out of the earliest expiring lots first. Each lot keeps what is
+     * left of the total after the lots expiring after it, so the result doesn't depend on the
+     * order in which SQLite updates the rows.
+     */
+    static String trimLots(String units, String productId) {
+        return "UPDATE " + LotEntry.TABLE_NAME + " SET " + LotEntry.COLUMN_LOT_QUANTITY
+                + " = MAX(0, MIN(" + LotEntry.COLUMN_LOT_QUANTITY + ", " + units
+                + " - (SELECT IFNULL(SUM(l." + LotEntry.COLUMN_LOT_QUANTITY + "), 0) FROM "
+                + LotEntry.TABLE_NAME + " l WHERE l." + LotEntry.COLUMN_LOT_PRODUCT_ID + " = "
+                + LotEntry.TABLE_NAME + "." + LotEntry.COLUMN_LOT_PRODUCT_ID + " AND (l."
+                + LotEntry.COLUMN_LOT_EXPIRES_AT + " > " + LotEntry.TABLE_NAME + "."
+                + LotEntry.COLUMN_LOT_EXPIRES_AT + " OR (l." + LotEntry.COLUMN_LOT_EXPIRES_AT
+                + " = " + LotEntry.TABLE_NAME + "." + LotEntry.COLUMN_LOT_EXPIRES_AT + " AND l."
+                + LotEntry._ID + " > " + LotEntry.TABLE_NAME + "." + LotEntry._ID + "))))) WHERE "
+                + LotEntry.COLUMN_LOT_PRODUCT_ID + " = " + productId;
+    }
+
+    /**
+     * Return the statement removing the empty lots of the given product.
+     */
+    static String deleteEmptyLots(String productId) {
+        return "DELETE FROM " + LotEntry.TABLE_NAME + " WHERE " + LotEntry.COLUMN_LOT_PRODUCT_ID
+                + " = " + productId + " AND " + LotEntry.COLUMN_LOT_QUANTITY + " = 0";
+    }
+
+    /**
+     * Version 10 adds locations and the stock of each product at each location. Stock is keyed
+     * by (product, location) and indexed by (location, product) for the view of a location.
+     * The quantity of a product stays its total; the provider adds every change of the stock at
+     * a location to it. A trigger takes units out of the locations whenever the quantity drops
+     * below the units at its locations, e.g. through a sale, in the order of the locations.
+     */
+    private void upgradeToVersion10(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + LocationEntry.TABLE_NAME + " ("
+                + LocationEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + LocationEntry.COLUMN_LOCATION_NAME + " TEXT NOT NULL UNIQUE)");
+
+        db.execSQL("CREATE TABLE " + StockEntry.TABLE_NAME + " ("
+                + StockEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + StockEntry.COLUMN_PRODUCT_ID + " INTEGER NOT NULL, "
+                + StockEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL, "
+                + StockEntry.COLUMN_STOCK_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                + "UNIQUE (" + StockEntry.COLUMN_PRODUCT_ID + ", "
+                + StockEntry.COLUMN_LOCATION_ID + "))");
+        db.execSQL("CREATE INDEX stock_location ON " + StockEntry.TABLE_NAME + " ("
+                + StockEntry.COLUMN_LOCATION_ID + ", " + StockEntry.COLUMN_PRODUCT_ID + ")");
+
+        db.execSQL("CREATE TRIGGER products_trim_stock AFTER UPDATE OF "
+                + ProductEntry.COLUMN_PRODUCT_QUANTITY + " ON " + ProductEntry.TABLE_NAME
+                + " WHEN NEW." + ProductEntry.COLUMN_PRODUCT_QUANTITY + " < "
+                + stockUnits("NEW." + ProductEntry._ID) + " BEGIN "
+                + trimStock("NEW." + ProductEntry.COLUMN_PRODUCT_QUANTITY,
+                "NEW." + ProductEntry._ID) + "; END");
+
+        // Removing a product for good removes its stock. Removing a location leaves the units
+        // that were there with the product, without a location.
+        db.execSQL("CREATE TRIGGER products_delete_stock AFTER DELETE ON "
+                + ProductEntry.TABLE_NAME + " BEGIN DELETE FROM " + StockEntry.TABLE_NAME
+                + " WHERE " + StockEntry.COLUMN_PRODUCT_ID + " = OLD." + ProductEntry._ID
+                + "; END");
+        db.execSQL("CREATE TRIGGER locations_delete_stock AFTER DELETE ON "
+                + LocationEntry.TABLE_NAME + " BEGIN DELETE FROM " + StockEntry.TABLE_NAME
+                + " WHERE " + StockEntry.COLUMN_LOCATION_ID + " = OLD." + LocationEntry._ID
+                + "; END");
+    }
+
+    /**
+     * Return the expression for the number of units of the given product at all locations.
+     */
+    static String stockUnits(String productId) {
+        return "(SELECT IFNULL(SUM(" + StockEntry.COLUMN_STOCK_QUANTITY + "), 0) FROM "
+                + StockEntry.TABLE_NAME + " WHERE " + StockEntry.COLUMN_PRODUCT_ID + " = "
+                + productId + ")";
+    }
+
+    /**
+     * Return the statement reducing the stock of the given product at all locations to the
+     * given number of units in total, taking units out of the locations in the order of their
+     * IDs. Like {@link #trimLots(String, String)}, each location keeps what is left of the
+     * total after the locations that come after it.
+     */
+    static String trimStock(String units, String productId) {
+        return "UPDATE " + StockEntry.TABLE_NAME + " SET " + StockEntry.COLUMN_STOCK_QUANTITY
+                + " = MAX(0, MIN(" + StockEntry.COLUMN_STOCK_QUANTITY + ", " + units
+                + " - (SELECT IFNULL(SUM(s." + StockEntry.COLUMN_STOCK_QUANTITY + "), 0) FROM "
+                + StockEntry.TABLE_NAME + " s WHERE s." + StockEntry.COLUMN_PRODUCT_ID + " = "
+                + StockEntry.TABLE_NAME + "." + StockEntry.COLUMN_PRODUCT_ID + " AND s."
+                + StockEntry.COLUMN_LOCATION_ID + " > " + StockEntry.TABLE_NAME + "."
+                + StockEntry.COLUMN_LOCATION_ID + "))) WHERE " + StockEntry.COLUMN_PRODUCT_ID
+                + " = " + productId;
+    }
+
+    /**
+     * Version 11 adds holds, units of a product reserved for an order until they expire. The
+     * units held of each product are kept in its reserved column, which a trigger lowers again
+     * whenever a hold is released, whether it was fulfilled, cancelled or expired. Holds are
+     * indexed by expiry for the sweep releasing expired holds, and by product and expiry for
+     * releasing the expired holds of one product before reserving more of it.
+     */
+    private void upgradeToVersion11(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_RESERVED + " INTEGER NOT NULL DEFAULT 0");
+
+        db.execSQL("CREATE TABLE " + HoldEntry.TABLE_NAME + " ("
+                + HoldEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + HoldEntry.COLUMN_HOLD_PRODUCT_ID + " INTEGER NOT NULL, "
+                + HoldEntry.COLUMN_HOLD_QUANTITY + " INTEGER NOT NULL, "
+                + HoldEntry.COLUMN_HOLD_EXPIRES_AT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX holds_expiry ON " + HoldEntry.TABLE_NAME + " ("
+                + HoldEntry.COLUMN_HOLD_EXPIRES_AT + ")");
+        db.execSQL("CREATE INDEX holds_product_expiry ON " + HoldEntry.TABLE_NAME + " ("
+                + HoldEntry.COLUMN_HOLD_PRODUCT_ID + ", " + HoldEntry.COLUMN_HOLD_EXPIRES_AT + ")");
+
+        db.execSQL("CREATE TRIGGER holds_release AFTER DELETE ON " + HoldEntry.TABLE_NAME
+                + " BEGIN UPDATE " + ProductEntry.TABLE_NAME + " SET "
+                + ProductEntry.COLUMN_PRODUCT_RESERVED + " = MAX(0, "
+                + ProductEntry.COLUMN_PRODUCT_RESERVED + " - OLD." + HoldEntry.COLUMN_HOLD_QUANTITY
+                + ") WHERE " + ProductEntry._ID + " = OLD." + HoldEntry.COLUMN_HOLD_PRODUCT_ID
+                + "; END");
+        db.execSQL("CREATE TRIGGER products_delete_holds AFTER DELETE ON "
+                + ProductEntry.TABLE_NAME + " BEGIN DELETE FROM " + HoldEntry.TABLE_NAME
+                + " WHERE " + HoldEntry.COLUMN_HOLD_PRODUCT_ID + " = OLD." + ProductEntry._ID
+                + "; END");
+    }
+
+    /**
+     * Version 12 adds the price history. Triggers record the price of a product whenever it is
+     * inserted or its price changes, whichever path changed it, in the transaction of the
+     * change. The history is indexed by product and time, so the price at a given time is a
+     * single seek. Existing products start with their current price, valid from time 0.
+     */
+    private void upgradeToVersion12(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + PriceHistoryEntry.TABLE_NAME + " ("
+                + PriceHistoryEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + PriceHistoryEntry.COLUMN_PRODUCT_ID + " INTEGER NOT NULL, "
+                + PriceHistoryEntry.COLUMN_PRICE + " INTEGER, "
+                + PriceHistoryEntry.COLUMN_VALID_FROM + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX price_history_product_time ON " + PriceHistoryEntry.TABLE_NAME
+                + " (" + PriceHistoryEntry.COLUMN_PRODUCT_ID + ", "
+                + PriceHistoryEntry.COLUMN_VALID_FROM + ")");
+
+        db.execSQL("INSERT INTO " + PriceHistoryEntry.TABLE_NAME + " ("
+                + PriceHistoryEntry.COLUMN_PRODUCT_ID + ", " + PriceHistoryEntry.COLUMN_PRICE
+                + ", " + PriceHistoryEntry.COLUMN_VALID_FROM + ") SELECT " + ProductEntry._ID
+                + ", " + ProductEntry.COLUMN_PRODUCT_PRICE + ", 0 FROM "
+                + ProductEntry.TABLE_NAME);
+
+        db.execSQL("CREATE TRIGGER products_insert_price AFTER INSERT ON "
+                + ProductEntry.TABLE_NAME + " BEGIN " + recordPrice() + "; END");
+        db.execSQL("CREATE TRIGGER products_update_price AFTER UPDATE OF "
+                + ProductEntry.COLUMN_PRODUCT_PRICE + " ON " + ProductEntry.TABLE_NAME
+                + " WHEN NEW." + ProductEntry.COLUMN_PRODUCT_PRICE + " IS NOT OLD."
+                + ProductEntry.COLUMN_PRODUCT_PRICE + " BEGIN " + recordPrice() + "; END");
+        db.execSQL("CREATE TRIGGER products_delete_price_history AFTER DELETE ON "
+                + ProductEntry.TABLE_NAME + " BEGIN DELETE FROM " + PriceHistoryEntry.TABLE_NAME
+                + " WHERE " + PriceHistoryEntry.COLUMN_PRODUCT_ID + " = OLD." + ProductEntry._ID
+                + "; END");
+    }
+
+    /**
+     * Return the trigger statement recording the new price of a product, valid from the
+     * current time in milliseconds since the epoch.
+     */
+    private static String recordPrice() {
+        return "INSERT INTO " + PriceHistoryEntry.TABLE_NAME + " ("
+                + PriceHistoryEntry.COLUMN_PRODUCT_ID + ", " + PriceHistoryEntry.COLUMN_PRICE
+                + ", " + PriceHistoryEntry.COLUMN_VALID_FROM + ") VALUES (NEW." + ProductEntry._ID
+                + ", NEW." + ProductEntry.COLUMN_PRODUCT_PRICE
+                + ", CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER))";
+    }
+
+    /**
+     * Version 13 adds the trigram index of product names, for finding near-duplicate products.
+     * The trigrams are computed by {@link NameTrigrams}, not in SQL, so triggers only queue the
+     * products whose name was inserted or changed, and the queue is worked off before every
+     * lookup. The index is keyed by trigram, so the products sharing a trigram are one range.
+     * Existing products are queued, to be indexed on first use.
+     */
+    private void upgradeToVersion13(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TRIGRAMS_TABLE_NAME + " ("
+                + TRIGRAMS_COLUMN_TRIGRAM + " TEXT NOT NULL, "
+                + COLUMN_PRODUCT_ID + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + TRIGRAMS_COLUMN_TRIGRAM + ", " + COLUMN_PRODUCT_ID + "))");
+        db.execSQL("CREATE INDEX name_trigrams_product ON " + TRIGRAMS_TABLE_NAME + " ("
+                + COLUMN_PRODUCT_ID + ")");
+        db.execSQL("CREATE TABLE " + TRIGRAMS_PENDING_TABLE_NAME + " ("
+                + COLUMN_PRODUCT_ID + " INTEGER PRIMARY KEY)");
+        db.execSQL("CREATE TABLE " + DUPLICATES_TABLE_NAME + " ("
+                + COLUMN_PRODUCT_ID + " INTEGER PRIMARY KEY, "
+                + ProductEntry.KEY_CLUSTER_ID + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX duplicates_cluster ON " + DUPLICATES_TABLE_NAME + " ("
+                + ProductEntry.KEY_CLUSTER_ID + ", " + COLUMN_PRODUCT_ID + ")");
+
+        db.execSQL("INSERT INTO " + TRIGRAMS_PENDING_TABLE_NAME + " (" + COLUMN_PRODUCT_ID
+                + ") SELECT " + ProductEntry._ID + " FROM " + ProductEntry.TABLE_NAME);
+
+        db.execSQL("CREATE TRIGGER products_insert_trigrams AFTER INSERT ON "
+                + ProductEntry.TABLE_NAME + " BEGIN " + queueTrigrams() + "; END");
+        db.execSQL("CREATE TRIGGER products_update_trigrams AFTER UPDATE OF "
+                + ProductEntry.COLUMN_PRODUCT_NAME + " ON " + ProductEntry.TABLE_NAME
+                + " WHEN NEW." + ProductEntry.COLUMN_PRODUCT_NAME + " IS NOT OLD."
+                + ProductEntry.COLUMN_PRODUCT_NAME + " BEGIN " + queueTrigrams() + "; END");
+        db.execSQL("CREATE TRIGGER products_delete_trigrams AFTER DELETE ON "
+                + ProductEntry.TABLE_NAME + " BEGIN"
+                + " DELETE FROM " + TRIGRAMS_TABLE_NAME + " WHERE " + COLUMN_PRODUCT_ID
+                + " = OLD." + ProductEntry._ID + ";"
+                + " DELETE FROM " + TRIGRAMS_PENDING_TABLE_NAME + " WHERE " + COLUMN_PRODUCT_ID
+                + " = OLD." + ProductEntry._ID + ";"
+                + " DELETE FROM " + DUPLICATES_TABLE_NAME + " WHERE " + COLUMN_PRODUCT_ID
+                + " = OLD." + ProductEntry._ID + "; END");
+    }
+
+    /**
+     * Return the trigger statement queueing a product for indexing its new name.
+     */
+    private static String queueTrigrams() {
+        return "INSERT OR IGNORE INTO " + TRIGRAMS_PENDING_TABLE_NAME + " (" + COLUMN_PRODUCT_ID
+                + ") VALUES (NEW." + ProductEntry._ID + ")";
+    }
+
+    /**
+     * Version 14 adds stock-take sessions and their counts. There is one count per product and
+     * session, kept unique by an index on (session, product) that also lists the counts of a
+     * session for reconciling. A second index on the product keeps removing a product's counts
+     * cheap; they go with the product, and all counts go with their session.
+     */
+    private void upgradeToVersion14(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + CountSessionEntry.TABLE_NAME + " ("
+                + CountSessionEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + CountSessionEntry.COLUMN_STARTED_AT + " INTEGER NOT NULL, "
+                + CountSessionEntry.COLUMN_RECONCILED_AT + " INTEGER)");
+
+        db.execSQL("CREATE TABLE " + CountEntry.TABLE_NAME + " ("
+                + CountEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + CountEntry.COLUMN_SESSION_ID + " INTEGER NOT NULL, "
+                + CountEntry.COLUMN_PRODUCT_ID + " INTEGER NOT NULL, "
+                + CountEntry.COLUMN_COUNTED + " INTEGER NOT NULL, "
+                + CountEntry.COLUMN_EXPECTED + " INTEGER NOT NULL, "
+                + CountEntry.COLUMN_COUNTED_AT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE UNIQUE INDEX counts_session_product ON " + CountEntry.TABLE_NAME
+                + " (" + CountEntry.COLUMN_SESSION_ID + ", " + CountEntry.COLUMN_PRODUCT_ID + ")");
+        db.execSQL("CREATE INDEX counts_product ON " + CountEntry.TABLE_NAME + " ("
+                + CountEntry.COLUMN_PRODUCT_ID + ")");
+
+        db.execSQL("CREATE TRIGGER count_sessions_delete_counts AFTER DELETE ON "
+                + CountSessionEntry.TABLE_NAME + " BEGIN DELETE FROM " + CountEntry.TABLE_NAME
+                + " WHERE " + CountEntry.COLUMN_SESSION_ID + " = OLD." + CountSessionEntry._ID
+                + "; END");
+        db.execSQL("CREATE TRIGGER products_delete_counts AFTER DELETE ON "
+                + ProductEntry.TABLE_NAME + " BEGIN DELETE FROM " + CountEntry.TABLE_NAME
+                + " WHERE " + CountEntry.COLUMN_PRODUCT_ID + " = OLD." + ProductEntry._ID
+                + "; END");
+    }
+
+    /**
+     * Version 15 adds the merge of the supplier feed. Each product remembers the hash of the
+     * content the feed last wrote to it, so an unchanged feed row is recognised without
+     * comparing columns and without writing the product. The products a run has seen are
+     * listed in a table of their own, which the end of the run compares the feed's products
+     * against and then empties. The trash keeps the hash of deleted products as well.
+     */
+    private void upgradeToVersion15(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_FEED_HASH + " INTEGER");
+        db.execSQL("ALTER TABLE " + TRASH_TABLE_NAME + " ADD COLUMN "
+                + ProductEntry.COLUMN_PRODUCT_FEED_HASH + " INTEGER");
+        db.execSQL("CREATE TABLE " + FEED_SEEN_TABLE_NAME + " ("
+                + COLUMN_PRODUCT_ID + " INTEGER PRIMARY KEY, "
+                + FEED_SEEN_COLUMN_RUN + " INTEGER NOT NULL)");
+    }
+
+    /**
+     * Version 16 remembers the sequence number of the last flush of the point-of-sale buffer.
+     * It is written in the same transaction as the sales, so a flush replayed from the
+     * buffer's journal after the process died is recognised as recorded already.
+     */
+    private void upgradeToVersion16(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SALE_FLUSH_TABLE_NAME + " ("
+                + SALE_FLUSH_COLUMN_SEQUENCE + " INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO " + SALE_FLUSH_TABLE_NAME + " VALUES (0)");
     }
-}
\ No newline at end of file
+}
@@ -16,15 +16,57 @@
 package com.example.android.inventory.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.example.android.inventory.data.ProductContract.CountEntry;
+import com.example.android.inventory.data.ProductContract.CountSessionEntry;
+import com.example.android.inventory.data.ProductContract.HoldEntry;
+import com.example.android.inventory.data.ProductContract.LocationEntry;
+import com.example.android.inventory.data.ProductContract.LotEntry;
+import com.example.android.inventory.data.ProductContract.PriceHistoryEntry;
 import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.ProductTagEntry;
+import com.example.android.inventory.data.ProductContract.SaleEntry;
+import com.example.android.inventory.data.ProductContract.SalesDailyEntry;
+import com.example.android.inventory.data.ProductContract.SalesMonthlyEntry;
+import com.example.android.inventory.data.ProductContract.StockEntry;
+import com.example.android.inventory.data.ProductContract.SummaryEntry;
+import com.example.android.inventory.data.ProductContract.TagEntry;
+import com.example.android.inventory.maintenance.HoldSweepService;
 
 /**
  * {@link ContentProvider} for Pets app.
@@ -40,6 +82,124 @@ public class ProductProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single pet in the pets table */
     private static final int PRODUCT_ID = 101;
 
+    /** URI matcher code for the content URI adjusting the quantity of a single product */
+    private static final int PRODUCT_ADJUST_ID = 102;
+
+    /** URI matcher code for the content URI listing products closest to stockout first */
+    private static final int PRODUCT_STOCKOUT = 103;
+
+    /** URI matcher code for the content URI adjusting the price of many products at once */
+    private static final int PRODUCT_PRICE = 104;
+
+    /** URI matcher code for the product with a given SKU */
+    private static final int PRODUCT_SKU = 105;
+
+    /** URI matcher code for the products with any of several SKUs */
+    private static final int PRODUCT_SKUS = 106;
+
+    /** URI matcher code for the stock of a single product at every location */
+    private static final int PRODUCT_STOCK = 107;
+
+    /** URI matcher code for the products with names nearly the same as a given name */
+    private static final int PRODUCT_SIMILAR = 108;
+
+    /** URI matcher code for the clusters of products with nearly the same names */
+    private static final int PRODUCT_DUPLICATES = 109;
+
+    /** Number of SKUs looked up per statement, well below SQLite's 999 bound arguments */
+    private static final int MAX_SKUS_PER_QUERY = 500;
+
+    /** Order of the products of a stock-out query, which the index on the estimate has */
+    static final String STOCKOUT_SORT_ORDER =
+            ProductEntry.COLUMN_PRODUCT_DAYS_TO_STOCKOUT + " ASC";
+
+    /** Product columns a row of the supplier feed may set, in the order they are hashed */
+    private static final List<String> FEED_COLUMNS = Arrays.asList(
+            ProductEntry.COLUMN_PRODUCT_NAME, ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY, ProductEntry.COLUMN_PRODUCT_IMAGE_URI);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Half-life of the weight of a sale in the sales velocity, in days */
+    private static final double VELOCITY_HALF_LIFE_DAYS = 7;
+
+    private static final double MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    /** URI matcher code for the content URI for the sale events */
+    private static final int SALES = 200;
+
+    /** URI matcher code for the content URI for the daily sales rollup */
+    private static final int SALES_DAILY = 201;
+
+    /** URI matcher code for the content URI for the monthly sales rollup */
+    private static final int SALES_MONTHLY = 202;
+
+    /** URI matcher code for the content URI for the stock summary */
+    private static final int SUMMARY = 300;
+
+    /** URI matcher code for the content URI for the categories and tags */
+    private static final int TAGS = 400;
+
+    /** URI matcher code for the content URI for a single category or tag */
+    private static final int TAG_ID = 401;
+
+    /** URI matcher code for the content URI for the facet counts of the tags */
+    private static final int TAG_FACETS = 402;
+
+    /** URI matcher code for the content URI for the links between products and tags */
+    private static final int PRODUCT_TAGS = 500;
+
+    /** URI matcher code for the content URI for lots */
+    private static final int LOTS = 600;
+
+    /** URI matcher code for the content URI for a single lot */
+    private static final int LOT_ID = 601;
+
+    /** URI matcher code for the content URI for the lots expiring soon */
+    private static final int LOTS_EXPIRING = 602;
+
+    /** URI matcher code for the content URI for locations */
+    private static final int LOCATIONS = 700;
+
+    /** URI matcher code for the content URI for a single location */
+    private static final int LOCATION_ID = 701;
+
+    /** URI matcher code for the products stocked at a single location */
+    private static final int LOCATION_STOCK = 702;
+
+    /** URI matcher code for the content URI for the stock at locations */
+    private static final int STOCK = 800;
+
+    /** URI matcher code for the content URI for a single stock entry */
+    private static final int STOCK_ID = 801;
+
+    /** URI matcher code for the content URI for holds */
+    private static final int HOLDS = 900;
+
+    /** URI matcher code for the content URI for a single hold */
+    private static final int HOLD_ID = 901;
+
+    /** URI matcher code for the content URI for the price history */
+    private static final int PRICE_HISTORY = 1000;
+
+    /** URI matcher code for the prices of products at a point in time */
+    private static final int PRICE_HISTORY_AT = 1001;
+
+    /** URI matcher code for the content URI for stock-take sessions */
+    private static final int COUNT_SESSIONS = 1100;
+
+    /** URI matcher code for the content URI for a single stock-take session */
+    private static final int COUNT_SESSION_ID = 1101;
+
+    /** URI matcher code for the differences found by a single stock-take session */
+    private static final int COUNT_DIFFERENCES = 1102;
+
+    /** URI matcher code for the content URI for the counts of stock-take sessions */
+    private static final int COUNTS = 1200;
+
+    /** Number of expired holds released per transaction */
+    private static final int HOLD_SWEEP_CHUNK = 200;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -66,20 +226,149 @@ public class ProductProvider extends ContentProvider {
         // For example, "content://com.example.android.pets/pets/3" matches, but
         // "content://com.example.android.pets/pets" (without a number at the end) doesn't match.
         sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/#", PRODUCT_ID);
+
+        // The content URI of the form "content://com.example.android.inventory/products/adjust/#"
+        // adds a delta to the quantity of one product instead of overwriting it.
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_ADJUST + "/#",
+                PRODUCT_ADJUST_ID);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_STOCKOUT,
+                PRODUCT_STOCKOUT);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_PRICE, PRODUCT_PRICE);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_SKU, PRODUCT_SKUS);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_SKU + "/*",
+                PRODUCT_SKU);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_SIMILAR,
+                PRODUCT_SIMILAR);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_DUPLICATES,
+                PRODUCT_DUPLICATES);
+
+        // Sale events and the rollups maintained from them
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_SALES, SALES);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_SALES + "/" + ProductContract.PATH_DAILY, SALES_DAILY);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_SALES + "/" + ProductContract.PATH_MONTHLY, SALES_MONTHLY);
+
+        // Totals across all products, maintained by triggers
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_SUMMARY, SUMMARY);
+
+        // Categories and tags, their facet counts and their links to products
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_TAGS, TAGS);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_TAGS + "/" + ProductContract.PATH_FACETS, TAG_FACETS);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_TAGS + "/#",
+                TAG_ID);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCT_TAGS,
+                PRODUCT_TAGS);
+
+        // Lots of perishable stock
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_LOTS, LOTS);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_LOTS + "/" + ProductContract.PATH_EXPIRING, LOTS_EXPIRING);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_LOTS + "/#",
+                LOT_ID);
+
+        // Locations and the stock at each of them
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_LOCATIONS,
+                LOCATIONS);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_LOCATIONS + "/#", LOCATION_ID);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_LOCATIONS + "/#/" + ProductContract.PATH_STOCK,
+                LOCATION_STOCK);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_STOCK, STOCK);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_STOCK + "/#",
+                STOCK_ID);
+
+        // Holds of units for orders
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_HOLDS, HOLDS);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_HOLDS + "/#",
+                HOLD_ID);
+
+        // The prices products had
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRICE_HISTORY,
+                PRICE_HISTORY);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRICE_HISTORY + "/" + ProductContract.PATH_AT,
+                PRICE_HISTORY_AT);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/#/" + ProductContract.PATH_STOCK, PRODUCT_STOCK);
+
+        // Stock-take sessions, their counts and the differences they found
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_COUNT_SESSIONS, COUNT_SESSIONS);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_COUNT_SESSIONS + "/#", COUNT_SESSION_ID);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_COUNT_SESSIONS + "/#/" + ProductContract.PATH_DIFFERENCES,
+                COUNT_DIFFERENCES);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_COUNTS, COUNTS);
     }
 
     /** Database helper object */
     private ProductDbHelper mDbHelper;
 
+    /** Merges the change notifications of bursts of writes and of batches */
+    private ChangeNotificationCoalescer mNotifier;
+
+    /**
+     * Held shared by every query, write and method, and exclusively by a restore while it
+     * closes the database and replaces its file, so nothing can reopen the old file meanwhile
+     */
+    private final ReadWriteLock mDatabaseLock = new ReentrantReadWriteLock();
+
+    /**
+     * Held while maintenance or backup run, as they must not checkpoint the log or copy the
+     * database file under each other
+     */
+    private final Object mFileLock = new Object();
+
+    /** Held while a restore runs, as restores unpack to the same file */
+    private final Object mRestoreLock = new Object();
+
+    /** Columns the products table and the trash have in common, or null until looked up */
+    private String[] mTrashColumns;
+
     @Override
     public boolean onCreate() {
         mDbHelper = new ProductDbHelper(getContext());
+        mNotifier = new ChangeNotificationCoalescer(getContext().getContentResolver());
         return true;
     }
 
+    /**
+     * Return the coalescer that delivers this provider's change notifications, so its window
+     * can be tuned.
+     */
+    public ChangeNotificationCoalescer getNotifier() {
+        return mNotifier;
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        mDatabaseLock.readLock().lock();
+        try {
+            Cursor cursor = queryMatch(uri, projection, selection, selectionArgs, sortOrder);
+            // Fill the first window while no restore can close the database
+            if (cursor != null) {
+                cursor.getCount();
+            }
+            return cursor;
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Cursor queryMatch(Uri uri, String[] projection, String selection,
+                              String[] selectionArgs, String sortOrder) {
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
@@ -88,13 +377,28 @@ public class ProductProvider extends ContentProvider {
 
         // Figure out if the URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
+
+        // Everyone but the sync engine only sees products that have not been deleted
+        if ((match == PRODUCTS || match == PRODUCT_ID || match == PRODUCT_STOCKOUT
+                || match == PRODUCT_SKU || match == PRODUCT_SKUS) && !isSyncAdapter(uri)) {
+            selection = liveSelection(selection);
+        }
+
+        // Only products carrying all tags of the filter match
+        String[] tagIds = getTagFilter(uri);
+        if (tagIds.length > 0 && (match == PRODUCTS || match == PRODUCT_STOCKOUT)) {
+            selection = appendSelection(selection,
+                    ProductEntry._ID + " IN (" + taggedProductsQuery(tagIds.length) + ")");
+            selectionArgs = appendSelectionArgs(selectionArgs, tagIds);
+        }
+
         switch (match) {
             case PRODUCTS:
                 // For the PRODUCTS code, query the pets table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the pets table.
                 cursor = database.query(ProductContract.ProductEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                        null, null, sortOrder, uri.getQueryParameter("limit"));
                 break;
             case PRODUCT_ID:
                 // For the PRODUCT_ID code, extract out the ID from the URI.
@@ -105,14 +409,162 @@ public class ProductProvider extends ContentProvider {
                 // For every "?" in the selection, we need to have an element in the selection
                 // arguments that will fill in the "?". Since we have 1 question mark in the
                 // selection, we have 1 String in the selection arguments' String array.
-                selection = ProductEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                selection = productIdSelection(selection);
+                selectionArgs = appendSelectionArgs(selectionArgs,
+                        String.valueOf(ContentUris.parseId(uri)));
 
                 // This will perform a query on the pets table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
                 cursor = database.query(ProductContract.ProductEntry.TABLE_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case PRODUCT_STOCKOUT:
+                // Walk the index on days_to_stockout from the lowest value, so only the rows
+                // returned are read
+                cursor = database.query(ProductEntry.TABLE_NAME, projection,
+                        stockoutSelection(selection), selectionArgs, null, null,
+                        STOCKOUT_SORT_ORDER, uri.getQueryParameter("limit"));
+                break;
+            case PRODUCT_SKU:
+                // A single lookup in the unique index on the code
+                String sku = normalizeSku(uri.getLastPathSegment());
+                if (sku == null) {
+                    throw new IllegalArgumentException("SKU lookup requires a code");
+                }
+                selection = skuSelection(selection);
+                selectionArgs = appendSelectionArgs(selectionArgs, sku);
+                cursor = database.query(ProductEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case PRODUCT_SKUS:
+                cursor = querySkus(database, getSkus(uri), projection, selection, selectionArgs,
+                        sortOrder);
+                break;
+            case PRODUCT_SIMILAR:
+                cursor = querySimilar(uri);
+                break;
+            case PRODUCT_DUPLICATES:
+                cursor = database.rawQuery(duplicatesQuery(), null);
+                break;
+            case SALES:
+                cursor = database.query(SaleEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case SALES_DAILY:
+                // Report queries read the rollup, which is keyed by (product, day) and indexed
+                // by (day, product), instead of scanning the sale events
+                cursor = database.query(SalesDailyEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case SALES_MONTHLY:
+                cursor = database.query(SalesMonthlyEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case SUMMARY:
+                // A single row looked up by its primary key, however many products there are
+                cursor = database.query(SummaryEntry.TABLE_NAME, projection,
+                        appendSelection(SummaryEntry._ID + "=1", selection), selectionArgs,
+                        null, null, null);
+                break;
+            case TAGS:
+                cursor = database.query(TagEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case TAG_ID:
+                selection = appendSelection(selection, TagEntry._ID + "=?");
+                selectionArgs = appendSelectionArgs(selectionArgs,
+                        String.valueOf(ContentUris.parseId(uri)));
+                cursor = database.query(TagEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case TAG_FACETS:
+                cursor = queryFacets(database, tagIds, selection, selectionArgs, sortOrder);
+                break;
+            case PRODUCT_TAGS:
+                cursor = database.query(ProductTagEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case LOTS:
+                cursor = database.query(LotEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case LOT_ID:
+                selection = appendSelection(selection, LotEntry._ID + "=?");
+                selectionArgs = appendSelectionArgs(selectionArgs,
+                        String.valueOf(ContentUris.parseId(uri)));
+                cursor = database.query(LotEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case LOTS_EXPIRING:
+                cursor = queryExpiringLots(database, uri);
+                break;
+            case LOCATIONS:
+                cursor = database.query(LocationEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case LOCATION_ID:
+                selection = appendSelection(selection, LocationEntry._ID + "=?");
+                selectionArgs = appendSelectionArgs(selectionArgs,
+                        String.valueOf(ContentUris.parseId(uri)));
+                cursor = database.query(LocationEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case LOCATION_STOCK:
+                cursor = database.rawQuery(locationStockQuery(sortOrder),
+                        new String[] { uri.getPathSegments().get(1) });
+                break;
+            case STOCK:
+                cursor = database.query(StockEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case STOCK_ID:
+                selection = appendSelection(selection, StockEntry._ID + "=?");
+                selectionArgs = appendSelectionArgs(selectionArgs,
+                        String.valueOf(ContentUris.parseId(uri)));
+                cursor = database.query(StockEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case PRODUCT_STOCK:
+                cursor = database.rawQuery(productStockQuery(),
+                        new String[] { uri.getPathSegments().get(1) });
+                break;
+            case HOLDS:
+                cursor = database.query(HoldEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case HOLD_ID:
+                selection = appendSelection(selection, HoldEntry._ID + "=?");
+                selectionArgs = appendSelectionArgs(selectionArgs,
+                        String.valueOf(ContentUris.parseId(uri)));
+                cursor = database.query(HoldEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case PRICE_HISTORY:
+                cursor = database.query(PriceHistoryEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case PRICE_HISTORY_AT:
+                cursor = queryPricesAt(database, uri);
+                break;
+            case COUNT_SESSIONS:
+                cursor = database.query(CountSessionEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case COUNT_SESSION_ID:
+                selection = appendSelection(selection, CountSessionEntry._ID + "=?");
+                selectionArgs = appendSelectionArgs(selectionArgs,
+                        String.valueOf(ContentUris.parseId(uri)));
+                cursor = database.query(CountSessionEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case COUNT_DIFFERENCES:
+                cursor = database.rawQuery(differencesQuery(),
+                        new String[] { uri.getPathSegments().get(1) });
+                break;
+            case COUNTS:
+                cursor = database.query(CountEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -120,7 +572,17 @@ public class ProductProvider extends ContentProvider {
         // Set notification URI on the Cursor,
         // so we know what content URI the Cursor was created for.
         // If the data at this URI changes, then we know we need to update the Cursor.
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        // Changes of products are reported for their ID, so a lookup by code and the price
+        // history, which changes with the products, are notified of changes of any product.
+        // The differences of a session change with its counts as well as with the products.
+        Uri notificationUri = uri;
+        if (match == PRODUCT_SKU || match == PRODUCT_SKUS || match == PRODUCT_SIMILAR
+                || match == PRICE_HISTORY || match == PRICE_HISTORY_AT) {
+            notificationUri = ProductEntry.CONTENT_URI;
+        } else if (match == COUNT_DIFFERENCES) {
+            notificationUri = ProductContract.BASE_CONTENT_URI;
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
 
         // Return the cursor
         return cursor;
@@ -128,184 +590,2656 @@ public class ProductProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        int traceId = LatencyTrace.traceId(uri);
+        LatencyTrace.begin(traceId, LatencyTrace.MARK_PROVIDER_START);
+        mDatabaseLock.readLock().lock();
+        try {
+            return insertMatch(uri, contentValues);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            LatencyTrace.end(traceId, LatencyTrace.MARK_PROVIDER_END);
+        }
+    }
+
+    private Uri insertMatch(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PRODUCTS:
                 return insertProduct(uri, contentValues);
+            case SALES:
+                return insertSale(contentValues);
+            case TAGS:
+                return insertTag(contentValues);
+            case PRODUCT_TAGS:
+                return insertProductTag(contentValues);
+            case LOTS:
+                return insertLot(contentValues);
+            case LOCATIONS:
+                return insertLocation(contentValues);
+            case STOCK:
+                return insertStock(contentValues);
+            case HOLDS:
+                return insertHold(contentValues);
+            case COUNT_SESSIONS:
+                return insertCountSession();
+            case COUNTS:
+                return insertCount(contentValues);
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
     }
 
     /**
-     * Insert a pet into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * Record a sale. In one transaction the units are taken out of stock, the sale event is
+     * stored and the daily and monthly rollups are updated. Return the content URI of the sale
+     * event, or null if the product doesn't exist or has fewer units in stock than were sold.
+     *
+     * A sale that is short only releases the expired holds and still ends its transaction
+     * successfully, since a failed nested transaction would roll back the whole batch of a
+     * bulk insert or applyBatch it is part of.
      */
-    private Uri insertProduct(Uri uri, ContentValues values) {
-        // Check that the name is not null
-        String name = values.getAsString(ProductEntry.COLUMN_PRODUCT_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("Product requires a name");
-        }
-
-        String image = values.getAsString(ProductEntry.COLUMN_PRODUCT_IMAGE_URI);
-        if (image == null) {
-            throw new IllegalArgumentException("Product requires an image");
+    private Uri insertSale(ContentValues values) {
+        Long productId = values.getAsLong(SaleEntry.COLUMN_SALE_PRODUCT_ID);
+        if (productId == null) {
+            throw new IllegalArgumentException("Sale requires a product");
         }
-        // Check that the price is valid
-        Integer price = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_PRICE);
-        if (price<0 ) {
-            throw new IllegalArgumentException("Product requires valid price");
+        Integer units = values.getAsInteger(SaleEntry.COLUMN_SALE_UNITS);
+        if (units == null || units <= 0) {
+            throw new IllegalArgumentException("Sale requires a positive number of units");
         }
-
-        // If the weight is provided, check that it's greater than or equal to 0 kg
-        Integer weight = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY);
-        if (weight != null && weight < 0) {
-            throw new IllegalArgumentException("Product requires valid quantity");
+        Long soldAt = values.getAsLong(SaleEntry.COLUMN_SALE_SOLD_AT);
+        if (soldAt == null) {
+            soldAt = System.currentTimeMillis();
         }
+        Long holdId = values.getAsLong(SaleEntry.KEY_HOLD_ID);
 
-
-        // No need to check the breed, any value is valid (including null).
-
-        // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        String[] holdArgs = { String.valueOf(holdId == null ? -1 : holdId),
+                String.valueOf(productId) };
+        long saleId = -1;
+        int holdsReleased;
+        database.beginTransaction();
+        try {
+            // Release the expired holds, so their units can be sold
+            holdsReleased = releaseExpiredHolds(database, productId, System.currentTimeMillis());
 
-        // Insert the new pet with the given values
-        long id = database.insert(ProductEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+            // The hold the sale fulfils is only released if the sale goes through, so it has
+            // to be counted as available before
+            if (DatabaseUtils.longForQuery(database, saleAvailableQuery(), new String[] {
+                    String.valueOf(productId), holdArgs[0], holdArgs[1],
+                    String.valueOf(units) }) != 0) {
+                holdsReleased += database.delete(HoldEntry.TABLE_NAME,
+                        HoldEntry._ID + "=? AND " + HoldEntry.COLUMN_HOLD_PRODUCT_ID + "=?",
+                        holdArgs);
+                saleId = sell(database, productId, units, soldAt);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
 
-        // Notify all listeners that the data has changed for the pet content URI
-        getContext().getContentResolver().notifyChange(uri, null);
-
-        // Return the new URI with the ID (of the newly inserted row) appended at the end
-        return ContentUris.withAppendedId(uri, id);
+        if (holdsReleased != 0 || saleId != -1) {
+            notifyChange(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, productId));
+        }
+        if (holdsReleased != 0) {
+            notifyChange(HoldEntry.CONTENT_URI);
+        }
+        if (saleId == -1) {
+            Log.w(LOG_TAG, "Not enough stock of product " + productId + " to sell " + units);
+            return null;
+        }
+        notifyChange(SaleEntry.CONTENT_URI);
+        return ContentUris.withAppendedId(SaleEntry.CONTENT_URI, saleId);
     }
 
-    @Override
-    public int update(Uri uri, ContentValues contentValues, String selection,
-                      String[] selectionArgs) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PRODUCTS:
-                return updateProduct(uri, contentValues, selection, selectionArgs);
-            case PRODUCT_ID:
-                // For the PRODUCT_ID code, extract out the ID from the URI,
-                // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = ProductContract.ProductEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateProduct(uri, contentValues, selection, selectionArgs);
-            default:
-                throw new IllegalArgumentException("Update is not supported for " + uri);
-        }
+    /**
+     * Return the query for whether the live product bound as the first argument has at least
+     * the units bound as the last available, counting the units of the hold whose ID and
+     * product are bound as the second and third arguments as available. It checks what
+     * {@link #sell} checks once that hold is released.
+     */
+    static String saleAvailableQuery() {
+        return "SELECT COUNT(*) FROM " + ProductEntry.TABLE_NAME + " WHERE "
+                + ProductEntry._ID + "=? AND " + ProductEntry.COLUMN_PRODUCT_DELETED + "=0 AND "
+                + ProductEntry.COLUMN_PRODUCT_QUANTITY + " - MAX(0, "
+                + ProductEntry.COLUMN_PRODUCT_RESERVED + " - IFNULL((SELECT "
+                + HoldEntry.COLUMN_HOLD_QUANTITY + " FROM " + HoldEntry.TABLE_NAME + " WHERE "
+                + HoldEntry._ID + "=? AND " + HoldEntry.COLUMN_HOLD_PRODUCT_ID + "=?), 0)) >= ?";
     }
 
     /**
-     * Update pets in the database with the given content values. Apply the changes to the rows
-     * specified in the selection and selection arguments (which could be 0 or 1 or more products).
-     * Return the number of rows that were successfully updated.
+     * Record the given sales in one transaction. A sale of more units than the product has
+     * available is left out, without affecting the others. If a flush sequence number is given
+     * and isn't greater than the last one recorded, the sales were recorded before and nothing
+     * is done. Return the number of sales recorded, the IDs of the products whose sale was left
+     * out and whether the sales were recorded at all.
      */
-    private int updateProduct(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        // If the {@link ProductEntry#COLUMN_PRODUCT_NAME} key is present,
-        // check that the name value is not null.
-        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_NAME)) {
-            String name = values.getAsString(ProductEntry.COLUMN_PRODUCT_NAME);
-            if (name == null) {
-                throw new IllegalArgumentException("Product requires a name");
+    private Bundle recordSales(Long sequence, List<ContentValues> sales) {
+        long[] productIds = new long[sales.size()];
+        int[] units = new int[sales.size()];
+        long[] soldAts = new long[sales.size()];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < sales.size(); i++) {
+            ContentValues values = sales.get(i);
+            Long productId = values.getAsLong(SaleEntry.COLUMN_SALE_PRODUCT_ID);
+            Integer saleUnits = values.getAsInteger(SaleEntry.COLUMN_SALE_UNITS);
+            if (productId == null || saleUnits == null || saleUnits <= 0) {
+                throw new IllegalArgumentException("Sales require a product and a positive "
+                        + "number of units");
             }
-        }
-        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_IMAGE_URI)) {
-            String image = values.getAsString(ProductEntry.COLUMN_PRODUCT_IMAGE_URI);
-            if (image == null) {
-                throw new IllegalArgumentException("Product requires an image");
+            if (values.containsKey(SaleEntry.KEY_HOLD_ID)) {
+                throw new IllegalArgumentException("Recorded sales can't fulfil holds");
             }
+            Long soldAt = values.getAsLong(SaleEntry.COLUMN_SALE_SOLD_AT);
+            productIds[i] = productId;
+            units[i] = saleUnits;
+            soldAts[i] = soldAt == null ? now : soldAt;
         }
-        // If the {@link ProductEntry#COLUMN_PET_GENDER} key is present,
-        // check that the gender value is valid.
-        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_PRICE)) {
-            Integer price = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_PRICE);
-            if (price == null && price<0) {
-                throw new IllegalArgumentException("Pet requires valid price");
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        List<Long> sold = new ArrayList<Long>();
+        List<Long> rejected = new ArrayList<Long>();
+        int holdsReleased = 0;
+        database.beginTransaction();
+        try {
+            if (sequence != null) {
+                long lastSequence = DatabaseUtils.longForQuery(database, "SELECT "
+                        + ProductDbHelper.SALE_FLUSH_COLUMN_SEQUENCE + " FROM "
+                        + ProductDbHelper.SALE_FLUSH_TABLE_NAME, null);
+                if (sequence <= lastSequence) {
+                    Log.i(LOG_TAG, "Sales of flush " + sequence + " are recorded already");
+                    Bundle result = countResult(0);
+                    result.putLongArray(ProductContract.RESULT_REJECTED, new long[0]);
+                    result.putBoolean(ProductContract.RESULT_COMPLETED, false);
+                    return result;
+                }
+                // In the same transaction as the sales, so they are recorded exactly once
+                database.execSQL("UPDATE " + ProductDbHelper.SALE_FLUSH_TABLE_NAME + " SET "
+                        + ProductDbHelper.SALE_FLUSH_COLUMN_SEQUENCE + " = ?",
+                        new Object[] { sequence });
+            }
+            for (int i = 0; i < productIds.length; i++) {
+                holdsReleased += releaseExpiredHolds(database, productIds[i], now);
+                // A short sale changes nothing, so the transaction carries on without it
+                if (sell(database, productIds[i], units[i], soldAts[i]) == -1) {
+                    Log.w(LOG_TAG, "Not enough stock of product " + productIds[i] + " to sell "
+                            + units[i]);
+                    rejected.add(productIds[i]);
+                } else {
+                    sold.add(productIds[i]);
+                }
             }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
 
-        // If the {@link ProductEntry#COLUMN_PET_WEIGHT} key is present,
-        // check that the weight value is valid.
-        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_QUANTITY)) {
-            // Check that the quantity is greater than or equal to 0 kg
-            Integer quantity = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY);
-            if (quantity != null && quantity < 0) {
-                throw new IllegalArgumentException("Pet requires valid quantity");
+        mNotifier.beginBatch();
+        try {
+            for (long productId : sold) {
+                notifyChange(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, productId));
+            }
+            if (!sold.isEmpty()) {
+                notifyChange(SaleEntry.CONTENT_URI);
             }
+            if (holdsReleased != 0) {
+                notifyChange(HoldEntry.CONTENT_URI);
+            }
+        } finally {
+            mNotifier.endBatch();
         }
 
-        // If there are no values to update, then don't try to update the database
-        if (values.size() == 0) {
-            return 0;
+        long[] rejectedIds = new long[rejected.size()];
+        for (int i = 0; i < rejectedIds.length; i++) {
+            rejectedIds[i] = rejected.get(i);
         }
+        Bundle result = countResult(sold.size());
+        result.putLongArray(ProductContract.RESULT_REJECTED, rejectedIds);
+        result.putBoolean(ProductContract.RESULT_COMPLETED, true);
+        return result;
+    }
 
-        // Otherwise, get writeable database to update the data
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
-
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(ProductContract.ProductEntry.TABLE_NAME, values, selection, selectionArgs);
-
-        // If 1 or more rows were updated, then notify all listeners that the data at the
-        // given URI has changed
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+    /**
+     * Sell units of a product in the caller's transaction: take them out of stock, store the
+     * sale event and update the sales velocity and the daily and monthly rollups. The lots
+     * give up the units earliest expiry first through the trigger on the quantity. Return the
+     * ID of the sale event, or -1 without having changed anything if the live product has
+     * fewer units available than were sold.
+     */
+    static long sell(SQLiteDatabase database, long productId, int units, long soldAt) {
+        // Take the units out of stock, but only if there are enough of them not held
+        int rowsUpdated = executeUpdate(database, ProductEntry.COLUMN_PRODUCT_QUANTITY + "="
+                        + ProductEntry.COLUMN_PRODUCT_QUANTITY + "-?",
+                new Object[] { units },
+                ProductEntry._ID + "=? AND " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " - "
+                        + ProductEntry.COLUMN_PRODUCT_RESERVED + ">=?",
+                new String[] { String.valueOf(productId), String.valueOf(units) }, false);
+        if (rowsUpdated == 0) {
+            return -1;
         }
 
-        // Return the number of rows updated
-        return rowsUpdated;
+        ContentValues sale = new ContentValues();
+        sale.put(SaleEntry.COLUMN_SALE_PRODUCT_ID, productId);
+        sale.put(SaleEntry.COLUMN_SALE_UNITS, units);
+        sale.put(SaleEntry.COLUMN_SALE_SOLD_AT, soldAt);
+        long saleId = database.insertOrThrow(SaleEntry.TABLE_NAME, null, sale);
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(soldAt);
+        int month = calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+        int day = month * 100 + calendar.get(Calendar.DAY_OF_MONTH);
+        updateSalesVelocity(database, productId, units, soldAt);
+        addToRollup(database, SalesDailyEntry.TABLE_NAME, SalesDailyEntry.COLUMN_DAY, day,
+                productId, units);
+        addToRollup(database, SalesMonthlyEntry.TABLE_NAME, SalesMonthlyEntry.COLUMN_MONTH,
+                month, productId, units);
+        return saleId;
     }
 
-    @Override
-    public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Get writeable database
+    /**
+     * Hold units of a product for an order until the hold expires. Return the content URI of
+     * the hold, or null if fewer units of the live product are available than are held.
+     */
+    private Uri insertHold(ContentValues values) {
+        Long productId = values.getAsLong(HoldEntry.COLUMN_HOLD_PRODUCT_ID);
+        Integer quantity = values.getAsInteger(HoldEntry.COLUMN_HOLD_QUANTITY);
+        Long expiresAt = values.getAsLong(HoldEntry.COLUMN_HOLD_EXPIRES_AT);
+        if (productId == null || quantity == null || quantity <= 0 || expiresAt == null) {
+            throw new IllegalArgumentException("Hold requires a product, quantity and expiry");
+        }
+        long now = System.currentTimeMillis();
+        if (expiresAt <= now) {
+            throw new IllegalArgumentException("Hold requires an expiry in the future");
+        }
+
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long holdId;
+        database.beginTransaction();
+        try {
+            // Expired holds of the product don't count, even if the sweep hasn't run yet
+            releaseExpiredHolds(database, productId, now);
 
-        // Track the number of rows that were deleted
-        int rowsDeleted;
+            // Check and reserve in one statement, so concurrent holds can never overbook
+            SQLiteStatement reserve = database.compileStatement("UPDATE "
+                    + ProductEntry.TABLE_NAME + " SET " + ProductEntry.COLUMN_PRODUCT_RESERVED
+                    + " = " + ProductEntry.COLUMN_PRODUCT_RESERVED + " + ? WHERE "
+                    + ProductEntry._ID + " = ? AND " + ProductEntry.COLUMN_PRODUCT_DELETED
+                    + " = 0 AND " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " - "
+                    + ProductEntry.COLUMN_PRODUCT_RESERVED + " >= ?");
+            try {
+                reserve.bindLong(1, quantity);
+                reserve.bindLong(2, productId);
+                reserve.bindLong(3, quantity);
+                if (reserve.executeUpdateDelete() == 0) {
+                    // Only expired holds were released, which stands even without the hold
+                    Log.w(LOG_TAG, "Not enough stock of product " + productId + " to hold "
+                            + quantity);
+                    database.setTransactionSuccessful();
+                    return null;
+                }
+            } finally {
+                reserve.close();
+            }
 
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PRODUCTS:
-                // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(ProductContract.ProductEntry.TABLE_NAME, selection, selectionArgs);
-                break;
-            case PRODUCT_ID:
-                // Delete a single row given by the ID in the URI
-                selection = ProductContract.ProductEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(ProductEntry.TABLE_NAME, selection, selectionArgs);
-                break;
-            default:
-                throw new IllegalArgumentException("Deletion is not supported for " + uri);
+            ContentValues hold = new ContentValues();
+            hold.put(HoldEntry.COLUMN_HOLD_PRODUCT_ID, productId);
+            hold.put(HoldEntry.COLUMN_HOLD_QUANTITY, quantity);
+            hold.put(HoldEntry.COLUMN_HOLD_EXPIRES_AT, expiresAt);
+            holdId = database.insert(HoldEntry.TABLE_NAME, null, hold);
+            if (holdId == -1) {
+                Log.e(LOG_TAG, "Failed to insert hold of product " + productId);
+                return null;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
 
-        // If 1 or more rows were deleted, then notify all listeners that the data at the
-        // given URI has changed
-        if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
+        // Release the hold on time even if no sweep is scheduled before its expiry
+        HoldSweepService.schedule(getContext(), expiresAt);
 
-        // Return the number of rows deleted
-        return rowsDeleted;
+        notifyChange(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, productId));
+        notifyChange(HoldEntry.CONTENT_URI);
+        return ContentUris.withAppendedId(HoldEntry.CONTENT_URI, holdId);
     }
 
-    @Override
-    public String getType(Uri uri) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PRODUCTS:
-                return ProductEntry.CONTENT_LIST_TYPE;
-            case PRODUCT_ID:
-                return ProductContract.ProductEntry.CONTENT_ITEM_TYPE;
+    /**
+     * Release the holds of the given product that have expired by the given time. Return the
+     * number of holds released.
+     */
+    private static int releaseExpiredHolds(SQLiteDatabase database, long productId, long now) {
+        return database.delete(HoldEntry.TABLE_NAME, expiredHoldsOfProductSelection(),
+                new String[] { String.valueOf(productId), String.valueOf(now) });
+    }
+
+    /**
+     * Return the selection of the holds of the product bound as the first argument that have
+     * expired by the time bound as the second.
+     */
+    static String expiredHoldsOfProductSelection() {
+        return HoldEntry.COLUMN_HOLD_PRODUCT_ID + "=? AND " + HoldEntry.COLUMN_HOLD_EXPIRES_AT
+                + "<=?";
+    }
+
+    /**
+     * Release all holds that have expired, {@link #HOLD_SWEEP_CHUNK} at a time in the order of
+     * their expiry, each chunk in its own short transaction. Return the number of holds
+     * released and the time the next hold expires.
+     */
+    private Bundle releaseExpiredHolds() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        String[] nowArgs = { String.valueOf(System.currentTimeMillis()) };
+        String chunk = HoldEntry._ID + " IN (" + expiredHoldsQuery(HOLD_SWEEP_CHUNK) + ")";
+        int released = 0;
+        int rowsDeleted;
+        do {
+            rowsDeleted = database.delete(HoldEntry.TABLE_NAME, chunk, nowArgs);
+            released += rowsDeleted;
+        } while (rowsDeleted == HOLD_SWEEP_CHUNK);
+
+        long nextExpiry = DatabaseUtils.longForQuery(database, nextHoldExpiryQuery(), null);
+        if (released != 0) {
+            notifyChange(HoldEntry.CONTENT_URI);
+            notifyChange(ProductEntry.CONTENT_URI);
+        }
+        Bundle result = countResult(released);
+        result.putLong(ProductContract.RESULT_NEXT_EXPIRY, nextExpiry);
+        return result;
+    }
+
+    /**
+     * Return the query for the IDs of up to the given number of holds that have expired by the
+     * time bound as the argument, read through the expiry index.
+     */
+    static String expiredHoldsQuery(int limit) {
+        return "SELECT " + HoldEntry._ID + " FROM " + HoldEntry.TABLE_NAME + " WHERE "
+                + HoldEntry.COLUMN_HOLD_EXPIRES_AT + " <= ? ORDER BY "
+                + HoldEntry.COLUMN_HOLD_EXPIRES_AT + " LIMIT " + limit;
+    }
+
+    /**
+     * Return the query of the time the next hold expires, or 0 if there are no holds. It
+     * reads one end of the expiry index.
+     */
+    static String nextHoldExpiryQuery() {
+        return "SELECT IFNULL(MIN(" + HoldEntry.COLUMN_HOLD_EXPIRES_AT + "), 0) FROM "
+                + HoldEntry.TABLE_NAME;
+    }
+
+    /**
+     * Fold a sale into the exponentially weighted sales velocity of a product. The weight of
+     * earlier sales halves every {@link #VELOCITY_HALF_LIFE_DAYS}, so this only needs the stored
+     * velocity and the time it was last updated. The days to stockout follow through a trigger.
+     */
+    private static void updateSalesVelocity(SQLiteDatabase database, long productId, int units,
+                                            long soldAt) {
+        double velocity = 0;
+        long updatedAt = soldAt;
+        Cursor cursor = database.query(ProductEntry.TABLE_NAME, new String[] {
+                        ProductEntry.COLUMN_PRODUCT_SALES_VELOCITY,
+                        ProductEntry.COLUMN_PRODUCT_VELOCITY_UPDATED_AT },
+                ProductEntry._ID + "=?", new String[] { String.valueOf(productId) },
+                null, null, null);
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(1)) {
+                velocity = cursor.getDouble(0);
+                updatedAt = cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Rate of an event stream with exponential decay: the old rate decays with the time
+        // passed, and the new units are spread over that time. For a burst of sales (no time
+        // passed) this tends to units * ln(2) / half-life.
+        double lambda = Math.log(2) / VELOCITY_HALF_LIFE_DAYS;
+        double days = Math.max(0, (soldAt - updatedAt) / MILLIS_PER_DAY);
+        double decay = Math.exp(-lambda * days);
+        double weight = days > 0 ? (1 - decay) / days : lambda;
+        velocity = velocity * decay + units * weight;
+
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_SALES_VELOCITY, velocity);
+        values.put(ProductEntry.COLUMN_PRODUCT_VELOCITY_UPDATED_AT, Math.max(soldAt, updatedAt));
+        database.update(ProductEntry.TABLE_NAME, values, ProductEntry._ID + "=?",
+                new String[] { String.valueOf(productId) });
+    }
+
+    /**
+     * Add units to the rollup row of a product and period, creating the row if needed.
+     */
+    private static void addToRollup(SQLiteDatabase database, String table, String periodColumn,
+                                     int period, long productId, int units) {
+        String[] args = { String.valueOf(productId), String.valueOf(period) };
+        // Both rollup tables share the product and units column names
+        database.execSQL("INSERT OR IGNORE INTO " + table + " ("
+                + SalesDailyEntry.COLUMN_PRODUCT_ID + ", " + periodColumn + ") VALUES (?, ?)", args);
+        database.execSQL("UPDATE " + table + " SET " + SalesDailyEntry.COLUMN_UNITS + " = "
+                + SalesDailyEntry.COLUMN_UNITS + " + " + units + " WHERE "
+                + SalesDailyEntry.COLUMN_PRODUCT_ID + " = ? AND " + periodColumn + " = ?", args);
+    }
+
+    /**
+     * Return the distinct tag IDs of the tag filter of the given URI.
+     */
+    private static String[] getTagFilter(Uri uri) {
+        LinkedHashSet<String> tagIds = new LinkedHashSet<String>();
+        for (String tagId : uri.getQueryParameters(ProductContract.QUERY_PARAMETER_TAG)) {
+            tagIds.add(String.valueOf(Long.parseLong(tagId)));
+        }
+        return tagIds.toArray(new String[tagIds.size()]);
+    }
+
+    /**
+     * Return the distinct codes of a SKU lookup URI, normalized as they are stored.
+     */
+    private static List<String> getSkus(Uri uri) {
+        LinkedHashSet<String> skus = new LinkedHashSet<String>();
+        for (String sku : uri.getQueryParameters(ProductContract.QUERY_PARAMETER_SKU)) {
+            sku = normalizeSku(sku);
+            if (sku != null) {
+                skus.add(sku);
+            }
+        }
+        return new ArrayList<String>(skus);
+    }
+
+    /**
+     * Return the products with any of the given codes. Each statement resolves up to
+     * {@link #MAX_SKUS_PER_QUERY} codes through the unique index; longer lists are split and
+     * the results concatenated, so the sort order applies within each part.
+     */
+    private static Cursor querySkus(SQLiteDatabase database, List<String> skus,
+                                    String[] projection, String selection,
+                                    String[] selectionArgs, String sortOrder) {
+        if (skus.isEmpty()) {
+            throw new IllegalArgumentException("SKU lookup requires at least one code");
+        }
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        for (int start = 0; start < skus.size(); start += MAX_SKUS_PER_QUERY) {
+            List<String> chunk = skus.subList(start,
+                    Math.min(start + MAX_SKUS_PER_QUERY, skus.size()));
+            cursors.add(database.query(ProductEntry.TABLE_NAME, projection,
+                    skusSelection(selection, chunk.size()),
+                    appendSelectionArgs(selectionArgs,
+                            chunk.toArray(new String[chunk.size()])),
+                    null, null, sortOrder));
+        }
+        if (cursors.size() == 1) {
+            return cursors.get(0);
+        }
+        return new MergeCursor(cursors.toArray(new Cursor[cursors.size()]));
+    }
+
+    /**
+     * Return the given selection narrowed to the products the caller sees, which excludes the
+     * tombstones of deleted products.
+     */
+    static String liveSelection(String selection) {
+        return appendSelection(ProductEntry.COLUMN_PRODUCT_DELETED + "=0", selection);
+    }
+
+    /**
+     * Return the given selection narrowed to the product whose ID is bound as the last
+     * argument.
+     */
+    static String productIdSelection(String selection) {
+        return appendSelection(selection, ProductEntry._ID + "=?");
+    }
+
+    /**
+     * Return the given selection narrowed to the products with a stock-out estimate. Sorted
+     * by {@link #STOCKOUT_SORT_ORDER}, they are read from the index from the lowest estimate,
+     * so only the rows returned are read.
+     */
+    static String stockoutSelection(String selection) {
+        return appendSelection(selection,
+                ProductEntry.COLUMN_PRODUCT_DAYS_TO_STOCKOUT + " IS NOT NULL");
+    }
+
+    /**
+     * Return the given selection narrowed to the product whose code is bound as the last
+     * argument.
+     */
+    static String skuSelection(String selection) {
+        return appendSelection(selection, ProductEntry.COLUMN_PRODUCT_SKU + "=?");
+    }
+
+    /**
+     * Return the given selection narrowed to the products with any of the given number of
+     * codes, bound as the last arguments.
+     */
+    static String skusSelection(String selection, int skuCount) {
+        StringBuilder in = new StringBuilder(ProductEntry.COLUMN_PRODUCT_SKU).append(" IN (");
+        for (int i = 0; i < skuCount; i++) {
+            in.append(i == 0 ? "?" : ", ?");
+        }
+        in.append(")");
+        return appendSelection(selection, in.toString());
+    }
+
+    /**
+     * Return the prices the products of a point-in-time URI had at its time. Each statement
+     * looks up to {@link #MAX_SKUS_PER_QUERY} products up by ID and the price of each with one
+     * seek in the history index; longer lists are split and the results concatenated.
+     */
+    private static Cursor queryPricesAt(SQLiteDatabase database, Uri uri) {
+        String at = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_AT);
+        if (at == null) {
+            throw new IllegalArgumentException("Price lookup requires a time");
+        }
+        LinkedHashSet<String> unique = new LinkedHashSet<String>();
+        for (String productId : uri.getQueryParameters(ProductContract.QUERY_PARAMETER_PRODUCT)) {
+            unique.add(String.valueOf(Long.parseLong(productId)));
+        }
+        if (unique.isEmpty()) {
+            throw new IllegalArgumentException("Price lookup requires at least one product");
+        }
+        List<String> productIds = new ArrayList<String>(unique);
+
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        for (int start = 0; start < productIds.size(); start += MAX_SKUS_PER_QUERY) {
+            List<String> chunk = productIds.subList(start,
+                    Math.min(start + MAX_SKUS_PER_QUERY, productIds.size()));
+            String[] args = new String[chunk.size() + 1];
+            args[0] = String.valueOf(Long.parseLong(at));
+            for (int i = 0; i < chunk.size(); i++) {
+                args[i + 1] = chunk.get(i);
+            }
+            cursors.add(database.rawQuery(priceAtQuery(chunk.size()), args));
+        }
+        if (cursors.size() == 1) {
+            return cursors.get(0);
+        }
+        return new MergeCursor(cursors.toArray(new Cursor[cursors.size()]));
+    }
+
+    /**
+     * Return the query for the history entries in effect for the given number of products at
+     * a point in time. The time is bound as the first argument, followed by the product IDs.
+     * Each product is read by its primary key, and its latest entry up to the time with a
+     * backwards seek in the (product, time) index; the cross join keeps that order.
+     */
+    static String priceAtQuery(int productCount) {
+        StringBuilder in = new StringBuilder();
+        for (int i = 0; i < productCount; i++) {
+            in.append(i == 0 ? "?" : ", ?");
+        }
+        return "SELECT h." + PriceHistoryEntry._ID + " AS " + PriceHistoryEntry._ID
+                + ", h." + PriceHistoryEntry.COLUMN_PRODUCT_ID + " AS "
+                + PriceHistoryEntry.COLUMN_PRODUCT_ID
+                + ", h." + PriceHistoryEntry.COLUMN_PRICE + " AS " + PriceHistoryEntry.COLUMN_PRICE
+                + ", h." + PriceHistoryEntry.COLUMN_VALID_FROM + " AS "
+                + PriceHistoryEntry.COLUMN_VALID_FROM
+                + " FROM " + ProductEntry.TABLE_NAME + " p CROSS JOIN "
+                + PriceHistoryEntry.TABLE_NAME + " h ON h." + PriceHistoryEntry._ID
+                + " = (SELECT l." + PriceHistoryEntry._ID + " FROM " + PriceHistoryEntry.TABLE_NAME
+                + " l WHERE l." + PriceHistoryEntry.COLUMN_PRODUCT_ID + " = p." + ProductEntry._ID
+                + " AND l." + PriceHistoryEntry.COLUMN_VALID_FROM + " <= ? ORDER BY l."
+                + PriceHistoryEntry.COLUMN_VALID_FROM + " DESC, l." + PriceHistoryEntry._ID
+                + " DESC LIMIT 1) WHERE p." + ProductEntry._ID + " IN (" + in + ")";
+    }
+
+    /**
+     * Return the given SKU as it is stored: without leading and trailing white space, and null
+     * if nothing is left.
+     */
+    private static String normalizeSku(String sku) {
+        if (sku == null) {
+            return null;
+        }
+        sku = sku.trim();
+        return TextUtils.isEmpty(sku) ? null : sku;
+    }
+
+    /**
+     * Normalize the SKU in the given values, if there is one, and take it off tombstones of
+     * deleted products, so the code can be given to another product. Return true if the values
+     * set a code.
+     */
+    private static boolean prepareSku(SQLiteDatabase database, ContentValues values) {
+        if (!values.containsKey(ProductEntry.COLUMN_PRODUCT_SKU)) {
+            return false;
+        }
+        String sku = normalizeSku(values.getAsString(ProductEntry.COLUMN_PRODUCT_SKU));
+        values.put(ProductEntry.COLUMN_PRODUCT_SKU, sku);
+        if (sku == null) {
+            return false;
+        }
+        ContentValues release = new ContentValues();
+        release.putNull(ProductEntry.COLUMN_PRODUCT_SKU);
+        database.update(ProductEntry.TABLE_NAME, release, ProductEntry.COLUMN_PRODUCT_SKU
+                + "=? AND " + ProductEntry.COLUMN_PRODUCT_DELETED + "=1", new String[] { sku });
+        return true;
+    }
+
+    /**
+     * Return the query for the IDs of the products carrying all of the given number of tags,
+     * whose IDs are bound as arguments. It reads the links through their (tag, product) index
+     * only.
+     */
+    static String taggedProductsQuery(int tagCount) {
+        StringBuilder sql = new StringBuilder("SELECT ")
+                .append(ProductTagEntry.COLUMN_PRODUCT_ID).append(" FROM ")
+                .append(ProductTagEntry.TABLE_NAME).append(" WHERE ")
+                .append(ProductTagEntry.COLUMN_TAG_ID).append(" IN (");
+        for (int i = 0; i < tagCount; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+        if (tagCount > 1) {
+            sql.append(" GROUP BY ").append(ProductTagEntry.COLUMN_PRODUCT_ID)
+                    .append(" HAVING COUNT(*) = ").append(tagCount);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Return the tags with the number of live products carrying them among those matching the
+     * tag filter. Without a filter the counts maintained in the tags table are returned as they
+     * are; with a filter the links of the matching products are counted per tag. The selection
+     * and sort order apply to the columns of {@link TagEntry}.
+     */
+    private static Cursor queryFacets(SQLiteDatabase database, String[] tagIds, String selection,
+                                      String[] selectionArgs, String sortOrder) {
+        // The tag IDs are bound in the inner query, which comes before the selection
+        String[] args = tagIds;
+        if (tagIds.length == 0) {
+            args = selectionArgs;
+        } else if (selectionArgs != null) {
+            args = appendSelectionArgs(tagIds, selectionArgs);
+        }
+        return database.rawQuery(facetsQuery(tagIds.length, selection, sortOrder), args);
+    }
+
+    /**
+     * Return the query of {@link #queryFacets} for a filter of the given number of tags, whose
+     * IDs are bound as the first arguments.
+     */
+    static String facetsQuery(int tagCount, String selection, String sortOrder) {
+        String facets;
+        if (tagCount == 0) {
+            facets = "SELECT " + TagEntry._ID + ", " + TagEntry.COLUMN_TAG_NAME + ", "
+                    + TagEntry.COLUMN_TAG_KIND + ", " + TagEntry.COLUMN_TAG_PRODUCT_COUNT
+                    + " FROM " + TagEntry.TABLE_NAME + " WHERE "
+                    + TagEntry.COLUMN_TAG_PRODUCT_COUNT + " > 0";
+        } else {
+            facets = "SELECT t." + TagEntry._ID + " AS " + TagEntry._ID
+                    + ", t." + TagEntry.COLUMN_TAG_NAME + " AS " + TagEntry.COLUMN_TAG_NAME
+                    + ", t." + TagEntry.COLUMN_TAG_KIND + " AS " + TagEntry.COLUMN_TAG_KIND
+                    + ", COUNT(*) AS " + TagEntry.COLUMN_TAG_PRODUCT_COUNT
+                    + " FROM " + ProductTagEntry.TABLE_NAME + " pt JOIN " + TagEntry.TABLE_NAME
+                    + " t ON t." + TagEntry._ID + " = pt." + ProductTagEntry.COLUMN_TAG_ID
+                    + " WHERE pt." + ProductTagEntry.COLUMN_PRODUCT_ID + " IN (SELECT "
+                    + ProductEntry._ID + " FROM " + ProductEntry.TABLE_NAME + " WHERE "
+                    + ProductEntry.COLUMN_PRODUCT_DELETED + " = 0 AND " + ProductEntry._ID
+                    + " IN (" + taggedProductsQuery(tagCount) + "))"
+                    + " GROUP BY pt." + ProductTagEntry.COLUMN_TAG_ID;
+        }
+
+        StringBuilder sql = new StringBuilder("SELECT * FROM (").append(facets).append(")");
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" WHERE ").append(selection);
+        }
+        sql.append(" ORDER BY ").append(TextUtils.isEmpty(sortOrder)
+                ? TagEntry.COLUMN_TAG_KIND + ", " + TagEntry.COLUMN_TAG_NAME : sortOrder);
+        return sql.toString();
+    }
+
+    /**
+     * Insert a category or tag. Return its content URI, or null if one of the same kind and
+     * name exists already.
+     */
+    private Uri insertTag(ContentValues values) {
+        String name = values.getAsString(TagEntry.COLUMN_TAG_NAME);
+        if (TextUtils.isEmpty(name)) {
+            throw new IllegalArgumentException("Tag requires a name");
+        }
+        Integer kind = values.getAsInteger(TagEntry.COLUMN_TAG_KIND);
+        if (kind != null && kind != TagEntry.KIND_CATEGORY && kind != TagEntry.KIND_TAG) {
+            throw new IllegalArgumentException("Tag requires a valid kind");
+        }
+        // The product count is maintained by the database
+        values.remove(TagEntry.COLUMN_TAG_PRODUCT_COUNT);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id = database.insertWithOnConflict(TagEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (id == -1) {
+            Log.w(LOG_TAG, "Tag " + name + " exists already");
+            return null;
+        }
+        notifyChange(TagEntry.CONTENT_URI);
+        return ContentUris.withAppendedId(TagEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Link a product to a tag. Linking them again has no effect. Return the content URI of the
+     * new link, or null if they were linked already.
+     */
+    private Uri insertProductTag(ContentValues values) {
+        if (values.getAsLong(ProductTagEntry.COLUMN_PRODUCT_ID) == null
+                || values.getAsLong(ProductTagEntry.COLUMN_TAG_ID) == null) {
+            throw new IllegalArgumentException("Link requires a product and a tag");
+        }
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id = database.insertWithOnConflict(ProductTagEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (id == -1) {
+            return null;
+        }
+        notifyProductTagsChanged();
+        return ContentUris.withAppendedId(ProductTagEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Report a change of the links between products and tags, which changes the facet counts
+     * and the products matching a tag filter.
+     */
+    private void notifyProductTagsChanged() {
+        notifyChange(ProductTagEntry.CONTENT_URI);
+        notifyChange(TagEntry.CONTENT_URI);
+        notifyChange(ProductEntry.CONTENT_URI);
+    }
+
+    /**
+     * Receive a lot: store it and add its units to the product's quantity in one transaction.
+     * Return the content URI of the lot, or null if the product doesn't exist.
+     */
+    private Uri insertLot(ContentValues values) {
+        Long productId = values.getAsLong(LotEntry.COLUMN_LOT_PRODUCT_ID);
+        if (productId == null) {
+            throw new IllegalArgumentException("Lot requires a product");
+        }
+        Integer quantity = values.getAsInteger(LotEntry.COLUMN_LOT_QUANTITY);
+        if (quantity == null || quantity <= 0) {
+            throw new IllegalArgumentException("Lot requires a positive quantity");
+        }
+        if (values.getAsLong(LotEntry.COLUMN_LOT_EXPIRES_AT) == null) {
+            throw new IllegalArgumentException("Lot requires an expiry date");
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id;
+        database.beginTransaction();
+        try {
+            int rowsUpdated = executeUpdate(database, ProductEntry.COLUMN_PRODUCT_QUANTITY + "="
+                            + ProductEntry.COLUMN_PRODUCT_QUANTITY + "+?",
+                    new Object[] { quantity }, ProductEntry._ID + "=?",
+                    new String[] { String.valueOf(productId) }, false);
+            if (rowsUpdated == 0) {
+                Log.w(LOG_TAG, "Failed to receive lot of missing product " + productId);
+                return null;
+            }
+            id = database.insert(LotEntry.TABLE_NAME, null, values);
+            if (id == -1) {
+                Log.e(LOG_TAG, "Failed to insert lot of product " + productId);
+                return null;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        notifyChange(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, productId));
+        return ContentUris.withAppendedId(LotEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Write off a lot, e.g. because it expired: remove it and take its units out of the
+     * product's quantity in one transaction. Return the number of lots removed.
+     */
+    private int writeOffLot(long id) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long productId;
+        database.beginTransaction();
+        try {
+            Cursor cursor = database.query(LotEntry.TABLE_NAME, new String[] {
+                            LotEntry.COLUMN_LOT_PRODUCT_ID, LotEntry.COLUMN_LOT_QUANTITY },
+                    LotEntry._ID + "=?", new String[] { String.valueOf(id) }, null, null, null);
+            int quantity;
+            try {
+                if (!cursor.moveToFirst()) {
+                    return 0;
+                }
+                productId = cursor.getLong(0);
+                quantity = cursor.getInt(1);
+            } finally {
+                cursor.close();
+            }
+
+            // The lot goes first, so lowering the quantity leaves the other lots alone
+            database.delete(LotEntry.TABLE_NAME, LotEntry._ID + "=?",
+                    new String[] { String.valueOf(id) });
+            executeUpdate(database, ProductEntry.COLUMN_PRODUCT_QUANTITY + " = MAX(0, "
+                            + ProductEntry.COLUMN_PRODUCT_QUANTITY + " - ?)",
+                    new Object[] { quantity }, ProductEntry._ID + "=?",
+                    new String[] { String.valueOf(productId) }, false);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        notifyChange(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, productId));
+        return 1;
+    }
+
+    /**
+     * Return the lots expiring within the number of days given in the URI, soonest first.
+     */
+    private static Cursor queryExpiringLots(SQLiteDatabase database, Uri uri) {
+        String days = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_DAYS);
+        if (days == null) {
+            throw new IllegalArgumentException("Expiring lots require a number of days");
+        }
+        long until = System.currentTimeMillis()
+                + (long) (Integer.parseInt(days) * MILLIS_PER_DAY);
+        return database.rawQuery(expiringLotsQuery(uri.getQueryParameter("limit")),
+                new String[] { String.valueOf(until) });
+    }
+
+    /**
+     * Return the query of {@link #queryExpiringLots} with the given limit, which may be null.
+     * The lots are read as a range of the expiry index, already in order; the cross join keeps
+     * SQLite from reading the products first and looking up their lots instead.
+     */
+    static String expiringLotsQuery(String limit) {
+        String sql = "SELECT l." + LotEntry._ID + " AS " + LotEntry._ID
+                + ", l." + LotEntry.COLUMN_LOT_PRODUCT_ID + " AS " + LotEntry.COLUMN_LOT_PRODUCT_ID
+                + ", l." + LotEntry.COLUMN_LOT_QUANTITY + " AS " + LotEntry.COLUMN_LOT_QUANTITY
+                + ", l." + LotEntry.COLUMN_LOT_EXPIRES_AT + " AS " + LotEntry.COLUMN_LOT_EXPIRES_AT
+                + ", p." + ProductEntry.COLUMN_PRODUCT_NAME + " AS "
+                + ProductEntry.COLUMN_PRODUCT_NAME
+                + ", p." + ProductEntry.COLUMN_PRODUCT_SKU + " AS "
+                + ProductEntry.COLUMN_PRODUCT_SKU
+                + " FROM " + LotEntry.TABLE_NAME + " l CROSS JOIN " + ProductEntry.TABLE_NAME
+                + " p ON p." + ProductEntry._ID + " = l." + LotEntry.COLUMN_LOT_PRODUCT_ID
+                + " WHERE l." + LotEntry.COLUMN_LOT_EXPIRES_AT + " < ? AND p."
+                + ProductEntry.COLUMN_PRODUCT_DELETED + " = 0"
+                + " ORDER BY l." + LotEntry.COLUMN_LOT_EXPIRES_AT + ", l." + LotEntry._ID;
+        if (!TextUtils.isEmpty(limit)) {
+            sql += " LIMIT " + Integer.parseInt(limit);
+        }
+        return sql;
+    }
+
+    /**
+     * Insert a location. Return its content URI, or null if there is one of the same name.
+     */
+    private Uri insertLocation(ContentValues values) {
+        if (TextUtils.isEmpty(values.getAsString(LocationEntry.COLUMN_LOCATION_NAME))) {
+            throw new IllegalArgumentException("Location requires a name");
+        }
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id = database.insertWithOnConflict(LocationEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (id == -1) {
+            return null;
+        }
+        notifyChange(LocationEntry.CONTENT_URI);
+        return ContentUris.withAppendedId(LocationEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Rename a location. Return the number of locations changed, which is 0 if another location
+     * has the name.
+     */
+    private int updateLocation(long id, ContentValues values) {
+        if (TextUtils.isEmpty(values.getAsString(LocationEntry.COLUMN_LOCATION_NAME))) {
+            throw new IllegalArgumentException("Location requires a name");
+        }
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated = database.updateWithOnConflict(LocationEntry.TABLE_NAME, values,
+                LocationEntry._ID + "=?", new String[] { String.valueOf(id) },
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (rowsUpdated != 0) {
+            notifyChange(LocationEntry.CONTENT_URI);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Set the stock of a product at a location, whether or not it was stocked there before.
+     * Return the content URI of the stock entry, or null if the product or location doesn't
+     * exist.
+     */
+    private Uri insertStock(ContentValues values) {
+        Long productId = values.getAsLong(StockEntry.COLUMN_PRODUCT_ID);
+        Long locationId = values.getAsLong(StockEntry.COLUMN_LOCATION_ID);
+        Integer quantity = values.getAsInteger(StockEntry.COLUMN_STOCK_QUANTITY);
+        if (productId == null || locationId == null || quantity == null) {
+            throw new IllegalArgumentException("Stock requires a product, location and quantity");
+        }
+        long id = setStock(productId, locationId, quantity);
+        return id == -1 ? null : ContentUris.withAppendedId(StockEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Set the quantity of a stock entry. Return the number of entries changed.
+     */
+    private int updateStock(long id, ContentValues values) {
+        Integer quantity = values.getAsInteger(StockEntry.COLUMN_STOCK_QUANTITY);
+        if (quantity == null) {
+            throw new IllegalArgumentException("Stock requires a quantity");
+        }
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        Cursor cursor = database.query(StockEntry.TABLE_NAME, new String[] {
+                        StockEntry.COLUMN_PRODUCT_ID, StockEntry.COLUMN_LOCATION_ID },
+                StockEntry._ID + "=?", new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return 0;
+            }
+            return setStock(cursor.getLong(0), cursor.getLong(1), quantity) == -1 ? 0 : 1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Set the stock of a live product at a location and add the difference to the product's
+     * quantity, in one transaction. Return the ID of the stock entry, or -1 if the product or
+     * location doesn't exist.
+     */
+    private long setStock(long productId, long locationId, int quantity) {
+        if (quantity < 0) {
+            throw new IllegalArgumentException("Stock requires a valid quantity");
+        }
+        String[] keyArgs = { String.valueOf(productId), String.valueOf(locationId) };
+        String key = StockEntry.COLUMN_PRODUCT_ID + "=? AND " + StockEntry.COLUMN_LOCATION_ID
+                + "=?";
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id;
+        database.beginTransaction();
+        try {
+            if (DatabaseUtils.queryNumEntries(database, LocationEntry.TABLE_NAME,
+                    LocationEntry._ID + "=?", new String[] { String.valueOf(locationId) }) == 0) {
+                return -1;
+            }
+            Cursor cursor = database.query(StockEntry.TABLE_NAME, new String[] {
+                            StockEntry._ID, StockEntry.COLUMN_STOCK_QUANTITY }, key, keyArgs,
+                    null, null, null);
+            int delta;
+            try {
+                id = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+                delta = quantity - (id == -1 ? 0 : cursor.getInt(1));
+            } finally {
+                cursor.close();
+            }
+
+            // The location changes first, so a lower total doesn't take units out of the other
+            // locations
+            ContentValues values = new ContentValues();
+            values.put(StockEntry.COLUMN_STOCK_QUANTITY, quantity);
+            if (id == -1) {
+                values.put(StockEntry.COLUMN_PRODUCT_ID, productId);
+                values.put(StockEntry.COLUMN_LOCATION_ID, locationId);
+                id = database.insert(StockEntry.TABLE_NAME, null, values);
+            } else {
+                database.update(StockEntry.TABLE_NAME, values, StockEntry._ID + "=?",
+                        new String[] { String.valueOf(id) });
+            }
+            // Only a live product can be stocked; adding nothing still checks it
+            int rowsUpdated = executeUpdate(database, ProductEntry.COLUMN_PRODUCT_QUANTITY + "="
+                            + ProductEntry.COLUMN_PRODUCT_QUANTITY + "+?",
+                    new Object[] { delta }, ProductEntry._ID + "=?",
+                    new String[] { String.valueOf(productId) }, false);
+            if (id == -1 || rowsUpdated == 0) {
+                return -1;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        notifyChange(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, productId));
+        return id;
+    }
+
+    /**
+     * Move units of a live product from one location to another in one transaction, where
+     * location 0 stands for the units without a location. Return the number of units moved,
+     * which is 0 if the source doesn't hold enough of them or a location doesn't exist.
+     */
+    private int transferStock(long productId, long fromLocationId, long toLocationId,
+                              int quantity) {
+        if (fromLocationId == toLocationId) {
+            return 0;
+        }
+        String key = StockEntry.COLUMN_PRODUCT_ID + "=? AND " + StockEntry.COLUMN_LOCATION_ID
+                + "=?";
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            // Units without a location are those of the quantity beyond the stocked ones
+            String[] productArgs = { String.valueOf(productId) };
+            Cursor cursor = database.rawQuery("SELECT " + ProductEntry.COLUMN_PRODUCT_QUANTITY
+                    + " - " + ProductDbHelper.stockUnits(ProductEntry.TABLE_NAME + "."
+                    + ProductEntry._ID) + " FROM "
+                    + ProductEntry.TABLE_NAME + " WHERE " + ProductEntry._ID + "=? AND "
+                    + ProductEntry.COLUMN_PRODUCT_DELETED + "=0", productArgs);
+            long available;
+            try {
+                if (!cursor.moveToFirst()) {
+                    return 0;
+                }
+                available = cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+
+            if (fromLocationId != 0) {
+                String[] fromArgs = { String.valueOf(productId), String.valueOf(fromLocationId) };
+                available = DatabaseUtils.longForQuery(database, "SELECT IFNULL(SUM("
+                        + StockEntry.COLUMN_STOCK_QUANTITY + "), 0) FROM "
+                        + StockEntry.TABLE_NAME + " WHERE " + key, fromArgs);
+                if (available >= quantity) {
+                    database.execSQL("UPDATE " + StockEntry.TABLE_NAME + " SET "
+                            + StockEntry.COLUMN_STOCK_QUANTITY + " = "
+                            + StockEntry.COLUMN_STOCK_QUANTITY + " - ? WHERE " + key,
+                            new Object[] { quantity, productId, fromLocationId });
+                }
+            }
+            if (available < quantity) {
+                return 0;
+            }
+
+            if (toLocationId != 0) {
+                if (DatabaseUtils.queryNumEntries(database, LocationEntry.TABLE_NAME,
+                        LocationEntry._ID + "=?",
+                        new String[] { String.valueOf(toLocationId) }) == 0) {
+                    return 0;
+                }
+                SQLiteStatement add = database.compileStatement("UPDATE "
+                        + StockEntry.TABLE_NAME + " SET " + StockEntry.COLUMN_STOCK_QUANTITY
+                        + " = " + StockEntry.COLUMN_STOCK_QUANTITY + " + ? WHERE " + key);
+                try {
+                    add.bindLong(1, quantity);
+                    add.bindLong(2, productId);
+                    add.bindLong(3, toLocationId);
+                    if (add.executeUpdateDelete() == 0) {
+                        ContentValues values = new ContentValues();
+                        values.put(StockEntry.COLUMN_PRODUCT_ID, productId);
+                        values.put(StockEntry.COLUMN_LOCATION_ID, toLocationId);
+                        values.put(StockEntry.COLUMN_STOCK_QUANTITY, quantity);
+                        database.insert(StockEntry.TABLE_NAME, null, values);
+                    }
+                } finally {
+                    add.close();
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // The total quantity stays the same, only the views of the locations change
+        notifyChange(StockEntry.CONTENT_URI);
+        notifyChange(LocationEntry.CONTENT_URI);
+        return quantity;
+    }
+
+    /**
+     * Return the query for the live products stocked at the location whose ID is bound as the
+     * argument. The entries are read through the (location, product) index and each product
+     * by its primary key; the cross join keeps that order.
+     */
+    static String locationStockQuery(String sortOrder) {
+        return "SELECT p." + ProductEntry._ID + " AS " + ProductEntry._ID
+                + ", p." + ProductEntry.COLUMN_PRODUCT_NAME + " AS "
+                + ProductEntry.COLUMN_PRODUCT_NAME
+                + ", p." + ProductEntry.COLUMN_PRODUCT_SKU + " AS "
+                + ProductEntry.COLUMN_PRODUCT_SKU
+                + ", p." + ProductEntry.COLUMN_PRODUCT_PRICE + " AS "
+                + ProductEntry.COLUMN_PRODUCT_PRICE
+                + ", p." + ProductEntry.COLUMN_PRODUCT_QUANTITY + " AS "
+                + ProductEntry.COLUMN_PRODUCT_QUANTITY
+                + ", s." + StockEntry.COLUMN_STOCK_QUANTITY + " AS "
+                + StockEntry.COLUMN_LOCATION_QUANTITY
+                + " FROM " + StockEntry.TABLE_NAME + " s CROSS JOIN " + ProductEntry.TABLE_NAME
+                + " p ON p." + ProductEntry._ID + " = s." + StockEntry.COLUMN_PRODUCT_ID
+                + " WHERE s." + StockEntry.COLUMN_LOCATION_ID + " = ? AND p."
+                + ProductEntry.COLUMN_PRODUCT_DELETED + " = 0 ORDER BY "
+                + (TextUtils.isEmpty(sortOrder) ? ProductEntry.COLUMN_PRODUCT_NAME : sortOrder);
+    }
+
+    /**
+     * Return the query for the stock at every location of the product whose ID is bound as the
+     * argument, read through the unique (product, location) index.
+     */
+    static String productStockQuery() {
+        return "SELECT s." + StockEntry._ID + " AS " + StockEntry._ID
+                + ", s." + StockEntry.COLUMN_PRODUCT_ID + " AS " + StockEntry.COLUMN_PRODUCT_ID
+                + ", s." + StockEntry.COLUMN_LOCATION_ID + " AS " + StockEntry.COLUMN_LOCATION_ID
+                + ", s." + StockEntry.COLUMN_STOCK_QUANTITY + " AS "
+                + StockEntry.COLUMN_STOCK_QUANTITY
+                + ", l." + LocationEntry.COLUMN_LOCATION_NAME + " AS "
+                + StockEntry.COLUMN_LOCATION_NAME
+                + " FROM " + StockEntry.TABLE_NAME + " s CROSS JOIN " + LocationEntry.TABLE_NAME
+                + " l ON l." + LocationEntry._ID + " = s." + StockEntry.COLUMN_LOCATION_ID
+                + " WHERE s." + StockEntry.COLUMN_PRODUCT_ID + " = ? ORDER BY l."
+                + LocationEntry.COLUMN_LOCATION_NAME;
+    }
+
+    /**
+     * Return the products with names nearly the same as the name given in the URI, with their
+     * similarity, most similar first. See {@link NameTrigrams}.
+     */
+    private Cursor querySimilar(Uri uri) {
+        String name = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_NAME);
+        if (name == null) {
+            throw new IllegalArgumentException("Similarity lookup requires a name");
+        }
+        // The lookup indexes the names changed since the last one first
+        List<NameTrigrams.Match> matches =
+                NameTrigrams.findSimilar(mDbHelper.getWritableDatabase(), name);
+        MatrixCursor cursor = new MatrixCursor(new String[] { ProductEntry._ID,
+                ProductEntry.COLUMN_PRODUCT_NAME, ProductEntry.COLUMN_PRODUCT_SKU,
+                ProductEntry.KEY_SIMILARITY }, matches.size());
+        for (NameTrigrams.Match match : matches) {
+            cursor.addRow(new Object[] { match.id, match.name, match.sku, match.similarity });
+        }
+        return cursor;
+    }
+
+    /**
+     * Return the query for the live products in clusters of near-duplicates, ordered by
+     * cluster, read through the cluster index.
+     */
+    static String duplicatesQuery() {
+        return "SELECT d." + ProductEntry.KEY_CLUSTER_ID + " AS " + ProductEntry.KEY_CLUSTER_ID
+                + ", p." + ProductEntry._ID + " AS " + ProductEntry._ID
+                + ", p." + ProductEntry.COLUMN_PRODUCT_NAME + " AS "
+                + ProductEntry.COLUMN_PRODUCT_NAME
+                + ", p." + ProductEntry.COLUMN_PRODUCT_SKU + " AS "
+                + ProductEntry.COLUMN_PRODUCT_SKU
+                + ", p." + ProductEntry.COLUMN_PRODUCT_QUANTITY + " AS "
+                + ProductEntry.COLUMN_PRODUCT_QUANTITY
+                + " FROM " + ProductDbHelper.DUPLICATES_TABLE_NAME + " d CROSS JOIN "
+                + ProductEntry.TABLE_NAME + " p ON p." + ProductEntry._ID + " = d."
+                + ProductDbHelper.COLUMN_PRODUCT_ID
+                + " WHERE p." + ProductEntry.COLUMN_PRODUCT_DELETED + " = 0 ORDER BY d."
+                + ProductEntry.KEY_CLUSTER_ID + ", d." + ProductDbHelper.COLUMN_PRODUCT_ID;
+    }
+
+    /**
+     * Start a stock-take session. Return the content URI of the session.
+     */
+    private Uri insertCountSession() {
+        ContentValues session = new ContentValues();
+        session.put(CountSessionEntry.COLUMN_STARTED_AT, System.currentTimeMillis());
+        long id = mDbHelper.getWritableDatabase().insert(CountSessionEntry.TABLE_NAME, null,
+                session);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to start a stock-take session");
+            return null;
+        }
+        notifyChange(CountSessionEntry.CONTENT_URI);
+        return ContentUris.withAppendedId(CountSessionEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Set or add to the count of a product in an open stock-take session. The first count of a
+     * product, and every count that is set, takes the product's current quantity as the
+     * expected quantity. Return the content URI of the count, or null if the session isn't
+     * open or the product doesn't exist.
+     *
+     * Counts only notify observers of the counts, not of the products, as they don't change
+     * any quantity until the session is reconciled.
+     */
+    private Uri insertCount(ContentValues values) {
+        Long sessionId = values.getAsLong(CountEntry.COLUMN_SESSION_ID);
+        Long productId = values.getAsLong(CountEntry.COLUMN_PRODUCT_ID);
+        Integer counted = values.getAsInteger(CountEntry.COLUMN_COUNTED);
+        Integer delta = values.getAsInteger(CountEntry.KEY_COUNT_DELTA);
+        if (sessionId == null || productId == null || (counted == null) == (delta == null)) {
+            throw new IllegalArgumentException(
+                    "Count requires a session, a product and either a count or a delta");
+        }
+        if (counted != null && counted < 0) {
+            throw new IllegalArgumentException("Count requires a valid count");
+        }
+        long now = System.currentTimeMillis();
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id;
+        database.beginTransaction();
+        try {
+            if (DatabaseUtils.queryNumEntries(database, CountSessionEntry.TABLE_NAME,
+                    CountSessionEntry._ID + "=? AND " + CountSessionEntry.COLUMN_RECONCILED_AT
+                            + " IS NULL", new String[] { String.valueOf(sessionId) }) == 0) {
+                // Nothing is written, and a failed nested transaction would roll back the
+                // whole batch of a bulk insert
+                Log.w(LOG_TAG, "Stock-take session " + sessionId + " isn't open");
+                database.setTransactionSuccessful();
+                return null;
+            }
+            Cursor cursor = database.query(CountEntry.TABLE_NAME, new String[] { CountEntry._ID },
+                    countOfProductSelection(),
+                    new String[] { String.valueOf(sessionId), String.valueOf(productId) },
+                    null, null, null);
+            try {
+                id = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            } finally {
+                cursor.close();
+            }
+
+            SQLiteStatement statement;
+            if (id != -1) {
+                // A count that is set takes the current quantity again, units added don't
+                statement = database.compileStatement(counted != null
+                        ? "UPDATE " + CountEntry.TABLE_NAME + " SET "
+                                + CountEntry.COLUMN_COUNTED + " = ?, "
+                                + CountEntry.COLUMN_EXPECTED + " = (SELECT "
+                                + ProductEntry.COLUMN_PRODUCT_QUANTITY + " FROM "
+                                + ProductEntry.TABLE_NAME + " WHERE " + ProductEntry._ID + " = "
+                                + CountEntry.COLUMN_PRODUCT_ID + "), "
+                                + CountEntry.COLUMN_COUNTED_AT + " = ? WHERE "
+                                + CountEntry._ID + " = ?"
+                        : "UPDATE " + CountEntry.TABLE_NAME + " SET "
+                                + CountEntry.COLUMN_COUNTED + " = MAX(0, "
+                                + CountEntry.COLUMN_COUNTED + " + ?), "
+                                + CountEntry.COLUMN_COUNTED_AT + " = ? WHERE "
+                                + CountEntry._ID + " = ?");
+                try {
+                    statement.bindLong(1, counted != null ? counted : delta);
+                    statement.bindLong(2, now);
+                    statement.bindLong(3, id);
+                    statement.executeUpdateDelete();
+                } finally {
+                    statement.close();
+                }
+            } else {
+                // The expected quantity is read in the statement that records the count
+                statement = database.compileStatement("INSERT INTO " + CountEntry.TABLE_NAME
+                        + " (" + CountEntry.COLUMN_SESSION_ID + ", " + CountEntry.COLUMN_PRODUCT_ID
+                        + ", " + CountEntry.COLUMN_COUNTED + ", " + CountEntry.COLUMN_EXPECTED
+                        + ", " + CountEntry.COLUMN_COUNTED_AT + ") SELECT ?, " + ProductEntry._ID
+                        + ", MAX(0, ?), " + ProductEntry.COLUMN_PRODUCT_QUANTITY + ", ? FROM "
+                        + ProductEntry.TABLE_NAME + " WHERE " + ProductEntry._ID + " = ? AND "
+                        + ProductEntry.COLUMN_PRODUCT_DELETED + " = 0");
+                try {
+                    statement.bindLong(1, sessionId);
+                    statement.bindLong(2, counted != null ? counted : delta);
+                    statement.bindLong(3, now);
+                    statement.bindLong(4, productId);
+                    id = statement.executeInsert();
+                } finally {
+                    statement.close();
+                }
+                if (id == -1) {
+                    Log.w(LOG_TAG, "Can't count product " + productId + ", it doesn't exist");
+                    database.setTransactionSuccessful();
+                    return null;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        notifyChange(CountEntry.CONTENT_URI);
+        return ContentUris.withAppendedId(CountEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Return the selection of the count of the product bound as the second argument in the
+     * stock-take session bound as the first, a lookup in the unique (session, product) index.
+     */
+    static String countOfProductSelection() {
+        return CountEntry.COLUMN_SESSION_ID + "=? AND " + CountEntry.COLUMN_PRODUCT_ID + "=?";
+    }
+
+    /**
+     * Return the query for the counts of the live products in the stock-take session whose ID
+     * is bound as the argument, with the products' current quantities and the differences,
+     * read through the unique (session, product) index.
+     */
+    static String differencesQuery() {
+        return "SELECT c." + CountEntry._ID + " AS " + CountEntry._ID
+                + ", c." + CountEntry.COLUMN_SESSION_ID + " AS " + CountEntry.COLUMN_SESSION_ID
+                + ", c." + CountEntry.COLUMN_PRODUCT_ID + " AS " + CountEntry.COLUMN_PRODUCT_ID
+                + ", c." + CountEntry.COLUMN_COUNTED + " AS " + CountEntry.COLUMN_COUNTED
+                + ", c." + CountEntry.COLUMN_EXPECTED + " AS " + CountEntry.COLUMN_EXPECTED
+                + ", c." + CountEntry.COLUMN_COUNTED_AT + " AS " + CountEntry.COLUMN_COUNTED_AT
+                + ", c." + CountEntry.COLUMN_COUNTED + " - c." + CountEntry.COLUMN_EXPECTED
+                + " AS " + CountEntry.KEY_DIFFERENCE
+                + ", p." + ProductEntry.COLUMN_PRODUCT_NAME + " AS "
+                + ProductEntry.COLUMN_PRODUCT_NAME
+                + ", p." + ProductEntry.COLUMN_PRODUCT_SKU + " AS "
+                + ProductEntry.COLUMN_PRODUCT_SKU
+                + ", p." + ProductEntry.COLUMN_PRODUCT_QUANTITY + " AS "
+                + ProductEntry.COLUMN_PRODUCT_QUANTITY
+                + " FROM " + CountEntry.TABLE_NAME + " c CROSS JOIN " + ProductEntry.TABLE_NAME
+                + " p ON p." + ProductEntry._ID + " = c." + CountEntry.COLUMN_PRODUCT_ID
+                + " WHERE c." + CountEntry.COLUMN_SESSION_ID + " = ? AND p."
+                + ProductEntry.COLUMN_PRODUCT_DELETED + " = 0 ORDER BY p."
+                + ProductEntry.COLUMN_PRODUCT_NAME;
+    }
+
+    /**
+     * Return the selection of the products counted with a difference in the stock-take session
+     * whose ID is bound as the argument.
+     */
+    static String countedWithDifferenceSelection() {
+        return ProductEntry._ID + " IN (SELECT " + CountEntry.COLUMN_PRODUCT_ID + " FROM "
+                + CountEntry.TABLE_NAME + " WHERE " + CountEntry.COLUMN_SESSION_ID + " = ? AND "
+                + CountEntry.COLUMN_COUNTED + " != " + CountEntry.COLUMN_EXPECTED + ")";
+    }
+
+    /**
+     * Close an open stock-take session and add the difference of every product counted in it
+     * to the product's current quantity, in one transaction with one change notification.
+     * Movements since a product was counted are kept, as only the difference is applied. The
+     * quantity is clamped at 0. Return the number of products corrected, or 0 if the session
+     * isn't open.
+     */
+    private int reconcileCount(long sessionId) {
+        String[] sessionArgs = { String.valueOf(sessionId) };
+        ContentValues closed = new ContentValues();
+        closed.put(CountSessionEntry.COLUMN_RECONCILED_AT, System.currentTimeMillis());
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            // Closing first also keeps two reconciliations of the session from both applying
+            if (database.update(CountSessionEntry.TABLE_NAME, closed, CountSessionEntry._ID
+                    + "=? AND " + CountSessionEntry.COLUMN_RECONCILED_AT + " IS NULL",
+                    sessionArgs) == 0) {
+                return 0;
+            }
+            rowsUpdated = executeUpdate(database, ProductEntry.COLUMN_PRODUCT_QUANTITY
+                            + " = MAX(0, " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " + (SELECT "
+                            + CountEntry.COLUMN_COUNTED + " - " + CountEntry.COLUMN_EXPECTED
+                            + " FROM " + CountEntry.TABLE_NAME + " WHERE "
+                            + CountEntry.COLUMN_SESSION_ID + " = ? AND "
+                            + CountEntry.COLUMN_PRODUCT_ID + " = " + ProductEntry.TABLE_NAME + "."
+                            + ProductEntry._ID + "))",
+                    new Object[] { sessionId }, countedWithDifferenceSelection(), sessionArgs,
+                    false);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        mNotifier.beginBatch();
+        try {
+            notifyChange(CountSessionEntry.CONTENT_URI);
+            if (rowsUpdated != 0) {
+                notifyChange(ProductEntry.CONTENT_URI);
+            }
+        } finally {
+            mNotifier.endBatch();
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Insert a pet into the database with the given content values. Return the new content URI
+     * for that specific row in the database.
+     */
+    private Uri insertProduct(Uri uri, ContentValues values) {
+        // Check that the name is not null
+        String name = values.getAsString(ProductEntry.COLUMN_PRODUCT_NAME);
+        if (name == null) {
+            throw new IllegalArgumentException("Product requires a name");
+        }
+
+        String image = values.getAsString(ProductEntry.COLUMN_PRODUCT_IMAGE_URI);
+        if (image == null) {
+            throw new IllegalArgumentException("Product requires an image");
+        }
+        // Check that the price is valid
+        Integer price = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_PRICE);
+        if (price<0 ) {
+            throw new IllegalArgumentException("Product requires valid price");
+        }
+
+        // If the weight is provided, check that it's greater than or equal to 0 kg
+        Integer weight = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+        if (weight != null && weight < 0) {
+            throw new IllegalArgumentException("Product requires valid quantity");
+        }
+
+
+        // Fill in the change tracking columns, unless the sync engine is storing a pulled row
+        if (!isSyncAdapter(uri)) {
+            values.put(ProductEntry.COLUMN_PRODUCT_SYNC_ID, UUID.randomUUID().toString());
+            values.put(ProductEntry.COLUMN_PRODUCT_VERSION, 1);
+            values.put(ProductEntry.COLUMN_PRODUCT_UPDATED_AT, System.currentTimeMillis());
+            values.put(ProductEntry.COLUMN_PRODUCT_DELETED, 0);
+            values.put(ProductEntry.COLUMN_PRODUCT_DIRTY, 1);
+        }
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        prepareSku(database, values);
+
+        // Insert the new pet with the given values, which fails if the SKU is taken
+        long id = database.insert(ProductEntry.TABLE_NAME, null, values);
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+        // Index the name right away, so the next lookup doesn't have to
+        NameTrigrams.indexPending(database);
+
+        // Notify all listeners that the data has changed for the pet content URI
+        notifyChange(uri);
+
+        // Return the new URI with the ID (of the newly inserted row) appended at the end
+        return ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues contentValues, String selection,
+                      String[] selectionArgs) {
+        int traceId = LatencyTrace.traceId(uri);
+        LatencyTrace.begin(traceId, LatencyTrace.MARK_PROVIDER_START);
+        mDatabaseLock.readLock().lock();
+        try {
+            return updateMatch(uri, contentValues, selection, selectionArgs);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            LatencyTrace.end(traceId, LatencyTrace.MARK_PROVIDER_END);
+        }
+    }
+
+    private int updateMatch(Uri uri, ContentValues contentValues, String selection,
+                            String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PRODUCTS:
+                return updateProduct(uri, contentValues, selection, selectionArgs);
+            case PRODUCT_ID:
+                // For the PRODUCT_ID code, extract out the ID from the URI,
+                // so we know which row to update. Selection will be "_id=?" and selection
+                // arguments will be a String array containing the actual ID.
+                selection = ProductContract.ProductEntry._ID + "=?";
+                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                return updateProduct(uri, contentValues, selection, selectionArgs);
+            case PRODUCT_ADJUST_ID:
+                return adjustQuantity(uri, ContentUris.parseId(uri), contentValues);
+            case PRODUCT_PRICE:
+                return adjustPrices(uri, contentValues, selection, selectionArgs);
+            case TAG_ID:
+                return updateTag(ContentUris.parseId(uri), contentValues);
+            case LOCATION_ID:
+                return updateLocation(ContentUris.parseId(uri), contentValues);
+            case STOCK_ID:
+                return updateStock(ContentUris.parseId(uri), contentValues);
+            default:
+                throw new IllegalArgumentException("Update is not supported for " + uri);
+        }
+    }
+
+    /**
+     * Add {@link ProductEntry#KEY_QUANTITY_DELTA} to the quantity of the given product in a
+     * single statement, so concurrent adjustments never overwrite each other. The quantity is
+     * clamped at 0. Return the number of rows that were updated.
+     */
+    private int adjustQuantity(Uri uri, long id, ContentValues values) {
+        Integer delta = values.getAsInteger(ProductEntry.KEY_QUANTITY_DELTA);
+        if (delta == null) {
+            throw new IllegalArgumentException("Adjustment requires a quantity delta");
+        }
+        if (delta == 0) {
+            return 0;
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated = executeUpdate(database, ProductEntry.COLUMN_PRODUCT_QUANTITY
+                        + " = MAX(0, " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ?)",
+                new Object[] { delta }, ProductEntry._ID + "=?",
+                new String[] { String.valueOf(id) }, isSyncAdapter(uri));
+
+        if (rowsUpdated != 0) {
+            notifyChange(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id));
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Change the price of every product matching the selection and the tag filter of the URI
+     * by a percentage and/or a fixed amount, in a single UPDATE statement in one transaction,
+     * with a single change notification. Return the number of products changed.
+     */
+    private int adjustPrices(Uri uri, ContentValues values, String selection,
+                             String[] selectionArgs) {
+        Double percent = values.getAsDouble(ProductEntry.KEY_PRICE_PERCENT);
+        Integer amount = values.getAsInteger(ProductEntry.KEY_PRICE_AMOUNT);
+        if (percent == null && amount == null) {
+            throw new IllegalArgumentException("Price adjustment requires a percent or amount");
+        }
+        Integer rounding = values.getAsInteger(ProductEntry.KEY_PRICE_ROUNDING);
+        if (rounding == null) {
+            rounding = ProductEntry.ROUNDING_NEAREST;
+        }
+
+        // Build the new price as an expression of the old one, so SQLite computes it per row
+        String price = "IFNULL(" + ProductEntry.COLUMN_PRODUCT_PRICE + ", 0)";
+        ArrayList<Object> args = new ArrayList<Object>();
+        if (percent != null && percent != 0) {
+            String scaled = "(" + price + " * (100 + ?) / 100.0)";
+            args.add(percent);
+            switch (rounding) {
+                case ProductEntry.ROUNDING_NEAREST:
+                    price = "CAST(ROUND(" + scaled + ") AS INTEGER)";
+                    break;
+                case ProductEntry.ROUNDING_UP:
+                    // CAST truncates towards 0; add 1 where that dropped a fraction above it
+                    price = "(CAST(" + scaled + " AS INTEGER) + (" + scaled + " > CAST("
+                            + scaled + " AS INTEGER)))";
+                    args.add(percent);
+                    args.add(percent);
+                    break;
+                case ProductEntry.ROUNDING_DOWN:
+                    price = "(CAST(" + scaled + " AS INTEGER) - (" + scaled + " < CAST("
+                            + scaled + " AS INTEGER)))";
+                    args.add(percent);
+                    args.add(percent);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown price rounding " + rounding);
+            }
+        }
+        if (amount != null && amount != 0) {
+            price = "(" + price + " + ?)";
+            args.add(amount);
+        }
+        if (args.isEmpty()) {
+            return 0;
+        }
+
+        String[] tagIds = getTagFilter(uri);
+        if (tagIds.length > 0) {
+            selection = appendSelection(selection,
+                    ProductEntry._ID + " IN (" + taggedProductsQuery(tagIds.length) + ")");
+            selectionArgs = appendSelectionArgs(selectionArgs, tagIds);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            rowsUpdated = executeUpdate(database, ProductEntry.COLUMN_PRODUCT_PRICE
+                            + " = MAX(0, " + price + ")", args.toArray(), selection,
+                    selectionArgs, isSyncAdapter(uri));
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsUpdated != 0) {
+            notifyChange(ProductEntry.CONTENT_URI);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Rename a category or tag or change its kind. Return the number of rows updated.
+     */
+    private int updateTag(long id, ContentValues values) {
+        if (values.containsKey(TagEntry.COLUMN_TAG_NAME)
+                && TextUtils.isEmpty(values.getAsString(TagEntry.COLUMN_TAG_NAME))) {
+            throw new IllegalArgumentException("Tag requires a name");
+        }
+        // The product count is maintained by the database
+        values.remove(TagEntry.COLUMN_TAG_PRODUCT_COUNT);
+        if (values.size() == 0) {
+            return 0;
+        }
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated = database.update(TagEntry.TABLE_NAME, values, TagEntry._ID + "=?",
+                new String[] { String.valueOf(id) });
+        if (rowsUpdated != 0) {
+            notifyChange(TagEntry.CONTENT_URI);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Update pets in the database with the given content values. Apply the changes to the rows
+     * specified in the selection and selection arguments (which could be 0 or 1 or more products).
+     * Return the number of rows that were successfully updated.
+     */
+    private int updateProduct(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        // If the {@link ProductEntry#COLUMN_PRODUCT_NAME} key is present,
+        // check that the name value is not null.
+        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_NAME)) {
+            String name = values.getAsString(ProductEntry.COLUMN_PRODUCT_NAME);
+            if (name == null) {
+                throw new IllegalArgumentException("Product requires a name");
+            }
+        }
+        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_IMAGE_URI)) {
+            String image = values.getAsString(ProductEntry.COLUMN_PRODUCT_IMAGE_URI);
+            if (image == null) {
+                throw new IllegalArgumentException("Product requires an image");
+            }
+        }
+        // If the {@link ProductEntry#COLUMN_PET_GENDER} key is present,
+        // check that the gender value is valid.
+        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_PRICE)) {
+            Integer price = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_PRICE);
+            if (price == null && price<0) {
+                throw new IllegalArgumentException("Pet requires valid price");
+            }
+        }
+
+        // If the {@link ProductEntry#COLUMN_PET_WEIGHT} key is present,
+        // check that the weight value is valid.
+        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_QUANTITY)) {
+            // Check that the quantity is greater than or equal to 0 kg
+            Integer quantity = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+            if (quantity != null && quantity < 0) {
+                throw new IllegalArgumentException("Pet requires valid quantity");
+            }
+        }
+
+        // If the caller based the update on a known version of the row, only apply it while the
+        // row still has that version. The check is part of the UPDATE, so it is atomic.
+        if (values.containsKey(ProductEntry.KEY_EXPECTED_VERSION)) {
+            Long expectedVersion = values.getAsLong(ProductEntry.KEY_EXPECTED_VERSION);
+            values.remove(ProductEntry.KEY_EXPECTED_VERSION);
+            if (expectedVersion != null) {
+                selection = appendSelection(selection, ProductEntry.COLUMN_PRODUCT_VERSION + "=?");
+                selectionArgs = appendSelectionArgs(selectionArgs, String.valueOf(expectedVersion));
+            }
+        }
+
+        // The change tracking columns are maintained by the provider, unless the caller is the
+        // sync engine
+        if (!isSyncAdapter(uri)) {
+            values.remove(ProductEntry.COLUMN_PRODUCT_SYNC_ID);
+            values.remove(ProductEntry.COLUMN_PRODUCT_VERSION);
+            values.remove(ProductEntry.COLUMN_PRODUCT_UPDATED_AT);
+            values.remove(ProductEntry.COLUMN_PRODUCT_DELETED);
+            values.remove(ProductEntry.COLUMN_PRODUCT_DIRTY);
+        }
+
+        // If there are no values to update, then don't try to update the database
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        // Otherwise, get writeable database to update the data
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        boolean setsSku = prepareSku(database, values);
+
+        // Perform the update on the database and get the number of rows affected
+        int rowsUpdated;
+        try {
+            if (isSyncAdapter(uri)) {
+                // The sync engine writes the change tracking columns itself
+                rowsUpdated = database.update(ProductEntry.TABLE_NAME, values, selection,
+                        selectionArgs);
+            } else {
+                StringBuilder assignments = new StringBuilder();
+                Object[] bindArgs = new Object[values.size()];
+                int i = 0;
+                for (String column : values.keySet()) {
+                    if (i > 0) {
+                        assignments.append(", ");
+                    }
+                    assignments.append(column).append("=?");
+                    bindArgs[i++] = values.get(column);
+                }
+                rowsUpdated = executeUpdate(database, assignments.toString(), bindArgs,
+                        selection, selectionArgs, false);
+            }
+        } catch (SQLiteConstraintException e) {
+            if (!setsSku) {
+                throw e;
+            }
+            // Like a failed insert, a code that belongs to another product updates nothing
+            Log.e(LOG_TAG, "SKU already in use, failed to update " + uri, e);
+            return 0;
+        }
+
+        if (rowsUpdated != 0 && values.containsKey(ProductEntry.COLUMN_PRODUCT_NAME)) {
+            NameTrigrams.indexPending(database);
+        }
+
+        // If 1 or more rows were updated, then notify all listeners that the data at the
+        // given URI has changed
+        if (rowsUpdated != 0) {
+            notifyChange(uri);
+        }
+
+        // Return the number of rows updated
+        return rowsUpdated;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return deleteMatch(uri, selection, selectionArgs);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int deleteMatch(Uri uri, String selection, String[] selectionArgs) {
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Track the number of rows that were deleted
+        int rowsDeleted;
+
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case TAGS:
+            case TAG_ID:
+                return deleteTags(uri, match, selection, selectionArgs);
+            case PRODUCT_TAGS:
+                rowsDeleted = database.delete(ProductTagEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    notifyProductTagsChanged();
+                }
+                return rowsDeleted;
+            case LOT_ID:
+                return writeOffLot(ContentUris.parseId(uri));
+            case LOCATION_ID:
+                // The stock at the location goes with it, leaving the units without a location
+                rowsDeleted = database.delete(LocationEntry.TABLE_NAME, LocationEntry._ID + "=?",
+                        new String[] { String.valueOf(ContentUris.parseId(uri)) });
+                if (rowsDeleted != 0) {
+                    notifyChange(LocationEntry.CONTENT_URI);
+                    notifyChange(StockEntry.CONTENT_URI);
+                }
+                return rowsDeleted;
+            case STOCK_ID:
+                rowsDeleted = database.delete(StockEntry.TABLE_NAME, StockEntry._ID + "=?",
+                        new String[] { String.valueOf(ContentUris.parseId(uri)) });
+                if (rowsDeleted != 0) {
+                    notifyChange(StockEntry.CONTENT_URI);
+                    notifyChange(LocationEntry.CONTENT_URI);
+                }
+                return rowsDeleted;
+            case HOLD_ID:
+                // Releasing the hold gives its units back to the product through a trigger
+                rowsDeleted = database.delete(HoldEntry.TABLE_NAME, HoldEntry._ID + "=?",
+                        new String[] { String.valueOf(ContentUris.parseId(uri)) });
+                if (rowsDeleted != 0) {
+                    notifyChange(HoldEntry.CONTENT_URI);
+                    notifyChange(ProductEntry.CONTENT_URI);
+                }
+                return rowsDeleted;
+            case COUNT_SESSION_ID:
+                // Cancelling a session deletes its counts through a trigger
+                rowsDeleted = database.delete(CountSessionEntry.TABLE_NAME,
+                        CountSessionEntry._ID + "=?",
+                        new String[] { String.valueOf(ContentUris.parseId(uri)) });
+                if (rowsDeleted != 0) {
+                    notifyChange(CountSessionEntry.CONTENT_URI);
+                    notifyChange(CountEntry.CONTENT_URI);
+                }
+                return rowsDeleted;
+            case PRODUCTS:
+                // Delete all rows that match the selection and selection args
+                break;
+            case PRODUCT_ID:
+                // Delete a single row given by the ID in the URI
+                selection = ProductContract.ProductEntry._ID + "=?";
+                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                break;
+            default:
+                throw new IllegalArgumentException("Deletion is not supported for " + uri);
+        }
+
+        if (isSyncAdapter(uri)) {
+            // The sync engine removes rows for good, e.g. tombstones that have been pushed
+            rowsDeleted = database.delete(ProductEntry.TABLE_NAME, selection, selectionArgs);
+        } else {
+            // Leave a tombstone, so the deletion can be pushed to the other devices
+            rowsDeleted = executeUpdate(database, ProductEntry.COLUMN_PRODUCT_DELETED + "=1",
+                    new Object[0], selection, selectionArgs, false);
+        }
+
+        // If 1 or more rows were deleted, then notify all listeners that the data at the
+        // given URI has changed
+        if (rowsDeleted != 0) {
+            notifyChange(uri);
+        }
+
+        // Return the number of rows deleted
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete categories or tags together with their links to products. Return the number of
+     * tags deleted.
+     */
+    private int deleteTags(Uri uri, int match, String selection, String[] selectionArgs) {
+        if (match == TAG_ID) {
+            selection = TagEntry._ID + "=?";
+            selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+        }
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        // The links are deleted by a trigger
+        int rowsDeleted = database.delete(TagEntry.TABLE_NAME, selection, selectionArgs);
+        if (rowsDeleted != 0) {
+            notifyProductTagsChanged();
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Run "UPDATE products SET assignments WHERE selection" and return the number of rows
+     * changed. Unless the caller is the sync engine, deleted rows are skipped and the version,
+     * modification time and dirty flag of every changed row are updated as well.
+     *
+     * @param assignments   comma separated "column=expression" list, may contain "?"
+     * @param assignmentArgs values bound to the "?" in the assignments
+     */
+    private static int executeUpdate(SQLiteDatabase database, String assignments,
+                                     Object[] assignmentArgs, String selection,
+                                     String[] selectionArgs, boolean syncAdapter) {
+        SQLiteStatement statement = database.compileStatement(
+                updateStatement(assignments, selection, syncAdapter));
+        try {
+            int index = 1;
+            for (Object arg : assignmentArgs) {
+                DatabaseUtils.bindObjectToProgram(statement, index++, arg);
+            }
+            if (selectionArgs != null) {
+                for (String arg : selectionArgs) {
+                    DatabaseUtils.bindObjectToProgram(statement, index++, arg);
+                }
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Return the statement of {@link #executeUpdate} for the given assignments and selection.
+     */
+    static String updateStatement(String assignments, String selection, boolean syncAdapter) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(ProductEntry.TABLE_NAME)
+                .append(" SET ").append(assignments);
+        if (!syncAdapter) {
+            sql.append(", ").append(ProductEntry.COLUMN_PRODUCT_VERSION).append("=")
+                    .append(ProductEntry.COLUMN_PRODUCT_VERSION).append("+1, ")
+                    .append(ProductEntry.COLUMN_PRODUCT_UPDATED_AT).append("=")
+                    .append(System.currentTimeMillis()).append(", ")
+                    .append(ProductEntry.COLUMN_PRODUCT_DIRTY).append("=1");
+            selection = liveSelection(selection);
+        }
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" WHERE ").append(selection);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Return true if the request was made by the sync engine.
+     */
+    private static boolean isSyncAdapter(Uri uri) {
+        return "true".equals(uri.getQueryParameter(ProductContract.CALLER_IS_SYNCADAPTER));
+    }
+
+    /**
+     * Return the conjunction of two selections, either of which may be empty.
+     */
+    static String appendSelection(String selection, String extra) {
+        if (TextUtils.isEmpty(selection)) {
+            return extra;
+        }
+        if (TextUtils.isEmpty(extra)) {
+            return selection;
+        }
+        return "(" + selection + ") AND (" + extra + ")";
+    }
+
+    /**
+     * Return the selection arguments with the given extra arguments appended.
+     */
+    static String[] appendSelectionArgs(String[] selectionArgs, String... extra) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return extra;
+        }
+        String[] result = new String[selectionArgs.length + extra.length];
+        System.arraycopy(selectionArgs, 0, result, 0, selectionArgs.length);
+        System.arraycopy(extra, 0, result, selectionArgs.length, extra.length);
+        return result;
+    }
+
+    /**
+     * Report a change of the data at the given URI, without the query parameters, so that
+     * observers of the plain content URI are notified. A change of products also changes the
+     * stock summary, the facet counts and the views of locations, and lowering a quantity may
+     * change the lots and the stock at locations.
+     */
+    private void notifyChange(Uri uri) {
+        mNotifier.notifyChange(uri.buildUpon().clearQuery().build());
+        List<String> segments = uri.getPathSegments();
+        if (!segments.isEmpty() && ProductContract.PATH_PRODUCTS.equals(segments.get(0))) {
+            mNotifier.notifyChange(SummaryEntry.CONTENT_URI);
+            mNotifier.notifyChange(TagEntry.CONTENT_URI);
+            mNotifier.notifyChange(LotEntry.CONTENT_URI);
+            mNotifier.notifyChange(StockEntry.CONTENT_URI);
+            mNotifier.notifyChange(LocationEntry.CONTENT_URI);
+        }
+    }
+
+    /**
+     * Run the provider methods declared in {@link ProductContract}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (ProductContract.METHOD_RESTORE.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("Restore requires a file");
+            }
+            // Takes the database lock itself, exclusively
+            return restore(new File(arg));
+        }
+        mDatabaseLock.readLock().lock();
+        try {
+            return callMethod(method, arg, extras);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        if (ProductContract.METHOD_RUN_MAINTENANCE.equals(method)) {
+            long budgetMillis = extras == null ? 0
+                    : extras.getLong(ProductContract.EXTRA_BUDGET_MILLIS);
+            if (budgetMillis <= 0) {
+                throw new IllegalArgumentException("Maintenance requires a time budget");
+            }
+            Bundle result;
+            synchronized (mFileLock) {
+                result = new DatabaseMaintenance(getContext(), mDbHelper.getWritableDatabase())
+                        .run(budgetMillis);
+            }
+            // The run may have found the clusters of duplicates again
+            mNotifier.notifyChange(ProductEntry.CONTENT_DUPLICATES_URI);
+            return result;
+        }
+        if (ProductContract.METHOD_BACKUP.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("Backup requires a file");
+            }
+            return backup(new File(arg));
+        }
+        if (ProductContract.METHOD_TRASH_PRODUCTS.equals(method)) {
+            int limit = extras == null ? 0 : extras.getInt(ProductContract.EXTRA_LIMIT);
+            if (arg == null || limit <= 0) {
+                throw new IllegalArgumentException("Trashing requires a batch and a limit");
+            }
+            return trashProducts(Long.parseLong(arg),
+                    extras.getLong(ProductContract.EXTRA_AFTER_ID), limit);
+        }
+        if (ProductContract.METHOD_RESTORE_TRASH.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("Restoring requires a batch");
+            }
+            return countResult(restoreTrash(Long.parseLong(arg)));
+        }
+        if (ProductContract.METHOD_MERGE_FEED.equals(method)) {
+            ArrayList<ContentValues> rows = extras == null ? null
+                    : extras.<ContentValues>getParcelableArrayList(ProductContract.EXTRA_ROWS);
+            if (arg == null || rows == null) {
+                throw new IllegalArgumentException("Merging a feed requires a run and rows");
+            }
+            return mergeFeed(Long.parseLong(arg), rows);
+        }
+        if (ProductContract.METHOD_FINISH_FEED.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("Finishing a feed requires a run");
+            }
+            return countResult(finishFeed(Long.parseLong(arg)));
+        }
+        if (ProductContract.METHOD_RECORD_SALES.equals(method)) {
+            ArrayList<ContentValues> sales = extras == null ? null
+                    : extras.<ContentValues>getParcelableArrayList(ProductContract.EXTRA_ROWS);
+            if (sales == null) {
+                throw new IllegalArgumentException("Recording sales requires rows");
+            }
+            return recordSales(arg == null ? null : Long.valueOf(arg), sales);
+        }
+        if (ProductContract.METHOD_RELEASE_EXPIRED_HOLDS.equals(method)) {
+            return releaseExpiredHolds();
+        }
+        if (ProductContract.METHOD_FIND_DUPLICATES.equals(method)) {
+            int clusters = NameTrigrams.findDuplicates(mDbHelper.getWritableDatabase());
+            mNotifier.notifyChange(ProductEntry.CONTENT_DUPLICATES_URI);
+            return countResult(clusters);
+        }
+        if (ProductContract.METHOD_RECONCILE_COUNT.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("Reconciling requires a session");
+            }
+            return countResult(reconcileCount(Long.parseLong(arg)));
+        }
+        if (ProductContract.METHOD_TRANSFER_STOCK.equals(method)) {
+            int quantity = extras == null ? 0 : extras.getInt(ProductContract.EXTRA_QUANTITY);
+            if (quantity <= 0 || !extras.containsKey(ProductContract.EXTRA_PRODUCT_ID)) {
+                throw new IllegalArgumentException("Transfer requires a product and a quantity");
+            }
+            return countResult(transferStock(extras.getLong(ProductContract.EXTRA_PRODUCT_ID),
+                    extras.getLong(ProductContract.EXTRA_FROM_LOCATION_ID),
+                    extras.getLong(ProductContract.EXTRA_TO_LOCATION_ID), quantity));
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Write a backup of the database to the given file.
+     */
+    private Bundle backup(File archive) {
+        long start = SystemClock.uptimeMillis();
+        boolean completed = false;
+        synchronized (mFileLock) {
+            try {
+                DatabaseBackup.backup(mDbHelper.getWritableDatabase(), archive);
+                completed = true;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Backup to " + archive + " failed", e);
+            }
+        }
+        Bundle result = new Bundle();
+        result.putBoolean(ProductContract.RESULT_COMPLETED, completed);
+        result.putLong(ProductContract.RESULT_DURATION_MILLIS, SystemClock.uptimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Replace the database with the backup in the given file. The backup is unpacked and
+     * verified next to the database first, while queries and writes carry on; only then is
+     * the database closed and the verified file renamed over it, holding the database lock
+     * exclusively so no query or write can reopen the old file in between. It is reopened, and
+     * upgraded if the backup is older, on next use.
+     */
+    private Bundle restore(File archive) {
+        long start = SystemClock.uptimeMillis();
+        boolean completed = false;
+        synchronized (mRestoreLock) {
+            File databaseFile = getContext().getDatabasePath(mDbHelper.getDatabaseName());
+            File restored = null;
+            try {
+                restored = DatabaseBackup.unpack(archive, databaseFile);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Restore from " + archive + " failed", e);
+            }
+            if (restored != null) {
+                mDatabaseLock.writeLock().lock();
+                try {
+                    mDbHelper.close();
+                    DatabaseBackup.install(restored, databaseFile);
+                    completed = true;
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Restore from " + archive + " failed", e);
+                } finally {
+                    // The restored database may be of an older version with fewer columns
+                    synchronized (this) {
+                        mTrashColumns = null;
+                    }
+                    mDatabaseLock.writeLock().unlock();
+                }
+            }
+        }
+        if (completed) {
+            notifyChange(ProductContract.BASE_CONTENT_URI);
+        }
+        Bundle result = new Bundle();
+        result.putBoolean(ProductContract.RESULT_COMPLETED, completed);
+        result.putLong(ProductContract.RESULT_DURATION_MILLIS, SystemClock.uptimeMillis() - start);
+        return result;
+    }
+
+    private static Bundle countResult(int count) {
+        Bundle result = new Bundle();
+        result.putInt(ProductContract.RESULT_COUNT, count);
+        return result;
+    }
+
+    /**
+     * Copy up to the given number of live products with IDs greater than the given one into
+     * the trash batch and delete them, in one transaction that holds the write lock only for
+     * this chunk. The chunk is a range of IDs, so it never reads the tombstones of earlier
+     * chunks again. Older batches are emptied from the trash, so only the latest bulk deletion
+     * can be undone. Return the number of products deleted and the highest ID of the chunk.
+     */
+    private Bundle trashProducts(long batch, long afterId, int limit) {
+        String columns = TextUtils.join(", ", getTrashColumns());
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsDeleted = 0;
+        long lastId;
+        database.beginTransaction();
+        try {
+            database.delete(ProductDbHelper.TRASH_TABLE_NAME, olderTrashSelection(),
+                    new String[] { String.valueOf(batch) });
+            lastId = DatabaseUtils.longForQuery(database, trashChunkQuery(limit),
+                    new String[] { String.valueOf(afterId), String.valueOf(afterId) });
+            if (lastId > afterId) {
+                String[] chunkArgs = { String.valueOf(afterId), String.valueOf(lastId) };
+                database.execSQL(trashCopyStatement(columns, batch), chunkArgs);
+                // Leave tombstones as for any other deletion, so it is pushed by the next sync
+                rowsDeleted = executeUpdate(database,
+                        ProductEntry.COLUMN_PRODUCT_DELETED + "=1", new Object[0],
+                        trashChunkSelection(), chunkArgs, false);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsDeleted != 0) {
+            notifyChange(ProductEntry.CONTENT_URI);
+        }
+        Bundle result = countResult(rowsDeleted);
+        result.putLong(ProductContract.RESULT_LAST_ID, lastId);
+        return result;
+    }
+
+    /**
+     * Return the query of the highest ID among the given number of live products following
+     * the ID bound as the second argument, or the first argument if there are none. It reads
+     * a range of the rowid.
+     */
+    static String trashChunkQuery(int limit) {
+        return "SELECT IFNULL(MAX(" + ProductEntry._ID + "), ?) FROM (SELECT "
+                + ProductEntry._ID + " FROM " + ProductEntry.TABLE_NAME + " WHERE "
+                + ProductEntry.COLUMN_PRODUCT_DELETED + "=0 AND " + ProductEntry._ID + ">?"
+                + " ORDER BY " + ProductEntry._ID + " LIMIT " + limit + ")";
+    }
+
+    /**
+     * Return the selection of the products of a trash chunk, from after the ID bound as the
+     * first argument up to the ID bound as the second.
+     */
+    static String trashChunkSelection() {
+        return ProductEntry._ID + ">? AND " + ProductEntry._ID + "<=?";
+    }
+
+    /**
+     * Return the statement copying the given columns of the live products of a trash chunk,
+     * selected by the arguments of {@link #trashChunkSelection}, into the given batch.
+     */
+    static String trashCopyStatement(String columns, long batch) {
+        return "INSERT INTO " + ProductDbHelper.TRASH_TABLE_NAME + " (" + columns + ", "
+                + ProductDbHelper.TRASH_COLUMN_BATCH + ") SELECT " + columns + ", " + batch
+                + " FROM " + ProductEntry.TABLE_NAME + " WHERE "
+                + liveSelection(trashChunkSelection());
+    }
+
+    /**
+     * Return the selection of the trash of the batches before the one bound as the argument.
+     * Batches are numbered by time, so they are a range of the index.
+     */
+    static String olderTrashSelection() {
+        return ProductDbHelper.TRASH_COLUMN_BATCH + "<?";
+    }
+
+    /**
+     * Return the selection of the trash of the batch bound as the argument.
+     */
+    static String trashBatchSelection() {
+        return ProductDbHelper.TRASH_COLUMN_BATCH + "=?";
+    }
+
+    /**
+     * Restore the products of a trash batch as a new change of each. Products whose tombstone
+     * is still there are undeleted in place, which keeps their tags; products removed for good
+     * in the meantime are inserted again from their copies. Return the number of products
+     * restored.
+     */
+    private int restoreTrash(long batch) {
+        String[] batchArgs = { String.valueOf(batch) };
+        String inBatch = "SELECT " + ProductEntry._ID + " FROM "
+                + ProductDbHelper.TRASH_TABLE_NAME + " WHERE " + trashBatchSelection();
+        long now = System.currentTimeMillis();
+
+        // Copies are restored as a new version of the row that has to be pushed
+        String[] columns = getTrashColumns();
+        String[] values = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            String column = columns[i];
+            if (column.equals(ProductEntry.COLUMN_PRODUCT_DELETED)) {
+                values[i] = "0";
+            } else if (column.equals(ProductEntry.COLUMN_PRODUCT_DIRTY)) {
+                values[i] = "1";
+            } else if (column.equals(ProductEntry.COLUMN_PRODUCT_VERSION)) {
+                values[i] = column + "+1";
+            } else if (column.equals(ProductEntry.COLUMN_PRODUCT_UPDATED_AT)) {
+                values[i] = String.valueOf(now);
+            } else if (column.equals(ProductEntry.COLUMN_PRODUCT_SKU)) {
+                // The code may have been given to another product in the meantime
+                values[i] = "CASE WHEN " + column + " IN (SELECT " + column + " FROM "
+                        + ProductEntry.TABLE_NAME + ") THEN NULL ELSE " + column + " END";
+            } else {
+                values[i] = column;
+            }
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsRestored;
+        database.beginTransaction();
+        try {
+            rowsRestored = executeUpdate(database, ProductEntry.COLUMN_PRODUCT_DELETED + "=0, "
+                            + ProductEntry.COLUMN_PRODUCT_VERSION + "="
+                            + ProductEntry.COLUMN_PRODUCT_VERSION + "+1, "
+                            + ProductEntry.COLUMN_PRODUCT_UPDATED_AT + "=" + now + ", "
+                            + ProductEntry.COLUMN_PRODUCT_DIRTY + "=1",
+                    new Object[0], ProductEntry.COLUMN_PRODUCT_DELETED + "=1 AND "
+                            + ProductEntry._ID + " IN (" + inBatch + ")", batchArgs, true);
+
+            SQLiteStatement insert = database.compileStatement("INSERT INTO "
+                    + ProductEntry.TABLE_NAME + " (" + TextUtils.join(", ", columns)
+                    + ") SELECT " + TextUtils.join(", ", values) + " FROM "
+                    + ProductDbHelper.TRASH_TABLE_NAME + " WHERE "
+                    + ProductDbHelper.TRASH_COLUMN_BATCH + "=? AND " + ProductEntry._ID
+                    + " NOT IN (SELECT " + ProductEntry._ID + " FROM " + ProductEntry.TABLE_NAME
+                    + ")");
+            try {
+                insert.bindLong(1, batch);
+                rowsRestored += insert.executeUpdateDelete();
+            } finally {
+                insert.close();
+            }
+
+            database.delete(ProductDbHelper.TRASH_TABLE_NAME, trashBatchSelection(), batchArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsRestored != 0) {
+            notifyChange(ProductEntry.CONTENT_URI);
+        }
+        return rowsRestored;
+    }
+
+    /**
+     * Merge a chunk of the supplier feed into the live products, keyed by SKU, in one
+     * transaction. A row that hashes the same as the content the feed last wrote to its
+     * product is only marked as seen in the run, so the product isn't written and observers
+     * aren't notified; changed rows update their product and new ones insert one. Local changes
+     * of a product are kept until the feed changes the product. Return the number of rows
+     * inserted, updated and left unchanged.
+     */
+    private Bundle mergeFeed(long run, List<ContentValues> rows) {
+        // Of several rows with one code the last one wins, as if they were written in order
+        LinkedHashMap<String, ContentValues> rowsBySku = new LinkedHashMap<String, ContentValues>();
+        for (ContentValues row : rows) {
+            String sku = normalizeSku(row.getAsString(ProductEntry.COLUMN_PRODUCT_SKU));
+            if (sku == null) {
+                throw new IllegalArgumentException("Feed rows require a SKU");
+            }
+            for (String column : row.keySet()) {
+                if (!column.equals(ProductEntry.COLUMN_PRODUCT_SKU)
+                        && !FEED_COLUMNS.contains(column)) {
+                    throw new IllegalArgumentException("Feed rows can't set " + column);
+                }
+            }
+            if ((row.containsKey(ProductEntry.COLUMN_PRODUCT_NAME)
+                    && row.getAsString(ProductEntry.COLUMN_PRODUCT_NAME) == null)
+                    || (row.containsKey(ProductEntry.COLUMN_PRODUCT_IMAGE_URI)
+                    && row.getAsString(ProductEntry.COLUMN_PRODUCT_IMAGE_URI) == null)) {
+                throw new IllegalArgumentException("Feed row " + sku
+                        + " requires a name and image");
+            }
+            Integer price = row.getAsInteger(ProductEntry.COLUMN_PRODUCT_PRICE);
+            Integer quantity = row.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+            if ((price != null && price < 0) || (quantity != null && quantity < 0)) {
+                throw new IllegalArgumentException("Feed row " + sku
+                        + " requires a valid price and quantity");
+            }
+            rowsBySku.put(sku, row);
+        }
+
+        int inserted = 0;
+        int updated = 0;
+        int unchanged = 0;
+        if (!rowsBySku.isEmpty()) {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            database.beginTransaction();
+            try {
+                // The products and stored hashes of the whole chunk, read through the index
+                // on the code
+                HashMap<String, Long> ids = new HashMap<String, Long>();
+                HashMap<String, Long> hashes = new HashMap<String, Long>();
+                Cursor cursor = querySkus(database, new ArrayList<String>(rowsBySku.keySet()),
+                        new String[] { ProductEntry._ID, ProductEntry.COLUMN_PRODUCT_SKU,
+                                ProductEntry.COLUMN_PRODUCT_FEED_HASH },
+                        ProductEntry.COLUMN_PRODUCT_DELETED + "=0", null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        ids.put(cursor.getString(1), cursor.getLong(0));
+                        if (!cursor.isNull(2)) {
+                            hashes.put(cursor.getString(1), cursor.getLong(2));
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                SQLiteStatement seen = database.compileStatement("INSERT OR REPLACE INTO "
+                        + ProductDbHelper.FEED_SEEN_TABLE_NAME + " ("
+                        + ProductDbHelper.COLUMN_PRODUCT_ID + ", "
+                        + ProductDbHelper.FEED_SEEN_COLUMN_RUN + ") VALUES (?, ?)");
+                try {
+                    for (Map.Entry<String, ContentValues> entry : rowsBySku.entrySet()) {
+                        long hash = feedHash(entry.getValue());
+                        Long id = ids.get(entry.getKey());
+                        Long storedHash = hashes.get(entry.getKey());
+                        if (id == null) {
+                            id = insertFromFeed(database, entry.getKey(), entry.getValue(), hash);
+                            inserted++;
+                        } else if (storedHash == null || storedHash != hash) {
+                            updateFromFeed(database, id, entry.getValue(), hash);
+                            updated++;
+                        } else {
+                            unchanged++;
+                        }
+                        seen.bindLong(1, id);
+                        seen.bindLong(2, run);
+                        seen.executeInsert();
+                    }
+                } finally {
+                    seen.close();
+                }
+                if (inserted + updated != 0) {
+                    NameTrigrams.indexPending(database);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+
+        // One notification for the chunk, and none at all if nothing changed
+        if (inserted + updated != 0) {
+            notifyChange(ProductEntry.CONTENT_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(ProductContract.RESULT_INSERTED, inserted);
+        result.putInt(ProductContract.RESULT_UPDATED, updated);
+        result.putInt(ProductContract.RESULT_UNCHANGED, unchanged);
+        return result;
+    }
+
+    /**
+     * Insert a product from a row of the supplier feed with the given content hash. Return the
+     * ID of the product.
+     */
+    private static long insertFromFeed(SQLiteDatabase database, String sku, ContentValues row,
+                                       long hash) {
+        if (row.getAsString(ProductEntry.COLUMN_PRODUCT_NAME) == null) {
+            throw new IllegalArgumentException("New feed row " + sku + " requires a name");
+        }
+        ContentValues values = new ContentValues(row);
+        values.put(ProductEntry.COLUMN_PRODUCT_SKU, sku);
+        if (!values.containsKey(ProductEntry.COLUMN_PRODUCT_IMAGE_URI)) {
+            // The image can be imported for the code later
+            values.put(ProductEntry.COLUMN_PRODUCT_IMAGE_URI, "");
+        }
+        values.put(ProductEntry.COLUMN_PRODUCT_FEED_HASH, hash);
+        values.put(ProductEntry.COLUMN_PRODUCT_SYNC_ID, UUID.randomUUID().toString());
+        values.put(ProductEntry.COLUMN_PRODUCT_VERSION, 1);
+        values.put(ProductEntry.COLUMN_PRODUCT_UPDATED_AT, System.currentTimeMillis());
+        values.put(ProductEntry.COLUMN_PRODUCT_DELETED, 0);
+        values.put(ProductEntry.COLUMN_PRODUCT_DIRTY, 1);
+        // A deleted product may still hold the code
+        prepareSku(database, values);
+        return database.insertOrThrow(ProductEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Write the columns a row of the supplier feed sets, and its content hash, to the given
+     * product.
+     */
+    private static void updateFromFeed(SQLiteDatabase database, long id, ContentValues row,
+                                       long hash) {
+        StringBuilder assignments = new StringBuilder(ProductEntry.COLUMN_PRODUCT_FEED_HASH)
+                .append("=?");
+        List<Object> bindArgs = new ArrayList<Object>();
+        bindArgs.add(hash);
+        for (String column : FEED_COLUMNS) {
+            if (row.containsKey(column)) {
+                assignments.append(", ").append(column).append("=?");
+                bindArgs.add(row.get(column));
+            }
+        }
+        executeUpdate(database, assignments.toString(), bindArgs.toArray(),
+                ProductEntry._ID + "=?", new String[] { String.valueOf(id) }, false);
+    }
+
+    /**
+     * Return a 64-bit hash of the product columns a row of the supplier feed sets. A column
+     * the row doesn't set hashes differently from every value it could be set to.
+     */
+    static long feedHash(ContentValues row) {
+        StringBuilder content = new StringBuilder();
+        for (String column : FEED_COLUMNS) {
+            content.append(column);
+            if (row.containsKey(column)) {
+                content.append('=').append(row.getAsString(column));
+            }
+            content.append('\n');
+        }
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(content.toString().getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device provides SHA-1
+            throw new IllegalStateException(e);
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+
+    /**
+     * Delete the live products that came from the supplier feed but weren't seen in the given
+     * run, leaving tombstones, and forget what the run has seen, in one transaction. A run
+     * that saw nothing deletes nothing, as an empty feed is more likely broken than the
+     * supplier's whole catalog gone. Return the number of products deleted.
+     */
+    private int finishFeed(long run) {
+        String[] runArgs = { String.valueOf(run) };
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsDeleted = 0;
+        database.beginTransaction();
+        try {
+            if (DatabaseUtils.queryNumEntries(database, ProductDbHelper.FEED_SEEN_TABLE_NAME,
+                    ProductDbHelper.FEED_SEEN_COLUMN_RUN + "=?", runArgs) != 0) {
+                rowsDeleted = executeUpdate(database, ProductEntry.COLUMN_PRODUCT_DELETED + "=1",
+                        new Object[0], missingFromFeedSelection(), runArgs, false);
+            }
+            // Products seen by an earlier run that never finished go as well
+            database.delete(ProductDbHelper.FEED_SEEN_TABLE_NAME, null, null);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsDeleted != 0) {
+            notifyChange(ProductEntry.CONTENT_URI);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Return the selection of the products that came from the supplier feed but weren't seen
+     * in the run whose ID is bound as the argument.
+     */
+    static String missingFromFeedSelection() {
+        return ProductEntry.COLUMN_PRODUCT_FEED_HASH + " IS NOT NULL AND " + ProductEntry._ID
+                + " NOT IN (SELECT " + ProductDbHelper.COLUMN_PRODUCT_ID + " FROM "
+                + ProductDbHelper.FEED_SEEN_TABLE_NAME + " WHERE "
+                + ProductDbHelper.FEED_SEEN_COLUMN_RUN + " = ?)";
+    }
+
+    /**
+     * Return the columns the products table and the trash have in common. Columns added to
+     * products after the trash was created are left at their defaults when a copy is inserted
+     * again.
+     */
+    private synchronized String[] getTrashColumns() {
+        if (mTrashColumns == null) {
+            SQLiteDatabase database = mDbHelper.getReadableDatabase();
+            List<String> trashColumns = getColumnNames(database, ProductDbHelper.TRASH_TABLE_NAME);
+            List<String> columns = new ArrayList<String>();
+            for (String column : getColumnNames(database, ProductEntry.TABLE_NAME)) {
+                if (trashColumns.contains(column)) {
+                    columns.add(column);
+                }
+            }
+            mTrashColumns = columns.toArray(new String[columns.size()]);
+        }
+        return mTrashColumns;
+    }
+
+    private static List<String> getColumnNames(SQLiteDatabase database, String table) {
+        List<String> columns = new ArrayList<String>();
+        Cursor cursor = database.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameColumnIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameColumnIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    /**
+     * Apply all operations in one database transaction. Change notifications are held back
+     * until the batch has finished and are then delivered once per affected URI.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        mDatabaseLock.readLock().lock();
+        try {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            mNotifier.beginBatch();
+            try {
+                database.beginTransaction();
+                try {
+                    ContentProviderResult[] results = super.applyBatch(operations);
+                    database.setTransactionSuccessful();
+                    return results;
+                } finally {
+                    database.endTransaction();
+                }
+            } finally {
+                mNotifier.endBatch();
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Insert all rows in one database transaction with a single change notification.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        int rowsInserted = 0;
+        mDatabaseLock.readLock().lock();
+        try {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            mNotifier.beginBatch();
+            try {
+                database.beginTransaction();
+                try {
+                    for (ContentValues value : values) {
+                        if (insert(uri, value) != null) {
+                            rowsInserted++;
+                        }
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            } finally {
+                mNotifier.endBatch();
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+        return rowsInserted;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PRODUCTS:
+                return ProductEntry.CONTENT_LIST_TYPE;
+            case PRODUCT_ID:
+            case PRODUCT_ADJUST_ID:
+            case PRODUCT_SKU:
+                return ProductContract.ProductEntry.CONTENT_ITEM_TYPE;
+            case PRODUCT_STOCKOUT:
+            case PRODUCT_PRICE:
+            case PRODUCT_SKUS:
+            case PRODUCT_SIMILAR:
+            case PRODUCT_DUPLICATES:
+                return ProductEntry.CONTENT_LIST_TYPE;
+            case SALES:
+                return SaleEntry.CONTENT_LIST_TYPE;
+            case SALES_DAILY:
+                return SalesDailyEntry.CONTENT_LIST_TYPE;
+            case SALES_MONTHLY:
+                return SalesMonthlyEntry.CONTENT_LIST_TYPE;
+            case SUMMARY:
+                return SummaryEntry.CONTENT_ITEM_TYPE;
+            case TAGS:
+            case TAG_FACETS:
+                return TagEntry.CONTENT_LIST_TYPE;
+            case TAG_ID:
+                return TagEntry.CONTENT_ITEM_TYPE;
+            case PRODUCT_TAGS:
+                return ProductTagEntry.CONTENT_LIST_TYPE;
+            case LOTS:
+            case LOTS_EXPIRING:
+                return LotEntry.CONTENT_LIST_TYPE;
+            case LOT_ID:
+                return LotEntry.CONTENT_ITEM_TYPE;
+            case LOCATIONS:
+                return LocationEntry.CONTENT_LIST_TYPE;
+            case LOCATION_ID:
+                return LocationEntry.CONTENT_ITEM_TYPE;
+            case LOCATION_STOCK:
+                return ProductEntry.CONTENT_LIST_TYPE;
+            case STOCK:
+            case PRODUCT_STOCK:
+                return StockEntry.CONTENT_LIST_TYPE;
+            case STOCK_ID:
+                return StockEntry.CONTENT_ITEM_TYPE;
+            case HOLDS:
+                return HoldEntry.CONTENT_LIST_TYPE;
+            case HOLD_ID:
+                return HoldEntry.CONTENT_ITEM_TYPE;
+            case PRICE_HISTORY:
+            case PRICE_HISTORY_AT:
+                return PriceHistoryEntry.CONTENT_LIST_TYPE;
+            case COUNT_SESSIONS:
+                return CountSessionEntry.CONTENT_LIST_TYPE;
+            case COUNT_SESSION_ID:
+                return CountSessionEntry.CONTENT_ITEM_TYPE;
+            case COUNTS:
+            case COUNT_DIFFERENCES:
+                return CountEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.feed;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Runs the {@link FeedImporter} in the background for a feed document.
+ *
+ * A killed import is started again from the beginning. Rows it had merged already are
+ * unchanged the second time, so they only cost a lookup.
+ */
+public class FeedImportService extends IntentService {
+
+    private static final String LOG_TAG = FeedImportService.class.getSimpleName();
+
+    public FeedImportService() {
+        super(LOG_TAG);
+        // A killed import is started again by the system once resources allow
+        setIntentRedelivery(true);
+    }
+
+    /**
+     * Start merging the feed in the given document. The caller should have taken a
+     * persistable permission for the document, so a restarted import can still read it.
+     */
+    public static void start(Context context, Uri feedUri) {
+        context.startService(new Intent(context, FeedImportService.class).setData(feedUri));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Uri feedUri = intent == null ? null : intent.getData();
+        if (feedUri == null) {
+            return;
+        }
+        try {
+            FeedImporter.Result result = new FeedImporter(this).importFeed(feedUri);
+            Log.i(LOG_TAG, "Imported feed " + feedUri + ": " + result);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Importing feed " + feedUri + " failed", e);
+        } catch (SecurityException e) {
+            Log.e(LOG_TAG, "Importing feed " + feedUri + " isn't permitted", e);
+        } catch (IllegalArgumentException e) {
+            // A row the provider rejects rolls back its chunk, and nothing is deleted
+            Log.e(LOG_TAG, "Feed " + feedUri + " is invalid", e);
+        }
+    }
+}
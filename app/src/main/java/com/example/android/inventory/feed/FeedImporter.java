@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.feed;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges a supplier feed, a CSV file whose header names the product columns of its rows, into
+ * the products. The "sku" column is required and identifies the product of a row; "name",
+ * "price", "quantity" and "imageUri" are optional, and an empty cell leaves the column of the
+ * product as it is. So does a number cell that can't be read, while the rest of its row is
+ * still merged, so the product counts as part of the feed.
+ *
+ * The rows are handed to the provider {@link #CHUNK_SIZE} at a time, each chunk merged in one
+ * transaction that only writes the products the feed changed. Once every row is merged, the
+ * provider deletes the products an earlier feed created or updated that are missing from this
+ * one. An import that fails part way never gets that far, so it deletes nothing.
+ */
+public class FeedImporter {
+
+    private static final String LOG_TAG = FeedImporter.class.getSimpleName();
+
+    /** Number of rows merged per transaction */
+    private static final int CHUNK_SIZE = 500;
+
+    /** Columns of the feed holding whole numbers */
+    private static final String[] NUMBER_COLUMNS = {
+            ProductEntry.COLUMN_PRODUCT_PRICE, ProductEntry.COLUMN_PRODUCT_QUANTITY };
+
+    /** Columns of the feed holding text */
+    private static final String[] TEXT_COLUMNS = {
+            ProductEntry.COLUMN_PRODUCT_SKU, ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_IMAGE_URI };
+
+    /**
+     * Outcome of an import.
+     */
+    public static class Result {
+        /** Number of products created by the feed */
+        public int inserted;
+        /** Number of products the feed changed */
+        public int updated;
+        /** Number of rows equal to what the feed last wrote to their product */
+        public int unchanged;
+        /** Number of products deleted because they are missing from the feed */
+        public int removed;
+        /** Number of rows skipped because they have no SKU */
+        public int skipped;
+        /** Number of cells left out because they couldn't be read */
+        public int invalid;
+
+        @Override
+        public String toString() {
+            return "inserted=" + inserted + " updated=" + updated + " unchanged=" + unchanged
+                    + " removed=" + removed + " skipped=" + skipped + " invalid=" + invalid;
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    /** ID of the run, telling the provider which rows belong to this import */
+    private final long mRun;
+
+    public FeedImporter(Context context) {
+        mResolver = context.getContentResolver();
+        mRun = System.currentTimeMillis();
+    }
+
+    /**
+     * Merge the feed in the given document into the products. Must not be called on the main
+     * thread.
+     */
+    public Result importFeed(Uri uri) throws IOException {
+        InputStream in = mResolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("Can't open " + uri);
+        }
+        Result result = new Result();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            List<String> header = readRecord(reader);
+            if (header == null || !header.contains(ProductEntry.COLUMN_PRODUCT_SKU)) {
+                throw new IOException("The feed has no " + ProductEntry.COLUMN_PRODUCT_SKU
+                        + " column");
+            }
+            ArrayList<ContentValues> chunk = new ArrayList<ContentValues>(CHUNK_SIZE);
+            List<String> record;
+            while ((record = readRecord(reader)) != null) {
+                ContentValues row = toRow(header, record, result);
+                if (row == null) {
+                    result.skipped++;
+                    continue;
+                }
+                chunk.add(row);
+                if (chunk.size() == CHUNK_SIZE) {
+                    merge(chunk, result);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                merge(chunk, result);
+            }
+        } finally {
+            reader.close();
+        }
+
+        Bundle finished = mResolver.call(ProductContract.BASE_CONTENT_URI,
+                ProductContract.METHOD_FINISH_FEED, String.valueOf(mRun), null);
+        result.removed = finished.getInt(ProductContract.RESULT_COUNT);
+        return result;
+    }
+
+    private void merge(ArrayList<ContentValues> chunk, Result result) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(ProductContract.EXTRA_ROWS, chunk);
+        Bundle merged = mResolver.call(ProductContract.BASE_CONTENT_URI,
+                ProductContract.METHOD_MERGE_FEED, String.valueOf(mRun), extras);
+        result.inserted += merged.getInt(ProductContract.RESULT_INSERTED);
+        result.updated += merged.getInt(ProductContract.RESULT_UPDATED);
+        result.unchanged += merged.getInt(ProductContract.RESULT_UNCHANGED);
+    }
+
+    /**
+     * Return the product columns of the given record, or null if it has no SKU. Unknown
+     * columns are ignored, and number cells that can't be read are left out and counted in
+     * the result.
+     */
+    private static ContentValues toRow(List<String> header, List<String> record,
+                                       Result result) {
+        ContentValues row = new ContentValues();
+        for (String column : TEXT_COLUMNS) {
+            String cell = cell(header, record, column);
+            if (cell != null) {
+                row.put(column, cell);
+            }
+        }
+        for (String column : NUMBER_COLUMNS) {
+            String cell = cell(header, record, column);
+            if (cell == null) {
+                continue;
+            }
+            try {
+                int number = Integer.parseInt(cell);
+                if (number < 0) {
+                    Log.w(LOG_TAG, "Leaving out negative " + column + " " + cell);
+                    result.invalid++;
+                    continue;
+                }
+                row.put(column, number);
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "Leaving out invalid " + column + " " + cell);
+                result.invalid++;
+            }
+        }
+        return row.containsKey(ProductEntry.COLUMN_PRODUCT_SKU) ? row : null;
+    }
+
+    /**
+     * Return the trimmed cell of the given column, or null if the feed has no such column or
+     * the cell is empty.
+     */
+    private static String cell(List<String> header, List<String> record, String column) {
+        int index = header.indexOf(column);
+        if (index == -1 || index >= record.size()) {
+            return null;
+        }
+        String cell = record.get(index).trim();
+        return cell.isEmpty() ? null : cell;
+    }
+
+    /**
+     * Read the next CSV record, whose fields may be quoted with '"' to contain commas, line
+     * breaks and doubled quotes. Return null at the end of the input; blank lines are skipped.
+     */
+    static List<String> readRecord(BufferedReader reader) throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+        } while (line.trim().isEmpty());
+
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        int i = 0;
+        while (true) {
+            if (i == line.length()) {
+                if (!quoted) {
+                    break;
+                }
+                // A quoted field continues on the next line
+                line = reader.readLine();
+                if (line == null) {
+                    throw new IOException("Unterminated quoted field");
+                }
+                field.append('\n');
+                i = 0;
+                continue;
+            }
+            char c = line.charAt(i++);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i < line.length() && line.charAt(i) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.images;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Runs the {@link ImageIngester} in the background for the folder most recently chosen.
+ *
+ * The folder and the job ID are kept in preferences until the ingestion completes, so an
+ * ingestion interrupted by the process being killed or the device restarting is resumed with
+ * {@link #resume(Context)}, skipping what it had committed already.
+ */
+public class ImageIngestService extends IntentService {
+
+    private static final String LOG_TAG = ImageIngestService.class.getSimpleName();
+
+    /** Name of the preferences file holding the pending ingestion */
+    private static final String PREFS_NAME = "image_ingest";
+
+    /** Preference key of the document tree URI of the pending ingestion */
+    private static final String PREF_TREE_URI = "tree_uri";
+
+    /** Preference key of the job ID of the pending ingestion */
+    private static final String PREF_JOB_ID = "job_id";
+
+    public ImageIngestService() {
+        super(LOG_TAG);
+        // A killed ingestion is started again by the system once resources allow
+        setIntentRedelivery(true);
+    }
+
+    /**
+     * Start ingesting the images of the given document tree, replacing any pending ingestion.
+     * The caller should have taken a persistable permission for the tree, so a resumed
+     * ingestion can still read it.
+     */
+    public static void start(Context context, Uri treeUri) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(PREF_TREE_URI, treeUri.toString())
+                .putLong(PREF_JOB_ID, System.currentTimeMillis())
+                .apply();
+        context.startService(new Intent(context, ImageIngestService.class));
+    }
+
+    /**
+     * Resume the pending ingestion in the background, if there is one.
+     */
+    public static void resume(Context context) {
+        if (context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .contains(PREF_TREE_URI)) {
+            context.startService(new Intent(context, ImageIngestService.class));
+        }
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (Build.VERSION.SDK_INT < 21) {
+            return;
+        }
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String treeUri = prefs.getString(PREF_TREE_URI, null);
+        long jobId = prefs.getLong(PREF_JOB_ID, 0);
+        if (treeUri == null) {
+            // Completed by an earlier start
+            return;
+        }
+        try {
+            ImageIngester.Result result = new ImageIngester(this, jobId)
+                    .ingest(Uri.parse(treeUri));
+            Log.i(LOG_TAG, "Ingested images from " + treeUri + ": " + result);
+        } catch (IOException e) {
+            // Resumed with the next start of the catalog
+            Log.e(LOG_TAG, "Ingesting images from " + treeUri + " failed", e);
+            return;
+        } catch (SecurityException e) {
+            // The permission for the folder is gone, so there is nothing to resume
+            Log.e(LOG_TAG, "Ingesting images from " + treeUri + " isn't permitted", e);
+        }
+        // Unless a new ingestion was started meanwhile
+        if (prefs.getLong(PREF_JOB_ID, 0) == jobId) {
+            prefs.edit().remove(PREF_TREE_URI).remove(PREF_JOB_ID).apply();
+        }
+    }
+}
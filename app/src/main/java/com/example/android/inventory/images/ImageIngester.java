@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.images;
+
+import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gives products the images found in a document tree folder, matching each file to the product
+ * whose SKU, or else whose name, equals the file name without its extension, ignoring case.
+ *
+ * The images are decoded and downscaled to at most {@link #MAX_SIZE} pixels on a pool of one
+ * worker per core, and stored as JPEG files of the app, so the catalog never decodes the full
+ * size originals and doesn't depend on the folder staying available. No more than two images
+ * per worker are in flight at any time, which keeps memory bounded however big the folder is.
+ * The image URIs of the products are updated {@link #BATCH_SIZE} per transaction.
+ *
+ * An ingestion is identified by the job ID it is created with. Running it again with the same
+ * ID, e.g. after the process was killed, skips the products it has given an image already, so
+ * an interrupted ingestion resumes where its last committed batch left off.
+ */
+@TargetApi(21)
+public class ImageIngester {
+
+    private static final String LOG_TAG = ImageIngester.class.getSimpleName();
+
+    /** Name of the directory of ingested images inside the app's files directory */
+    private static final String DIR_NAME = "product_images";
+
+    /** Maximum width and height of the stored images, in pixels */
+    private static final int MAX_SIZE = 512;
+
+    private static final int JPEG_QUALITY = 85;
+
+    /** Number of image URIs updated per transaction */
+    private static final int BATCH_SIZE = 100;
+
+    /** Marks a name shared by several products, which can't be matched by name */
+    private static final long AMBIGUOUS = -1;
+
+    private static final String[] PRODUCT_PROJECTION = {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_SKU,
+            ProductEntry.COLUMN_PRODUCT_IMAGE_URI};
+
+    private static final String[] DOCUMENT_PROJECTION = {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE};
+
+    /**
+     * Result of one ingestion.
+     */
+    public static class Result {
+        /** Number of products given an image */
+        public int ingested;
+        /** Number of files skipped because this ingestion gave their product an image already */
+        public int skipped;
+        /** Number of image files not matching any product */
+        public int unmatched;
+        /** Number of image files that couldn't be decoded */
+        public int failed;
+
+        @Override
+        public String toString() {
+            return "ingested=" + ingested + " skipped=" + skipped + " unmatched=" + unmatched
+                    + " failed=" + failed;
+        }
+    }
+
+    /**
+     * A decoded and stored image, waiting for the image URI of its product to be updated.
+     */
+    private static class Ingested {
+        final long productId;
+        final File file;
+
+        Ingested(long productId, File file) {
+            this.productId = productId;
+            this.file = file;
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    private final File mDir;
+
+    private final long mJobId;
+
+    /** Product IDs by lower case SKU */
+    private final Map<String, Long> mBySku = new HashMap<String, Long>();
+
+    /** Product IDs by lower case name, or {@link #AMBIGUOUS} */
+    private final Map<String, Long> mByName = new HashMap<String, Long>();
+
+    /** Image URIs of the products before this run, by product ID */
+    private final Map<Long, String> mImageUris = new HashMap<Long, String>();
+
+    /** IDs of the products a file has been matched to in this run */
+    private final Set<Long> mClaimed = new HashSet<Long>();
+
+    public ImageIngester(Context context, long jobId) {
+        mResolver = context.getContentResolver();
+        mDir = new File(context.getFilesDir(), DIR_NAME);
+        mJobId = jobId;
+    }
+
+    /**
+     * Ingest the images of the given document tree, which the app must hold a permission for.
+     */
+    public Result ingest(Uri treeUri) throws IOException {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Failed to create " + mDir);
+        }
+        loadProducts();
+
+        Result result = new Result();
+        int workers = Runtime.getRuntime().availableProcessors();
+        int maxInFlight = workers * 2;
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        CompletionService<Ingested> completion = new ExecutorCompletionService<Ingested>(executor);
+        ArrayList<Ingested> batch = new ArrayList<Ingested>(BATCH_SIZE);
+        int inFlight = 0;
+
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+        Cursor cursor = mResolver.query(childrenUri, DOCUMENT_PROJECTION, null, null, null);
+        if (cursor == null) {
+            executor.shutdown();
+            throw new FileNotFoundException("Can't list " + treeUri);
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String mimeType = cursor.getString(2);
+                if (mimeType == null || !mimeType.startsWith("image/")) {
+                    continue;
+                }
+                long productId = match(cursor.getString(1));
+                if (productId == 0) {
+                    result.unmatched++;
+                    continue;
+                }
+                final File file = imageFile(productId);
+                // A second file for the same product is skipped too
+                if (!mClaimed.add(productId)
+                        || Uri.fromFile(file).toString().equals(mImageUris.get(productId))) {
+                    result.skipped++;
+                    continue;
+                }
+
+                if (inFlight == maxInFlight) {
+                    inFlight--;
+                    collect(completion, batch, result);
+                }
+                final long id = productId;
+                final Uri documentUri = DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                        cursor.getString(0));
+                completion.submit(new Callable<Ingested>() {
+                    @Override
+                    public Ingested call() throws Exception {
+                        return storeImage(documentUri, file) ? new Ingested(id, file) : null;
+                    }
+                });
+                inFlight++;
+            }
+            for (; inFlight > 0; inFlight--) {
+                collect(completion, batch, result);
+            }
+            commit(batch, result);
+        } finally {
+            cursor.close();
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Load the SKUs, names and image URIs of all products. They are small compared with the
+     * images, and a single scan is much cheaper than a lookup per file.
+     */
+    private void loadProducts() {
+        Cursor cursor = mResolver.query(ProductEntry.CONTENT_URI, PRODUCT_PROJECTION,
+                null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                String name = cursor.getString(1);
+                if (name != null) {
+                    String key = name.trim().toLowerCase(Locale.ROOT);
+                    mByName.put(key, mByName.containsKey(key) ? AMBIGUOUS : id);
+                }
+                if (!cursor.isNull(2)) {
+                    mBySku.put(cursor.getString(2).toLowerCase(Locale.ROOT), id);
+                }
+                mImageUris.put(id, cursor.getString(3));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the ID of the product the file with the given name is an image of, or 0 if none.
+     */
+    private long match(String displayName) {
+        if (displayName == null) {
+            return 0;
+        }
+        int dot = displayName.lastIndexOf('.');
+        String key = (dot > 0 ? displayName.substring(0, dot) : displayName).trim()
+                .toLowerCase(Locale.ROOT);
+        Long id = mBySku.get(key);
+        if (id == null) {
+            id = mByName.get(key);
+        }
+        return id == null || id == AMBIGUOUS ? 0 : id;
+    }
+
+    /**
+     * Return the file this ingestion stores the image of the given product in. The name holds
+     * the job ID, so the image of a product is replaced by a new file, not overwritten in place.
+     */
+    private File imageFile(long productId) {
+        return new File(mDir, productId + "-" + mJobId + ".jpg");
+    }
+
+    /**
+     * Wait for the next image to be stored and add it to the batch, committing the batch once
+     * it is full.
+     */
+    private void collect(CompletionService<Ingested> completion, ArrayList<Ingested> batch,
+                         Result result) throws IOException {
+        Ingested ingested;
+        try {
+            ingested = completion.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Log.w(LOG_TAG, "Failed to store an image", e.getCause());
+            ingested = null;
+        }
+        if (ingested == null) {
+            result.failed++;
+            return;
+        }
+        batch.add(ingested);
+        if (batch.size() == BATCH_SIZE) {
+            commit(batch, result);
+        }
+    }
+
+    /**
+     * Update the image URIs of the products in the batch in one transaction, and delete the
+     * images they had before if those were ingested too.
+     */
+    private void commit(ArrayList<Ingested> batch, Result result) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(batch.size());
+        ArrayList<String> replaced = new ArrayList<String>();
+        for (Ingested ingested : batch) {
+            operations.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(ProductEntry.CONTENT_URI, ingested.productId))
+                    .withValue(ProductEntry.COLUMN_PRODUCT_IMAGE_URI,
+                            Uri.fromFile(ingested.file).toString())
+                    .build());
+            replaced.add(ingestedPath(mImageUris.get(ingested.productId)));
+        }
+        try {
+            mResolver.applyBatch(ProductContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException e) {
+            throw new IOException("Failed to update " + batch.size() + " images", e);
+        } catch (OperationApplicationException e) {
+            throw new IOException("Failed to update " + batch.size() + " images", e);
+        }
+        for (String path : replaced) {
+            if (path != null) {
+                new File(path).delete();
+            }
+        }
+        result.ingested += batch.size();
+        batch.clear();
+    }
+
+    /**
+     * Return the path of the file the given image URI refers to if it is an ingested image,
+     * null otherwise.
+     */
+    private String ingestedPath(String imageUri) {
+        if (imageUri == null) {
+            return null;
+        }
+        Uri uri = Uri.parse(imageUri);
+        String path = uri.getPath();
+        return "file".equals(uri.getScheme()) && path != null
+                && mDir.getPath().equals(new File(path).getParent()) ? path : null;
+    }
+
+    /**
+     * Decode the image of the given document at no more than about twice the stored size and
+     * store it, downscaled, in the given file. Return false if it isn't a decodable image.
+     * Runs on the worker pool.
+     */
+    private boolean storeImage(Uri documentUri, File file) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(documentUri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+        int largest = Math.max(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (largest / (options.inSampleSize * 2) >= MAX_SIZE) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = decode(documentUri, options);
+        if (bitmap == null) {
+            return false;
+        }
+        try {
+            float scale = (float) MAX_SIZE / Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (scale < 1) {
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                        Math.round(bitmap.getWidth() * scale),
+                        Math.round(bitmap.getHeight() * scale), true);
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+            writeJpeg(bitmap, file);
+            return true;
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private Bitmap decode(Uri documentUri, BitmapFactory.Options options) throws IOException {
+        InputStream in = mResolver.openInputStream(documentUri);
+        if (in == null) {
+            throw new FileNotFoundException("Can't open " + documentUri);
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the bitmap to a temporary file that is renamed when complete, so a file of an
+     * interrupted ingestion is either complete or missing.
+     */
+    private static void writeJpeg(Bitmap bitmap, File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+        boolean written = false;
+        try {
+            written = bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } finally {
+            out.close();
+            if (!written) {
+                temp.delete();
+            }
+        }
+        if (!written) {
+            throw new IOException("Failed to encode " + file);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to write " + file);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.maintenance;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract;
+
+/**
+ * Releases the holds that have expired (see {@link ProductContract#METHOD_RELEASE_EXPIRED_HOLDS})
+ * and schedules the next run for when the next hold expires.
+ *
+ * The provider calls {@link #schedule(Context, long)} with the expiry of every hold it places.
+ * It also releases the expired holds of a product before reserving or selling it, so a sweep
+ * that runs late only delays the reserved quantities shown for other products.
+ */
+public class HoldSweepService extends IntentService {
+
+    private static final String LOG_TAG = HoldSweepService.class.getSimpleName();
+
+    /** Name of the preferences file holding the time of the scheduled sweep */
+    private static final String PREFS_NAME = "hold_sweep";
+
+    /** Preference key of the time the next sweep is scheduled at */
+    private static final String PREF_SCHEDULED_AT = "scheduled_at";
+
+    public HoldSweepService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Release the expired holds now in the background, then schedule the next sweep.
+     */
+    public static void start(Context context) {
+        context.startService(new Intent(context, HoldSweepService.class));
+    }
+
+    /**
+     * Make sure a sweep runs at about the given time, unless one is scheduled earlier already.
+     */
+    public static synchronized void schedule(Context context, long at) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long scheduledAt = prefs.getLong(PREF_SCHEDULED_AT, 0);
+        if (scheduledAt > System.currentTimeMillis() && scheduledAt <= at) {
+            return;
+        }
+        // The alarm doesn't wake the device; the sweep can wait until it is in use again
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.RTC, at, PendingIntent.getService(context, 0,
+                new Intent(context, HoldSweepService.class), PendingIntent.FLAG_UPDATE_CURRENT));
+        prefs.edit().putLong(PREF_SCHEDULED_AT, at).apply();
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .remove(PREF_SCHEDULED_AT).apply();
+        Bundle result;
+        try {
+            result = getContentResolver().call(ProductContract.BASE_CONTENT_URI,
+                    ProductContract.METHOD_RELEASE_EXPIRED_HOLDS, null, null);
+        } catch (RuntimeException e) {
+            // Retried with the next start of the catalog
+            Log.e(LOG_TAG, "Releasing expired holds failed", e);
+            return;
+        }
+        if (result == null) {
+            return;
+        }
+        int released = result.getInt(ProductContract.RESULT_COUNT);
+        if (released > 0) {
+            Log.i(LOG_TAG, "Released " + released + " expired holds");
+        }
+        long nextExpiry = result.getLong(ProductContract.RESULT_NEXT_EXPIRY);
+        if (nextExpiry != 0) {
+            schedule(this, nextExpiry);
+        }
+    }
+}
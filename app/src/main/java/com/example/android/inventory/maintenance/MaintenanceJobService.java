@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.maintenance;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+
+/**
+ * Runs the database maintenance on API 21 and above when one of the jobs scheduled by
+ * {@link MaintenanceScheduler} is started, i.e. while the device is idle or charging.
+ */
+@TargetApi(21)
+public class MaintenanceJobService extends JobService {
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        // Job callbacks arrive on the main thread, so do the work on a thread of its own
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean completed = MaintenanceScheduler.runMaintenance(
+                        MaintenanceJobService.this);
+                // Ask for a retry if the time budget ran out, so the run resumes soon
+                jobFinished(params, !completed);
+            }
+        }, MaintenanceJobService.class.getSimpleName()).start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The running step finishes within the time budget; what's left resumes with the next
+        // periodic run
+        return false;
+    }
+}
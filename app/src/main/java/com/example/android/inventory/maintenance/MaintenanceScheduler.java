@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.maintenance;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract;
+
+/**
+ * Schedules the idle-time database maintenance (see
+ * {@link ProductContract#METHOD_RUN_MAINTENANCE}) to run about once a day while the device is
+ * idle or charging.
+ *
+ * On API 21 and above two periodic jobs are scheduled, one requiring the device to be idle and
+ * one requiring it to be charging. Older devices use an inexact repeating alarm, and the run is
+ * skipped unless the device is charging or its screen is off.
+ */
+public final class MaintenanceScheduler {
+
+    private static final String LOG_TAG = MaintenanceScheduler.class.getSimpleName();
+
+    /** Job ID of the maintenance job that runs while the device is idle */
+    static final int JOB_ID_IDLE = 1000;
+
+    /** Job ID of the maintenance job that runs while the device is charging */
+    static final int JOB_ID_CHARGING = 1001;
+
+    /** How often maintenance is attempted */
+    private static final long INTERVAL_MILLIS = AlarmManager.INTERVAL_DAY;
+
+    /** Time budget of one run; an unfinished run resumes with the next one */
+    static final long BUDGET_MILLIS = 30 * 1000;
+
+    private MaintenanceScheduler() {}
+
+    /**
+     * Schedule the maintenance unless it is scheduled already.
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT >= 21) {
+            scheduleJobs(context);
+        } else {
+            scheduleAlarm(context);
+        }
+    }
+
+    @TargetApi(21)
+    private static void scheduleJobs(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        boolean idleScheduled = false;
+        boolean chargingScheduled = false;
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            idleScheduled |= job.getId() == JOB_ID_IDLE;
+            chargingScheduled |= job.getId() == JOB_ID_CHARGING;
+        }
+
+        ComponentName service = new ComponentName(context, MaintenanceJobService.class);
+        if (!idleScheduled) {
+            scheduler.schedule(new JobInfo.Builder(JOB_ID_IDLE, service)
+                    .setRequiresDeviceIdle(true)
+                    .setPeriodic(INTERVAL_MILLIS)
+                    .setPersisted(true)
+                    .build());
+        }
+        if (!chargingScheduled) {
+            scheduler.schedule(new JobInfo.Builder(JOB_ID_CHARGING, service)
+                    .setRequiresCharging(true)
+                    .setPeriodic(INTERVAL_MILLIS)
+                    .setPersisted(true)
+                    .build());
+        }
+    }
+
+    private static void scheduleAlarm(Context context) {
+        Intent intent = new Intent(context, MaintenanceService.class);
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + INTERVAL_MILLIS, INTERVAL_MILLIS,
+                PendingIntent.getService(context, 0, intent, 0));
+    }
+
+    /**
+     * Return true if the device is charging or not in interactive use.
+     */
+    @SuppressWarnings("deprecation")
+    static boolean isIdleOrCharging(Context context) {
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        int status = battery == null ? -1 : battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        if (status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL) {
+            return true;
+        }
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return !powerManager.isScreenOn();
+    }
+
+    /**
+     * Run the maintenance through the provider. Must not be called on the main thread.
+     *
+     * @return true if all maintenance steps are done
+     */
+    static boolean runMaintenance(Context context) {
+        ContentResolver resolver = context.getContentResolver();
+        Bundle extras = new Bundle();
+        extras.putLong(ProductContract.EXTRA_BUDGET_MILLIS, BUDGET_MILLIS);
+        try {
+            Bundle result = resolver.call(ProductContract.BASE_CONTENT_URI,
+                    ProductContract.METHOD_RUN_MAINTENANCE, null, extras);
+            return result != null && result.getBoolean(ProductContract.RESULT_COMPLETED);
+        } catch (RuntimeException e) {
+            // Maintenance is best effort; it is retried with the next run
+            Log.e(LOG_TAG, "Maintenance failed", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.maintenance;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Runs the database maintenance on devices below API 21, started by the alarm set up in
+ * {@link MaintenanceScheduler}. The run is skipped while the device is in use on battery.
+ */
+public class MaintenanceService extends IntentService {
+
+    private static final String LOG_TAG = MaintenanceService.class.getSimpleName();
+
+    public MaintenanceService() {
+        super(LOG_TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (!MaintenanceScheduler.isIdleOrCharging(this)) {
+            Log.i(LOG_TAG, "Device in use and not charging, maintenance postponed");
+            return;
+        }
+        MaintenanceScheduler.runMaintenance(this);
+    }
+}
@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the products of this device in step with a sync server, exchanging only the rows that
+ * changed since the last sync.
+ *
+ * The server speaks a small JSON protocol, with gzip compressed bodies in both directions:
+ * <ul>
+ * <li>{@code POST <base>/push} with {@code {"device": ..., "rows": [row, ...]}} uploads local
+ * changes. Any 2xx response means the rows were accepted.</li>
+ * <li>{@code GET <base>/changes?since=<token>&limit=<n>} returns
+ * {@code {"token": ..., "more": bool, "rows": [row, ...]}} with the rows changed since the
+ * token. An empty token asks for everything.</li>
+ * </ul>
+ * A row carries {@code sync_id, name, price, quantity, imageUri, version, updated_at, deleted}
+ * and the {@code device} that last wrote it. Since the base URL is configurable, the engine can
+ * be pointed at a local stand-in server such as {@code http://127.0.0.1:8080}.
+ *
+ * Conflicts are resolved the same way on every device: of two versions of a row the one with
+ * the higher version wins, then the later modification time, then the greater device ID.
+ */
+public class SyncEngine {
+
+    private static final String LOG_TAG = SyncEngine.class.getSimpleName();
+
+    /** Name of the preferences file holding the sync state */
+    private static final String PREFS_NAME = "sync";
+
+    /** Preference key of the token returned by the last completed pull */
+    private static final String PREF_SYNC_TOKEN = "sync_token";
+
+    /** Preference key of the random ID identifying this device */
+    private static final String PREF_DEVICE_ID = "device_id";
+
+    /** Number of rows sent or requested per request */
+    private static final int BATCH_SIZE = 500;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private static final String KEY_DEVICE = "device";
+    private static final String KEY_ROWS = "rows";
+    private static final String KEY_TOKEN = "token";
+    private static final String KEY_MORE = "more";
+
+    /** Columns exchanged with the server for each row */
+    private static final String[] SYNC_PROJECTION = {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_SYNC_ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_IMAGE_URI,
+            ProductEntry.COLUMN_PRODUCT_VERSION,
+            ProductEntry.COLUMN_PRODUCT_UPDATED_AT,
+            ProductEntry.COLUMN_PRODUCT_DELETED,
+            ProductEntry.COLUMN_PRODUCT_DIRTY};
+
+    private static final Uri SYNC_URI = ProductContract.asSyncAdapter(ProductEntry.CONTENT_URI);
+
+    /** Sync URI reading the dirty rows one batch at a time */
+    private static final Uri PUSH_URI = SYNC_URI.buildUpon()
+            .appendQueryParameter("limit", String.valueOf(BATCH_SIZE)).build();
+
+    /**
+     * Result of one sync run.
+     */
+    public static class Result {
+        /** Number of local rows uploaded */
+        public int pushed;
+        /** Number of remote rows written locally */
+        public int pulled;
+        /** Number of remote rows ignored because the local version won */
+        public int conflictsKept;
+
+        @Override
+        public String toString() {
+            return "pushed=" + pushed + " pulled=" + pulled + " conflictsKept=" + conflictsKept;
+        }
+    }
+
+    /**
+     * A row as exchanged with the server.
+     */
+    private static class Row {
+        String syncId;
+        String name;
+        int price;
+        int quantity;
+        String imageUri;
+        long version;
+        long updatedAt;
+        boolean deleted;
+        String device;
+    }
+
+    private final ContentResolver mResolver;
+
+    private final SharedPreferences mPrefs;
+
+    private final String mBaseUrl;
+
+    private final String mDeviceId;
+
+    /**
+     * Constructs a new {@link SyncEngine}.
+     *
+     * @param context of the app
+     * @param baseUrl base URL of the sync server, without a trailing slash
+     */
+    public SyncEngine(Context context, String baseUrl) {
+        mResolver = context.getContentResolver();
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mBaseUrl = baseUrl;
+
+        String deviceId = mPrefs.getString(PREF_DEVICE_ID, null);
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString();
+            mPrefs.edit().putString(PREF_DEVICE_ID, deviceId).apply();
+        }
+        mDeviceId = deviceId;
+    }
+
+    /**
+     * Push the local changes, then pull the remote ones. Must not be called on the main thread.
+     */
+    public Result sync() throws IOException {
+        Result result = new Result();
+        push(result);
+        pull(result);
+        Log.i(LOG_TAG, "Sync finished: " + result);
+        return result;
+    }
+
+    /**
+     * Upload all dirty rows in batches. Once a batch is accepted its rows are marked clean, or
+     * removed for good if they are tombstones, unless they changed again in the meantime.
+     */
+    private void push(Result result) throws IOException {
+        long lastId = 0;
+        while (true) {
+            List<Row> rows = new ArrayList<Row>();
+            List<long[]> idVersions = new ArrayList<long[]>();
+            Cursor cursor = mResolver.query(PUSH_URI, SYNC_PROJECTION,
+                    ProductEntry.COLUMN_PRODUCT_DIRTY + "=1 AND " + ProductEntry._ID + ">?",
+                    new String[] { String.valueOf(lastId) }, ProductEntry._ID + " ASC");
+            if (cursor == null) {
+                return;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    Row row = readRow(cursor);
+                    row.device = mDeviceId;
+                    rows.add(row);
+                    lastId = cursor.getLong(cursor.getColumnIndexOrThrow(ProductEntry._ID));
+                    idVersions.add(new long[] { lastId, row.version, row.deleted ? 1 : 0 });
+                }
+            } finally {
+                cursor.close();
+            }
+            if (rows.isEmpty()) {
+                return;
+            }
+
+            HttpURLConnection connection = open(new URL(mBaseUrl + "/push"));
+            try {
+                connection.setDoOutput(true);
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setChunkedStreamingMode(0);
+                JsonWriter writer = new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(
+                        new BufferedOutputStream(connection.getOutputStream())), "UTF-8"));
+                try {
+                    writer.beginObject();
+                    writer.name(KEY_DEVICE).value(mDeviceId);
+                    writer.name(KEY_ROWS).beginArray();
+                    for (Row row : rows) {
+                        writeRow(writer, row);
+                    }
+                    writer.endArray();
+                    writer.endObject();
+                } finally {
+                    writer.close();
+                }
+                checkResponse(connection);
+            } finally {
+                connection.disconnect();
+            }
+
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>(idVersions.size());
+            for (long[] idVersion : idVersions) {
+                String selection = ProductEntry._ID + "=? AND "
+                        + ProductEntry.COLUMN_PRODUCT_VERSION + "=?";
+                String[] selectionArgs = {
+                        String.valueOf(idVersion[0]), String.valueOf(idVersion[1]) };
+                if (idVersion[2] == 1) {
+                    operations.add(ContentProviderOperation.newDelete(SYNC_URI)
+                            .withSelection(selection, selectionArgs)
+                            .build());
+                } else {
+                    operations.add(ContentProviderOperation.newUpdate(SYNC_URI)
+                            .withSelection(selection, selectionArgs)
+                            .withValue(ProductEntry.COLUMN_PRODUCT_DIRTY, 0)
+                            .build());
+                }
+            }
+            applyBatch(operations);
+            result.pushed += rows.size();
+        }
+    }
+
+    /**
+     * Download the rows changed since the last sync token page by page. Each page is written in
+     * one transaction, and the token is only advanced once its page has been committed, so an
+     * interrupted pull resumes where it stopped.
+     */
+    private void pull(Result result) throws IOException {
+        boolean more = true;
+        while (more) {
+            String token = mPrefs.getString(PREF_SYNC_TOKEN, "");
+            Uri url = Uri.parse(mBaseUrl + "/changes").buildUpon()
+                    .appendQueryParameter("since", token)
+                    .appendQueryParameter("limit", String.valueOf(BATCH_SIZE))
+                    .build();
+
+            List<Row> rows = new ArrayList<Row>();
+            String nextToken = token;
+            more = false;
+            HttpURLConnection connection = open(new URL(url.toString()));
+            try {
+                checkResponse(connection);
+                JsonReader reader = new JsonReader(new InputStreamReader(
+                        responseStream(connection), "UTF-8"));
+                try {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (KEY_TOKEN.equals(name)) {
+                            nextToken = reader.nextString();
+                        } else if (KEY_MORE.equals(name)) {
+                            more = reader.nextBoolean();
+                        } else if (KEY_ROWS.equals(name)) {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                rows.add(readRow(reader));
+                            }
+                            reader.endArray();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+
+            applyRemoteRows(rows, result);
+            mPrefs.edit().putString(PREF_SYNC_TOKEN, nextToken).apply();
+        }
+    }
+
+    /**
+     * Write one page of remote rows to the database in a single batch.
+     */
+    private void applyRemoteRows(List<Row> rows, Result result) throws IOException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        Map<String, Row> localRows = queryLocalRows(rows);
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(rows.size());
+        for (Row remote : rows) {
+            Row local = localRows.get(remote.syncId);
+            String selection = ProductEntry.COLUMN_PRODUCT_SYNC_ID + "=?";
+            String[] selectionArgs = { remote.syncId };
+            if (local == null) {
+                if (!remote.deleted) {
+                    operations.add(ContentProviderOperation.newInsert(SYNC_URI)
+                            .withValues(toValues(remote))
+                            .build());
+                    result.pulled++;
+                }
+            } else if (local.device != null && !wins(remote, local)) {
+                // The local row has unpushed changes that win, keep them for the next push
+                result.conflictsKept++;
+            } else if (remote.deleted) {
+                operations.add(ContentProviderOperation.newDelete(SYNC_URI)
+                        .withSelection(selection, selectionArgs)
+                        .build());
+                result.pulled++;
+            } else {
+                operations.add(ContentProviderOperation.newUpdate(SYNC_URI)
+                        .withSelection(selection, selectionArgs)
+                        .withValues(toValues(remote))
+                        .build());
+                result.pulled++;
+            }
+        }
+        applyBatch(operations);
+    }
+
+    /**
+     * Return the local rows with the sync IDs of the given rows, keyed by sync ID. The device
+     * of a returned row is set to this device if it has unpushed changes, and null otherwise.
+     */
+    private Map<String, Row> queryLocalRows(List<Row> rows) {
+        Map<String, Row> localRows = new HashMap<String, Row>();
+        StringBuilder selection = new StringBuilder(ProductEntry.COLUMN_PRODUCT_SYNC_ID)
+                .append(" IN (");
+        String[] selectionArgs = new String[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = rows.get(i).syncId;
+        }
+        selection.append(")");
+
+        Cursor cursor = mResolver.query(SYNC_URI, SYNC_PROJECTION, selection.toString(),
+                selectionArgs, null);
+        if (cursor == null) {
+            return localRows;
+        }
+        try {
+            int dirtyColumnIndex = cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_DIRTY);
+            while (cursor.moveToNext()) {
+                Row row = readRow(cursor);
+                row.device = cursor.getInt(dirtyColumnIndex) == 1 ? mDeviceId : null;
+                localRows.put(row.syncId, row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return localRows;
+    }
+
+    /**
+     * Return true if version {@code a} of a row wins over version {@code b}.
+     */
+    private static boolean wins(Row a, Row b) {
+        if (a.version != b.version) {
+            return a.version > b.version;
+        }
+        if (a.updatedAt != b.updatedAt) {
+            return a.updatedAt > b.updatedAt;
+        }
+        String deviceA = a.device == null ? "" : a.device;
+        String deviceB = b.device == null ? "" : b.device;
+        return deviceA.compareTo(deviceB) > 0;
+    }
+
+    private void applyBatch(ArrayList<ContentProviderOperation> operations) throws IOException {
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            mResolver.applyBatch(ProductContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException e) {
+            throw new IOException("Failed to apply sync batch", e);
+        } catch (OperationApplicationException e) {
+            throw new IOException("Failed to apply sync batch", e);
+        }
+    }
+
+    private static HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+
+    private static void checkResponse(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        if (code < 200 || code >= 300) {
+            throw new IOException("Sync server returned " + code + " for "
+                    + connection.getURL());
+        }
+    }
+
+    private static InputStream responseStream(HttpURLConnection connection) throws IOException {
+        InputStream in = new BufferedInputStream(connection.getInputStream());
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            in = new GZIPInputStream(in);
+        }
+        return in;
+    }
+
+    private static Row readRow(Cursor cursor) {
+        Row row = new Row();
+        row.syncId = cursor.getString(cursor.getColumnIndexOrThrow(
+                ProductEntry.COLUMN_PRODUCT_SYNC_ID));
+        row.name = cursor.getString(cursor.getColumnIndexOrThrow(
+                ProductEntry.COLUMN_PRODUCT_NAME));
+        row.price = cursor.getInt(cursor.getColumnIndexOrThrow(
+                ProductEntry.COLUMN_PRODUCT_PRICE));
+        row.quantity = cursor.getInt(cursor.getColumnIndexOrThrow(
+                ProductEntry.COLUMN_PRODUCT_QUANTITY));
+        row.imageUri = cursor.getString(cursor.getColumnIndexOrThrow(
+                ProductEntry.COLUMN_PRODUCT_IMAGE_URI));
+        row.version = cursor.getLong(cursor.getColumnIndexOrThrow(
+                ProductEntry.COLUMN_PRODUCT_VERSION));
+        row.updatedAt = cursor.getLong(cursor.getColumnIndexOrThrow(
+                ProductEntry.COLUMN_PRODUCT_UPDATED_AT));
+        row.deleted = cursor.getInt(cursor.getColumnIndexOrThrow(
+                ProductEntry.COLUMN_PRODUCT_DELETED)) == 1;
+        return row;
+    }
+
+    private static Row readRow(JsonReader reader) throws IOException {
+        Row row = new Row();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (ProductEntry.COLUMN_PRODUCT_SYNC_ID.equals(name)) {
+                row.syncId = reader.nextString();
+            } else if (ProductEntry.COLUMN_PRODUCT_NAME.equals(name)) {
+                row.name = reader.nextString();
+            } else if (ProductEntry.COLUMN_PRODUCT_PRICE.equals(name)) {
+                row.price = reader.nextInt();
+            } else if (ProductEntry.COLUMN_PRODUCT_QUANTITY.equals(name)) {
+                row.quantity = reader.nextInt();
+            } else if (ProductEntry.COLUMN_PRODUCT_IMAGE_URI.equals(name)) {
+                row.imageUri = reader.nextString();
+            } else if (ProductEntry.COLUMN_PRODUCT_VERSION.equals(name)) {
+                row.version = reader.nextLong();
+            } else if (ProductEntry.COLUMN_PRODUCT_UPDATED_AT.equals(name)) {
+                row.updatedAt = reader.nextLong();
+            } else if (ProductEntry.COLUMN_PRODUCT_DELETED.equals(name)) {
+                row.deleted = reader.nextBoolean();
+            } else if (KEY_DEVICE.equals(name)) {
+                row.device = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (row.syncId == null) {
+            throw new IOException("Sync row without " + ProductEntry.COLUMN_PRODUCT_SYNC_ID);
+        }
+        return row;
+    }
+
+    private static void writeRow(JsonWriter writer, Row row) throws IOException {
+        writer.beginObject();
+        writer.name(ProductEntry.COLUMN_PRODUCT_SYNC_ID).value(row.syncId);
+        writer.name(ProductEntry.COLUMN_PRODUCT_NAME).value(row.name);
+        writer.name(ProductEntry.COLUMN_PRODUCT_PRICE).value(row.price);
+        writer.name(ProductEntry.COLUMN_PRODUCT_QUANTITY).value(row.quantity);
+        writer.name(ProductEntry.COLUMN_PRODUCT_IMAGE_URI).value(row.imageUri);
+        writer.name(ProductEntry.COLUMN_PRODUCT_VERSION).value(row.version);
+        writer.name(ProductEntry.COLUMN_PRODUCT_UPDATED_AT).value(row.updatedAt);
+        writer.name(ProductEntry.COLUMN_PRODUCT_DELETED).value(row.deleted);
+        writer.name(KEY_DEVICE).value(row.device);
+        writer.endObject();
+    }
+
+    /**
+     * Return the values that store a remote row locally as a clean row.
+     */
+    private static ContentValues toValues(Row row) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_SYNC_ID, row.syncId);
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, row.name == null ? "" : row.name);
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, row.price);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, row.quantity);
+        values.put(ProductEntry.COLUMN_PRODUCT_IMAGE_URI, row.imageUri == null ? "" : row.imageUri);
+        values.put(ProductEntry.COLUMN_PRODUCT_VERSION, row.version);
+        values.put(ProductEntry.COLUMN_PRODUCT_UPDATED_AT, row.updatedAt);
+        values.put(ProductEntry.COLUMN_PRODUCT_DELETED, 0);
+        values.put(ProductEntry.COLUMN_PRODUCT_DIRTY, 0);
+        return values;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.sync;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.inventory.R;
+
+import java.io.IOException;
+
+/**
+ * Runs the {@link SyncEngine} in the background against the server configured in
+ * {@code R.string.sync_server_url}. Requests arriving while a sync runs are queued and run
+ * one after the other.
+ */
+public class SyncService extends IntentService {
+
+    private static final String LOG_TAG = SyncService.class.getSimpleName();
+
+    public SyncService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Request a sync in the background.
+     */
+    public static void requestSync(Context context) {
+        context.startService(new Intent(context, SyncService.class));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        String baseUrl = getString(R.string.sync_server_url);
+        if (TextUtils.isEmpty(baseUrl)) {
+            Log.w(LOG_TAG, "No sync server configured");
+            return;
+        }
+        try {
+            new SyncEngine(this, baseUrl).sync();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Sync with " + baseUrl + " failed", e);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+
+/**
+ * Home screen widget showing the number of products, the units and value in stock and the
+ * number of products running low. The widget is redrawn by {@link StockWidgetService}, which
+ * reads the single-row stock summary, and {@link StockWidgetUpdater} triggers it when the
+ * products change.
+ */
+public class StockWidgetProvider extends AppWidgetProvider {
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        StockWidgetUpdater.getInstance(context).register();
+        StockWidgetService.start(context);
+    }
+
+    @Override
+    public void onEnabled(Context context) {
+        StockWidgetUpdater.getInstance(context).register();
+    }
+
+    @Override
+    public void onDisabled(Context context) {
+        StockWidgetUpdater.getInstance(context).unregister();
+    }
+
+    /**
+     * Return true if at least one stock widget is on the home screen.
+     */
+    static boolean hasWidgets(Context context) {
+        AppWidgetManager manager = AppWidgetManager.getInstance(context);
+        return manager.getAppWidgetIds(new ComponentName(context, StockWidgetProvider.class))
+                .length > 0;
+    }
+}
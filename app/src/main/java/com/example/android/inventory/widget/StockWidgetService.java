@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.widget;
+
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.widget.RemoteViews;
+
+import com.example.android.inventory.CatalogActivity;
+import com.example.android.inventory.R;
+import com.example.android.inventory.data.ProductContract.SummaryEntry;
+
+/**
+ * Reads the stock summary and redraws all stock widgets with it. The summary is a single row
+ * maintained by the database, so a redraw costs one primary key lookup.
+ */
+public class StockWidgetService extends IntentService {
+
+    private static final String LOG_TAG = StockWidgetService.class.getSimpleName();
+
+    private static final String[] PROJECTION = {
+            SummaryEntry.COLUMN_PRODUCT_COUNT,
+            SummaryEntry.COLUMN_TOTAL_UNITS,
+            SummaryEntry.COLUMN_STOCK_VALUE,
+            SummaryEntry.COLUMN_LOW_STOCK_COUNT };
+
+    public StockWidgetService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Redraw the stock widgets in the background.
+     */
+    public static void start(Context context) {
+        context.startService(new Intent(context, StockWidgetService.class));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        AppWidgetManager manager = AppWidgetManager.getInstance(this);
+        int[] widgetIds = manager.getAppWidgetIds(new ComponentName(this, StockWidgetProvider.class));
+        if (widgetIds.length == 0) {
+            return;
+        }
+
+        long productCount = 0;
+        long totalUnits = 0;
+        long stockValue = 0;
+        long lowStockCount = 0;
+        Cursor cursor = getContentResolver().query(SummaryEntry.CONTENT_URI, PROJECTION,
+                null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    productCount = cursor.getLong(0);
+                    totalUnits = cursor.getLong(1);
+                    stockValue = cursor.getLong(2);
+                    lowStockCount = cursor.getLong(3);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        RemoteViews views = new RemoteViews(getPackageName(), R.layout.stock_widget);
+        views.setTextViewText(R.id.widget_product_count,
+                getString(R.string.widget_product_count, productCount));
+        views.setTextViewText(R.id.widget_total_units,
+                getString(R.string.widget_total_units, totalUnits));
+        views.setTextViewText(R.id.widget_stock_value,
+                getString(R.string.widget_stock_value, stockValue));
+        views.setTextViewText(R.id.widget_low_stock,
+                getString(R.string.widget_low_stock, lowStockCount));
+
+        // Tapping the widget opens the catalog
+        PendingIntent openCatalog = PendingIntent.getActivity(this, 0,
+                new Intent(this, CatalogActivity.class), 0);
+        views.setOnClickPendingIntent(R.id.widget_root, openCatalog);
+
+        manager.updateAppWidget(widgetIds, views);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.inventory.widget;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.example.android.inventory.data.ProductContract.SummaryEntry;
+
+/**
+ * Observes the stock summary and redraws the stock widgets when it changes, at most once per
+ * {@link #MIN_UPDATE_INTERVAL_MILLIS}.
+ *
+ * The provider already merges a burst of writes into few notifications. On top of that, a
+ * change arriving within the interval after the last redraw is held back until the interval
+ * has passed, and all changes held back are covered by that one redraw.
+ */
+public class StockWidgetUpdater extends ContentObserver {
+
+    /** Shortest time between two widget redraws */
+    public static final long MIN_UPDATE_INTERVAL_MILLIS = 5000;
+
+    private static StockWidgetUpdater sInstance;
+
+    private final Context mContext;
+
+    private final Handler mHandler;
+
+    private boolean mRegistered;
+
+    /** Uptime of the last redraw, or -1 if there was none */
+    private long mLastUpdateAt = -1;
+
+    private boolean mUpdateScheduled;
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mUpdateScheduled = false;
+            mLastUpdateAt = SystemClock.uptimeMillis();
+            StockWidgetService.start(mContext);
+        }
+    };
+
+    /**
+     * Return the process-wide updater. Must be called on the main thread.
+     */
+    public static StockWidgetUpdater getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StockWidgetUpdater(context.getApplicationContext(),
+                    new Handler(Looper.getMainLooper()));
+        }
+        return sInstance;
+    }
+
+    private StockWidgetUpdater(Context context, Handler handler) {
+        super(handler);
+        mContext = context;
+        mHandler = handler;
+    }
+
+    /**
+     * Start observing the stock summary, if there are any widgets to update.
+     */
+    public void register() {
+        if (mRegistered || !StockWidgetProvider.hasWidgets(mContext)) {
+            return;
+        }
+        mContext.getContentResolver().registerContentObserver(SummaryEntry.CONTENT_URI, false,
+                this);
+        mRegistered = true;
+    }
+
+    /**
+     * Stop observing the stock summary, e.g. because the last widget was removed.
+     */
+    public void unregister() {
+        if (!mRegistered) {
+            return;
+        }
+        mContext.getContentResolver().unregisterContentObserver(this);
+        mHandler.removeCallbacks(mUpdateRunnable);
+        mUpdateScheduled = false;
+        mRegistered = false;
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        if (mUpdateScheduled) {
+            // The pending redraw will show this change as well
+            return;
+        }
+        long delay = 0;
+        if (mLastUpdateAt >= 0) {
+            long nextAllowed = mLastUpdateAt + MIN_UPDATE_INTERVAL_MILLIS;
+            delay = Math.max(0, nextAllowed - SystemClock.uptimeMillis());
+        }
+        mUpdateScheduled = true;
+        mHandler.postDelayed(mUpdateRunnable, delay);
+    }
+}